@@ -0,0 +1,153 @@
+/*******************************************************************************
+ *  Imixs Workflow 
+ *  Copyright (C) 2001, 2011 Imixs Software Solutions GmbH,  
+ *  http://www.imixs.com
+ *  
+ *  This program is free software; you can redistribute it and/or 
+ *  modify it under the terms of the GNU General Public License 
+ *  as published by the Free Software Foundation; either version 2 
+ *  of the License, or (at your option) any later version.
+ *  
+ *  This program is distributed in the hope that it will be useful, 
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU 
+ *  General Public License for more details.
+ *  
+ *  You can receive a copy of the GNU General Public
+ *  License at http://www.gnu.org/licenses/gpl.html
+ *  
+ *  Project: 
+ *  	http://www.imixs.org
+ *  	http://java.net/projects/imixs-workflow
+ *  
+ *  Contributors:  
+ *  	Imixs Software Solutions GmbH - initial API and implementation
+ *  	Ralph Soika - Software Developer
+ *******************************************************************************/
+
+package org.imixs.workflow.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.ParseException;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.imixs.workflow.bpmn.BPMNModel;
+import org.imixs.workflow.bpmn.BPMNParser;
+import org.imixs.workflow.exceptions.ModelException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xml.sax.SAXException;
+
+/**
+ * JMH benchmark for the BPMNParser. The benchmark parses the models
+ * 'simple.bpmn' and 'ticket.bpmn' from the core tests and a synthetic model
+ * with about 10.000 elements (tasks, events and sequence flows).
+ * 
+ * <pre>
+ * java -jar target/benchmarks.jar BPMNParserBenchmark -rf json
+ * </pre>
+ * 
+ * @author rsoika
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BPMNParserBenchmark {
+
+	public static final int SYNTHETIC_ELEMENTS = 10000;
+
+	@Param({ "simple", "ticket", "synthetic" })
+	public String model;
+
+	byte[] modelData;
+
+	@Setup
+	public void setup() throws IOException {
+		if ("synthetic".equals(model))
+			modelData = createSyntheticModel(SYNTHETIC_ELEMENTS / 4).getBytes("UTF-8");
+		else
+			modelData = readResource("/bpmn/" + model + ".bpmn");
+	}
+
+	@Benchmark
+	public BPMNModel parseModel()
+			throws ParseException, ParserConfigurationException, SAXException, IOException, ModelException {
+		return BPMNParser.parseModel(modelData, "UTF-8");
+	}
+
+	static byte[] readResource(String name) throws IOException {
+		InputStream in = BPMNParserBenchmark.class.getResourceAsStream(name);
+		if (in == null)
+			throw new IOException("resource not found: " + name);
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int length;
+			while ((length = in.read(buffer)) > 0) {
+				out.write(buffer, 0, length);
+			}
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Creates a model with a chain of tasks. Each task is connected by an
+	 * event to the next task. So each task adds 4 elements (task, event and 2
+	 * sequence flows).
+	 */
+	static String createSyntheticModel(int tasks) {
+		StringBuilder bpmn = new StringBuilder();
+		bpmn.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+		bpmn.append("<bpmn2:definitions xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\" ");
+		bpmn.append("xmlns:bpmn2=\"http://www.omg.org/spec/BPMN/20100524/MODEL\" ");
+		bpmn.append("xmlns:imixs=\"http://www.imixs.org/bpmn2\" xmlns:xs=\"http://www.w3.org/2001/XMLSchema\" ");
+		bpmn.append("id=\"Definitions_1\" targetNamespace=\"http://www.imixs.org/bpmn2\">\n");
+		bpmn.append("<bpmn2:extensionElements><imixs:item name=\"txtworkflowmodelversion\" type=\"xs:string\">");
+		bpmn.append("<imixs:value><![CDATA[synthetic-1.0.0]]></imixs:value></imixs:item></bpmn2:extensionElements>\n");
+		bpmn.append("<bpmn2:process id=\"synthetic\" name=\"Synthetic\" isExecutable=\"false\">\n");
+		bpmn.append("<bpmn2:startEvent id=\"StartEvent_1\" name=\"Start\">");
+		bpmn.append("<bpmn2:outgoing>Start_Flow</bpmn2:outgoing></bpmn2:startEvent>\n");
+		bpmn.append("<bpmn2:sequenceFlow id=\"Start_Flow\" sourceRef=\"StartEvent_1\" targetRef=\"Task_0\"/>\n");
+		for (int i = 0; i < tasks; i++) {
+			int next = (i + 1) % tasks;
+			bpmn.append("<bpmn2:task id=\"Task_").append(i).append("\" imixs:processid=\"")
+					.append(1000 + i * 10).append("\" name=\"Task ").append(i).append("\">");
+			bpmn.append("<bpmn2:extensionElements><imixs:item name=\"txtworkflowsummary\" type=\"xs:string\">");
+			bpmn.append("<imixs:value><![CDATA[Task ").append(i).append("]]></imixs:value></imixs:item>");
+			bpmn.append("</bpmn2:extensionElements>");
+			bpmn.append("<bpmn2:outgoing>Flow_").append(i).append("_a</bpmn2:outgoing></bpmn2:task>\n");
+			bpmn.append("<bpmn2:intermediateCatchEvent id=\"Event_").append(i)
+					.append("\" imixs:activityid=\"10\" name=\"submit\">");
+			bpmn.append("<bpmn2:extensionElements><imixs:item name=\"txtactivityresult\" type=\"xs:string\">");
+			bpmn.append("<imixs:value><![CDATA[<item name='txtname'>").append(i).append("</item>]]></imixs:value>");
+			bpmn.append("</imixs:item></bpmn2:extensionElements>");
+			bpmn.append("<bpmn2:incoming>Flow_").append(i).append("_a</bpmn2:incoming>");
+			bpmn.append("<bpmn2:outgoing>Flow_").append(i).append("_b</bpmn2:outgoing>");
+			bpmn.append("</bpmn2:intermediateCatchEvent>\n");
+			bpmn.append("<bpmn2:sequenceFlow id=\"Flow_").append(i).append("_a\" sourceRef=\"Task_").append(i)
+					.append("\" targetRef=\"Event_").append(i).append("\"/>\n");
+			bpmn.append("<bpmn2:sequenceFlow id=\"Flow_").append(i).append("_b\" sourceRef=\"Event_").append(i)
+					.append("\" targetRef=\"Task_").append(next).append("\"/>\n");
+		}
+		bpmn.append("</bpmn2:process>\n</bpmn2:definitions>\n");
+		return bpmn.toString();
+	}
+}
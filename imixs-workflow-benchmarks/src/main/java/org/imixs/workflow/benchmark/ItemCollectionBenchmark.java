@@ -0,0 +1,212 @@
+/*******************************************************************************
+ *  Imixs Workflow 
+ *  Copyright (C) 2001, 2011 Imixs Software Solutions GmbH,  
+ *  http://www.imixs.com
+ *  
+ *  This program is free software; you can redistribute it and/or 
+ *  modify it under the terms of the GNU General Public License 
+ *  as published by the Free Software Foundation; either version 2 
+ *  of the License, or (at your option) any later version.
+ *  
+ *  This program is distributed in the hope that it will be useful, 
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU 
+ *  General Public License for more details.
+ *  
+ *  You can receive a copy of the GNU General Public
+ *  License at http://www.gnu.org/licenses/gpl.html
+ *  
+ *  Project: 
+ *  	http://www.imixs.org
+ *  	http://java.net/projects/imixs-workflow
+ *  
+ *  Contributors:  
+ *  	Imixs Software Solutions GmbH - initial API and implementation
+ *  	Ralph Soika - Software Developer
+ *******************************************************************************/
+
+package org.imixs.workflow.benchmark;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+import java.util.concurrent.TimeUnit;
+
+import org.imixs.workflow.ItemCollection;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmark for the hot path of the ItemCollection. The benchmark reads
+ * and replaces the items typical accessed by the WorkflowKernel during one
+ * processing step and copies a workitem. The 'legacy' benchmarks use a copy of the former
+ * implementation (synchronized Hashtable, lower casing on each access, null
+ * scan with remove() on each read and Vector values) as baseline. The
+ * benchmark 'copyAndSaveLegacy' copies each single item into the new
+ * ItemCollection and is the baseline for the copy-on-write benchmark
+ * 'copyAndSave'. Run the benchmark with:
+ * 
+ * <pre>
+ * java -jar target/benchmarks.jar ItemCollectionBenchmark -rf json
+ * </pre>
+ * 
+ * @author rsoika
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ItemCollectionBenchmark {
+
+	static final String[] READ_ITEMS = { "$ProcessID", "$ActivityID", "$modelversion", "type", "$UniqueID",
+			"namOwner", "$WorkflowGroup", "txtName" };
+
+	static final List<String> CLONE_ITEMS = Arrays.asList("$uniqueid", "$processid", "$modelversion", "txtname",
+			"namowner", "$readaccess");
+
+	static final Date MODIFIED = new Date();
+
+	ItemCollection workitem;
+	LegacyItemCollection legacyWorkitem;
+
+	@Setup
+	public void setup() {
+		workitem = ItemCollectionCodecBenchmark.createWorkitem(0);
+		workitem.replaceItemValue("txtName", "Ticket");
+		legacyWorkitem = new LegacyItemCollection();
+		for (Map.Entry<String, List<Object>> entry : workitem.getAllItems().entrySet()) {
+			legacyWorkitem.replaceItemValue(entry.getKey(), new Vector<Object>(entry.getValue()));
+		}
+	}
+
+	@Benchmark
+	public int readItems() {
+		int result = 0;
+		for (String name : READ_ITEMS) {
+			result += workitem.getItemValue(name).size();
+		}
+		result += workitem.getItemValueInteger("$processid");
+		result += workitem.getItemValueInteger("$activityid");
+		return result;
+	}
+
+	@Benchmark
+	public int readItemsLegacy() {
+		int result = 0;
+		for (String name : READ_ITEMS) {
+			result += legacyWorkitem.getItemValue(name).size();
+		}
+		result += legacyWorkitem.getItemValueInteger("$processid");
+		result += legacyWorkitem.getItemValueInteger("$activityid");
+		return result;
+	}
+
+	@Benchmark
+	public ItemCollection replaceItems() {
+		workitem.replaceItemValue("$ActivityID", 20);
+		workitem.replaceItemValue("$ProcessID", 1100);
+		workitem.replaceItemValue("$lastEvent", 20);
+		workitem.replaceItemValue("txtWorkflowStatus", "In Bearbeitung");
+		return workitem;
+	}
+
+	@Benchmark
+	public LegacyItemCollection replaceItemsLegacy() {
+		legacyWorkitem.replaceItemValue("$ActivityID", 20);
+		legacyWorkitem.replaceItemValue("$ProcessID", 1100);
+		legacyWorkitem.replaceItemValue("$lastEvent", 20);
+		legacyWorkitem.replaceItemValue("txtWorkflowStatus", "In Bearbeitung");
+		return legacyWorkitem;
+	}
+
+	@Benchmark
+	public ItemCollection copy() {
+		return new ItemCollection(workitem);
+	}
+
+	/**
+	 * Copies a workitem and changes some items as done by the VersionPlugin
+	 * and the EntityService during a save. The copy shares the unchanged items
+	 * with the source (copy-on-write).
+	 */
+	@Benchmark
+	public ItemCollection copyAndSave() {
+		ItemCollection copy = new ItemCollection(workitem);
+		copy.removeItem("$uniqueid");
+		copy.replaceItemValue("$WorkItemIDRef", "1");
+		copy.replaceItemValue("$modified", MODIFIED);
+		return copy;
+	}
+
+	/**
+	 * Same as copyAndSave but copies each item into the new ItemCollection
+	 */
+	@Benchmark
+	public ItemCollection copyAndSaveLegacy() {
+		ItemCollection copy = new ItemCollection(workitem.getAllItems());
+		copy.removeItem("$uniqueid");
+		copy.replaceItemValue("$WorkItemIDRef", "1");
+		copy.replaceItemValue("$modified", MODIFIED);
+		return copy;
+	}
+
+	@Benchmark
+	public ItemCollection cloneItems() {
+		return workitem.clone(CLONE_ITEMS);
+	}
+
+	/**
+	 * Copy of the former storage of the ItemCollection used as baseline
+	 */
+	static class LegacyItemCollection {
+		private Map<String, List<Object>> hash = new Hashtable<String, List<Object>>();
+
+		List<Object> getItemValue(String aName) {
+			aName = aName.toLowerCase();
+			List<Object> v = hash.get(aName);
+			if (v == null)
+				return new Vector<Object>();
+			for (int i = 0; i < v.size(); i++) {
+				if (v.get(i) == null)
+					v.remove(i);
+			}
+			return v;
+		}
+
+		int getItemValueInteger(String aName) {
+			aName = aName.toLowerCase();
+			List<?> v = getItemValue(aName);
+			if (v.size() == 0)
+				return 0;
+			return new Double(v.get(0).toString()).intValue();
+		}
+
+		@SuppressWarnings("unchecked")
+		void replaceItemValue(String itemName, Object itemValue) {
+			itemName = itemName.toLowerCase();
+			List<Object> itemValueList;
+			if (itemValue instanceof List) {
+				itemValueList = (List<Object>) itemValue;
+				itemValueList.removeAll(Collections.singleton(null));
+			} else {
+				itemValueList = new Vector<Object>();
+				itemValueList.add(itemValue);
+			}
+			hash.put(itemName, itemValueList);
+		}
+	}
+}
@@ -0,0 +1,199 @@
+/*******************************************************************************
+ *  Imixs Workflow 
+ *  Copyright (C) 2001, 2011 Imixs Software Solutions GmbH,  
+ *  http://www.imixs.com
+ *  
+ *  This program is free software; you can redistribute it and/or 
+ *  modify it under the terms of the GNU General Public License 
+ *  as published by the Free Software Foundation; either version 2 
+ *  of the License, or (at your option) any later version.
+ *  
+ *  This program is distributed in the hope that it will be useful, 
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU 
+ *  General Public License for more details.
+ *  
+ *  You can receive a copy of the GNU General Public
+ *  License at http://www.gnu.org/licenses/gpl.html
+ *  
+ *  Project: 
+ *  	http://www.imixs.org
+ *  	http://java.net/projects/imixs-workflow
+ *  
+ *  Contributors:  
+ *  	Imixs Software Solutions GmbH - initial API and implementation
+ *  	Ralph Soika - Software Developer
+ *******************************************************************************/
+
+package org.imixs.workflow.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+import java.util.concurrent.TimeUnit;
+
+import org.imixs.workflow.ItemCollection;
+import org.imixs.workflow.WorkflowKernel;
+import org.imixs.workflow.util.ItemCollectionCodec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmark comparing the ItemCollectionCodec with the Java serialization
+ * (ObjectOutputStream) used before to store the data of an Entity.
+ * <p>
+ * The benchmark encodes and decodes a typical workitem with about 40 items,
+ * a workflow history and optional a file attachment. Run the benchmark with:
+ * 
+ * <pre>
+ * java -jar target/benchmarks.jar ItemCollectionCodecBenchmark -rf json
+ * </pre>
+ * 
+ * The benchmark also reports the size of the encoded data.
+ * 
+ * @author rsoika
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ItemCollectionCodecBenchmark {
+
+	@Param({ "0", "4096" })
+	public int attachmentSize;
+
+	Map<String, List<Object>> items;
+	byte[] binaryData;
+	byte[] serializedData;
+
+	@Setup
+	public void setup() throws IOException {
+		items = createWorkitem(attachmentSize).getAllItems();
+		binaryData = ItemCollectionCodec.encode(items);
+		serializedData = serialize(items);
+		System.out.println("\nencoded size: binary=" + binaryData.length + " bytes, serialized="
+				+ serializedData.length + " bytes");
+	}
+
+	@Benchmark
+	public byte[] encodeBinary() throws IOException {
+		return ItemCollectionCodec.encode(items);
+	}
+
+	@Benchmark
+	public byte[] encodeSerialized() throws IOException {
+		return serialize(items);
+	}
+
+	@Benchmark
+	public Map<String, List<Object>> decodeBinary() throws IOException {
+		return ItemCollectionCodec.decode(binaryData);
+	}
+
+	@SuppressWarnings("unchecked")
+	@Benchmark
+	public Map<String, List<Object>> decodeSerialized() throws IOException, ClassNotFoundException {
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serializedData));
+		try {
+			return (Map<String, List<Object>>) in.readObject();
+		} finally {
+			in.close();
+		}
+	}
+
+	static byte[] serialize(Map<String, List<Object>> items) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(items);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Creates a workitem like it is stored by the WorkflowService after some
+	 * processing steps.
+	 */
+	static ItemCollection createWorkitem(int attachmentSize) {
+		ItemCollection workitem = new ItemCollection();
+		workitem.replaceItemValue(WorkflowKernel.UNIQUEID, WorkflowKernel.generateUniqueID());
+		workitem.replaceItemValue("$uniqueidref", WorkflowKernel.generateUniqueID());
+		workitem.replaceItemValue("type", "workitem");
+		workitem.replaceItemValue("$modelversion", "ticket-de-1.0.0");
+		workitem.replaceItemValue("$processid", 1100);
+		workitem.replaceItemValue("$activityid", 20);
+		workitem.replaceItemValue("$workflowgroup", "Ticket");
+		workitem.replaceItemValue("$workflowstatus", "In Bearbeitung");
+		workitem.replaceItemValue("$workflowsummary", "Ticket #4711 - Drucker im 2. OG defekt");
+		workitem.replaceItemValue("$workflowabstract", "Der Drucker im 2. OG zieht kein Papier mehr ein.");
+		workitem.replaceItemValue("$creator", "manfred");
+		workitem.replaceItemValue("$editor", "anna");
+		workitem.replaceItemValue("namcreator", "manfred");
+		workitem.replaceItemValue("namcurrenteditor", "anna");
+		workitem.replaceItemValue("namlasteditor", "anna");
+		workitem.replaceItemValue("namowner", new Vector<String>(Arrays.asList("anna", "team-it")));
+		workitem.replaceItemValue("$readaccess",
+				new Vector<String>(Arrays.asList("anna", "manfred", "team-it", "org.imixs.ACCESSLEVEL.MANAGERACCESS")));
+		workitem.replaceItemValue("$writeaccess", new Vector<String>(Arrays.asList("anna", "team-it")));
+		workitem.replaceItemValue("namteam", new Vector<String>(Arrays.asList("anna", "paul", "lisa")));
+		workitem.replaceItemValue("$created", new Date());
+		workitem.replaceItemValue("$modified", new Date());
+		workitem.replaceItemValue("$lastprocessingdate", new Date());
+		workitem.replaceItemValue("datdue", new Date());
+		workitem.replaceItemValue("timworkflowlastaccess", new Date());
+		workitem.replaceItemValue("numsequencenumber", 4711);
+		workitem.replaceItemValue("numpriority", 2);
+		workitem.replaceItemValue("numcosts", 129.95);
+		workitem.replaceItemValue("numsize", 1234567890123L);
+		workitem.replaceItemValue("keyapproved", true);
+		workitem.replaceItemValue("keymailenabled", "1");
+		workitem.replaceItemValue("txtsubject", "Drucker im 2. OG defekt");
+		workitem.replaceItemValue("txtdescription",
+				"Der Drucker im 2. OG zieht seit heute morgen kein Papier mehr ein. "
+						+ "Bitte um schnelle Hilfe, da die Monatsabrechnung gedruckt werden muss.");
+		workitem.replaceItemValue("txtcategory", "Hardware");
+		workitem.replaceItemValue("txtlocation", "Gebäude A / 2. OG / Raum 2.14");
+		workitem.replaceItemValue("txtworkflowresult", "");
+		workitem.replaceItemValue("txtworkflowgroup", "Ticket");
+		workitem.replaceItemValue("txtworkflowsummary", "Ticket #4711");
+		workitem.replaceItemValue("txtworkflowimageurl", "/workflow/ticket.gif");
+		workitem.replaceItemValue("txtworkflowresultmessage", "");
+
+		// workflow history is a list of lists [date, comment, user]
+		Vector<Object> history = new Vector<Object>();
+		for (int i = 0; i < 8; i++) {
+			Vector<Object> entry = new Vector<Object>();
+			entry.add(new Date());
+			entry.add("Ticket wurde von anna bearbeitet (Schritt " + i + ")");
+			entry.add("anna");
+			history.add(entry);
+		}
+		workitem.replaceItemValue("txtworkflowhistory", history);
+
+		if (attachmentSize > 0) {
+			byte[] data = new byte[attachmentSize];
+			for (int i = 0; i < data.length; i++) {
+				data[i] = (byte) i;
+			}
+			workitem.addFile(data, "screenshot.png", "image/png");
+		}
+		return workitem;
+	}
+}
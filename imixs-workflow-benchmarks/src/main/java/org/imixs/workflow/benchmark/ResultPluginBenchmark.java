@@ -0,0 +1,102 @@
+/*******************************************************************************
+ *  Imixs Workflow 
+ *  Copyright (C) 2001, 2011 Imixs Software Solutions GmbH,  
+ *  http://www.imixs.com
+ *  
+ *  This program is free software; you can redistribute it and/or 
+ *  modify it under the terms of the GNU General Public License 
+ *  as published by the Free Software Foundation; either version 2 
+ *  of the License, or (at your option) any later version.
+ *  
+ *  This program is distributed in the hope that it will be useful, 
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU 
+ *  General Public License for more details.
+ *  
+ *  You can receive a copy of the GNU General Public
+ *  License at http://www.gnu.org/licenses/gpl.html
+ *  
+ *  Project: 
+ *  	http://www.imixs.org
+ *  	http://java.net/projects/imixs-workflow
+ *  
+ *  Contributors:  
+ *  	Imixs Software Solutions GmbH - initial API and implementation
+ *  	Ralph Soika - Software Developer
+ *******************************************************************************/
+
+package org.imixs.workflow.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.imixs.workflow.ItemCollection;
+import org.imixs.workflow.exceptions.PluginException;
+import org.imixs.workflow.plugins.ResultPlugin;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmark for the ResultPlugin. The benchmark evaluates a activity
+ * result with several typed items and replaces the item values of a long mail
+ * body.
+ * 
+ * <pre>
+ * java -jar target/benchmarks.jar ResultPluginBenchmark -rf json
+ * </pre>
+ * 
+ * @author rsoika
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResultPluginBenchmark {
+
+	ItemCollection activityEntity;
+	ItemCollection workitem;
+	String mailBody;
+	ResultPlugin resultPlugin;
+
+	@Setup
+	public void setup() {
+		activityEntity = new ItemCollection();
+		activityEntity.replaceItemValue("txtActivityResult",
+				"<item name=\"txtName\">Manfred</item>" + "<item name=\"txtName\">Anna</item>"
+						+ "<item name='keyApproved' type='boolean'>true</item>"
+						+ "<item name='numValue' type='integer'>47</item>"
+						+ "<item ignore=\"true\" name=\"comment\" >some data</item>"
+						+ "<item name='txtWorkflowResultMessage'>Ticket updated</item>");
+		workitem = ItemCollectionCodecBenchmark.createWorkitem(0);
+
+		// a html mail body with 50 tags
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 50; i++) {
+			sb.append("<p>Lorem ipsum dolor sit amet, consectetur adipisici elit, sed eiusmod tempor incidunt ut "
+					+ "labore et dolore magna aliqua. Ut enim ad minim veniam, quis nostrud exercitation.</p>");
+			sb.append("<p>Name: <itemvalue>txtname</itemvalue> created: <itemvalue format=\"yyyy-MM-dd\">"
+					+ "$created</itemvalue></p>");
+		}
+		mailBody = sb.toString();
+		resultPlugin = new ResultPlugin();
+	}
+
+	@Benchmark
+	public ItemCollection evaluateWorkflowResult() throws PluginException {
+		return ResultPlugin.evaluateWorkflowResult(activityEntity, workitem);
+	}
+
+	@Benchmark
+	public String replaceDynamicValues() throws PluginException {
+		return resultPlugin.replaceDynamicValues(mailBody, workitem);
+	}
+}
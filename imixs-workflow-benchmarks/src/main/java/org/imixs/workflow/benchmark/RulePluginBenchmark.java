@@ -0,0 +1,97 @@
+/*******************************************************************************
+ *  Imixs Workflow 
+ *  Copyright (C) 2001, 2011 Imixs Software Solutions GmbH,  
+ *  http://www.imixs.com
+ *  
+ *  This program is free software; you can redistribute it and/or 
+ *  modify it under the terms of the GNU General Public License 
+ *  as published by the Free Software Foundation; either version 2 
+ *  of the License, or (at your option) any later version.
+ *  
+ *  This program is distributed in the hope that it will be useful, 
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU 
+ *  General Public License for more details.
+ *  
+ *  You can receive a copy of the GNU General Public
+ *  License at http://www.gnu.org/licenses/gpl.html
+ *  
+ *  Project: 
+ *  	http://www.imixs.org
+ *  	http://java.net/projects/imixs-workflow
+ *  
+ *  Contributors:  
+ *  	Imixs Software Solutions GmbH - initial API and implementation
+ *  	Ralph Soika - Software Developer
+ *******************************************************************************/
+
+package org.imixs.workflow.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.imixs.workflow.ItemCollection;
+import org.imixs.workflow.exceptions.PluginException;
+import org.imixs.workflow.plugins.RulePlugin;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmark for the RulePlugin. The benchmark evaluates a simple guard
+ * with the Imixs rule engine. To compare the result with a JavaScript engine
+ * available in the JVM run the benchmark with the parameter
+ * '-p engine=javascript'.
+ * 
+ * <pre>
+ * java -jar target/benchmarks.jar RulePluginBenchmark -rf json
+ * </pre>
+ * 
+ * @author rsoika
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RulePluginBenchmark {
+
+	@Param({ "imixs-rule" })
+	String engine;
+
+	RulePlugin rulePlugin;
+	ItemCollection activityEntity;
+	ItemCollection workitem;
+
+	@Setup
+	public void setup() throws PluginException {
+		rulePlugin = new RulePlugin();
+		rulePlugin.init(null);
+		activityEntity = new ItemCollection();
+		activityEntity.replaceItemValue("txtBusinessRuleEngine", engine);
+		activityEntity.replaceItemValue("txtBusinessRule",
+				"var isValid = workitem.amount[0] > 1000 && workitem.txtstatus[0]=='open';");
+		workitem = ItemCollectionCodecBenchmark.createWorkitem(0);
+		workitem.replaceItemValue("amount", 1500);
+		workitem.replaceItemValue("txtStatus", "open");
+	}
+
+	@TearDown
+	public void tearDown() {
+		rulePlugin.close(0);
+	}
+
+	@Benchmark
+	public boolean isValid() throws PluginException {
+		return rulePlugin.isValid(workitem, activityEntity);
+	}
+}
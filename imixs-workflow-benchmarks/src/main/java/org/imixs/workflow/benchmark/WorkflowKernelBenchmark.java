@@ -0,0 +1,98 @@
+/*******************************************************************************
+ *  Imixs Workflow 
+ *  Copyright (C) 2001, 2011 Imixs Software Solutions GmbH,  
+ *  http://www.imixs.com
+ *  
+ *  This program is free software; you can redistribute it and/or 
+ *  modify it under the terms of the GNU General Public License 
+ *  as published by the Free Software Foundation; either version 2 
+ *  of the License, or (at your option) any later version.
+ *  
+ *  This program is distributed in the hope that it will be useful, 
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU 
+ *  General Public License for more details.
+ *  
+ *  You can receive a copy of the GNU General Public
+ *  License at http://www.gnu.org/licenses/gpl.html
+ *  
+ *  Project: 
+ *  	http://www.imixs.org
+ *  	http://java.net/projects/imixs-workflow
+ *  
+ *  Contributors:  
+ *  	Imixs Software Solutions GmbH - initial API and implementation
+ *  	Ralph Soika - Software Developer
+ *******************************************************************************/
+
+package org.imixs.workflow.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.imixs.workflow.ItemCollection;
+import org.imixs.workflow.MokPlugin;
+import org.imixs.workflow.MokWorkflowContext;
+import org.imixs.workflow.WorkflowKernel;
+import org.imixs.workflow.exceptions.PluginException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmark for the WorkflowKernel. The benchmark processes a workitem
+ * with the MokModel and the MokPlugin used by the core tests. The 'save'
+ * benchmark processes the activity 100.10, the 'forward' benchmark the
+ * activity 100.20 which changes the process.
+ * 
+ * <pre>
+ * java -jar target/benchmarks.jar WorkflowKernelBenchmark -rf json
+ * </pre>
+ * 
+ * @author rsoika
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WorkflowKernelBenchmark {
+
+	WorkflowKernel kernel;
+
+	@Setup
+	public void setup() throws PluginException {
+		kernel = new WorkflowKernel(new MokWorkflowContext());
+		kernel.registerPlugin(new MokPlugin());
+	}
+
+	@Benchmark
+	public ItemCollection save() throws PluginException {
+		ItemCollection workitem = createWorkitem(10);
+		kernel.process(workitem);
+		return workitem;
+	}
+
+	@Benchmark
+	public ItemCollection forward() throws PluginException {
+		ItemCollection workitem = createWorkitem(20);
+		kernel.process(workitem);
+		return workitem;
+	}
+
+	private ItemCollection createWorkitem(int activityID) {
+		ItemCollection workitem = new ItemCollection();
+		workitem.replaceItemValue("txtTitel", "Hello");
+		workitem.replaceItemValue("namTeam", "anna");
+		workitem.replaceItemValue("$processid", 100);
+		workitem.replaceItemValue("$activityid", activityID);
+		return workitem;
+	}
+}
@@ -0,0 +1,92 @@
+/*******************************************************************************
+ *  Imixs Workflow 
+ *  Copyright (C) 2001, 2011 Imixs Software Solutions GmbH,  
+ *  http://www.imixs.com
+ *  
+ *  This program is free software; you can redistribute it and/or 
+ *  modify it under the terms of the GNU General Public License 
+ *  as published by the Free Software Foundation; either version 2 
+ *  of the License, or (at your option) any later version.
+ *  
+ *  This program is distributed in the hope that it will be useful, 
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU 
+ *  General Public License for more details.
+ *  
+ *  You can receive a copy of the GNU General Public
+ *  License at http://www.gnu.org/licenses/gpl.html
+ *  
+ *  Project: 
+ *  	http://www.imixs.org
+ *  	http://java.net/projects/imixs-workflow
+ *  
+ *  Contributors:  
+ *  	Imixs Software Solutions GmbH - initial API and implementation
+ *  	Ralph Soika - Software Developer
+ *******************************************************************************/
+
+package org.imixs.workflow.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.imixs.workflow.ItemCollection;
+import org.imixs.workflow.xml.EntityCollection;
+import org.imixs.workflow.xml.XMLItemCollection;
+import org.imixs.workflow.xml.XMLItemCollectionAdapter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmark for the XMLItemCollectionAdapter. The benchmark converts a
+ * collection of 100 workitems into a EntityCollection (as done by the REST
+ * API for a worklist) and a single XMLItemCollection back into a
+ * ItemCollection.
+ * 
+ * <pre>
+ * java -jar target/benchmarks.jar XMLItemCollectionAdapterBenchmark -rf json
+ * </pre>
+ * 
+ * @author rsoika
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class XMLItemCollectionAdapterBenchmark {
+
+	public static final int COLLECTION_SIZE = 100;
+
+	List<ItemCollection> workitems;
+	XMLItemCollection xmlWorkitem;
+
+	@Setup
+	public void setup() throws Exception {
+		workitems = new ArrayList<ItemCollection>();
+		for (int i = 0; i < COLLECTION_SIZE; i++) {
+			workitems.add(ItemCollectionCodecBenchmark.createWorkitem(0));
+		}
+		xmlWorkitem = XMLItemCollectionAdapter.putItemCollection(workitems.get(0));
+	}
+
+	@Benchmark
+	public EntityCollection putCollection() throws Exception {
+		return XMLItemCollectionAdapter.putCollection(workitems);
+	}
+
+	@Benchmark
+	public ItemCollection getItemCollection() {
+		return XMLItemCollectionAdapter.getItemCollection(xmlWorkitem);
+	}
+}
@@ -33,13 +33,13 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
 
 /**
@@ -51,9 +51,12 @@ import java.util.logging.Logger;
  * ItemCcollection enables a very flexibly and easy to use data structure.
  * 
  * A ItemCollection contains various Items (attributes). Every Item exist of a
- * Name (String) and a list of values (List of Object). Internal every Value is
- * stored inside a Vector Class. All values are stored internally in a Map
- * containing key values pairs.
+ * Name (String) and a list of values (List of Object). All values are stored
+ * internally in a Map containing key values pairs. A single value is stored
+ * inside an ArrayList. A List provided by the client is stored as is.
+ * <p>
+ * The lower cased item names are cached, so a lookup of an item did not
+ * create a new String object. A ItemCollection is not thread safe.
  * 
  * NOTE: An ItemCollection is not serializable and can not be stored into
  * another ItemCollection. To serialize a ItemCollection use the
@@ -70,7 +73,15 @@ public class ItemCollection {
 
 	private static Logger logger = Logger.getLogger(ItemCollection.class.getName());
 
-	private Map<String, List<Object>> hash = new Hashtable<String, List<Object>>();
+	// max number of cached item names
+	private static final int MAX_CANONICAL_NAMES = 4096;
+	private static final Map<String, String> canonicalNames = new ConcurrentHashMap<String, String>();
+
+	private Map<String, List<Object>> hash = new HashMap<String, List<Object>>();
+
+	// true if the item map is shared with a copy of this ItemCollection. A
+	// shared map is never changed, it is copied before the next write access.
+	private boolean shared = false;
 
 	/**
 	 * Creates a empty ItemCollection
@@ -96,13 +107,21 @@ public class ItemCollection {
 	}
 
 	/**
-	 * Creates a new ItemCollection by copy values from another ItemCollection
+	 * Creates a new ItemCollection by copy values from another ItemCollection.
+	 * 
+	 * The copy is created copy-on-write. Both ItemCollections share the item
+	 * map until one of them changes an item. Than the changing ItemCollection
+	 * creates its own item map. The value lists of unchanged items are still
+	 * shared. So a value list returned by getItemValue() should not be modified
+	 * directly. Use replaceItemValue() or appendItemValue() instead.
 	 * 
 	 * @param map
 	 */
 	public ItemCollection(ItemCollection aItemCol) {
 		super();
-		this.replaceAllItems(aItemCol.getAllItems());
+		aItemCol.shared = true;
+		this.hash = aItemCol.hash;
+		this.shared = true;
 	}
 
 	/**
@@ -126,13 +145,13 @@ public class ItemCollection {
 	public boolean equals(Object o) {
 		if (!(o instanceof ItemCollection))
 			return false;
-		return hash.equals(((ItemCollection) o).getAllItems());
+		return hash.equals(((ItemCollection) o).hash);
 	}
 
 	/**
 	 * returns the Value of a single Item inside the ItemCollection. If the item
-	 * has no value, this method returns an empty vector. If no item with the
-	 * specified name exists, this method returns an empty vector. It does not
+	 * has no value, this method returns an empty list. If no item with the
+	 * specified name exists, this method returns an empty list. It does not
 	 * throw an exception. The ItemName is not case sensitive. Use hasItem to
 	 * verify the existence of an item.
 	 * 
@@ -144,19 +163,34 @@ public class ItemCollection {
 	 */
 	@SuppressWarnings("rawtypes")
 	public List getItemValue(String aName) {
-		aName = aName.toLowerCase();
-		List<Object> o = hash.get(aName);
-		if (o == null)
-			return new Vector<Object>();
-		else {
-			List<Object> v = o;
-			// scan vector for null values
-			for (int i = 0; i < v.size(); i++) {
-				if (v.get(i) == null)
-					v.remove(i);
-			}
-			return v;
+		List<Object> v = hash.get(canonicalName(aName));
+		if (v == null)
+			return new ArrayList<Object>();
+		if (v.contains(null)) {
+			// null values were added directly into the value list. We return
+			// a copy without null values and did not change the item
+			List<Object> copy = new ArrayList<Object>(v);
+			copy.removeAll(Collections.singleton(null));
+			return copy;
+		}
+		return v;
+	}
+
+	/**
+	 * Returns the lower cased item name. The names are cached so the lookup
+	 * did not create a new String for each call.
+	 * 
+	 * @param aName
+	 * @return lower cased item name
+	 */
+	static String canonicalName(String aName) {
+		String name = canonicalNames.get(aName);
+		if (name == null) {
+			name = aName.toLowerCase();
+			if (canonicalNames.size() < MAX_CANONICAL_NAMES)
+				canonicalNames.put(aName, name);
 		}
+		return name;
 	}
 
 	/**
@@ -173,8 +207,6 @@ public class ItemCollection {
 	 * 
 	 */
 	public String getItemValueString(String aName) {
-
-		aName = aName.toLowerCase();
 		List<?> v = (List<?>) getItemValue(aName);
 		if (v.size() == 0)
 			return "";
@@ -204,12 +236,14 @@ public class ItemCollection {
 	 */
 	public int getItemValueInteger(String aName) {
 		try {
-			aName = aName.toLowerCase();
 			List<?> v = getItemValue(aName);
 			if (v.size() == 0)
 				return 0;
 
-			String sValue = v.get(0).toString();
+			Object o = v.get(0);
+			if (o instanceof Integer)
+				return (Integer) o;
+			String sValue = o.toString();
 			return new Double(sValue).intValue();
 		} catch (NumberFormatException e) {
 			return 0;
@@ -232,7 +266,6 @@ public class ItemCollection {
 	 */
 	public long getItemValueLong(String aName) {
 		try {
-			aName = aName.toLowerCase();
 			List<?> v = getItemValue(aName);
 			if (v.size() == 0)
 				return 0;
@@ -260,7 +293,6 @@ public class ItemCollection {
 	 */
 	public Date getItemValueDate(String aName) {
 		try {
-			aName = aName.toLowerCase();
 			List<?> v = getItemValue(aName);
 			if (v.size() == 0)
 				return null;
@@ -289,7 +321,6 @@ public class ItemCollection {
 	 */
 	public double getItemValueDouble(String aName) {
 		try {
-			aName = aName.toLowerCase();
 			List<?> v = getItemValue(aName);
 			if (v.size() == 0)
 				return 0.0;
@@ -334,7 +365,6 @@ public class ItemCollection {
 	 */
 	public float getItemValueFloat(String aName) {
 		try {
-			aName = aName.toLowerCase();
 			List<?> v = getItemValue(aName);
 			if (v.size() == 0)
 				return (float) 0.0;
@@ -381,7 +411,6 @@ public class ItemCollection {
 	 */
 	public boolean getItemValueBoolean(String aName) {
 		try {
-			aName = aName.toLowerCase();
 			List<?> v = getItemValue(aName);
 			if (v.size() == 0)
 				return false;
@@ -403,8 +432,7 @@ public class ItemCollection {
 	 * 
 	 */
 	public boolean hasItem(String aName) {
-		aName = aName.toLowerCase();
-		return (hash.get(aName) != null);
+		return (hash.get(canonicalName(aName)) != null);
 	}
 
 	/**
@@ -416,8 +444,6 @@ public class ItemCollection {
 	 * 
 	 */
 	public boolean isItemValueInteger(String aName) {
-
-		aName = aName.toLowerCase();
 		List<?> v = getItemValue(aName);
 		if (v.size() == 0)
 			return false;
@@ -437,8 +463,6 @@ public class ItemCollection {
 	 * 
 	 */
 	public boolean isItemValueLong(String aName) {
-
-		aName = aName.toLowerCase();
 		List<?> v = getItemValue(aName);
 		if (v.size() == 0)
 			return false;
@@ -458,8 +482,6 @@ public class ItemCollection {
 	 * 
 	 */
 	public boolean isItemValueDouble(String aName) {
-
-		aName = aName.toLowerCase();
 		List<?> v = getItemValue(aName);
 		if (v.size() == 0)
 			return false;
@@ -479,8 +501,6 @@ public class ItemCollection {
 	 * 
 	 */
 	public boolean isItemValueFloat(String aName) {
-
-		aName = aName.toLowerCase();
 		List<?> v = getItemValue(aName);
 		if (v.size() == 0)
 			return false;
@@ -499,8 +519,6 @@ public class ItemCollection {
 	 * 
 	 */
 	public boolean isItemValueDate(String aName) {
-
-		aName = aName.toLowerCase();
 		List<?> v = getItemValue(aName);
 		if (v.size() == 0)
 			return false;
@@ -512,11 +530,14 @@ public class ItemCollection {
 	}
 
 	/**
-	 * returns all Items of the Collection as a Map
+	 * returns all Items of the Collection as a Map. If the item map is shared
+	 * with a copy of this ItemCollection, the method creates an own item map
+	 * first, because the returned map can be changed by the caller.
 	 * 
 	 * @return Map with all Items
 	 */
 	public Map<String, List<Object>> getAllItems() {
+		detach();
 		return hash;
 
 	}
@@ -530,6 +551,7 @@ public class ItemCollection {
 	 */
 	public void setAllItems(Map<String, List<Object>> aHash) {
 		hash = aHash;
+		shared = false;
 
 	}
 
@@ -603,7 +625,7 @@ public class ItemCollection {
 		if (itemName == null)
 			return;
 		// lower case itemname
-		itemName = itemName.toLowerCase();
+		itemName = canonicalName(itemName);
 
 		// test if value is null
 		if (itemValue == null) {
@@ -629,7 +651,8 @@ public class ItemCollection {
 		// test if value is a list and remove null values
 		if (itemValue instanceof List) {
 			itemValueList = (List<Object>) itemValue;
-			itemValueList.removeAll(Collections.singleton(null));
+			if (itemValueList.contains(null))
+				itemValueList.removeAll(Collections.singleton(null));
 			// scan List for null values and remove them
 			for (int i = 0; i < itemValueList.size(); i++) {
 				// test if ItemCollection
@@ -640,24 +663,23 @@ public class ItemCollection {
 				}
 			}
 		} else {
-			// create an instance of Vector
-			itemValueList = new Vector<Object>();
+			// create an instance of ArrayList
+			itemValueList = new ArrayList<Object>(2);
 			itemValueList.add(itemValue);
 		}
 
 		// now itemValue is of instance List
 
 		// replace item value?
+		detach();
 		if (append) {
-			// append item value
+			// append item value. The old value list can be shared with a copy
+			// of this ItemCollection, so we create a new list
 			List<Object> oldValueList = (List<Object>) getItemValue(itemName);
-
-			oldValueList.addAll(itemValueList);
-
-			// for (Object o : itemValueList) {
-			// oldValueList.add(o);
-			// }
-			hash.put(itemName, (List<Object>) oldValueList);
+			List<Object> newValueList = new ArrayList<Object>(oldValueList.size() + itemValueList.size());
+			newValueList.addAll(oldValueList);
+			newValueList.addAll(itemValueList);
+			hash.put(itemName, newValueList);
 		} else
 			hash.put(itemName, itemValueList);
 
@@ -680,9 +702,7 @@ public class ItemCollection {
 
 	@Override
 	protected Object clone() throws CloneNotSupportedException {
-		ItemCollection itemColClone = new ItemCollection();
-		itemColClone.replaceAllItems(this.getAllItems());
-		return itemColClone;
+		return new ItemCollection(this);
 	}
 
 	/**
@@ -691,8 +711,22 @@ public class ItemCollection {
 	 * @param name
 	 */
 	public void removeItem(String name) {
-		name = name.toLowerCase();
-		this.getAllItems().remove(name);
+		name = canonicalName(name);
+		if (hash.containsKey(name)) {
+			detach();
+			hash.remove(name);
+		}
+	}
+
+	/**
+	 * Creates an own copy of the item map if the map is shared with a copy of
+	 * this ItemCollection. The value lists are not copied.
+	 */
+	private void detach() {
+		if (shared) {
+			hash = new HashMap<String, List<Object>>(hash);
+			shared = false;
+		}
 	}
 
 	/**
@@ -725,7 +759,7 @@ public class ItemCollection {
 			HashMap<String, List<Object>> mapFiles = null;
 			List<?> vFiles = getItemValue("$file");
 			if (vFiles != null && vFiles.size() > 0)
-				mapFiles = (HashMap<String, List<Object>>) vFiles.get(0);
+				mapFiles = new HashMap<String, List<Object>>((Map<String, List<Object>>) vFiles.get(0));
 			else
 				mapFiles = new HashMap<String, List<Object>>();
 
@@ -750,7 +784,7 @@ public class ItemCollection {
 		Map<String, List<Object>> mapFiles = null;
 		List<?> vFiles = getItemValue("$file");
 		if (vFiles != null && vFiles.size() > 0) {
-			mapFiles = (Map<String, List<Object>>) vFiles.get(0);
+			mapFiles = new HashMap<String, List<Object>>((Map<String, List<Object>>) vFiles.get(0));
 			mapFiles.remove(aFilename);
 			replaceItemValue("$file", mapFiles);
 		}
@@ -0,0 +1,73 @@
+/*******************************************************************************
+ *  Imixs Workflow 
+ *  Copyright (C) 2001, 2011 Imixs Software Solutions GmbH,  
+ *  http://www.imixs.com
+ *  
+ *  This program is free software; you can redistribute it and/or 
+ *  modify it under the terms of the GNU General Public License 
+ *  as published by the Free Software Foundation; either version 2 
+ *  of the License, or (at your option) any later version.
+ *  
+ *  This program is distributed in the hope that it will be useful, 
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU 
+ *  General Public License for more details.
+ *  
+ *  You can receive a copy of the GNU General Public
+ *  License at http://www.gnu.org/licenses/gpl.html
+ *  
+ *  Project: 
+ *  	http://www.imixs.org
+ *  	http://java.net/projects/imixs-workflow
+ *  
+ *  Contributors:  
+ *  	Imixs Software Solutions GmbH - initial API and implementation
+ *  	Ralph Soika - Software Developer
+ *******************************************************************************/
+
+package org.imixs.workflow;
+
+/**
+ * A PluginMonitor can be registered to the WorkflowKernel to observe the
+ * plugins during the processing of a workitem. The WorkflowKernel calls the
+ * monitor after each call of the methods run() and close() of a plugin with
+ * the elapsed time in nanoseconds.
+ * <p>
+ * The monitor is called for each plugin and each processing step. So an
+ * implementation should be fast and must be thread save if the same instance
+ * is used by more than one WorkflowKernel.
+ * 
+ * @author rsoika
+ * @see org.imixs.workflow.WorkflowKernel
+ */
+public interface PluginMonitor {
+
+	/**
+	 * Called after the method run() of a plugin.
+	 * 
+	 * @param plugin
+	 *            - the plugin
+	 * @param documentActivity
+	 *            - the current activity entity
+	 * @param nanos
+	 *            - elapsed time in nanoseconds
+	 * @param status
+	 *            - the status returned by the plugin or Plugin.PLUGIN_ERROR if
+	 *            the plugin has thrown an exception
+	 */
+	public void pluginRun(Plugin plugin, ItemCollection documentActivity, long nanos, int status);
+
+	/**
+	 * Called after the method close() of a plugin.
+	 * 
+	 * @param plugin
+	 *            - the plugin
+	 * @param documentActivity
+	 *            - the current activity entity
+	 * @param nanos
+	 *            - elapsed time in nanoseconds
+	 * @param error
+	 *            - true if the plugin has thrown an exception
+	 */
+	public void pluginClose(Plugin plugin, ItemCollection documentActivity, long nanos, boolean error);
+}
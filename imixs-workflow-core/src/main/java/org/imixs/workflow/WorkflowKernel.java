@@ -28,6 +28,7 @@
 package org.imixs.workflow;
 
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.Vector;
@@ -75,6 +76,7 @@ public class WorkflowKernel {
 	private ItemCollection documentContext = null;
 	private ItemCollection documentActivity = null;
 	private Vector<String> vectorEdgeHistory = new Vector<String>();
+	private PluginMonitor pluginMonitor = null;
 
 	private static Logger logger = Logger.getLogger(WorkflowKernel.class
 			.getName());
@@ -164,6 +166,17 @@ public class WorkflowKernel {
 						+ " reason: ");
 	}
 
+	/**
+	 * Registers a PluginMonitor which is called after each call of the
+	 * methods run() and close() of a plugin. A value of null removes the
+	 * current monitor.
+	 * 
+	 * @param monitor
+	 */
+	public void setPluginMonitor(PluginMonitor monitor) {
+		pluginMonitor = monitor;
+	}
+
 	/**
 	 * This method removes all registered plugins
 	 * 
@@ -512,7 +525,8 @@ public class WorkflowKernel {
 	private int runPlugins() throws PluginException {
 		int iStatus;
 		String sPluginName = null;
-		List<String> localPluginLog = new Vector<String>();
+		// the plugin log is only formated in case of an error
+		List<PluginLogEntry> localPluginLog = new ArrayList<PluginLogEntry>(vectorPlugins.size());
 
 		try {
 			for (Plugin plugin : vectorPlugins) {
@@ -522,20 +536,27 @@ public class WorkflowKernel {
 					logger.info("[WorkflowKernel] running Plugin: "
 							+ sPluginName + "...");
 
-				iStatus = plugin.run(documentContext, documentActivity);
+				long start = (pluginMonitor != null) ? System.nanoTime() : 0;
+				try {
+					iStatus = plugin.run(documentContext, documentActivity);
+				} catch (PluginException | RuntimeException e) {
+					if (pluginMonitor != null)
+						pluginMonitor.pluginRun(plugin, documentActivity, System.nanoTime() - start,
+								Plugin.PLUGIN_ERROR);
+					throw e;
+				}
+				if (pluginMonitor != null)
+					pluginMonitor.pluginRun(plugin, documentActivity, System.nanoTime() - start, iStatus);
 
 				// write PluginLog
-				String sLog =new SimpleDateFormat(ISO8601_FORMAT).format(new Date());
-				sLog = sLog + " " + plugin.getClass().getName() + "=" + iStatus;
-
-				localPluginLog.add(sLog);
+				localPluginLog.add(new PluginLogEntry(sPluginName, iStatus));
 
 				if (iStatus == Plugin.PLUGIN_ERROR) {
 					// log error....
 					logger.severe("[WorkflowKernel] Error processing Plugin: "
 							+ sPluginName);
 					logger.severe("[WorkflowKernel] Plugin-Log: ");
-					for (String sLogEntry : localPluginLog)
+					for (PluginLogEntry sLogEntry : localPluginLog)
 						logger.severe("[WorkflowKernel]   " + sLogEntry);
 
 					return Plugin.PLUGIN_ERROR;
@@ -546,7 +567,7 @@ public class WorkflowKernel {
 		} catch (PluginException e) {
 			// log plugin stack!....
 			logger.severe("[WorkflowKernel] Plugin-Stack: ");
-			for (String sLogEntry : localPluginLog)
+			for (PluginLogEntry sLogEntry : localPluginLog)
 				logger.severe("[WorkflowKernel]   " + sLogEntry);
 			// re throw the PluginException !
 			throw e;
@@ -560,7 +581,38 @@ public class WorkflowKernel {
 			if (logger.isLoggable(Level.FINE))
 				logger.info("[WorkflowKernel] closing Plugin: "
 						+ plugin.getClass().getName() + "...");
-			plugin.close(astatus);
+			if (pluginMonitor == null) {
+				plugin.close(astatus);
+				continue;
+			}
+			long start = System.nanoTime();
+			try {
+				plugin.close(astatus);
+			} catch (PluginException | RuntimeException e) {
+				pluginMonitor.pluginClose(plugin, documentActivity, System.nanoTime() - start, true);
+				throw e;
+			}
+			pluginMonitor.pluginClose(plugin, documentActivity, System.nanoTime() - start, false);
+		}
+	}
+
+	/**
+	 * Entry of the plugin log written during runPlugins(). The time stamp is
+	 * formated only if the log is printed.
+	 */
+	private static class PluginLogEntry {
+		final long time = System.currentTimeMillis();
+		final String pluginName;
+		final int status;
+
+		PluginLogEntry(String pluginName, int status) {
+			this.pluginName = pluginName;
+			this.status = status;
+		}
+
+		@Override
+		public String toString() {
+			return new SimpleDateFormat(ISO8601_FORMAT).format(new Date(time)) + " " + pluginName + "=" + status;
 		}
 	}
 
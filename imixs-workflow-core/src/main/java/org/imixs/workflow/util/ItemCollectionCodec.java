@@ -0,0 +1,501 @@
+/*******************************************************************************
+ *  Imixs Workflow 
+ *  Copyright (C) 2001, 2011 Imixs Software Solutions GmbH,  
+ *  http://www.imixs.com
+ *  
+ *  This program is free software; you can redistribute it and/or 
+ *  modify it under the terms of the GNU General Public License 
+ *  as published by the Free Software Foundation; either version 2 
+ *  of the License, or (at your option) any later version.
+ *  
+ *  This program is distributed in the hope that it will be useful, 
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU 
+ *  General Public License for more details.
+ *  
+ *  You can receive a copy of the GNU General Public
+ *  License at http://www.gnu.org/licenses/gpl.html
+ *  
+ *  Project: 
+ *  	http://www.imixs.org
+ *  	http://java.net/projects/imixs-workflow
+ *  
+ *  Contributors:  
+ *  	Imixs Software Solutions GmbH - initial API and implementation
+ *  	Ralph Soika - Software Developer
+ *******************************************************************************/
+
+package org.imixs.workflow.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+
+/**
+ * The ItemCollectionCodec converts the item map of an ItemCollection into a
+ * compact binary format and back. The format is used by the JPA Entity to
+ * store the data of an ItemCollection instead of the default Java
+ * serialization.
+ * <p>
+ * A encoded item map starts with the two magic bytes 'IX' followed by the
+ * format version. After the header the number of items follows. Each item is
+ * stored by its name and the number of values. Each value starts with a one
+ * byte type tag. Numbers and lengths are written as variable-length integers
+ * (varint). The following types are supported:
+ * <ul>
+ * <li>String
+ * <li>Integer
+ * <li>Long
+ * <li>Double
+ * <li>Float
+ * <li>Boolean
+ * <li>Date
+ * <li>byte[]
+ * <li>Vector, ArrayList and HashMap (nested values)
+ * </ul>
+ * All other values are stored as a Java serialized object, so no data is
+ * lost. Tags greater than 0x7F are followed by the length of the value. So a
+ * reader can skip values written by a newer version of the format.
+ * <p>
+ * The method decode() also accepts data stored by the Java serialization. This
+ * is the migration path for data written by older versions.
+ * <p>
+ * Item names are interned during decoding, so all decoded ItemCollections
+ * share the same name instances.
+ * 
+ * @author rsoika
+ * @version 1.0
+ */
+public final class ItemCollectionCodec {
+
+	public static final byte VERSION = 1;
+
+	private static final byte MAGIC_1 = 'I';
+	private static final byte MAGIC_2 = 'X';
+
+	static final int TAG_NULL = 0x00;
+	static final int TAG_STRING = 0x01;
+	static final int TAG_INTEGER = 0x02;
+	static final int TAG_LONG = 0x03;
+	static final int TAG_DOUBLE = 0x04;
+	static final int TAG_FLOAT = 0x05;
+	static final int TAG_TRUE = 0x06;
+	static final int TAG_FALSE = 0x07;
+	static final int TAG_DATE = 0x08;
+	static final int TAG_BYTES = 0x09;
+	static final int TAG_VECTOR = 0x0A;
+	static final int TAG_ARRAYLIST = 0x0B;
+	static final int TAG_HASHMAP = 0x0C;
+	static final int TAG_SERIALIZED = 0x7F;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private ItemCollectionCodec() {
+	}
+
+	/**
+	 * Encodes a item map into the binary format.
+	 * 
+	 * @param items
+	 *            - map of items
+	 * @return byte array
+	 * @throws IOException
+	 *             if a value is not serializable
+	 */
+	public static byte[] encode(Map<String, List<Object>> items) throws IOException {
+		Output out = new Output(256);
+		out.write(MAGIC_1);
+		out.write(MAGIC_2);
+		out.write(VERSION);
+		if (items == null) {
+			out.writeVarint(0);
+			return out.toByteArray();
+		}
+		out.writeVarint(items.size());
+		for (Map.Entry<String, List<Object>> entry : items.entrySet()) {
+			out.writeString(entry.getKey());
+			List<Object> values = entry.getValue();
+			if (values == null) {
+				out.writeVarint(0);
+				continue;
+			}
+			out.writeVarint(values.size());
+			for (Object value : values) {
+				writeValue(out, value);
+			}
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Decodes a item map from the binary format. If the data was stored by the
+	 * Java serialization the map is read by a ObjectInputStream.
+	 * 
+	 * @param data
+	 *            - encoded item map
+	 * @return item map or null if data is null
+	 * @throws IOException
+	 *             if the data is corrupted or written by an unsupported
+	 *             version
+	 */
+	@SuppressWarnings("unchecked")
+	public static Map<String, List<Object>> decode(byte[] data) throws IOException {
+		if (data == null)
+			return null;
+
+		if (isJavaSerialized(data)) {
+			Object object = readObject(data, 0, data.length);
+			return (Map<String, List<Object>>) object;
+		}
+
+		if (data.length < 3 || data[0] != MAGIC_1 || data[1] != MAGIC_2)
+			throw new IOException("[ItemCollectionCodec] unknown data format");
+		if (data[2] > VERSION)
+			throw new IOException("[ItemCollectionCodec] unsupported format version " + data[2]);
+
+		Input in = new Input(data, 3);
+		int count = in.readVarint();
+		Map<String, List<Object>> items = new HashMap<String, List<Object>>(count * 4 / 3 + 1);
+		for (int i = 0; i < count; i++) {
+			String name = in.readString().intern();
+			int size = in.readVarint();
+			Vector<Object> values = new Vector<Object>(size);
+			for (int j = 0; j < size; j++) {
+				readValue(in, values);
+			}
+			items.put(name, values);
+		}
+		return items;
+	}
+
+	/**
+	 * Returns true if the data was written by the Java serialization
+	 * (ObjectOutputStream).
+	 * 
+	 * @param data
+	 * @return true if data starts with the Java serialization stream magic
+	 */
+	public static boolean isJavaSerialized(byte[] data) {
+		return data != null && data.length >= 2 && data[0] == (byte) 0xAC && data[1] == (byte) 0xED;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static void writeValue(Output out, Object value) throws IOException {
+		if (value == null) {
+			out.write(TAG_NULL);
+		} else if (value instanceof String) {
+			out.write(TAG_STRING);
+			out.writeString((String) value);
+		} else if (value instanceof Integer) {
+			out.write(TAG_INTEGER);
+			out.writeVarlong(zigzag((Integer) value));
+		} else if (value instanceof Long) {
+			out.write(TAG_LONG);
+			out.writeVarlong(zigzag((Long) value));
+		} else if (value instanceof Double) {
+			out.write(TAG_DOUBLE);
+			out.writeFixed64(Double.doubleToRawLongBits((Double) value));
+		} else if (value instanceof Float) {
+			out.write(TAG_FLOAT);
+			out.writeFixed64(Float.floatToRawIntBits((Float) value));
+		} else if (value instanceof Boolean) {
+			out.write(((Boolean) value).booleanValue() ? TAG_TRUE : TAG_FALSE);
+		} else if (value.getClass() == Date.class) {
+			// subclasses like java.sql.Timestamp are serialized
+			out.write(TAG_DATE);
+			out.writeVarlong(zigzag(((Date) value).getTime()));
+		} else if (value instanceof byte[]) {
+			byte[] bytes = (byte[]) value;
+			out.write(TAG_BYTES);
+			out.writeVarint(bytes.length);
+			out.write(bytes, 0, bytes.length);
+		} else if (value.getClass() == Vector.class || value.getClass() == ArrayList.class) {
+			List<Object> list = (List<Object>) value;
+			out.write(value.getClass() == Vector.class ? TAG_VECTOR : TAG_ARRAYLIST);
+			out.writeVarint(list.size());
+			for (Object element : list) {
+				writeValue(out, element);
+			}
+		} else if (value.getClass() == HashMap.class && hasStringKeys((Map<?, ?>) value)) {
+			Map<String, Object> map = (Map<String, Object>) value;
+			out.write(TAG_HASHMAP);
+			out.writeVarint(map.size());
+			for (Map.Entry<String, Object> entry : map.entrySet()) {
+				out.writeString(entry.getKey());
+				writeValue(out, entry.getValue());
+			}
+		} else if (value instanceof Serializable) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			ObjectOutputStream oos = new ObjectOutputStream(bytes);
+			oos.writeObject(value);
+			oos.close();
+			out.write(TAG_SERIALIZED);
+			out.writeVarint(bytes.size());
+			out.write(bytes.toByteArray(), 0, bytes.size());
+		} else {
+			throw new IOException("[ItemCollectionCodec] value is not serializable: " + value.getClass().getName());
+		}
+	}
+
+	/**
+	 * Reads a single value and adds it to the given list. Values with an
+	 * unknown extension tag are skipped.
+	 */
+	private static void readValue(Input in, List<Object> target) throws IOException {
+		int tag = in.read();
+		switch (tag) {
+		case TAG_NULL:
+			target.add(null);
+			break;
+		case TAG_STRING:
+			target.add(in.readString());
+			break;
+		case TAG_INTEGER:
+			target.add(Integer.valueOf((int) unzigzag(in.readVarlong())));
+			break;
+		case TAG_LONG:
+			target.add(Long.valueOf(unzigzag(in.readVarlong())));
+			break;
+		case TAG_DOUBLE:
+			target.add(Double.valueOf(Double.longBitsToDouble(in.readFixed64())));
+			break;
+		case TAG_FLOAT:
+			target.add(Float.valueOf(Float.intBitsToFloat((int) in.readFixed64())));
+			break;
+		case TAG_TRUE:
+			target.add(Boolean.TRUE);
+			break;
+		case TAG_FALSE:
+			target.add(Boolean.FALSE);
+			break;
+		case TAG_DATE:
+			target.add(new Date(unzigzag(in.readVarlong())));
+			break;
+		case TAG_BYTES:
+			target.add(in.readBytes(in.readVarint()));
+			break;
+		case TAG_VECTOR:
+		case TAG_ARRAYLIST: {
+			int size = in.readVarint();
+			List<Object> list = (tag == TAG_VECTOR) ? new Vector<Object>(size) : new ArrayList<Object>(size);
+			for (int i = 0; i < size; i++) {
+				readValue(in, list);
+			}
+			target.add(list);
+			break;
+		}
+		case TAG_HASHMAP: {
+			int size = in.readVarint();
+			HashMap<String, Object> map = new HashMap<String, Object>(size * 4 / 3 + 1);
+			List<Object> value = new ArrayList<Object>(1);
+			for (int i = 0; i < size; i++) {
+				String key = in.readString();
+				value.clear();
+				readValue(in, value);
+				map.put(key, value.isEmpty() ? null : value.get(0));
+			}
+			target.add(map);
+			break;
+		}
+		case TAG_SERIALIZED: {
+			int length = in.readVarint();
+			target.add(readObject(in.data, in.skip(length), length));
+			break;
+		}
+		default:
+			if (tag > TAG_SERIALIZED) {
+				// extension written by a newer version - skip the value
+				in.skip(in.readVarint());
+				break;
+			}
+			throw new IOException("[ItemCollectionCodec] unknown type tag " + tag);
+		}
+	}
+
+	private static boolean hasStringKeys(Map<?, ?> map) {
+		for (Object key : map.keySet()) {
+			if (!(key instanceof String))
+				return false;
+		}
+		return true;
+	}
+
+	private static Object readObject(byte[] data, int offset, int length) throws IOException {
+		ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(data, offset, length));
+		try {
+			return ois.readObject();
+		} catch (ClassNotFoundException e) {
+			throw new IOException("[ItemCollectionCodec] unable to read object: " + e.getMessage(), e);
+		} finally {
+			ois.close();
+		}
+	}
+
+	private static long zigzag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	private static long unzigzag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	/**
+	 * Unsynchronized growing byte buffer
+	 */
+	private static final class Output {
+		byte[] buffer;
+		int count;
+
+		Output(int size) {
+			buffer = new byte[size];
+		}
+
+		void ensure(int length) {
+			if (count + length > buffer.length) {
+				byte[] newBuffer = new byte[Math.max(buffer.length * 2, count + length)];
+				System.arraycopy(buffer, 0, newBuffer, 0, count);
+				buffer = newBuffer;
+			}
+		}
+
+		void write(int b) {
+			ensure(1);
+			buffer[count++] = (byte) b;
+		}
+
+		void write(byte[] bytes, int offset, int length) {
+			ensure(length);
+			System.arraycopy(bytes, offset, buffer, count, length);
+			count += length;
+		}
+
+		void writeVarint(int value) {
+			writeVarlong(value & 0xFFFFFFFFL);
+		}
+
+		void writeVarlong(long value) {
+			ensure(10);
+			while ((value & ~0x7FL) != 0) {
+				buffer[count++] = (byte) ((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			buffer[count++] = (byte) value;
+		}
+
+		void writeFixed64(long value) {
+			ensure(8);
+			for (int i = 0; i < 8; i++) {
+				buffer[count++] = (byte) (value >>> (i * 8));
+			}
+		}
+
+		void writeString(String value) {
+			boolean ascii = true;
+			int length = value.length();
+			for (int i = 0; i < length; i++) {
+				if (value.charAt(i) >= 0x80) {
+					ascii = false;
+					break;
+				}
+			}
+			if (ascii) {
+				// fast path for plain ascii strings
+				writeVarint(length);
+				ensure(length);
+				for (int i = 0; i < length; i++) {
+					buffer[count++] = (byte) value.charAt(i);
+				}
+			} else {
+				byte[] bytes = value.getBytes(UTF8);
+				writeVarint(bytes.length);
+				write(bytes, 0, bytes.length);
+			}
+		}
+
+		byte[] toByteArray() {
+			byte[] result = new byte[count];
+			System.arraycopy(buffer, 0, result, 0, count);
+			return result;
+		}
+	}
+
+	/**
+	 * Reader for a byte array
+	 */
+	private static final class Input {
+		final byte[] data;
+		int position;
+
+		Input(byte[] data, int position) {
+			this.data = data;
+			this.position = position;
+		}
+
+		int read() throws IOException {
+			if (position >= data.length)
+				throw new IOException("[ItemCollectionCodec] unexpected end of data");
+			return data[position++] & 0xFF;
+		}
+
+		/**
+		 * skips the given number of bytes and returns the old position
+		 */
+		int skip(int length) throws IOException {
+			if (length < 0 || position + length > data.length)
+				throw new IOException("[ItemCollectionCodec] unexpected end of data");
+			int start = position;
+			position += length;
+			return start;
+		}
+
+		int readVarint() throws IOException {
+			long value = readVarlong();
+			if (value > Integer.MAX_VALUE)
+				throw new IOException("[ItemCollectionCodec] invalid length " + value);
+			return (int) value;
+		}
+
+		long readVarlong() throws IOException {
+			long value = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				int b = read();
+				value |= (long) (b & 0x7F) << shift;
+				if ((b & 0x80) == 0)
+					return value;
+			}
+			throw new IOException("[ItemCollectionCodec] malformed varint");
+		}
+
+		long readFixed64() throws IOException {
+			int start = skip(8);
+			long value = 0;
+			for (int i = 0; i < 8; i++) {
+				value |= (long) (data[start + i] & 0xFF) << (i * 8);
+			}
+			return value;
+		}
+
+		String readString() throws IOException {
+			int length = readVarint();
+			int start = skip(length);
+			return new String(data, start, length, UTF8);
+		}
+
+		byte[] readBytes(int length) throws IOException {
+			int start = skip(length);
+			byte[] result = new byte[length];
+			System.arraycopy(data, start, result, 0, length);
+			return result;
+		}
+	}
+}
@@ -2,6 +2,8 @@ package org.imixs.workflow;
 
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.List;
@@ -118,6 +120,36 @@ public class KernelTest {
 				itemCollection.getItemValueInteger("$processid"));
 	}
 
+	/**
+	 * This method tests that a registered PluginMonitor is called for each
+	 * plugin run and close
+	 */
+	@Test
+	@Category(org.imixs.workflow.WorkflowKernel.class)
+	public void testPluginMonitor() throws PluginException {
+		final List<String> calls = new ArrayList<String>();
+		kernel.setPluginMonitor(new PluginMonitor() {
+			@Override
+			public void pluginRun(Plugin plugin, ItemCollection documentActivity, long nanos, int status) {
+				Assert.assertTrue(nanos >= 0);
+				calls.add("run " + documentActivity.getItemValueInteger("numactivityid") + " " + status);
+			}
+
+			@Override
+			public void pluginClose(Plugin plugin, ItemCollection documentActivity, long nanos, boolean error) {
+				calls.add("close " + error);
+			}
+		});
+
+		ItemCollection itemCollection = new ItemCollection();
+		itemCollection.replaceItemValue("$processid", 100);
+		itemCollection.replaceItemValue("$activityid", 11);
+		kernel.process(itemCollection);
+
+		// followup activity 100.11 -> 100.20
+		Assert.assertEquals(Arrays.asList("run 11 0", "close false", "run 20 0", "close false"), calls);
+	}
+
 	@Test
 	@Category(org.imixs.workflow.WorkflowKernel.class)
 	public void testRegisterPlugin() {
@@ -258,6 +258,45 @@ public class TestItemCollection {
 
 	}
 
+	/**
+	 * This test verifies that a copy shares the items with the source until
+	 * one of them is changed (copy-on-write)
+	 *
+	 */
+	@Test
+	public void testCopyOnWrite() {
+		ItemCollection itemCollection1 = new ItemCollection();
+		itemCollection1.replaceItemValue("txtName", "Manfred");
+		itemCollection1.replaceItemValue("txtTeam", "Anna");
+		itemCollection1.addFile(new byte[] { 1, 2 }, "a.txt", "text/plain");
+
+		ItemCollection itemCollection2 = new ItemCollection(itemCollection1);
+		// unchanged value lists are shared
+		Assert.assertSame(itemCollection1.getItemValue("txtName"), itemCollection2.getItemValue("txtName"));
+
+		// change the source
+		itemCollection1.replaceItemValue("txtName", "Anna");
+		itemCollection1.removeItem("txtTeam");
+		itemCollection1.appendItemValue("txtList", "a");
+		Assert.assertEquals("Manfred", itemCollection2.getItemValueString("txtName"));
+		Assert.assertEquals("Anna", itemCollection2.getItemValueString("txtTeam"));
+		Assert.assertFalse(itemCollection2.hasItem("txtList"));
+
+		// change the copy
+		itemCollection2.appendItemValue("txtTeam", "Ralph");
+		itemCollection2.addFile(new byte[] { 3 }, "b.txt", "text/plain");
+		Assert.assertEquals(2, itemCollection2.getItemValue("txtTeam").size());
+		Assert.assertFalse(itemCollection1.hasItem("txtTeam"));
+		Assert.assertEquals(1, itemCollection1.getFileNames().size());
+		Assert.assertEquals(2, itemCollection2.getFileNames().size());
+
+		// the map returned by getAllItems() is not shared
+		ItemCollection itemCollection3 = new ItemCollection(itemCollection2);
+		itemCollection3.getAllItems().remove("txtname");
+		Assert.assertEquals("Manfred", itemCollection2.getItemValueString("txtName"));
+		Assert.assertFalse(itemCollection3.hasItem("txtName"));
+	}
+
 	/**
 	 * This test verifies the behavior when copy the elements of another
 	 * ItemCollection with embedded collections!
@@ -488,4 +527,34 @@ public class TestItemCollection {
 	}
 
 
+	/**
+	 * Test that a read did not modify the value list of an item
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	@Test
+	@Category(org.imixs.workflow.ItemCollection.class)
+	public void testReadWithoutSideEffects() {
+		ItemCollection itemCol = new ItemCollection();
+		itemCol.replaceItemValue("txtName", "anna");
+		Assert.assertEquals(1, itemCol.getItemValue("TXTNAME").size());
+
+		// add a null value directly into the value list
+		List values = itemCol.getItemValue("txtname");
+		values.add(null);
+		values.add("manfred");
+
+		List result = itemCol.getItemValue("txtName");
+		Assert.assertEquals(2, result.size());
+		Assert.assertEquals("manfred", result.get(1));
+		// the stored list is not changed
+		Assert.assertEquals(3, itemCol.getAllItems().get("txtname").size());
+
+		// a missing item returns a new empty list
+		itemCol.getItemValue("missing").add("x");
+		Assert.assertFalse(itemCol.hasItem("missing"));
+
+		Assert.assertEquals("txtname", ItemCollection.canonicalName("txtName"));
+		Assert.assertSame(ItemCollection.canonicalName("txtName"), ItemCollection.canonicalName("txtName"));
+	}
+
 }
@@ -0,0 +1,137 @@
+package org.imixs.workflow.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+
+import junit.framework.Assert;
+
+import org.imixs.workflow.ItemCollection;
+import org.junit.Test;
+
+/**
+ * Test class for the ItemCollectionCodec
+ * 
+ * This test verifies the encoding and decoding of item maps and the migration
+ * of data stored by the Java serialization.
+ * 
+ * @author rsoika
+ */
+public class TestItemCollectionCodec {
+
+	/**
+	 * Test the round trip of all supported value types
+	 */
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testEncodeDecode() throws IOException {
+		ItemCollection itemCol = createWorkitem();
+
+		byte[] data = ItemCollectionCodec.encode(itemCol.getAllItems());
+		Assert.assertEquals('I', data[0]);
+		Assert.assertEquals(ItemCollectionCodec.VERSION, data[2]);
+
+		ItemCollection result = new ItemCollection(ItemCollectionCodec.decode(data));
+		Assert.assertEquals("Anna Müller", result.getItemValueString("txtname"));
+		Assert.assertEquals(-42, result.getItemValueInteger("numvalue"));
+		Assert.assertEquals(Long.MAX_VALUE, result.getItemValue("numlong").get(0));
+		Assert.assertEquals(3.14, result.getItemValueDouble("numdouble"));
+		Assert.assertTrue(result.getItemValueBoolean("keyflag"));
+		Assert.assertEquals(new Date(1000000), result.getItemValueDate("datdate"));
+		Assert.assertEquals(Arrays.asList("a", "b", "c"), result.getItemValue("namteam"));
+		Assert.assertTrue(Arrays.equals(new byte[] { 1, 2, 3 }, (byte[]) result.getItemValue("bytes").get(0)));
+		Assert.assertEquals(new BigDecimal("1.5"), result.getItemValue("numdecimal").get(0));
+		Assert.assertTrue(result.getItemValue("calendar").get(0) instanceof Calendar);
+
+		// file attachments are stored in a HashMap of Vectors
+		List<Object> fileData = result.getFiles().get("test.txt");
+		Assert.assertTrue(fileData instanceof Vector);
+		Assert.assertEquals("text/plain", fileData.get(0));
+		Assert.assertTrue(Arrays.equals("Hello".getBytes(), (byte[]) fileData.get(1)));
+
+		// item names are interned
+		Map<String, List<Object>> map = ItemCollectionCodec.decode(data);
+		for (String name : map.keySet()) {
+			if (name.equals("txtname"))
+				Assert.assertSame("txtname", name);
+		}
+		Assert.assertTrue(map.get("txtname") instanceof Vector);
+		Map<?, ?> mapValue = (Map<?, ?>) map.get("map").get(0);
+		Assert.assertEquals("value", mapValue.get("key"));
+		Assert.assertTrue(mapValue.containsKey("empty"));
+	}
+
+	/**
+	 * Test decoding of data stored by the Java serialization
+	 */
+	@Test
+	public void testDecodeJavaSerialization() throws IOException {
+		ItemCollection itemCol = createWorkitem();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream oos = new ObjectOutputStream(bytes);
+		oos.writeObject(itemCol.getAllItems());
+		oos.close();
+
+		byte[] data = bytes.toByteArray();
+		Assert.assertTrue(ItemCollectionCodec.isJavaSerialized(data));
+		ItemCollection result = new ItemCollection(ItemCollectionCodec.decode(data));
+		Assert.assertEquals("Anna Müller", result.getItemValueString("txtname"));
+		Assert.assertEquals(-42, result.getItemValueInteger("numvalue"));
+
+		Assert.assertFalse(ItemCollectionCodec.isJavaSerialized(ItemCollectionCodec.encode(itemCol.getAllItems())));
+	}
+
+	/**
+	 * Test that a value with an unknown extension tag is skipped and a
+	 * corrupted data block is rejected
+	 */
+	@Test
+	public void testUnknownTag() throws IOException {
+		// one item 'a' with 2 values: extension tag 0x80 (2 bytes) and a string
+		byte[] data = new byte[] { 'I', 'X', 1, 1, 1, 'a', 2, (byte) 0x80, 2, 9, 9, 1, 1, 'x' };
+		Map<String, List<Object>> map = ItemCollectionCodec.decode(data);
+		Assert.assertEquals(1, map.get("a").size());
+		Assert.assertEquals("x", map.get("a").get(0));
+
+		try {
+			ItemCollectionCodec.decode(Arrays.copyOf(data, 10));
+			Assert.fail();
+		} catch (IOException e) {
+			// expected
+		}
+		try {
+			ItemCollectionCodec.decode(new byte[] { 'I', 'X', 99 });
+			Assert.fail();
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	private ItemCollection createWorkitem() {
+		ItemCollection itemCol = new ItemCollection();
+		itemCol.replaceItemValue("txtName", "Anna Müller");
+		itemCol.replaceItemValue("numValue", -42);
+		itemCol.replaceItemValue("numLong", Long.MAX_VALUE);
+		itemCol.replaceItemValue("numDouble", 3.14);
+		itemCol.replaceItemValue("keyFlag", true);
+		itemCol.replaceItemValue("datDate", new Date(1000000));
+		itemCol.replaceItemValue("namTeam", new Vector<String>(Arrays.asList("a", "b", "c")));
+		itemCol.replaceItemValue("bytes", new byte[] { 1, 2, 3 });
+		itemCol.replaceItemValue("numDecimal", new BigDecimal("1.5"));
+		itemCol.replaceItemValue("calendar", Calendar.getInstance());
+		itemCol.addFile("Hello".getBytes(), "test.txt", "text/plain");
+		HashMap<String, Object> map = new HashMap<String, Object>();
+		map.put("key", "value");
+		map.put("empty", null);
+		itemCol.replaceItemValue("map", map);
+		return itemCol;
+	}
+}
@@ -0,0 +1,389 @@
+/*******************************************************************************
+ *  Imixs Workflow 
+ *  Copyright (C) 2001, 2011 Imixs Software Solutions GmbH,  
+ *  http://www.imixs.com
+ *  
+ *  This program is free software; you can redistribute it and/or 
+ *  modify it under the terms of the GNU General Public License 
+ *  as published by the Free Software Foundation; either version 2 
+ *  of the License, or (at your option) any later version.
+ *  
+ *  This program is distributed in the hope that it will be useful, 
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU 
+ *  General Public License for more details.
+ *  
+ *  You can receive a copy of the GNU General Public
+ *  License at http://www.gnu.org/licenses/gpl.html
+ *  
+ *  Project: 
+ *  	http://www.imixs.org
+ *  	http://java.net/projects/imixs-workflow
+ *  
+ *  Contributors:  
+ *  	Imixs Software Solutions GmbH - initial API and implementation
+ *  	Ralph Soika - Software Developer
+ *******************************************************************************/
+
+package org.imixs.workflow.jee.ejb;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.imixs.workflow.ItemCollection;
+
+/**
+ * The BackupFile defines the file format used by the EntityService to backup
+ * and restore entities. The file starts with a header containing the magic
+ * 'IMIXSBAK', the format version, the creation time, the query, the block size
+ * and the expected count of entities. The header is secured by a CRC32
+ * checksum.
+ * <p>
+ * The header is followed by a sequence of blocks. Each block contains the
+ * count of entities, the length and the CRC32 checksum of its data. The data
+ * is a deflate compressed object stream of the item maps of the entities. As
+ * each block is compressed independently, the blocks can be verified,
+ * skipped and decoded separately.
+ * <p>
+ * The file ends with a block count of 0 followed by the total count of
+ * entities and blocks written. This trailer allows a count based
+ * verification of a restore.
+ * <p>
+ * Files written by older versions (a plain object stream of item maps) are
+ * detected by the missing magic.
+ * 
+ * @see org.imixs.workflow.jee.ejb.EntityService
+ * @author rsoika
+ * 
+ */
+class BackupFile {
+
+	static final byte[] MAGIC = { 'I', 'M', 'I', 'X', 'S', 'B', 'A', 'K' };
+	static final int VERSION = 1;
+
+	/**
+	 * Writes a backup file block by block
+	 */
+	static class Writer implements Closeable {
+		private final DataOutputStream out;
+		private long entityCount = 0;
+		private int blockCount = 0;
+
+		/**
+		 * Creates a new Writer and writes the header of the backup file
+		 * 
+		 * @param out
+		 * @param query
+		 *            - query of the backup
+		 * @param blockSize
+		 *            - max count of entities per block
+		 * @param expectedCount
+		 *            - expected count of entities or -1 if unknown
+		 * @throws IOException
+		 */
+		Writer(OutputStream out, String query, int blockSize, long expectedCount) throws IOException {
+			this.out = new DataOutputStream(new BufferedOutputStream(out, 65536));
+
+			ByteArrayOutputStream header = new ByteArrayOutputStream();
+			DataOutputStream dos = new DataOutputStream(header);
+			dos.writeInt(VERSION);
+			dos.writeLong(System.currentTimeMillis());
+			dos.writeUTF(query == null ? "" : query);
+			dos.writeInt(blockSize);
+			dos.writeLong(expectedCount);
+			dos.flush();
+
+			this.out.write(MAGIC);
+			this.out.writeInt(header.size());
+			header.writeTo(this.out);
+			this.out.writeLong(checksum(header.toByteArray()));
+		}
+
+		/**
+		 * Writes a block of entities. Empty lists are ignored.
+		 * 
+		 * @param entities
+		 * @throws IOException
+		 */
+		void writeBlock(List<ItemCollection> entities) throws IOException {
+			if (entities.isEmpty())
+				return;
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+			try {
+				ObjectOutputStream oos = new ObjectOutputStream(new DeflaterOutputStream(bytes, deflater));
+				for (ItemCollection entity : entities) {
+					oos.writeObject(entity.getAllItems());
+				}
+				oos.close();
+			} finally {
+				deflater.end();
+			}
+			byte[] data = bytes.toByteArray();
+			out.writeInt(entities.size());
+			out.writeInt(data.length);
+			out.writeLong(checksum(data));
+			out.write(data);
+			entityCount += entities.size();
+			blockCount++;
+		}
+
+		long getEntityCount() {
+			return entityCount;
+		}
+
+		int getBlockCount() {
+			return blockCount;
+		}
+
+		/**
+		 * Writes the trailer and closes the file
+		 */
+		@Override
+		public void close() throws IOException {
+			out.writeInt(0);
+			out.writeLong(entityCount);
+			out.writeInt(blockCount);
+			out.close();
+		}
+	}
+
+	/**
+	 * A block of a backup file. The data is still compressed.
+	 */
+	static class Block {
+		final int index;
+		final int count;
+		final byte[] data;
+		final boolean valid;
+
+		Block(int index, int count, byte[] data, boolean valid) {
+			this.index = index;
+			this.count = count;
+			this.data = data;
+			this.valid = valid;
+		}
+	}
+
+	/**
+	 * Reads a backup file block by block
+	 */
+	static class Reader implements Closeable {
+		private final DataInputStream in;
+		private String query;
+		private int blockSize;
+		private long created;
+		private long headerChecksum;
+		private long expectedCount;
+		private int blockIndex = 0;
+		private long totalCount = -1;
+		private int totalBlocks = -1;
+
+		/**
+		 * Creates a new Reader and verifies the header of the backup file
+		 * 
+		 * @param in
+		 * @throws IOException
+		 *             if the header is invalid
+		 */
+		Reader(InputStream in) throws IOException {
+			this.in = new DataInputStream(new BufferedInputStream(in, 65536));
+			byte[] magic = new byte[MAGIC.length];
+			this.in.readFully(magic);
+			if (!Arrays.equals(magic, MAGIC))
+				throw new IOException("[BackupFile] invalid file format");
+			int length = this.in.readInt();
+			if (length <= 0 || length > 1024 * 1024)
+				throw new IOException("[BackupFile] invalid header");
+			byte[] header = new byte[length];
+			this.in.readFully(header);
+			headerChecksum = this.in.readLong();
+			if (headerChecksum != checksum(header))
+				throw new IOException("[BackupFile] header checksum error");
+
+			DataInputStream dis = new DataInputStream(new ByteArrayInputStream(header));
+			int version = dis.readInt();
+			if (version > VERSION)
+				throw new IOException("[BackupFile] unsupported version " + version);
+			created = dis.readLong();
+			query = dis.readUTF();
+			blockSize = dis.readInt();
+			expectedCount = dis.readLong();
+		}
+
+		/**
+		 * Returns the next block or null if the end of the file is reached. A
+		 * block with an invalid checksum is returned with the flag 'valid' =
+		 * false.
+		 * 
+		 * @throws IOException
+		 */
+		Block nextBlock() throws IOException {
+			return readBlock(false);
+		}
+
+		/**
+		 * Skips the next block without reading its data. Returns null if the
+		 * end of the file is reached.
+		 * 
+		 * @throws IOException
+		 */
+		Block skipBlock() throws IOException {
+			return readBlock(true);
+		}
+
+		/**
+		 * Returns the index of the next block
+		 */
+		int getBlockIndex() {
+			return blockIndex;
+		}
+
+		private Block readBlock(boolean skip) throws IOException {
+			if (totalBlocks >= 0)
+				return null;
+			int count = in.readInt();
+			if (count == 0) {
+				totalCount = in.readLong();
+				totalBlocks = in.readInt();
+				return null;
+			}
+			int length = in.readInt();
+			if (count < 0 || length < 0)
+				throw new IOException("[BackupFile] invalid block " + blockIndex);
+			long crc = in.readLong();
+			int index = blockIndex++;
+			if (skip) {
+				int skipped = 0;
+				while (skipped < length) {
+					int n = (int) in.skip(length - skipped);
+					if (n <= 0)
+						throw new EOFException("[BackupFile] unexpected end of file in block " + index);
+					skipped += n;
+				}
+				return new Block(index, count, null, true);
+			}
+			byte[] data = new byte[length];
+			in.readFully(data);
+			return new Block(index, count, data, crc == checksum(data));
+		}
+
+		String getQuery() {
+			return query;
+		}
+
+		int getBlockSize() {
+			return blockSize;
+		}
+
+		long getCreated() {
+			return created;
+		}
+
+		/**
+		 * Returns the checksum of the header. The checksum identifies the
+		 * backup file written to a file path.
+		 */
+		long getHeaderChecksum() {
+			return headerChecksum;
+		}
+
+		/**
+		 * Returns the count of entities expected at the time the backup was
+		 * started or -1 if unknown
+		 */
+		long getExpectedCount() {
+			return expectedCount;
+		}
+
+		/**
+		 * Returns the count of entities written to the file or -1 if the end
+		 * of the file was not yet reached
+		 */
+		long getTotalCount() {
+			return totalCount;
+		}
+
+		/**
+		 * Returns the count of blocks written to the file or -1 if the end of
+		 * the file was not yet reached
+		 */
+		int getTotalBlocks() {
+			return totalBlocks;
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+
+	/**
+	 * Decodes the entities of a block
+	 * 
+	 * @param data
+	 *            - compressed data of a block
+	 * @param count
+	 *            - count of entities in the block
+	 * @return list of ItemCollections
+	 * @throws IOException
+	 */
+	@SuppressWarnings("rawtypes")
+	static List<ItemCollection> decode(byte[] data, int count) throws IOException {
+		List<ItemCollection> result = new ArrayList<ItemCollection>(count);
+		ObjectInputStream ois = new ObjectInputStream(new InflaterInputStream(new ByteArrayInputStream(data)));
+		try {
+			for (int i = 0; i < count; i++) {
+				result.add(new ItemCollection((Map) ois.readObject()));
+			}
+		} catch (ClassNotFoundException e) {
+			throw new IOException("[BackupFile] unable to decode block: " + e.getMessage(), e);
+		} finally {
+			ois.close();
+		}
+		return result;
+	}
+
+	/**
+	 * Returns true if the stream starts with the magic of the backup file
+	 * format. The stream must support mark/reset.
+	 */
+	static boolean isBackupFile(InputStream in) throws IOException {
+		in.mark(MAGIC.length);
+		byte[] magic = new byte[MAGIC.length];
+		int read = 0;
+		while (read < magic.length) {
+			int n = in.read(magic, read, magic.length - read);
+			if (n < 0)
+				break;
+			read += n;
+		}
+		in.reset();
+		return read == magic.length && Arrays.equals(magic, MAGIC);
+	}
+
+	static long checksum(byte[] data) {
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		return crc.getValue();
+	}
+}
@@ -0,0 +1,204 @@
+/*******************************************************************************
+ *  Imixs Workflow 
+ *  Copyright (C) 2001, 2011 Imixs Software Solutions GmbH,  
+ *  http://www.imixs.com
+ *  
+ *  This program is free software; you can redistribute it and/or 
+ *  modify it under the terms of the GNU General Public License 
+ *  as published by the Free Software Foundation; either version 2 
+ *  of the License, or (at your option) any later version.
+ *  
+ *  This program is distributed in the hope that it will be useful, 
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU 
+ *  General Public License for more details.
+ *  
+ *  You can receive a copy of the GNU General Public
+ *  License at http://www.gnu.org/licenses/gpl.html
+ *  
+ *  Project: 
+ *  	http://www.imixs.org
+ *  	http://java.net/projects/imixs-workflow
+ *  
+ *  Contributors:  
+ *  	Imixs Software Solutions GmbH - initial API and implementation
+ *  	Ralph Soika - Software Developer
+ *******************************************************************************/
+
+package org.imixs.workflow.jee.ejb;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+
+import org.imixs.workflow.ItemCollection;
+import org.imixs.workflow.ItemCollectionComparator;
+import org.imixs.workflow.Model;
+
+/**
+ * A CachedModel is an immutable in-memory representation of all model entities
+ * (ProcessEntities, ActivityEntities and the environment.profile) of one
+ * specific $modelversion. Process- and ActivityEntities can be accessed in
+ * constant time by their numProcessID and numActivityID.
+ * <p>
+ * The entities hold by a CachedModel are never handed out directly. Each getter
+ * method returns a detached copy so a caller (e.g. a plugin) can not change the
+ * cached model data.
+ *
+ * @see org.imixs.workflow.jee.ejb.ModelCache
+ * @author rsoika
+ *
+ */
+public class CachedModel implements Model {
+
+	private final String modelVersion;
+	private final ItemCollection profile;
+	private final Map<Integer, ItemCollection> processEntities;
+	private final Map<Long, ItemCollection> activityEntities;
+	private final Map<Integer, List<ItemCollection>> activityEntityLists;
+	private final List<ItemCollection> processEntityList;
+
+	/**
+	 * Creates a new CachedModel from a collection of model entities. Entities
+	 * of other model versions are ignored.
+	 *
+	 * @param modelVersion
+	 * @param entities
+	 *            - ProcessEntities, ActivityEntities and
+	 *            WorkflowEnvironmentEntities
+	 */
+	public CachedModel(String modelVersion, Collection<ItemCollection> entities) {
+		this.modelVersion = modelVersion;
+
+		ItemCollection aProfile = null;
+		Map<Integer, ItemCollection> processMap = new HashMap<Integer, ItemCollection>();
+		Map<Long, ItemCollection> activityMap = new HashMap<Long, ItemCollection>();
+		Map<Integer, List<ItemCollection>> activityListMap = new HashMap<Integer, List<ItemCollection>>();
+		List<ItemCollection> processList = new ArrayList<ItemCollection>();
+
+		for (ItemCollection entity : entities) {
+			if (!modelVersion.equals(entity.getItemValueString(WorkflowService.MODELVERSION)))
+				continue;
+			String type = entity.getItemValueString("type");
+			ItemCollection copy = copyOf(entity);
+			if ("ProcessEntity".equals(type)) {
+				processMap.put(entity.getItemValueInteger("numprocessid"), copy);
+				processList.add(copy);
+			} else if ("ActivityEntity".equals(type)) {
+				int processid = entity.getItemValueInteger("numprocessid");
+				int activityid = entity.getItemValueInteger("numactivityid");
+				activityMap.put(toKey(processid, activityid), copy);
+				List<ItemCollection> activities = activityListMap.get(processid);
+				if (activities == null) {
+					activities = new ArrayList<ItemCollection>();
+					activityListMap.put(processid, activities);
+				}
+				activities.add(copy);
+			} else if ("WorkflowEnvironmentEntity".equals(type)
+					&& "environment.profile".equals(entity.getItemValueString("txtname"))) {
+				aProfile = copy;
+			}
+		}
+
+		// sort lists like the ModelService queries do
+		Collections.sort(processList, new ItemCollectionComparator("numprocessid", true));
+		for (List<ItemCollection> activities : activityListMap.values()) {
+			Collections.sort(activities, new ItemCollectionComparator("numactivityid", true));
+		}
+
+		this.profile = aProfile;
+		this.processEntities = processMap;
+		this.activityEntities = activityMap;
+		this.activityEntityLists = activityListMap;
+		this.processEntityList = processList;
+	}
+
+	public String getModelVersion() {
+		return modelVersion;
+	}
+
+	/**
+	 * Returns a copy of the environment.profile entity of this model version or
+	 * null if no profile is defined.
+	 *
+	 * @return environment.profile
+	 */
+	public ItemCollection getProfile() {
+		return copyOf(profile);
+	}
+
+	/**
+	 * Returns true if the model version does not contain any entities
+	 *
+	 * @return
+	 */
+	public boolean isEmpty() {
+		return profile == null && processEntities.isEmpty() && activityEntities.isEmpty();
+	}
+
+	@Override
+	public ItemCollection getProcessEntity(int processid, String modelVersion) {
+		if (!this.modelVersion.equals(modelVersion))
+			return null;
+		return copyOf(processEntities.get(processid));
+	}
+
+	@Override
+	public ItemCollection getActivityEntity(int processid, int activityid, String modelVersion) {
+		if (!this.modelVersion.equals(modelVersion))
+			return null;
+		return copyOf(activityEntities.get(toKey(processid, activityid)));
+	}
+
+	@Override
+	public List<ItemCollection> getProcessEntityList(String modelVersion) {
+		if (!this.modelVersion.equals(modelVersion))
+			return new ArrayList<ItemCollection>();
+		return copyOf(processEntityList);
+	}
+
+	@Override
+	public List<ItemCollection> getActivityEntityList(int processid, String modelVersion) {
+		if (!this.modelVersion.equals(modelVersion))
+			return new ArrayList<ItemCollection>();
+		List<ItemCollection> activities = activityEntityLists.get(processid);
+		if (activities == null)
+			return new ArrayList<ItemCollection>();
+		return copyOf(activities);
+	}
+
+	/**
+	 * Computes the lookup key for an ActivityEntity
+	 */
+	private static long toKey(int processid, int activityid) {
+		return (((long) processid) << 32) | (activityid & 0xffffffffL);
+	}
+
+	private static List<ItemCollection> copyOf(List<ItemCollection> entities) {
+		List<ItemCollection> result = new ArrayList<ItemCollection>(entities.size());
+		for (ItemCollection entity : entities) {
+			result.add(copyOf(entity));
+		}
+		return result;
+	}
+
+	/**
+	 * Creates a copy of an ItemCollection. The value lists are copied too, so
+	 * changes of the copy are not reflected back into the source.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static ItemCollection copyOf(ItemCollection entity) {
+		if (entity == null)
+			return null;
+		ItemCollection copy = new ItemCollection();
+		for (Map.Entry<String, List<Object>> entry : entity.getAllItems().entrySet()) {
+			copy.replaceItemValue(entry.getKey(), new Vector(entry.getValue()));
+		}
+		return copy;
+	}
+
+}
@@ -0,0 +1,120 @@
+/*******************************************************************************
+ *  Imixs Workflow 
+ *  Copyright (C) 2001, 2011 Imixs Software Solutions GmbH,  
+ *  http://www.imixs.com
+ *  
+ *  This program is free software; you can redistribute it and/or 
+ *  modify it under the terms of the GNU General Public License 
+ *  as published by the Free Software Foundation; either version 2 
+ *  of the License, or (at your option) any later version.
+ *  
+ *  This program is distributed in the hope that it will be useful, 
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU 
+ *  General Public License for more details.
+ *  
+ *  You can receive a copy of the GNU General Public
+ *  License at http://www.gnu.org/licenses/gpl.html
+ *  
+ *  Project: 
+ *  	http://www.imixs.org
+ *  	http://java.net/projects/imixs-workflow
+ *  
+ *  Contributors:  
+ *  	Imixs Software Solutions GmbH - initial API and implementation
+ *  	Ralph Soika - Software Developer
+ *******************************************************************************/
+
+package org.imixs.workflow.jee.ejb;
+
+import java.util.Properties;
+import java.util.logging.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.ejb.EJB;
+import javax.ejb.LocalBean;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+
+import org.imixs.workflow.jee.jpa.BinaryDataConverter;
+import org.imixs.workflow.jee.jpa.DataConverter;
+import org.imixs.workflow.jee.jpa.Entity;
+import org.imixs.workflow.jee.jpa.SerializedDataConverter;
+import org.imixs.workflow.jee.util.PropertyService;
+
+/**
+ * The DataFormatService is a startup singleton EJB which selects the
+ * DataConverter used to store the data of all entities. The converter is set
+ * once during the deployment of the application.
+ * <p>
+ * The format is defined by the property 'entity.dataformat' in the
+ * imixs.properties. The default value is 'serialized' which stores the data by
+ * the Java serialization, so the data remains readable by older versions of
+ * the engine sharing the same database. The compact binary format can be
+ * activated with:
+ * 
+ * <pre>
+ * entity.dataformat=binary
+ * </pre>
+ * 
+ * Both formats can be read independent of this setting. The binary format
+ * should only be activated after all nodes of a cluster were upgraded.
+ * 
+ * @see org.imixs.workflow.jee.jpa.Entity
+ * @author rsoika
+ * 
+ */
+@Singleton
+@Startup
+@LocalBean
+@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+public class DataFormatService {
+
+	public static final String PROPERTY_DATA_FORMAT = "entity.dataformat";
+	public static final String DATA_FORMAT_BINARY = "binary";
+	public static final String DATA_FORMAT_SERIALIZED = "serialized";
+
+	@EJB
+	PropertyService propertyService;
+
+	private static Logger logger = Logger.getLogger(DataFormatService.class.getName());
+
+	/**
+	 * Reads the property 'entity.dataformat' and sets the DataConverter of the
+	 * Entity.
+	 */
+	@PostConstruct
+	void init() {
+		String format = null;
+		if (propertyService != null) {
+			Properties properties = propertyService.getProperties();
+			if (properties != null)
+				format = properties.getProperty(PROPERTY_DATA_FORMAT);
+		}
+		Entity.setDataConverter(createDataConverter(format));
+		logger.info("[DataFormatService] data format: "
+				+ (Entity.getDataConverter() instanceof BinaryDataConverter ? DATA_FORMAT_BINARY
+						: DATA_FORMAT_SERIALIZED));
+	}
+
+	/**
+	 * Returns the DataConverter for a data format. Unknown or empty formats
+	 * result in the SerializedDataConverter.
+	 * 
+	 * @param format
+	 *            - 'binary' or 'serialized'
+	 * @return DataConverter
+	 */
+	static DataConverter createDataConverter(String format) {
+		if (format != null && DATA_FORMAT_BINARY.equalsIgnoreCase(format.trim()))
+			return new BinaryDataConverter();
+		if (format != null && !format.trim().isEmpty()
+				&& !DATA_FORMAT_SERIALIZED.equalsIgnoreCase(format.trim()))
+			logger.warning("[DataFormatService] unknown data format '" + format + "' - using '"
+					+ DATA_FORMAT_SERIALIZED + "'");
+		return new SerializedDataConverter();
+	}
+
+}
@@ -0,0 +1,93 @@
+/*******************************************************************************
+ *  Imixs Workflow 
+ *  Copyright (C) 2001, 2011 Imixs Software Solutions GmbH,  
+ *  http://www.imixs.com
+ *  
+ *  This program is free software; you can redistribute it and/or 
+ *  modify it under the terms of the GNU General Public License 
+ *  as published by the Free Software Foundation; either version 2 
+ *  of the License, or (at your option) any later version.
+ *  
+ *  This program is distributed in the hope that it will be useful, 
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU 
+ *  General Public License for more details.
+ *  
+ *  You can receive a copy of the GNU General Public
+ *  License at http://www.gnu.org/licenses/gpl.html
+ *  
+ *  Project: 
+ *  	http://www.imixs.org
+ *  	http://java.net/projects/imixs-workflow
+ *  
+ *  Contributors:  
+ *  	Imixs Software Solutions GmbH - initial API and implementation
+ *  	Ralph Soika - Software Developer
+ *******************************************************************************/
+
+package org.imixs.workflow.jee.ejb;
+
+import java.util.logging.Logger;
+
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.Singleton;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+
+/**
+ * The EntityIndexCache is a singleton EJB holding the current
+ * EntityIndexSnapshot of the EntityService. A snapshot is only published if it
+ * contains committed EntityIndex definitions. A snapshot with a version older
+ * than the current snapshot is ignored, so a snapshot read by a slow
+ * transaction did not replace a newer one.
+ * <p>
+ * The bean is not transactional because it is also called after the
+ * completion of a transaction.
+ * 
+ * @see org.imixs.workflow.jee.ejb.EntityService
+ * @author rsoika
+ * 
+ */
+@Singleton
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+public class EntityIndexCache {
+
+	private volatile EntityIndexSnapshot snapshot = null;
+
+	private static Logger logger = Logger.getLogger(EntityIndexCache.class.getName());
+
+	/**
+	 * Returns the current EntityIndexSnapshot or null if no snapshot exists
+	 * 
+	 * @return EntityIndexSnapshot or null
+	 */
+	public EntityIndexSnapshot getSnapshot() {
+		return snapshot;
+	}
+
+	/**
+	 * Publishes a snapshot of committed EntityIndex definitions. The snapshot
+	 * is ignored if the current snapshot has a newer version.
+	 * 
+	 * @param newSnapshot
+	 */
+	public synchronized void publish(EntityIndexSnapshot newSnapshot) {
+		if (newSnapshot == null)
+			return;
+		EntityIndexSnapshot current = snapshot;
+		if (current != null && current.getVersion() > newSnapshot.getVersion())
+			return;
+		snapshot = newSnapshot;
+	}
+
+	/**
+	 * Discards the current snapshot
+	 */
+	public synchronized void invalidate() {
+		logger.fine("[EntityIndexCache] invalidate EntityIndex definitions");
+		snapshot = null;
+	}
+
+}
@@ -0,0 +1,428 @@
+/*******************************************************************************
+ *  Imixs Workflow 
+ *  Copyright (C) 2001, 2011 Imixs Software Solutions GmbH,  
+ *  http://www.imixs.com
+ *  
+ *  This program is free software; you can redistribute it and/or 
+ *  modify it under the terms of the GNU General Public License 
+ *  as published by the Free Software Foundation; either version 2 
+ *  of the License, or (at your option) any later version.
+ *  
+ *  This program is distributed in the hope that it will be useful, 
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU 
+ *  General Public License for more details.
+ *  
+ *  You can receive a copy of the GNU General Public
+ *  License at http://www.gnu.org/licenses/gpl.html
+ *  
+ *  Project: 
+ *  	http://www.imixs.org
+ *  	http://java.net/projects/imixs-workflow
+ *  
+ *  Contributors:  
+ *  	Imixs Software Solutions GmbH - initial API and implementation
+ *  	Ralph Soika - Software Developer
+ *******************************************************************************/
+
+package org.imixs.workflow.jee.ejb;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import javax.annotation.security.DeclareRoles;
+import javax.annotation.security.RunAs;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.LocalBean;
+import javax.ejb.SessionContext;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.ejb.Timeout;
+import javax.ejb.Timer;
+import javax.ejb.TimerConfig;
+import javax.ejb.TimerService;
+import javax.persistence.OptimisticLockException;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+import org.imixs.workflow.ItemCollection;
+import org.imixs.workflow.WorkflowKernel;
+
+/**
+ * The EntityIndexJob is a singleton EJB updating the index values of existing
+ * entities after an EntityIndex was added or removed by the EntityService
+ * (see issue #94). The entities are updated in chunks by the EntityService
+ * method updateIndexValues(). Each chunk is committed in a separate
+ * transaction and only the values of the added or removed index are changed.
+ * <p>
+ * The pending index changes and the progress of the current one are stored in
+ * a configuration entity ('txtIndexQueue', 'txtIndexJob', 'txtResumeToken',
+ * 'numScanned', 'numUpdated'). So an interrupted update
+ * is continued after a restart of the application.
+ * <p>
+ * In a cluster the job runs on one node only. Before a chunk is updated the
+ * node claims the job by storing its id ('txtOwner') and a lease timestamp
+ * ('datLease') in the configuration. The configuration is saved with
+ * optimistic locking, so if two nodes claim the job at the same time, only
+ * one succeeds. The other nodes only add their submitted index changes to the
+ * queue. If the owner stops, another node takes over after the lease has
+ * expired.
+ * <p>
+ * The job throttles itself. After a chunk the job pauses at least for the
+ * time defined by the environment setting 'REINDEX_PAUSE' (default 1000 ms)
+ * and at least as long as the chunk took. The size of a chunk is defined by
+ * the setting 'REINDEX_CHUNK_SIZE' (default 500).
+ * 
+ * @see org.imixs.workflow.jee.ejb.EntityService
+ * @author rsoika
+ * 
+ */
+@DeclareRoles({ "org.imixs.ACCESSLEVEL.MANAGERACCESS" })
+@RunAs("org.imixs.ACCESSLEVEL.MANAGERACCESS")
+@Singleton
+@Startup
+@LocalBean
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+public class EntityIndexJob {
+
+	public static final String ENTITY_SERVICE = "java:module/EntityService";
+	public static final String TYPE = "configuration";
+	public static final String NAME = "org.imixs.workflow.jee.ejb.EntityIndexJob";
+
+	public static final int DEFAULT_CHUNK_SIZE = 500;
+	public static final int DEFAULT_PAUSE = 1000;
+
+	static final long TICK = 1000;
+	// time in ms a node owns the job after a chunk (in addition to the pause)
+	static final long LEASE = 60 * 1000;
+
+	@Resource(name = "REINDEX_CHUNK_SIZE")
+	private Integer chunkSize = DEFAULT_CHUNK_SIZE;
+	@Resource(name = "REINDEX_PAUSE")
+	private Integer pause = DEFAULT_PAUSE;
+
+	@Resource
+	TimerService timerService;
+
+	@Resource
+	TransactionSynchronizationRegistry transactionRegistry;
+
+	@Resource
+	SessionContext ctx;
+
+	EntityService entityService = null;
+
+	// index changes submitted but not yet stored in the configuration
+	private final List<String> submitted = new ArrayList<String>();
+	// guards the processing of a chunk
+	private final ReentrantLock runLock = new ReentrantLock();
+	private volatile boolean active = false;
+	private volatile long nextRun = 0;
+	private volatile ItemCollection status = null;
+	// identifies this instance as the owner of the job
+	private final String nodeId = WorkflowKernel.generateUniqueID();
+
+	private static Logger logger = Logger.getLogger(EntityIndexJob.class.getName());
+
+	/**
+	 * Continues the index changes stored in the configuration and starts the
+	 * timer of the job
+	 */
+	@PostConstruct
+	void init() {
+		try {
+			status = loadConfiguration();
+			active = !status.getItemValue("txtIndexQueue").isEmpty();
+			if (active)
+				logger.info("[EntityIndexJob] continue index update " + status.getItemValue("txtIndexQueue"));
+		} catch (Exception e) {
+			logger.warning("[EntityIndexJob] unable to load configuration: " + e.getMessage());
+		}
+		if (timerService != null)
+			timerService.createIntervalTimer(TICK, TICK, new TimerConfig(null, false));
+	}
+
+	/**
+	 * Submits the update of the index values of existing entities. If a
+	 * transaction is active, the update is submitted after the transaction was
+	 * committed.
+	 * 
+	 * @param indexName
+	 *            - name of the index
+	 * @param type
+	 *            - type of the index
+	 * @param remove
+	 *            - true if the index was removed
+	 */
+	@TransactionAttribute(TransactionAttributeType.SUPPORTS)
+	public void submit(String indexName, int type, boolean remove) {
+		final String job = (remove ? "-" : "+") + indexName.toLowerCase() + ":" + type;
+		if (transactionRegistry != null && transactionRegistry.getTransactionKey() != null) {
+			transactionRegistry.registerInterposedSynchronization(new Synchronization() {
+				@Override
+				public void beforeCompletion() {
+					// no op
+				}
+
+				@Override
+				public void afterCompletion(int status) {
+					if (status == Status.STATUS_COMMITTED)
+						enqueue(job);
+				}
+			});
+		} else {
+			enqueue(job);
+		}
+	}
+
+	/**
+	 * Returns the status of the job. The status contains the items of the
+	 * configuration ('txtIndexQueue', 'txtIndexJob', 'numScanned',
+	 * 'numUpdated', 'datStarted', 'datLastChunk', 'numChunkDuration',
+	 * 'txtLastJob', 'txtLastError') and the items 'keyActive', 'txtSubmitted',
+	 * 'numChunkSize' and 'numPause'.
+	 * 
+	 * @return status
+	 */
+	public ItemCollection getStatus() {
+		ItemCollection result = new ItemCollection();
+		ItemCollection config = status;
+		if (config != null)
+			result.replaceAllItems(config.getAllItems());
+		result.replaceItemValue("keyActive", active);
+		synchronized (submitted) {
+			result.replaceItemValue("txtSubmitted", new ArrayList<String>(submitted));
+		}
+		result.replaceItemValue("numChunkSize", getChunkSize());
+		result.replaceItemValue("numPause", getPause());
+		return result;
+	}
+
+	public boolean isActive() {
+		return active;
+	}
+
+	public int getChunkSize() {
+		return (chunkSize != null && chunkSize > 0) ? chunkSize : DEFAULT_CHUNK_SIZE;
+	}
+
+	public void setChunkSize(int chunkSize) {
+		this.chunkSize = chunkSize;
+	}
+
+	public int getPause() {
+		return (pause != null && pause >= 0) ? pause : DEFAULT_PAUSE;
+	}
+
+	public void setPause(int pause) {
+		this.pause = pause;
+	}
+
+	@Timeout
+	void onTimeout(Timer timer) {
+		run(System.currentTimeMillis());
+	}
+
+	/**
+	 * Updates the next chunk of entities of the first pending index change and
+	 * stores the progress. The method returns immediately if no index change
+	 * is pending, the job pauses or a chunk is currently updated.
+	 * 
+	 * @param now
+	 *            - current time in milliseconds
+	 */
+	void run(long now) {
+		if (!active || now < nextRun || !runLock.tryLock())
+			return;
+		List<String> merged;
+		synchronized (submitted) {
+			merged = new ArrayList<String>(submitted);
+		}
+		long duration = 0;
+		try {
+			ItemCollection config = loadConfiguration();
+			List<String> queue = getQueue(config);
+			boolean changed = false;
+			for (String job : merged) {
+				if (!queue.contains(job)) {
+					queue.add(job);
+					changed = true;
+				}
+			}
+
+			if (!queue.isEmpty() && !isOwner(config, now)) {
+				// another node updates the entities
+				if (changed) {
+					config.replaceItemValue("txtIndexQueue", queue);
+					config = saveConfiguration(config);
+				}
+				status = config;
+				synchronized (submitted) {
+					submitted.removeAll(merged);
+				}
+				return;
+			}
+
+			if (!queue.isEmpty()) {
+				// claim the job - fails if another node claimed it in the
+				// meantime
+				config.replaceItemValue("txtIndexQueue", queue);
+				config.replaceItemValue("txtOwner", nodeId);
+				config.replaceItemValue("datLease", new Date(System.currentTimeMillis() + LEASE + getPause()));
+				config = saveConfiguration(config);
+
+				String job = queue.get(0);
+				boolean remove = job.startsWith("-");
+				int pos = job.lastIndexOf(':');
+				String indexName = job.substring(1, pos);
+				int type = Integer.parseInt(job.substring(pos + 1));
+
+				if (!job.equals(config.getItemValueString("txtIndexJob"))) {
+					logger.info("[EntityIndexJob] start update of existing entities: " + job);
+					config.replaceItemValue("txtIndexJob", job);
+					config.replaceItemValue("txtResumeToken", "");
+					config.replaceItemValue("numScanned", 0);
+					config.replaceItemValue("numUpdated", 0);
+					config.replaceItemValue("datStarted", new Date(now));
+				}
+
+				long l = System.currentTimeMillis();
+				ItemCollection chunk = getEntityService().updateIndexValues(indexName, type, remove,
+						config.getItemValueString("txtResumeToken"), getChunkSize());
+				duration = System.currentTimeMillis() - l;
+
+				String token = chunk.getItemValueString(EntityService.CONTINUATIONTOKEN);
+				int scanned = config.getItemValueInteger("numScanned") + chunk.getItemValueInteger("numScanned");
+				int updated = config.getItemValueInteger("numUpdated") + chunk.getItemValueInteger("numUpdated");
+				config.replaceItemValue("txtResumeToken", token);
+				config.replaceItemValue("numScanned", scanned);
+				config.replaceItemValue("numUpdated", updated);
+				config.replaceItemValue("datLastChunk", new Date());
+				config.replaceItemValue("numChunkDuration", duration);
+				logger.fine("[EntityIndexJob] " + job + ": " + updated + " of " + scanned + " entities updated");
+
+				if (token.isEmpty()) {
+					queue.remove(0);
+					config.replaceItemValue("txtIndexJob", "");
+					config.replaceItemValue("txtLastJob", job + " - " + updated + " of " + scanned
+							+ " entities updated, finished " + new Date());
+					logger.info("[EntityIndexJob] finished update of existing entities: " + job + " - " + updated
+							+ " of " + scanned + " entities updated");
+				}
+			}
+
+			config.replaceItemValue("txtIndexQueue", queue);
+			config.replaceItemValue("txtLastError", "");
+			if (queue.isEmpty()) {
+				config.removeItem("txtOwner");
+				config.removeItem("datLease");
+			} else {
+				config.replaceItemValue("datLease", new Date(System.currentTimeMillis() + LEASE
+						+ Math.max(getPause(), duration)));
+			}
+			status = saveConfiguration(config);
+
+			synchronized (submitted) {
+				submitted.removeAll(merged);
+				active = !queue.isEmpty() || !submitted.isEmpty();
+			}
+		} catch (Exception e) {
+			if (isOptimisticLock(e)) {
+				// the configuration was updated by another node
+				logger.fine("[EntityIndexJob] configuration updated by another node");
+				return;
+			}
+			logger.warning("[EntityIndexJob] index update failed: " + e.getMessage());
+			if (status != null)
+				status.replaceItemValue("txtLastError", e.getMessage());
+			// retry after a longer pause
+			duration = Math.max(duration, 10L * getPause());
+		} finally {
+			nextRun = System.currentTimeMillis() + Math.max(getPause(), duration);
+			runLock.unlock();
+		}
+	}
+
+	/**
+	 * Loads the configuration of the job or creates a new one
+	 */
+	ItemCollection loadConfiguration() {
+		EntityQuery query = new EntityQuery("config").type(TYPE).textItem("txtname", NAME);
+		Collection<ItemCollection> col = getEntityService().findAllEntities(query, 0, 1);
+		if (col.size() > 0)
+			return col.iterator().next();
+
+		ItemCollection config = new ItemCollection();
+		config.replaceItemValue("type", TYPE);
+		config.replaceItemValue("txtname", NAME);
+		config.replaceItemValue(WorkflowKernel.UNIQUEID, WorkflowKernel.generateUniqueID());
+		return config;
+	}
+
+	/**
+	 * Saves the configuration. The configuration is saved with optimistic
+	 * locking, so a concurrent update by another node fails.
+	 */
+	private ItemCollection saveConfiguration(ItemCollection config) {
+		config.replaceItemValue("$writeAccess", "org.imixs.ACCESSLEVEL.MANAGERACCESS");
+		config.replaceItemValue("$readAccess", "org.imixs.ACCESSLEVEL.MANAGERACCESS");
+		return getEntityService().save(config);
+	}
+
+	/**
+	 * Returns true if the job is not owned by another node or the lease of
+	 * the owner has expired
+	 */
+	private boolean isOwner(ItemCollection config, long now) {
+		String owner = config.getItemValueString("txtOwner");
+		Date lease = config.getItemValueDate("datLease");
+		return owner.isEmpty() || owner.equals(nodeId) || lease == null || lease.getTime() <= now;
+	}
+
+	private static boolean isOptimisticLock(Throwable e) {
+		while (e != null) {
+			if (e instanceof OptimisticLockException)
+				return true;
+			e = e.getCause();
+		}
+		return false;
+	}
+
+	private void enqueue(String job) {
+		synchronized (submitted) {
+			if (!submitted.contains(job))
+				submitted.add(job);
+			active = true;
+		}
+		// wait until all cluster nodes use the changed index definitions
+		nextRun = Math.max(nextRun, System.currentTimeMillis() + EntityService.INDEX_REFRESH_INTERVAL);
+	}
+
+	@SuppressWarnings("rawtypes")
+	private static List<String> getQueue(ItemCollection config) {
+		List<String> queue = new ArrayList<String>();
+		for (Object job : (List) config.getItemValue("txtIndexQueue")) {
+			if (job != null && !job.toString().isEmpty())
+				queue.add(job.toString());
+		}
+		return queue;
+	}
+
+	private EntityService getEntityService() {
+		if (entityService == null)
+			entityService = (EntityService) ctx.lookup(ENTITY_SERVICE);
+		return entityService;
+	}
+
+}
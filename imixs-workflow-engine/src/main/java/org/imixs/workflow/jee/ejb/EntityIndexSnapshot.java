@@ -0,0 +1,118 @@
+/*******************************************************************************
+ *  Imixs Workflow 
+ *  Copyright (C) 2001, 2011 Imixs Software Solutions GmbH,  
+ *  http://www.imixs.com
+ *  
+ *  This program is free software; you can redistribute it and/or 
+ *  modify it under the terms of the GNU General Public License 
+ *  as published by the Free Software Foundation; either version 2 
+ *  of the License, or (at your option) any later version.
+ *  
+ *  This program is distributed in the hope that it will be useful, 
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU 
+ *  General Public License for more details.
+ *  
+ *  You can receive a copy of the GNU General Public
+ *  License at http://www.gnu.org/licenses/gpl.html
+ *  
+ *  Project: 
+ *  	http://www.imixs.org
+ *  	http://java.net/projects/imixs-workflow
+ *  
+ *  Contributors:  
+ *  	Imixs Software Solutions GmbH - initial API and implementation
+ *  	Ralph Soika - Software Developer
+ *******************************************************************************/
+
+package org.imixs.workflow.jee.ejb;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.imixs.workflow.jee.jpa.EntityIndex;
+
+/**
+ * An EntityIndexSnapshot is an immutable copy of the EntityIndex definitions
+ * together with the version stamp they were read with. The EntityService
+ * holds the current snapshot in the EntityIndexCache and uses it for each
+ * save instead of querying the EntityIndex table. After the snapshot expired,
+ * the EntityService compares the version with the version stamp in the
+ * database and reloads the definitions only if the version has changed.
+ * 
+ * @see org.imixs.workflow.jee.ejb.EntityService
+ * @author rsoika
+ * 
+ */
+public class EntityIndexSnapshot {
+
+	private final int version;
+	private final List<EntityIndex> indices;
+	private final Map<String, Integer> types;
+	private final long validUntil;
+
+	/**
+	 * Creates a new snapshot. The EntityIndex definitions are copied.
+	 * 
+	 * @param version
+	 *            - version stamp of the definitions
+	 * @param indices
+	 *            - EntityIndex definitions
+	 * @param validUntil
+	 *            - time in milliseconds until the snapshot is used without
+	 *            verifying the version
+	 */
+	EntityIndexSnapshot(int version, Collection<EntityIndex> indices, long validUntil) {
+		this.version = version;
+		List<EntityIndex> indexList = new ArrayList<EntityIndex>(indices.size());
+		Map<String, Integer> typeMap = new HashMap<String, Integer>();
+		for (EntityIndex index : indices) {
+			indexList.add(new EntityIndex(index.getName(), index.getTyp()));
+			typeMap.put(index.getName(), index.getTyp());
+		}
+		this.indices = Collections.unmodifiableList(indexList);
+		this.types = Collections.unmodifiableMap(typeMap);
+		this.validUntil = validUntil;
+	}
+
+	private EntityIndexSnapshot(EntityIndexSnapshot snapshot, long validUntil) {
+		this.version = snapshot.version;
+		this.indices = snapshot.indices;
+		this.types = snapshot.types;
+		this.validUntil = validUntil;
+	}
+
+	/**
+	 * Returns a copy of this snapshot with a new expiry time
+	 */
+	EntityIndexSnapshot revalidate(long validUntil) {
+		return new EntityIndexSnapshot(this, validUntil);
+	}
+
+	int getVersion() {
+		return version;
+	}
+
+	/**
+	 * Returns the unmodifiable list of EntityIndex definitions. The
+	 * definitions must not be changed.
+	 */
+	List<EntityIndex> getIndices() {
+		return indices;
+	}
+
+	/**
+	 * Returns the unmodifiable map of index names and types
+	 */
+	Map<String, Integer> getTypes() {
+		return types;
+	}
+
+	boolean isValid(long now) {
+		return now < validUntil;
+	}
+}
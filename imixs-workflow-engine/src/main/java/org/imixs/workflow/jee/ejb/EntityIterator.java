@@ -0,0 +1,129 @@
+/*******************************************************************************
+ *  Imixs Workflow 
+ *  Copyright (C) 2001, 2011 Imixs Software Solutions GmbH,  
+ *  http://www.imixs.com
+ *  
+ *  This program is free software; you can redistribute it and/or 
+ *  modify it under the terms of the GNU General Public License 
+ *  as published by the Free Software Foundation; either version 2 
+ *  of the License, or (at your option) any later version.
+ *  
+ *  This program is distributed in the hope that it will be useful, 
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU 
+ *  General Public License for more details.
+ *  
+ *  You can receive a copy of the GNU General Public
+ *  License at http://www.gnu.org/licenses/gpl.html
+ *  
+ *  Project: 
+ *  	http://www.imixs.org
+ *  	http://java.net/projects/imixs-workflow
+ *  
+ *  Contributors:  
+ *  	Imixs Software Solutions GmbH - initial API and implementation
+ *  	Ralph Soika - Software Developer
+ *******************************************************************************/
+
+package org.imixs.workflow.jee.ejb;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import org.imixs.workflow.ItemCollection;
+
+/**
+ * The EntityIterator iterates over the result of a jPQL statement. The result
+ * is read in pages by the EntityService method findAllEntitiesAfter() using
+ * keyset pagination. Only the current page is hold in memory.
+ * <p>
+ * The EntityIterator is created by the EntityService method
+ * iterateAllEntities().
+ * 
+ * @see org.imixs.workflow.jee.ejb.EntityService
+ * @author rsoika
+ * 
+ */
+public class EntityIterator implements Iterator<ItemCollection> {
+
+	private final EntityService entityService;
+	private final String query;
+	private final Map<String, ?> parameters;
+	private final int pageSize;
+
+	private List<ItemCollection> page = null;
+	private int pos = 0;
+	private String continuationToken = null;
+	private boolean lastPage = false;
+
+	/**
+	 * Creates a new EntityIterator
+	 * 
+	 * @param entityService
+	 *            - business object of the EntityService
+	 * @param query
+	 *            - jPQL statement
+	 * @param pageSize
+	 *            - count of entities read per page
+	 */
+	EntityIterator(EntityService entityService, String query, int pageSize) {
+		this(entityService, query, null, pageSize);
+	}
+
+	/**
+	 * Creates a new EntityIterator for a jPQL statement with named parameters
+	 * 
+	 * @param entityService
+	 *            - business object of the EntityService
+	 * @param query
+	 *            - jPQL statement
+	 * @param parameters
+	 *            - values of the named parameters or null
+	 * @param pageSize
+	 *            - count of entities read per page
+	 */
+	EntityIterator(EntityService entityService, String query, Map<String, ?> parameters, int pageSize) {
+		this.entityService = entityService;
+		this.query = query;
+		this.parameters = parameters;
+		this.pageSize = pageSize;
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (page != null && pos < page.size())
+			return true;
+		if (lastPage)
+			return false;
+
+		// read next page
+		if (parameters == null)
+			page = entityService.findAllEntitiesAfter(query, continuationToken, pageSize);
+		else
+			page = entityService.findAllEntitiesAfter(query, parameters, continuationToken, pageSize);
+		pos = 0;
+		if (page.size() < pageSize)
+			lastPage = true;
+		if (!page.isEmpty())
+			continuationToken = page.get(page.size() - 1).getItemValueString(EntityService.CONTINUATIONTOKEN);
+		return !page.isEmpty();
+	}
+
+	@Override
+	public ItemCollection next() {
+		if (!hasNext())
+			throw new NoSuchElementException();
+		ItemCollection entity = page.get(pos);
+		// release the element
+		page.set(pos++, null);
+		return entity;
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException("EntityIterator does not support remove()");
+	}
+
+}
@@ -0,0 +1,305 @@
+/*******************************************************************************
+ *  Imixs Workflow 
+ *  Copyright (C) 2001, 2011 Imixs Software Solutions GmbH,  
+ *  http://www.imixs.com
+ *  
+ *  This program is free software; you can redistribute it and/or 
+ *  modify it under the terms of the GNU General Public License 
+ *  as published by the Free Software Foundation; either version 2 
+ *  of the License, or (at your option) any later version.
+ *  
+ *  This program is distributed in the hope that it will be useful, 
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU 
+ *  General Public License for more details.
+ *  
+ *  You can receive a copy of the GNU General Public
+ *  License at http://www.gnu.org/licenses/gpl.html
+ *  
+ *  Project: 
+ *  	http://www.imixs.org
+ *  	http://java.net/projects/imixs-workflow
+ *  
+ *  Contributors:  
+ *  	Imixs Software Solutions GmbH - initial API and implementation
+ *  	Ralph Soika - Software Developer
+ *******************************************************************************/
+
+package org.imixs.workflow.jee.ejb;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An EntityQuery builds a parameterized jPQL statement selecting Entities by
+ * their type and their index properties (TextItem, IntegerItem, CalendarItem
+ * and WriteAccess). In difference to a jPQL string concatenated with the
+ * values of a selection, the statement of an EntityQuery only depends on the
+ * structure of the selection. The values are bound as query parameters. So a
+ * statement is parsed only once by the JPA provider and the prepared
+ * statement can be reused by the database.
+ * <p>
+ * Example:
+ * 
+ * <code>
+ * EntityQuery query = new EntityQuery("wi").type("workitem").textItem("$modelversion", version)
+ *     .integerItem("$processid", 1000).orderBy(EntityQuery.MODIFIED, false);
+ * List&lt;ItemCollection&gt; result = entityService.findAllEntities(query, 0, -1);
+ * </code>
+ * <p>
+ * The read access check of the CallerPrincipal is added by the EntityService
+ * when the query is executed.
+ * 
+ * @see org.imixs.workflow.jee.ejb.EntityService
+ * @author rsoika
+ * 
+ */
+public class EntityQuery implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	public static final String CREATED = "created";
+	public static final String MODIFIED = "modified";
+
+	// name of the join and the parameter of the read access check
+	static final String ACCESS_JOIN = "access807";
+	static final String ACCESS_PARAMETER = "accessnames";
+
+	private final String identifier;
+	private final StringBuilder joins = new StringBuilder();
+	private final List<String> conditions = new ArrayList<String>();
+	private final Map<String, Object> parameters = new LinkedHashMap<String, Object>();
+	private String orderBy = null;
+	private int count = 0;
+
+	/**
+	 * Creates a new EntityQuery with the identifier 'entity'
+	 */
+	public EntityQuery() {
+		this("entity");
+	}
+
+	/**
+	 * Creates a new EntityQuery
+	 * 
+	 * @param identifier
+	 *            - identification variable of the Entity
+	 */
+	public EntityQuery(String identifier) {
+		this.identifier = identifier;
+	}
+
+	/**
+	 * Selects Entities of the given types. If no type is given (or a single
+	 * null or empty type) the method has no effect.
+	 * 
+	 * @param types
+	 *            - one or more values of the attribute 'type'
+	 */
+	public EntityQuery type(String... types) {
+		if (types == null || types.length == 0 || (types.length == 1 && (types[0] == null || types[0].isEmpty())))
+			return this;
+		if (types.length == 1)
+			return where(identifier + ".type = :" + bind("type", types[0]));
+		return where(identifier + ".type IN :" + bind("type", Arrays.asList(types)));
+	}
+
+	/**
+	 * Selects Entities containing the index property with the given value
+	 * 
+	 * @param itemName
+	 *            - name of a TextItem
+	 * @param value
+	 */
+	public EntityQuery textItem(String itemName, String value) {
+		String alias = join("textItems", itemName);
+		return where(alias + ".itemValue = :" + bind(alias + "value", value));
+	}
+
+	/**
+	 * Selects Entities containing the index property with one of the given
+	 * values
+	 * 
+	 * @param itemName
+	 *            - name of a TextItem
+	 * @param values
+	 */
+	public EntityQuery textItem(String itemName, Collection<String> values) {
+		String alias = join("textItems", itemName);
+		return where(alias + ".itemValue IN :" + bind(alias + "value", new ArrayList<String>(values)));
+	}
+
+	/**
+	 * Selects Entities containing the index property with the given value
+	 * 
+	 * @param itemName
+	 *            - name of an IntegerItem
+	 * @param value
+	 */
+	public EntityQuery integerItem(String itemName, int value) {
+		String alias = join("integerItems", itemName);
+		return where(alias + ".itemValue = :" + bind(alias + "value", value));
+	}
+
+	/**
+	 * Selects Entities containing the index property with a value before or
+	 * equal to the given date
+	 * 
+	 * @param itemName
+	 *            - name of a CalendarItem
+	 * @param date
+	 */
+	public EntityQuery calendarItemBefore(String itemName, Date date) {
+		Calendar cal = Calendar.getInstance();
+		cal.setTime(date);
+		String alias = join("calendarItems", itemName);
+		return where(alias + ".itemValue <= :" + bind(alias + "value", cal));
+	}
+
+	/**
+	 * Selects Entities containing the index property independent from its
+	 * value
+	 * 
+	 * @param itemName
+	 *            - name of a TextItem
+	 */
+	public EntityQuery hasTextItem(String itemName) {
+		join("textItems", itemName);
+		return this;
+	}
+
+	/**
+	 * Selects Entities with one of the given names in the $writeAccess list
+	 * 
+	 * @param names
+	 *            - user names or roles
+	 */
+	public EntityQuery writeAccess(Collection<String> names) {
+		String alias = "q" + (count++);
+		joins.append(" JOIN ").append(identifier).append(".writeAccessList AS ").append(alias);
+		return where(alias + ".value IN :" + bind(alias + "value", new ArrayList<String>(names)));
+	}
+
+	/**
+	 * Orders the result by the creation or modification date of the Entities.
+	 * Queries ordered by these attributes can be paged with the EntityService
+	 * method findAllEntitiesAfter().
+	 * 
+	 * @param attribute
+	 *            - CREATED or MODIFIED
+	 * @param ascending
+	 */
+	public EntityQuery orderBy(String attribute, boolean ascending) {
+		orderBy = identifier + "." + attribute + (ascending ? " asc" : " desc");
+		return this;
+	}
+
+	/**
+	 * Orders the result by the value of an index property
+	 * 
+	 * @param itemName
+	 *            - name of a TextItem
+	 * @param ascending
+	 */
+	public EntityQuery orderByTextItem(String itemName, boolean ascending) {
+		orderBy = join("textItems", itemName) + ".itemValue" + (ascending ? " asc" : " desc");
+		return this;
+	}
+
+	/**
+	 * Orders the result by the value of an index property
+	 * 
+	 * @param itemName
+	 *            - name of an IntegerItem
+	 * @param ascending
+	 */
+	public EntityQuery orderByIntegerItem(String itemName, boolean ascending) {
+		orderBy = join("integerItems", itemName) + ".itemValue" + (ascending ? " asc" : " desc");
+		return this;
+	}
+
+	public String getIdentifier() {
+		return identifier;
+	}
+
+	/**
+	 * Returns the parameter values of the query
+	 * 
+	 * @return map of parameter names and values
+	 */
+	public Map<String, Object> getParameters() {
+		return parameters;
+	}
+
+	/**
+	 * Returns the jPQL statement of this query.
+	 * 
+	 * @return jPQL statement
+	 */
+	public String getJPQL() {
+		return getJPQL(false);
+	}
+
+	/**
+	 * Returns the jPQL statement of this query. If readAccessCheck is true the
+	 * statement contains the read access check. The names of the
+	 * CallerPrincipal have to be bound to the parameter 'accessnames'.
+	 * 
+	 * @param readAccessCheck
+	 * @return jPQL statement
+	 */
+	String getJPQL(boolean readAccessCheck) {
+		StringBuilder jpql = new StringBuilder();
+		jpql.append("SELECT DISTINCT ").append(identifier).append(" FROM Entity AS ").append(identifier);
+		jpql.append(joins);
+		List<String> where = conditions;
+		if (readAccessCheck) {
+			jpql.append(" LEFT JOIN ").append(identifier).append(".readAccessList ").append(ACCESS_JOIN);
+			where = new ArrayList<String>(conditions);
+			where.add(0, "(" + ACCESS_JOIN + ".value IS NULL OR " + ACCESS_JOIN + ".value IN :" + ACCESS_PARAMETER
+					+ ")");
+		}
+		for (int i = 0; i < where.size(); i++) {
+			jpql.append(i == 0 ? " WHERE " : " AND ").append(where.get(i));
+		}
+		if (orderBy != null)
+			jpql.append(" ORDER BY ").append(orderBy);
+		return jpql.toString();
+	}
+
+	@Override
+	public String toString() {
+		return getJPQL() + " " + parameters;
+	}
+
+	/**
+	 * Joins an index property and returns the alias of the join
+	 */
+	private String join(String relation, String itemName) {
+		String alias = "q" + (count++);
+		joins.append(" JOIN ").append(identifier).append(".").append(relation).append(" AS ").append(alias);
+		where(alias + ".itemName = :" + bind(alias + "name", itemName.toLowerCase()));
+		return alias;
+	}
+
+	private EntityQuery where(String condition) {
+		conditions.add(condition);
+		return this;
+	}
+
+	/**
+	 * Adds a parameter value and returns the parameter name
+	 */
+	private String bind(String name, Object value) {
+		parameters.put(name, value);
+		return name;
+	}
+
+}
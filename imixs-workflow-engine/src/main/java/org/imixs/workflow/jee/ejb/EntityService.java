@@ -27,27 +27,45 @@
 
 package org.imixs.workflow.jee.ejb;
 
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.StringTokenizer;
 import java.util.Vector;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import javax.annotation.Resource;
 import javax.annotation.security.DeclareRoles;
 import javax.annotation.security.RolesAllowed;
+import javax.ejb.AsyncResult;
+import javax.ejb.Asynchronous;
+import javax.ejb.EJB;
 import javax.ejb.LocalBean;
 import javax.ejb.SessionContext;
 import javax.ejb.Stateless;
@@ -57,6 +75,11 @@ import javax.persistence.EntityManager;
 import javax.persistence.FlushModeType;
 import javax.persistence.PersistenceContext;
 import javax.persistence.Query;
+import javax.persistence.TemporalType;
+import javax.persistence.TypedQuery;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
 
 import org.imixs.workflow.ItemCollection;
 import org.imixs.workflow.exceptions.AccessDeniedException;
@@ -191,9 +214,23 @@ public class EntityService implements EntityServiceRemote {
 	public static final String READACCESS = "$readaccess";
 	public static final String WRITEACCESS = "$writeaccess";
 	public static final String ISAUTHOR = "$isAuthor";
+	public static final String CONTINUATIONTOKEN = "$continuationtoken";
 
 	public static final String USER_GROUP_LIST = "org.imixs.USER.GROUPLIST";
 
+	// query parameter and clauses used by keyset queries
+	private static final String KEYSET_PARAMETER = "keysetid";
+	private static final String KEYSET_VALUE_PARAMETER = "keysetvalue";
+	private static final Pattern KEYSET_SORT_ORDER = Pattern.compile(
+			"\\bORDER\\s+BY\\s+(\\w+)\\.(created|modified)(?:\\s+(ASC|DESC))?\\s*$", Pattern.CASE_INSENSITIVE);
+	private static final Pattern QUERY_IDENTIFIER = Pattern.compile("\\bFROM\\s+Entity\\s+(?:AS\\s+)?(\\w+)",
+			Pattern.CASE_INSENSITIVE);
+	private static final Pattern WHERE_CLAUSE = Pattern.compile("\\bWHERE\\b", Pattern.CASE_INSENSITIVE);
+	private static final Pattern ORDER_BY_CLAUSE = Pattern.compile("\\bORDER\\s+BY\\b", Pattern.CASE_INSENSITIVE);
+
+	// ContextData key of the resolved access rights of the CallerPrincipal
+	private static final String CALLER_ACCESS = "org.imixs.workflow.jee.ejb.EntityService.CALLER_ACCESS";
+
 	// private static Logger logger = Logger.getLogger("org.imixs.workflow");
 	private final static Logger logger = Logger.getLogger(EntityService.class.getName());
 
@@ -201,9 +238,58 @@ public class EntityService implements EntityServiceRemote {
 
 	public static final String INVALID_UNIQUEID = "INVALID_UNIQUEID";
 
+	public static final int DEFAULT_BATCH_SIZE = 100;
+
+	public static final int DEFAULT_RESTORE_WORKERS = 4;
+
+	/*
+	 * Name of the EntityIndex row holding the version stamp of the index
+	 * definitions in the attribute 'typ'. The row is not an index.
+	 */
+	static final String INDEX_VERSION = "$$indexversion";
+
+	// time in ms an EntityIndexSnapshot is used without verifying the version
+	static final long INDEX_REFRESH_INTERVAL = 1000;
+
+	// max length of the text of an entity in the full-text index
+	static final int MAX_FULLTEXT_LENGTH = 65536;
+
+	// resource of the current transaction holding the changed EntityIndex
+	// definitions
+	private static final String INDEX_CHANGE = EntityService.class.getName() + ".indexchange";
+
+	// JNDI name of the ModelService used to compute the due date of a workitem
+	static final String MODEL_SERVICE = "java:module/ModelService";
+
+	/*
+	 * This item is stored only in the data field of an entity. It contains the
+	 * write access values of the entity and indicates that the data field
+	 * contains also all index properties.
+	 */
+	static final String DATA_WRITEACCESS = "$$writeaccess";
+
+	// statistics of the index rows written by the save method
+	private static final AtomicLong saveCount = new AtomicLong();
+	private static final AtomicLong indexRowsWritten = new AtomicLong();
+
 	@Resource
 	SessionContext ctx;
 
+	@Resource
+	TransactionSynchronizationRegistry txRegistry;
+
+	@EJB
+	EntityIndexCache entityIndexCache;
+
+	@EJB
+	EntityIndexJob entityIndexJob;
+
+	@EJB
+	FullTextIndexService fullTextIndexService;
+
+	@EJB
+	WorkflowSchedulerWheel schedulerWheel;
+
 	@Resource(name = "READ_ACCESS_FIELDS")
 	private String readAccessFields = "";
 	@Resource(name = "WRITE_ACCESS_FIELDS")
@@ -212,10 +298,16 @@ public class EntityService implements EntityServiceRemote {
 	private String accessRoles = "";
 	@Resource(name = "DISABLE_OPTIMISTIC_LOCKING")
 	private Boolean disableOptimisticLocking = false;
+	@Resource(name = "BATCH_SIZE")
+	private Integer batchSize = DEFAULT_BATCH_SIZE;
+	@Resource(name = "RESTORE_WORKERS")
+	private Integer restoreWorkers = DEFAULT_RESTORE_WORKERS;
 
 	@PersistenceContext(unitName = "org.imixs.workflow.jee.jpa")
 	private EntityManager manager;
 
+	ModelService modelService = null;
+
 	/**
 	 * Returns additional AccessRoles defined for the EJB instance
 	 * 
@@ -270,6 +362,49 @@ public class EntityService implements EntityServiceRemote {
 		return disableOptimisticLocking;
 	}
 
+	/**
+	 * Returns the count of entities saved or loaded in one batch
+	 * 
+	 * @return
+	 */
+	public int getBatchSize() {
+		return (batchSize != null && batchSize > 0) ? batchSize : DEFAULT_BATCH_SIZE;
+	}
+
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Returns the count of entities saved since the last reset of the
+	 * statistics.
+	 * 
+	 * @return
+	 */
+	public long getSaveCount() {
+		return saveCount.get();
+	}
+
+	/**
+	 * Returns the count of index rows (TextItem, IntegerItem, DoubleItem,
+	 * CalendarItem) inserted or removed by the save method since the last
+	 * reset of the statistics. Divided by the save count this is the average
+	 * count of index rows written per save.
+	 * 
+	 * @return
+	 */
+	public long getIndexRowsWritten() {
+		return indexRowsWritten.get();
+	}
+
+	/**
+	 * Resets the save statistics
+	 */
+	public void resetStatistics() {
+		saveCount.set(0);
+		indexRowsWritten.set(0);
+	}
+
 	/**
 	 * This method returns a list of user names, roles and application groups
 	 * the user belongs to.
@@ -331,21 +466,158 @@ public class EntityService implements EntityServiceRemote {
 	 * @return updated ItemCollection
 	 */
 	public ItemCollection save(ItemCollection itemcol) throws AccessDeniedException {
+		return save(itemcol, true);
+	}
+
+	/**
+	 * This method saves an ItemCollection like the method save() but did not
+	 * update the property $modified and the modification time of an existing
+	 * entity. The method is used to update properties computed during save -
+	 * like the due date '$scheduleddue' of a workitem - without changing the
+	 * date of the last modification. So the order of worklists sorted by the
+	 * modification time and open continuation tokens are not affected. The
+	 * version number of the entity is increased.
+	 * 
+	 * @param ItemCollection
+	 *            to be saved
+	 * @return updated ItemCollection
+	 */
+	public ItemCollection saveUnmodified(ItemCollection itemcol) throws AccessDeniedException {
+		return save(itemcol, false);
+	}
+
+	private ItemCollection save(ItemCollection itemcol, boolean modified) throws AccessDeniedException {
 
-		Entity activeEntity = null;
-		ItemCollection slimItemCollection = null;
 		logger.finest("[EntityService] save entity started");
 		/*
-		 * First we get a List of all existing Indices
-		 * 
-		 * if the FlushModeType=AUTO (which is the default) the getIndices()
-		 * call will force an internal flush()
+		 * First we get a List of all existing Indices. The list is read from
+		 * the EntityIndexSnapshot and did not force a flush.
 		 */
 		Collection<EntityIndex> entityIndexCache = readIndices();
 
 		// Now set flush Mode to COMMIT
 		manager.setFlushMode(FlushModeType.COMMIT);
 
+		Entity activeEntity = persistItemCollection(itemcol, entityIndexCache, modified);
+
+		/*
+		 * Issue #166,#145
+		 * 
+		 * The flush call is important here. In cases of multiple updates of
+		 * different entities in same transaction data can be lost if not
+		 * flushed here! After the flush() the current version number can be
+		 * read.
+		 */
+		manager.flush();
+		// update version number
+		itemcol.replaceItemValue("$Version", activeEntity.getVersion());
+		updateFullTextIndex(itemcol, activeEntity);
+
+		/*
+		 * Issue #189
+		 * 
+		 * We need to detach the activeEntity here. In other cases there are
+		 * situations where updates caused by the vm are reflected back into the
+		 * entity and increases the version number. This can be tested when a
+		 * byte array is stored in a itemCollection. So for this reason we
+		 * detach the entity here!!
+		 */
+		manager.detach(activeEntity);
+
+		// return imploded itemCollection
+		return itemcol;
+	}
+
+	/**
+	 * This method saves a list of ItemCollections in one batch. In difference
+	 * to the save() method the persistence manager is not flushed after each
+	 * single ItemCollection but only after a block of ItemCollections defined by
+	 * the environment setting 'BATCH_SIZE' (default 100). This allows the JPA
+	 * provider to write the index rows of a block with JDBC batch statements
+	 * (e.g. eclipselink.jdbc.batch-writing).
+	 * <p>
+	 * The list of existing Indices is read only once for the whole batch.
+	 * <p>
+	 * If the CallerPrincipal is not allowed to save a single ItemCollection,
+	 * this ItemCollection is skipped and the properties '$error_code' and
+	 * '$error_message' are added. All other ItemCollections are saved. The
+	 * method returns the list of the updated ItemCollections in the same order
+	 * as provided.
+	 * 
+	 * @param itemcols
+	 *            - list of ItemCollections to be saved
+	 * @return list of updated ItemCollections
+	 */
+	public List<ItemCollection> saveAll(List<ItemCollection> itemcols) {
+		long l = System.currentTimeMillis();
+		Collection<EntityIndex> entityIndexCache = readIndices();
+		manager.setFlushMode(FlushModeType.COMMIT);
+
+		int size = getBatchSize();
+		List<ItemCollection> batchItems = new ArrayList<ItemCollection>(size);
+		List<Entity> batchEntities = new ArrayList<Entity>(size);
+		for (ItemCollection itemcol : itemcols) {
+			try {
+				// the access is verified before the entity is changed
+				Entity activeEntity = persistItemCollection(itemcol, entityIndexCache, true);
+				batchItems.add(itemcol);
+				batchEntities.add(activeEntity);
+			} catch (AccessDeniedException e) {
+				logger.warning("[EntityService] saveAll - " + itemcol.getItemValueString(UNIQUEID) + ": "
+						+ e.getMessage());
+				itemcol.replaceItemValue("$error_code", e.getErrorCode());
+				itemcol.replaceItemValue("$error_message", e.getMessage());
+				continue;
+			}
+			if (batchEntities.size() >= size) {
+				flushBatch(batchItems, batchEntities);
+			}
+		}
+		flushBatch(batchItems, batchEntities);
+
+		logger.fine("[EntityService] saveAll - " + itemcols.size() + " entities saved in "
+				+ (System.currentTimeMillis() - l) + " ms");
+		return itemcols;
+	}
+
+	/**
+	 * Flushes a batch of entities, updates the version numbers and detaches
+	 * the entities from the persistence context (see issue #145, #189)
+	 */
+	private void flushBatch(List<ItemCollection> batchItems, List<Entity> batchEntities) {
+		if (batchEntities.isEmpty())
+			return;
+		manager.flush();
+		for (int i = 0; i < batchEntities.size(); i++) {
+			Entity activeEntity = batchEntities.get(i);
+			batchItems.get(i).replaceItemValue("$Version", activeEntity.getVersion());
+			updateFullTextIndex(batchItems.get(i), activeEntity);
+			manager.detach(activeEntity);
+		}
+		batchItems.clear();
+		batchEntities.clear();
+	}
+
+	/**
+	 * This method updates or creates the managed Entity for an ItemCollection.
+	 * The Entity is not flushed.
+	 * 
+	 * @param itemcol
+	 *            - ItemCollection to be saved
+	 * @param entityIndexCache
+	 *            - list of existing Indices
+	 * @param modified
+	 *            - if false an existing property $modified is not updated
+	 * @return managed entity
+	 * @throws AccessDeniedException
+	 *             if the CallerPrincipal is not allowed to save the
+	 *             ItemCollection. In this case the persistence context is not
+	 *             changed.
+	 */
+	private Entity persistItemCollection(ItemCollection itemcol, Collection<EntityIndex> entityIndexCache,
+			boolean modified) throws AccessDeniedException {
+		Entity activeEntity = null;
+
 		// check if a $uniqueid is available
 		String sID = itemcol.getItemValueString(UNIQUEID);
 		if (!"".equals(sID)) {
@@ -407,8 +679,9 @@ public class EntityService implements EntityServiceRemote {
 		// after all activeEntity is now managed through the persistence
 		// manager!
 
-		// remove property $isauthor
+		// remove property $isauthor and the $continuationtoken
 		itemcol.removeItem("$isauthor");
+		itemcol.removeItem(CONTINUATIONTOKEN);
 
 		String aType = itemcol.getItemValueString("type");
 		if ("".equals(aType))
@@ -419,19 +692,28 @@ public class EntityService implements EntityServiceRemote {
 		Calendar cal = Calendar.getInstance();
 
 		itemcol.replaceItemValue("$uniqueid", activeEntity.getId());
-		itemcol.replaceItemValue("$modified", cal.getTime());
+		if (modified || itemcol.getItemValueDate("$modified") == null)
+			itemcol.replaceItemValue("$modified", cal.getTime());
+		activeEntity.setKeepModified(!modified);
 		itemcol.replaceItemValue("$created", activeEntity.getCreated().getTime());
-		// create a new Instance of this ItemCollection
-		slimItemCollection = new ItemCollection(itemcol.getAllItems());
 
-		// update read- and writeAccess List
-		updateReadAccessList(slimItemCollection, activeEntity);
-		updateWriteAccessList(slimItemCollection, activeEntity);
+		// update the due date of a workitem (see WorkflowSchedulerService)
+		updateDueDate(itemcol);
+
+		// update read- and writeAccess List. The index values are read
+		// directly from the itemcol - explodeEntity() did not change the item
+		// map, so no copy of the ItemCollection is needed here.
+		updateReadAccessList(itemcol, activeEntity);
+		updateWriteAccessList(itemcol, activeEntity);
 
-		explodeEntity(slimItemCollection, activeEntity, entityIndexCache);
+		int indexRows = explodeEntity(itemcol, activeEntity, entityIndexCache);
+		saveCount.incrementAndGet();
+		indexRowsWritten.addAndGet(indexRows);
+		if (logger.isLoggable(Level.FINE))
+			logger.fine("[EntityService] save " + activeEntity.getId() + " - " + indexRows + " index rows written");
 
-		// finally update the data field and store the item map object
-		activeEntity.setData(slimItemCollection.getAllItems());
+		// finally update the data field
+		activeEntity.setData(createData(itemcol, activeEntity));
 
 		// verify and update the author access and add again the property
 		// '$isauthor'
@@ -453,31 +735,52 @@ public class EntityService implements EntityServiceRemote {
 		// reload the workItem!
 		// itemcol.removeItem("$Version");
 
-		/*
-		 * Issue #166,#145
-		 * 
-		 * The flush call is important here. In cases of multiple updates of
-		 * different entities in same transaction data can be lost if not
-		 * flushed here! After the flush() the current version number can be
-		 * read.
-		 */
-		manager.flush();
-		// update version number
-		itemcol.replaceItemValue("$Version", activeEntity.getVersion());
+		return activeEntity;
+	}
 
-		/*
-		 * Issue #189
-		 * 
-		 * We need to detach the activeEntity here. In other cases there are
-		 * situations where updates caused by the vm are reflected back into the
-		 * entity and increases the version number. This can be tested when a
-		 * byte array is stored in a itemCollection. So for this reason we
-		 * detach the entity here!!
-		 */
-		manager.detach(activeEntity);
+	/**
+	 * This method updates the due date ('$scheduleddue') of a workitem which
+	 * is about to be saved. The due date is computed from the scheduled
+	 * activities of the current process entity and the properties $modified
+	 * and $created of the workitem. So the due date is also updated if a
+	 * workitem is saved without being processed.
+	 * <p>
+	 * The WorkflowSchedulerWheel is updated after the transaction was
+	 * committed.
+	 * 
+	 * @see WorkflowSchedulerService#updateDueDate
+	 * @param itemcol
+	 */
+	void updateDueDate(ItemCollection itemcol) {
+		int processID = itemcol.getItemValueInteger(WorkflowService.PROCESSID);
+		String version = itemcol.getItemValueString(WorkflowService.MODELVERSION);
+		if (processID <= 0 || version.isEmpty())
+			return;
+		ModelService model = getModelService();
+		if (model == null)
+			return;
+		WorkflowSchedulerService.updateDueDate(itemcol,
+				WorkflowSchedulerService.getScheduledActivities(model.getActivityEntityList(processID, version)),
+				null);
+		if (schedulerWheel != null)
+			schedulerWheel.schedule(itemcol.getItemValueString(UNIQUEID),
+					itemcol.getItemValueDate(WorkflowSchedulerService.DUEDATE));
+	}
 
-		// return imploded itemCollection
-		return itemcol;
+	/**
+	 * Returns the ModelService used to compute the due date of a workitem. The
+	 * bean is looked up by its JNDI name because the ModelService depends on
+	 * the EntityService.
+	 */
+	private ModelService getModelService() {
+		if (modelService == null) {
+			try {
+				modelService = (ModelService) ctx.lookup(MODEL_SERVICE);
+			} catch (IllegalArgumentException e) {
+				logger.warning("[EntityService] unable to lookup ModelService: " + e.getMessage());
+			}
+		}
+		return modelService;
 	}
 
 	/**
@@ -537,6 +840,171 @@ public class EntityService implements EntityServiceRemote {
 			return null;
 	}
 
+	/**
+	 * This method loads a list of ItemCollections by their $uniqueIDs. The
+	 * entities are selected with one IN query for each block of ids (see
+	 * 'BATCH_SIZE'). The method returns a map with the $uniqueID as key.
+	 * ItemCollections which did not exist or which are not readable by the
+	 * CallerPrincipal are not contained in the result.
+	 * 
+	 * @param ids
+	 *            - list of $uniqueIDs
+	 * @return map of ItemCollections
+	 */
+	@SuppressWarnings("unchecked")
+	public Map<String, ItemCollection> load(Collection<String> ids) {
+		Map<String, ItemCollection> result = new HashMap<String, ItemCollection>();
+		if (ids == null || ids.isEmpty())
+			return result;
+
+		int size = getBatchSize();
+		Set<String> idSet = new LinkedHashSet<String>(ids);
+		idSet.remove(null);
+		idSet.remove("");
+		List<String> idList = new ArrayList<String>(idSet);
+		for (int i = 0; i < idList.size(); i += size) {
+			List<String> block = idList.subList(i, Math.min(i + size, idList.size()));
+			Query q = manager.createQuery("SELECT entity FROM Entity entity WHERE entity.id IN :ids");
+			q.setParameter("ids", block);
+			Collection<Entity> entityList = q.getResultList();
+			for (Entity activeEntity : entityList) {
+				if (isCallerReader(activeEntity))
+					result.put(activeEntity.getId(), implodeEntity(activeEntity));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the ItemCollections containing all terms of a full-text query.
+	 * The terms are searched in the text items of the entities by the
+	 * FullTextIndexService. A term ending with '*' matches all terms with this
+	 * prefix. The method returns only ItemCollections which are readable by
+	 * the CallerPrincipal. The result is ordered by the time of the last save
+	 * (newest first).
+	 * <p>
+	 * The method throws an InvalidAccessException if the full-text index is
+	 * not enabled (see 'FULLTEXT_INDEX_DIRECTORY').
+	 * 
+	 * @param query
+	 *            - search terms
+	 * @param type
+	 *            - optional type of the entities
+	 * @param start
+	 *            - position of the first ItemCollection
+	 * @param count
+	 *            - max count of ItemCollections or -1
+	 * @return list of ItemCollections
+	 * @throws InvalidAccessException
+	 */
+	public List<ItemCollection> search(String query, String type, int start, int count)
+			throws InvalidAccessException {
+		if (fullTextIndexService == null || !fullTextIndexService.isEnabled())
+			throw new InvalidAccessException(OPERATION_NOTALLOWED, "[EntityService] full-text index not enabled");
+		long l = System.currentTimeMillis();
+		CallerAccess callerAccess = getCallerAccess();
+		List<String> ids = fullTextIndexService.search(query, type,
+				callerAccess.managerAccess ? null : callerAccess.userNames, start, count);
+		// the read access is verified again by the load method
+		Map<String, ItemCollection> entities = load(ids);
+		List<ItemCollection> result = new ArrayList<ItemCollection>(entities.size());
+		for (String id : ids) {
+			ItemCollection itemCol = entities.get(id);
+			if (itemCol != null)
+				result.add(itemCol);
+		}
+		logger.fine("[EntityService] search '" + query + "' - " + result.size() + " results in "
+				+ (System.currentTimeMillis() - l) + " ms");
+		return result;
+	}
+
+	/**
+	 * Returns the full-text documents of a chunk of entities ordered by their
+	 * id. The method is used by the FullTextIndexService to rebuild the index.
+	 * Each document contains the items '$uniqueid', 'type', '$readaccess',
+	 * 'content' and '$continuationtoken'.
+	 * 
+	 * @param continuationToken
+	 *            - token of the last document of the previous chunk or null
+	 * @param maxcount
+	 *            - max count of documents
+	 * @return list of documents
+	 * @throws AccessDeniedException
+	 */
+	public List<ItemCollection> findFullTextDocuments(String continuationToken, int maxcount)
+			throws AccessDeniedException {
+		if (ctx.isCallerInRole("org.imixs.ACCESSLEVEL.MANAGERACCESS") == false)
+			throw new AccessDeniedException(OPERATION_NOTALLOWED,
+					"[EntityService] You are not allowed to read the full-text documents");
+		TypedQuery<Entity> q = manager.createQuery(
+				"SELECT entity FROM Entity entity WHERE entity.id > :id ORDER BY entity.id", Entity.class);
+		q.setParameter("id", continuationToken == null ? "" : continuationToken);
+		q.setMaxResults(maxcount);
+		List<ItemCollection> result = new ArrayList<ItemCollection>();
+		for (Entity aEntity : q.getResultList()) {
+			ItemCollection document = createFullTextDocument(implodeEntity(aEntity), aEntity);
+			document.replaceItemValue(CONTINUATIONTOKEN, aEntity.getId());
+			result.add(document);
+		}
+		return result;
+	}
+
+	/**
+	 * Submits a saved entity to the FullTextIndexService
+	 */
+	private void updateFullTextIndex(ItemCollection itemcol, Entity activeEntity) {
+		if (fullTextIndexService != null && fullTextIndexService.isEnabled())
+			fullTextIndexService.update(createFullTextDocument(itemcol, activeEntity));
+	}
+
+	/**
+	 * Creates the full-text document of an entity. The document contains the
+	 * $uniqueid, the type, the read access of the entity and the text of the
+	 * ItemCollection (see getFullTextContent).
+	 */
+	static ItemCollection createFullTextDocument(ItemCollection itemcol, Entity activeEntity) {
+		ItemCollection document = new ItemCollection();
+		document.replaceItemValue(UNIQUEID, activeEntity.getId());
+		document.replaceItemValue("type", activeEntity.getType() == null ? "" : activeEntity.getType());
+		List<String> acl = new ArrayList<String>();
+		if (activeEntity.getReadAccessList() != null) {
+			for (ReadAccess aReadAccess : activeEntity.getReadAccessList()) {
+				if (aReadAccess != null && aReadAccess.getValue() != null && !aReadAccess.getValue().isEmpty())
+					acl.add(aReadAccess.getValue());
+			}
+		}
+		document.replaceItemValue("$readaccess", acl);
+		document.replaceItemValue("content", getFullTextContent(itemcol));
+		return document;
+	}
+
+	/**
+	 * Returns the text of all String values of an ItemCollection. Items
+	 * starting with '$' are ignored except '$workflowsummary' and
+	 * '$workflowabstract'. The text is limited to MAX_FULLTEXT_LENGTH
+	 * characters.
+	 */
+	@SuppressWarnings("rawtypes")
+	static String getFullTextContent(ItemCollection itemcol) {
+		StringBuilder content = new StringBuilder();
+		for (Object entry : itemcol.getAllItems().entrySet()) {
+			String name = ((Map.Entry) entry).getKey().toString().toLowerCase();
+			if (name.startsWith("$") && !"$workflowsummary".equals(name) && !"$workflowabstract".equals(name))
+				continue;
+			Object values = ((Map.Entry) entry).getValue();
+			if (!(values instanceof List))
+				continue;
+			for (Object value : (List) values) {
+				if (value instanceof String && !((String) value).isEmpty()) {
+					if (content.length() + ((String) value).length() >= MAX_FULLTEXT_LENGTH)
+						return content.toString();
+					content.append(value).append(' ');
+				}
+			}
+		}
+		return content.toString();
+	}
+
 	/**
 	 * This method removes an ItemCollection from the database. If the
 	 * CallerPrincipal is not allowed to access the ItemColleciton the method
@@ -595,6 +1063,10 @@ public class EntityService implements EntityServiceRemote {
 
 			// remove entity...
 			manager.remove(activeEntity);
+			if (fullTextIndexService != null)
+				fullTextIndexService.delete(sID);
+			if (schedulerWheel != null)
+				schedulerWheel.schedule(sID, null);
 
 		} else
 			throw new AccessDeniedException(INVALID_UNIQUEID, "[EntityService] invalid $uniqueid");
@@ -608,6 +1080,9 @@ public class EntityService implements EntityServiceRemote {
 	 * The method throws an AccessDeniedException if the CallerPrinciapal is not
 	 * in the role org.imixs.ACCESSLEVEL.MANAGERACCESS.
 	 * 
+	 * The index values of existing entities are added in the background by the
+	 * EntityIndexJob after the transaction was committed.
+	 * 
 	 * @param name
 	 *            of a property (not case sensetive)
 	 * @param ityp
@@ -617,6 +1092,8 @@ public class EntityService implements EntityServiceRemote {
 	public void addIndex(String stitel, int ityp) throws AccessDeniedException {
 		// lower case title
 		stitel = stitel.toLowerCase();
+		if (INDEX_VERSION.equals(stitel))
+			return;
 
 		// check if index already exists?
 		EntityIndex activeEntityIndex = manager.find(EntityIndex.class, stitel);
@@ -634,16 +1111,12 @@ public class EntityService implements EntityServiceRemote {
 		logger.info("[EntityServiceBean] add new Index: " + stitel + ":" + ityp);
 		activeEntityIndex = new EntityIndex(stitel, ityp);
 		manager.persist(activeEntityIndex);
+		updateIndexVersion();
 
-		// we do no longer update existing entities. Need to be implemented by
-		// the client!
-		// see issue #94
-
-		// Collection<Entity> entityList = null;
-		// Query q = manager.createQuery("SELECT entity FROM Entity entity");
-		// entityList = q.getResultList();
-		// updateAllEntityIndexFields(entityList, stitel);
-
+		// existing entities are updated in the background by the
+		// EntityIndexJob (see issue #94)
+		if (entityIndexJob != null)
+			entityIndexJob.submit(stitel, ityp, false);
 	}
 
 	/**
@@ -654,6 +1127,9 @@ public class EntityService implements EntityServiceRemote {
 	 * The method checks if the Caller is in Role
 	 * "org.imixs.ACCESSLEVEL.MANAGERACCESS".
 	 * 
+	 * The index values of existing entities are removed in the background by
+	 * the EntityIndexJob after the transaction was committed.
+	 * 
 	 * 
 	 * @param stitel
 	 *            - will be automatical lowercased!
@@ -664,6 +1140,8 @@ public class EntityService implements EntityServiceRemote {
 		int indexType = 0;
 		// lower case title
 		stitel = stitel.toLowerCase();
+		if (INDEX_VERSION.equals(stitel))
+			return;
 
 		// check if index already exists?
 		EntityIndex activeEntityIndex = manager.find(EntityIndex.class, stitel);
@@ -681,40 +1159,341 @@ public class EntityService implements EntityServiceRemote {
 
 		// remove index
 		manager.remove(activeEntityIndex);
+		updateIndexVersion();
 
-		// we do no longer update existing entities. Need to be implemented by
-		// the client!
-		// see issue #94
-
-		// Collection<Entity> entityList = null;
-		// String query = "SELECT wi FROM Entity wi ";
-		// switch (indexType) {
-		// case EntityIndex.TYP_CALENDAR:
-		// query += " JOIN wi.calendarItems AS i1 WHERE i1.itemName='"
-		// + stitel + "'";
-		// break;
-		// case EntityIndex.TYP_DOUBLE:
-		// query += " JOIN wi.doubleItems AS i1 WHERE i1.itemName='" + stitel
-		// + "'";
-		// break;
-		// case EntityIndex.TYP_INT:
-		// query += " JOIN wi.integerItems AS i1 WHERE i1.itemName='" + stitel
-		// + "'";
-		// break;
-		//
-		// default:
-		// query += " JOIN wi.textItems AS i1 WHERE i1.itemName='" + stitel
-		// + "'";
-		// break;
-		// }
-		//
-		// logger.info("[EntityServiceBean] remove Index - update query=" +
-		// query);
-		// Query q = manager.createQuery(query);
-		//
-		// entityList = q.getResultList();
-		// updateAllEntityIndexFields(entityList, null);
+		// existing entities are updated in the background by the
+		// EntityIndexJob (see issue #94)
+		if (entityIndexJob != null)
+			entityIndexJob.submit(stitel, indexType, true);
+	}
+
+	/**
+	 * This method updates the index values of one EntityIndex for a chunk of
+	 * existing entities in a new transaction. The method is called by the
+	 * EntityIndexJob after an index was added or removed (see issue #94).
+	 * <p>
+	 * If the index was added (remove=false) the entities are read in the order
+	 * of their id and the values of the index are added to each entity which
+	 * contains the item but no index values for it yet. If the index was
+	 * removed (remove=true) only the entities with values of the index are
+	 * read and the values are removed. Other index values are not touched. The
+	 * method has no effect if the index was removed or added again in the
+	 * meantime.
+	 * <p>
+	 * Entities saved by a previous version did not contain the index values
+	 * in their data (see createData). Before the index values of such an
+	 * entity are changed, the values of all index rows are copied into the
+	 * data of the entity (see completeData). So the values of a removed index
+	 * are not lost.
+	 * <p>
+	 * Only entities with changed index values are updated. The modification
+	 * time of these entities is not changed, so the order of worklists sorted
+	 * by the modification time is not affected. But the version number of an
+	 * updated entity is increased. A client saving such an entity loaded
+	 * before the update fails with an optimistic lock exception and has to
+	 * reload the entity.
+	 * <p>
+	 * The method returns the items '$continuationtoken' (id of the last entity
+	 * read or an empty string if no more entities exist), 'numScanned'
+	 * (entities read), 'numUpdated' (entities updated) and 'numRows' (index
+	 * rows inserted or removed).
+	 * 
+	 * @param indexName
+	 *            - name of the index
+	 * @param type
+	 *            - type of the index
+	 * @param remove
+	 *            - true if the index was removed
+	 * @param continuationToken
+	 *            - token of the previous chunk or null
+	 * @param maxcount
+	 *            - max count of entities to be read
+	 * @return result of the chunk
+	 * @throws AccessDeniedException
+	 */
+	@TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+	public ItemCollection updateIndexValues(String indexName, int type, boolean remove, String continuationToken,
+			int maxcount) throws AccessDeniedException {
+		if (ctx.isCallerInRole("org.imixs.ACCESSLEVEL.MANAGERACCESS") == false)
+			throw new AccessDeniedException(OPERATION_NOTALLOWED,
+					"[EntityService] You are not allowed to update index fields");
+		indexName = indexName.toLowerCase();
+		ItemCollection result = new ItemCollection();
+		result.replaceItemValue(CONTINUATIONTOKEN, "");
+		int scanned = 0;
+		int updated = 0;
+		int rows = 0;
+
+		EntityIndex index = manager.find(EntityIndex.class, indexName);
+		if ((index == null) != remove) {
+			logger.warning("[EntityService] updateIndexValues - index '" + indexName + "' was "
+					+ (remove ? "added" : "removed") + " again, update skipped");
+			return result;
+		}
 
+		String query = "SELECT DISTINCT entity FROM Entity entity";
+		if (remove) {
+			query += " JOIN entity." + getIndexRelation(type) + " AS i1 WHERE i1.itemName = :name AND";
+		} else {
+			query += " WHERE";
+		}
+		query += " entity.id > :id ORDER BY entity.id";
+		TypedQuery<Entity> q = manager.createQuery(query, Entity.class);
+		if (remove)
+			q.setParameter("name", indexName);
+		q.setParameter("id", continuationToken == null ? "" : continuationToken);
+		q.setMaxResults(maxcount);
+
+		String lastId = "";
+		for (Entity aEntity : q.getResultList()) {
+			lastId = aEntity.getId();
+			scanned++;
+			int count = 0;
+			if (remove) {
+				// the index values of an entity saved by a previous version
+				// are not contained in the data
+				aEntity.setKeepModified(true);
+				completeData(aEntity);
+				count = removeIndexValues(aEntity, indexName);
+			} else {
+				ItemCollection itemCol = new ItemCollection(aEntity.getData());
+				if (itemCol.hasItem(indexName) && !hasIndexValues(aEntity, index)) {
+					aEntity.setKeepModified(true);
+					completeData(aEntity);
+					count = addIndexValues(aEntity, index, itemCol.getItemValue(indexName));
+				}
+			}
+			if (count > 0) {
+				updated++;
+				rows += count;
+			}
+		}
+		indexRowsWritten.addAndGet(rows);
+
+		if (scanned >= maxcount)
+			result.replaceItemValue(CONTINUATIONTOKEN, lastId);
+		result.replaceItemValue("numScanned", scanned);
+		result.replaceItemValue("numUpdated", updated);
+		result.replaceItemValue("numRows", rows);
+		logger.fine("[EntityService] updateIndexValues - " + indexName + ": " + updated + " of " + scanned
+				+ " entities updated");
+		return result;
+	}
+
+	/**
+	 * Returns the name of the relation of the Entity holding the values of an
+	 * index type
+	 */
+	private static String getIndexRelation(int type) {
+		switch (type) {
+		case EntityIndex.TYP_INT:
+			return "integerItems";
+		case EntityIndex.TYP_DOUBLE:
+			return "doubleItems";
+		case EntityIndex.TYP_CALENDAR:
+			return "calendarItems";
+		default:
+			return "textItems";
+		}
+	}
+
+	/**
+	 * Returns true if the entity already contains values of an index (the
+	 * entity was saved after the index was added).
+	 */
+	static boolean hasIndexValues(Entity aEntity, EntityIndex index) {
+		String indexName = index.getName();
+		switch (index.getTyp()) {
+		case EntityIndex.TYP_TEXT:
+			for (TextItem aItem : aEntity.getTextItems()) {
+				if (indexName.equals(aItem.itemName))
+					return true;
+			}
+			break;
+		case EntityIndex.TYP_INT:
+			for (IntegerItem aItem : aEntity.getIntegerItems()) {
+				if (indexName.equals(aItem.itemName))
+					return true;
+			}
+			break;
+		case EntityIndex.TYP_DOUBLE:
+			for (DoubleItem aItem : aEntity.getDoubleItems()) {
+				if (indexName.equals(aItem.itemName))
+					return true;
+			}
+			break;
+		case EntityIndex.TYP_CALENDAR:
+			for (CalendarItem aItem : aEntity.getCalendarItems()) {
+				if (indexName.equals(aItem.itemName))
+					return true;
+			}
+			break;
+		}
+		return false;
+	}
+
+	/**
+	 * Adds the values of a new index to an entity. The method expects that the
+	 * entity contains no values of the index (see hasIndexValues).
+	 * 
+	 * @return count of index rows inserted
+	 */
+	@SuppressWarnings("rawtypes")
+	private int addIndexValues(Entity aEntity, EntityIndex index, List values) {
+		String indexName = index.getName();
+		int rows = 0;
+		switch (index.getTyp()) {
+		case EntityIndex.TYP_TEXT:
+			for (Object value : values) {
+				TextItem newItem = new TextItem(indexName, value.toString());
+				manager.persist(newItem);
+				aEntity.getTextItems().add(newItem);
+				rows++;
+			}
+			break;
+		case EntityIndex.TYP_INT:
+			for (Object value : values) {
+				if (!(value instanceof Integer)) {
+					logger.warning("updateIndexValues - " + indexName + " TYP_INT: invalid value ID:"
+							+ aEntity.getId());
+					continue;
+				}
+				IntegerItem newItem = new IntegerItem(indexName, (Integer) value);
+				manager.persist(newItem);
+				aEntity.getIntegerItems().add(newItem);
+				rows++;
+			}
+			break;
+		case EntityIndex.TYP_DOUBLE:
+			for (Object value : values) {
+				if (!(value instanceof Double)) {
+					logger.warning("updateIndexValues - " + indexName + " TYP_DOUBLE: invalid value ID:"
+							+ aEntity.getId());
+					continue;
+				}
+				DoubleItem newItem = new DoubleItem(indexName, (Double) value);
+				manager.persist(newItem);
+				aEntity.getDoubleItems().add(newItem);
+				rows++;
+			}
+			break;
+		case EntityIndex.TYP_CALENDAR:
+			for (Object value : values) {
+				if (value instanceof java.util.Date) {
+					Calendar cal = Calendar.getInstance();
+					cal.setTime((java.util.Date) value);
+					value = cal;
+				}
+				if (!(value instanceof Calendar)) {
+					logger.warning("updateIndexValues - " + indexName + " TYP_CALENDAR: invalid value ID:"
+							+ aEntity.getId());
+					continue;
+				}
+				CalendarItem newItem = new CalendarItem(indexName, (Calendar) value);
+				manager.persist(newItem);
+				aEntity.getCalendarItems().add(newItem);
+				rows++;
+			}
+			break;
+		default:
+			logger.warning("updateIndexValues - " + indexName + " Indextype:" + index.getTyp() + " unknown!");
+		}
+		return rows;
+	}
+
+	/**
+	 * Copies the values of the index rows of an entity saved by a previous
+	 * version into the data of the entity. Such an entity contains no
+	 * DATA_WRITEACCESS item and its data did not contain the values of the
+	 * index properties. The values are merged in the same way as by
+	 * implodeEntity(), so the complete data can be read from the data
+	 * property only. The method has no effect if the data is already complete.
+	 * 
+	 * @param aEntity
+	 *            - a managed entity
+	 * @return true if the data was updated
+	 */
+	static boolean completeData(Entity aEntity) {
+		Map<String, List<Object>> data = aEntity.getData();
+		if (data != null && data.containsKey(DATA_WRITEACCESS))
+			return false;
+
+		// the values of the index rows are followed by the values of the data
+		Map<String, List<Object>> completeData = new HashMap<String, List<Object>>();
+		for (TextItem aItem : aEntity.getTextItems())
+			addDataValue(completeData, aItem.itemName, aItem.itemValue);
+		for (IntegerItem aItem : aEntity.getIntegerItems())
+			addDataValue(completeData, aItem.itemName, aItem.itemValue);
+		for (DoubleItem aItem : aEntity.getDoubleItems())
+			addDataValue(completeData, aItem.itemName, aItem.itemValue);
+		for (CalendarItem aItem : aEntity.getCalendarItems()) {
+			// Calendar Objects will be converted into Date Objects
+			addDataValue(completeData, aItem.itemName, aItem.itemValue == null ? null : aItem.itemValue.getTime());
+		}
+		if (data != null) {
+			for (Map.Entry<String, List<Object>> mapEntry : data.entrySet()) {
+				for (Object value : mapEntry.getValue())
+					addDataValue(completeData, mapEntry.getKey(), value);
+			}
+		}
+
+		Vector<Object> writeAccessValues = new Vector<Object>();
+		for (WriteAccess aWriteAccess : aEntity.getWriteAccessList()) {
+			writeAccessValues.add(aWriteAccess.getValue());
+		}
+		completeData.put(DATA_WRITEACCESS, writeAccessValues);
+		aEntity.setData(completeData);
+		logger.fine("[EntityService] completeData ID=" + aEntity.getId());
+		return true;
+	}
+
+	private static void addDataValue(Map<String, List<Object>> data, String itemName, Object value) {
+		List<Object> values = data.get(itemName);
+		if (values == null) {
+			values = new Vector<Object>();
+			data.put(itemName, values);
+		}
+		values.add(value);
+	}
+
+	/**
+	 * Removes all values of an index from an entity
+	 * 
+	 * @return count of index rows removed
+	 */
+	private int removeIndexValues(Entity aEntity, String indexName) {
+		int rows = 0;
+		rows += removeIndexValues(aEntity.getTextItems(), indexName);
+		rows += removeIndexValues(aEntity.getIntegerItems(), indexName);
+		rows += removeIndexValues(aEntity.getDoubleItems(), indexName);
+		rows += removeIndexValues(aEntity.getCalendarItems(), indexName);
+		return rows;
+	}
+
+	private int removeIndexValues(List<?> items, String indexName) {
+		int rows = 0;
+		Iterator<?> iter = items.iterator();
+		while (iter.hasNext()) {
+			Object aItem = iter.next();
+			if (indexName.equals(getItemName(aItem))) {
+				manager.remove(aItem);
+				iter.remove();
+				rows++;
+			}
+		}
+		return rows;
+	}
+
+	private static String getItemName(Object aItem) {
+		if (aItem instanceof TextItem)
+			return ((TextItem) aItem).itemName;
+		if (aItem instanceof IntegerItem)
+			return ((IntegerItem) aItem).itemName;
+		if (aItem instanceof DoubleItem)
+			return ((DoubleItem) aItem).itemName;
+		if (aItem instanceof CalendarItem)
+			return ((CalendarItem) aItem).itemName;
+		return null;
 	}
 
 	/**
@@ -723,26 +1502,160 @@ public class EntityService implements EntityServiceRemote {
 	 * @return
 	 */
 	public Map<String, Integer> getIndices() {
-		HashMap<String, Integer> indexList = new HashMap<String, Integer>();
-		List<EntityIndex> list = readIndices();
-		for (EntityIndex aIndex : list) {
-			indexList.put(aIndex.getName(), aIndex.getTyp());
-		}
-
-		return indexList;
+		return new HashMap<String, Integer>(getIndexSnapshot(System.currentTimeMillis()).getTypes());
 	}
 
 	/**
-	 * helper method to read the current EntityIndices
+	 * helper method to read the current EntityIndices from the
+	 * EntityIndexSnapshot
 	 * 
 	 * @return
 	 */
-	@SuppressWarnings("unchecked")
 	private List<EntityIndex> readIndices() {
+		return getIndexSnapshot(System.currentTimeMillis()).getIndices();
+	}
+
+	/**
+	 * Returns the current EntityIndexSnapshot. A snapshot is used without
+	 * verification for INDEX_REFRESH_INTERVAL ms. After that the version stamp
+	 * is read from the database and the definitions are reloaded only if the
+	 * version has changed (e.g. by an other cluster node). The queries did not
+	 * force a flush.
+	 * <p>
+	 * The snapshot of the committed definitions is shared by the
+	 * EntityIndexCache. If the definitions were changed by the current
+	 * transaction, the method returns a snapshot of the uncommitted
+	 * definitions, which is only visible for the current transaction and is
+	 * published after commit (see updateIndexVersion).
+	 * 
+	 * @param now
+	 *            - current time in milliseconds
+	 * @return snapshot of the EntityIndex definitions
+	 */
+	EntityIndexSnapshot getIndexSnapshot(long now) {
+		IndexChange change = getIndexChange(false);
+		if (change != null) {
+			if (change.snapshot == null)
+				change.snapshot = new EntityIndexSnapshot(readIndexVersion(), loadIndices(), Long.MAX_VALUE);
+			return change.snapshot;
+		}
+
+		EntityIndexSnapshot snapshot = (entityIndexCache != null) ? entityIndexCache.getSnapshot() : null;
+		if (snapshot != null && snapshot.isValid(now))
+			return snapshot;
+
+		int version = readIndexVersion();
+		if (snapshot != null && snapshot.getVersion() == version) {
+			snapshot = snapshot.revalidate(now + INDEX_REFRESH_INTERVAL);
+		} else {
+			logger.fine("[EntityService] reading EntityIndex definitions, version=" + version);
+			snapshot = new EntityIndexSnapshot(version, loadIndices(), now + INDEX_REFRESH_INTERVAL);
+		}
+		if (entityIndexCache != null)
+			entityIndexCache.publish(snapshot);
+		return snapshot;
+	}
+
+	/**
+	 * Reads the version stamp of the EntityIndex definitions. Returns 0 if no
+	 * version stamp exists.
+	 */
+	int readIndexVersion() {
+		TypedQuery<Integer> q = manager.createQuery(
+				"SELECT entityindex.typ FROM EntityIndex entityindex WHERE entityindex.name = :name", Integer.class);
+		q.setParameter("name", INDEX_VERSION);
+		q.setFlushMode(FlushModeType.COMMIT);
+		List<Integer> result = q.getResultList();
+		return result.isEmpty() ? 0 : result.get(0);
+	}
+
+	/**
+	 * Reads the EntityIndex definitions without the version stamp
+	 */
+	List<EntityIndex> loadIndices() {
 		logger.finer("readIndices....");
-		Query q = manager.createQuery("SELECT entityindex FROM EntityIndex entityindex");
+		TypedQuery<EntityIndex> q = manager.createQuery("SELECT entityindex FROM EntityIndex entityindex",
+				EntityIndex.class);
+		q.setFlushMode(FlushModeType.COMMIT);
+		List<EntityIndex> result = new ArrayList<EntityIndex>();
+		for (EntityIndex index : q.getResultList()) {
+			if (!INDEX_VERSION.equals(index.getName()))
+				result.add(index);
+		}
+		return result;
+	}
+
+	/**
+	 * Increments the version stamp of the EntityIndex definitions. The changes
+	 * are flushed so that the next snapshot read in this transaction contains
+	 * them. The shared snapshot of the EntityIndexCache is not changed before
+	 * the transaction was committed.
+	 */
+	private void updateIndexVersion() {
+		EntityIndex stamp = manager.find(EntityIndex.class, INDEX_VERSION);
+		if (stamp == null) {
+			manager.persist(new EntityIndex(INDEX_VERSION, 1));
+		} else {
+			stamp.setTyp(stamp.getTyp() + 1);
+		}
+		manager.flush();
+		IndexChange change = getIndexChange(true);
+		if (change != null) {
+			change.snapshot = null;
+		} else if (entityIndexCache != null) {
+			// no active transaction
+			entityIndexCache.invalidate();
+		}
+	}
+
+	/**
+	 * Returns the IndexChange of the current transaction. If create is true
+	 * and the EntityIndex definitions were not yet changed by the current
+	 * transaction, a new IndexChange is registered as a resource and as a
+	 * synchronization of the transaction.
+	 * 
+	 * @return IndexChange or null if no transaction is active
+	 */
+	private IndexChange getIndexChange(boolean create) {
+		if (txRegistry == null || txRegistry.getTransactionKey() == null)
+			return null;
+		IndexChange change = (IndexChange) txRegistry.getResource(INDEX_CHANGE);
+		if (change == null && create) {
+			change = new IndexChange(entityIndexCache);
+			txRegistry.registerInterposedSynchronization(change);
+			txRegistry.putResource(INDEX_CHANGE, change);
+		}
+		return change;
+	}
+
+	/**
+	 * Holds the snapshot of the EntityIndex definitions changed by a
+	 * transaction. After the transaction was committed the snapshot is
+	 * published into the EntityIndexCache. If the snapshot was not read after
+	 * the last change, the EntityIndexCache is invalidated instead. After a
+	 * rollback the EntityIndexCache is not changed.
+	 */
+	static class IndexChange implements Synchronization {
+		final EntityIndexCache cache;
+		EntityIndexSnapshot snapshot = null;
+
+		IndexChange(EntityIndexCache cache) {
+			this.cache = cache;
+		}
 
-		return q.getResultList();
+		@Override
+		public void beforeCompletion() {
+		}
+
+		@Override
+		public void afterCompletion(int status) {
+			if (status != Status.STATUS_COMMITTED || cache == null)
+				return;
+			if (snapshot != null)
+				cache.publish(snapshot.revalidate(System.currentTimeMillis() + INDEX_REFRESH_INTERVAL));
+			else
+				cache.invalidate();
+		}
 	}
 
 	/**
@@ -760,57 +1673,397 @@ public class EntityService implements EntityServiceRemote {
 	 *            - maximum count of elements to be returned
 	 * @return list of ItemCollection elements
 	 * @throws InvalidAccessException
-	 * 
-	 * @see org.imixs.workfow.jee.jpa.Entity
+	 * 
+	 * @see org.imixs.workfow.jee.jpa.Entity
+	 */
+	public List<ItemCollection> findAllEntities(String query, int startpos, int maxcount)
+			throws InvalidAccessException {
+		return findAllEntities(query, null, startpos, maxcount);
+	}
+
+	/**
+	 * The method returns a collection of ItemCollections selected by a jPQL
+	 * statement with named parameters. Values bound as parameters do not
+	 * change the statement, so the statement is parsed only once by the JPA
+	 * provider and the prepared statement can be reused by the database. The
+	 * method returns only ItemCollections which are readable by the
+	 * CallerPrincipal.
+	 * 
+	 * @param query
+	 *            - JQPL statement
+	 * @param parameters
+	 *            - optional values of the named parameters of the statement
+	 * @param startpos
+	 *            - optional start position
+	 * @param maxcount
+	 *            - maximum count of elements to be returned
+	 * @return list of ItemCollection elements
+	 * @throws InvalidAccessException
+	 */
+	public List<ItemCollection> findAllEntities(String query, Map<String, ?> parameters, int startpos,
+			int maxcount) throws InvalidAccessException {
+
+		logger.fine("[EntityService] findAllEntities - Query=" + query);
+		logger.fine("[EntityService] findAllEntities - Startpos=" + startpos + " maxcount=" + maxcount);
+
+		// optimize query....
+		query = optimizeQuery(query);
+		try {
+			TypedQuery<Entity> q = manager.createQuery(query, Entity.class);
+			setParameters(q, parameters);
+			return getResultList(q, startpos, maxcount);
+		} catch (RuntimeException nre) {
+			throw new InvalidAccessException("[EntityService] Error findAllEntities: '" + query + "' ", nre);
+		}
+	}
+
+	/**
+	 * The method returns a collection of ItemCollections selected by an
+	 * EntityQuery. The read access check of the CallerPrincipal is added to
+	 * the statement of the EntityQuery. The method returns only
+	 * ItemCollections which are readable by the CallerPrincipal.
+	 * 
+	 * @param query
+	 *            - EntityQuery
+	 * @param startpos
+	 *            - optional start position
+	 * @param maxcount
+	 *            - maximum count of elements to be returned
+	 * @return list of ItemCollection elements
+	 * @throws InvalidAccessException
+	 * @see org.imixs.workflow.jee.ejb.EntityQuery
+	 */
+	public List<ItemCollection> findAllEntities(EntityQuery query, int startpos, int maxcount)
+			throws InvalidAccessException {
+		boolean readAccessCheck = !getCallerAccess().managerAccess;
+		String jpql = query.getJPQL(readAccessCheck);
+		logger.fine("[EntityService] findAllEntities - Query=" + query);
+		try {
+			TypedQuery<Entity> q = manager.createQuery(jpql, Entity.class);
+			setParameters(q, query.getParameters());
+			return getResultList(q, startpos, maxcount);
+		} catch (RuntimeException nre) {
+			throw new InvalidAccessException("[EntityService] Error findAllEntities: '" + jpql + "' ", nre);
+		}
+	}
+
+	/**
+	 * Binds the parameter values and the names of the CallerPrincipal to a
+	 * query.
+	 */
+	private void setParameters(Query q, Map<String, ?> parameters) {
+		if (parameters != null) {
+			for (Map.Entry<String, ?> entry : parameters.entrySet()) {
+				q.setParameter(entry.getKey(), entry.getValue());
+			}
+		}
+		CallerAccess callerAccess = getCallerAccess();
+		if (!callerAccess.managerAccess)
+			q.setParameter(EntityQuery.ACCESS_PARAMETER, new ArrayList<String>(callerAccess.userNames));
+	}
+
+	/**
+	 * Executes a query and implodes the selected entities
+	 */
+	private List<ItemCollection> getResultList(TypedQuery<Entity> q, int startpos, int maxcount) {
+		List<ItemCollection> vectorResult = new ArrayList<ItemCollection>();
+		if (startpos >= 0)
+			q.setFirstResult(startpos);
+		if (maxcount > 0)
+			q.setMaxResults(maxcount);
+
+		long l = System.currentTimeMillis();
+		List<Entity> entityList = q.getResultList();
+		logger.fine("[EntityService] findAllEntities - getResultList in " + (System.currentTimeMillis() - l) + " ms");
+
+		if (entityList == null)
+			return vectorResult;
+
+		logger.fine("[EntityService] findAllEntities - ResultList size=" + entityList.size());
+		l = System.currentTimeMillis();
+		for (Entity aEntity : entityList) {
+			// implode the ItemCollection object and add it to the resultset
+			vectorResult.add(implodeEntity(aEntity));
+		}
+
+		logger.fine("[EntityService] findAllEntities in " + (System.currentTimeMillis() - l) + " ms");
+		return vectorResult;
+	}
+
+	/**
+	 * This method returns an iterator over all ItemCollections selected by a
+	 * jPQL statement. In difference to the method findAllEntities() the result
+	 * is not loaded into memory at once. The iterator reads the result in
+	 * pages of the given size by calling the method findAllEntitiesAfter().
+	 * Each page is read in a separate EJB invocation. So the persistence
+	 * context is cleared between the pages and the heap usage does not grow
+	 * with the size of the result.
+	 * <p>
+	 * The ItemCollections are returned in the order of their $uniqueID or in
+	 * the order of their creation or modification date if the query ends with
+	 * an ORDER BY clause on the attribute 'created' or 'modified'. Any other
+	 * ORDER BY clause is ignored.
+	 * 
+	 * @param query
+	 *            - JQPL statement
+	 * @param pageSize
+	 *            - count of entities read per page. If pageSize &lt;= 0 the
+	 *            BATCH_SIZE is used.
+	 * @return iterator over all ItemCollections readable by the
+	 *         CallerPrincipal
+	 * @see findAllEntitiesAfter
+	 */
+	public Iterator<ItemCollection> iterateAllEntities(String query, int pageSize) {
+		if (pageSize <= 0)
+			pageSize = getBatchSize();
+		return new EntityIterator(ctx.getBusinessObject(EntityService.class), query, pageSize);
+	}
+
+	/**
+	 * This method returns an iterator over all ItemCollections selected by an
+	 * EntityQuery. The result is read in pages like in the method
+	 * iterateAllEntities(String, int).
+	 * 
+	 * @param query
+	 *            - EntityQuery
+	 * @param pageSize
+	 *            - count of entities read per page. If pageSize &lt;= 0 the
+	 *            BATCH_SIZE is used.
+	 * @return iterator over all ItemCollections readable by the
+	 *         CallerPrincipal
+	 */
+	public Iterator<ItemCollection> iterateAllEntities(EntityQuery query, int pageSize) {
+		if (pageSize <= 0)
+			pageSize = getBatchSize();
+		return new EntityIterator(ctx.getBusinessObject(EntityService.class), query.getJPQL(),
+				query.getParameters(), pageSize);
+	}
+
+	/**
+	 * This method returns a page of ItemCollections selected by a jPQL
+	 * statement using keyset pagination. In difference to the startpos of the
+	 * method findAllEntities() the database does not need to skip the previous
+	 * pages, so each page is read in the same time. Also entities created or
+	 * removed in the meantime do not shift the following pages.
+	 * <p>
+	 * If the query ends with an ORDER BY clause on the attribute 'created' or
+	 * 'modified' (ascending or descending) the ItemCollections are returned in
+	 * this order. Otherwise the ItemCollections are ordered by their $uniqueID
+	 * and an ORDER BY clause is ignored.
+	 * <p>
+	 * Each returned ItemCollection contains the property '$continuationtoken'.
+	 * The token of the last ItemCollection of a page can be passed to this
+	 * method to read the next page. The property is removed when the
+	 * ItemCollection is saved.
+	 * <p>
+	 * The entities of the page are detached from the persistence context when
+	 * they are converted into ItemCollections. The persistence context of the
+	 * caller is not flushed or cleared.
+	 * 
+	 * @param query
+	 *            - JQPL statement.
+	 * @param continuationToken
+	 *            - $continuationtoken of the last ItemCollection of the
+	 *            previous page or null for the first page
+	 * @param maxcount
+	 *            - maximum count of elements to be returned
+	 * @return list of ItemCollection elements
+	 * @throws InvalidAccessException
+	 */
+	public List<ItemCollection> findAllEntitiesAfter(String query, String continuationToken, int maxcount)
+			throws InvalidAccessException {
+		return findAllEntitiesAfter(query, null, continuationToken, maxcount);
+	}
+
+	/**
+	 * This method returns a page of ItemCollections selected by an EntityQuery
+	 * using keyset pagination.
+	 * 
+	 * @param query
+	 *            - EntityQuery
+	 * @param continuationToken
+	 *            - $continuationtoken of the last ItemCollection of the
+	 *            previous page or null for the first page
+	 * @param maxcount
+	 *            - maximum count of elements to be returned
+	 * @return list of ItemCollection elements
+	 * @throws InvalidAccessException
+	 * @see findAllEntitiesAfter
+	 */
+	public List<ItemCollection> findAllEntitiesAfter(EntityQuery query, String continuationToken, int maxcount)
+			throws InvalidAccessException {
+		return findAllEntitiesAfter(query.getJPQL(), query.getParameters(), continuationToken, maxcount);
+	}
+
+	/**
+	 * This method returns a page of ItemCollections selected by a jPQL
+	 * statement with named parameters using keyset pagination.
+	 * 
+	 * @param query
+	 *            - JQPL statement.
+	 * @param parameters
+	 *            - optional values of the named parameters of the statement
+	 * @param continuationToken
+	 *            - $continuationtoken of the last ItemCollection of the
+	 *            previous page or null for the first page
+	 * @param maxcount
+	 *            - maximum count of elements to be returned
+	 * @return list of ItemCollection elements
+	 * @throws InvalidAccessException
+	 * @see findAllEntitiesAfter
 	 */
-	@SuppressWarnings("unchecked")
-	public List<ItemCollection> findAllEntities(String query, int startpos, int maxcount)
-			throws InvalidAccessException {
-
-		long l = 0;
-
-		logger.fine("[EntityService] findAllEntities - Query=" + query);
-		logger.fine("[EntityService] findAllEntities - Startpos=" + startpos + " maxcount=" + maxcount);
-		List<ItemCollection> vectorResult = new ArrayList<ItemCollection>();
-
-		// optimize query....
-		query = optimizeQuery(query);
+	public List<ItemCollection> findAllEntitiesAfter(String query, Map<String, ?> parameters,
+			String continuationToken, int maxcount) throws InvalidAccessException {
+		List<ItemCollection> result = new ArrayList<ItemCollection>();
+		boolean hasToken = (continuationToken != null && !continuationToken.isEmpty());
+		String sortField = getKeysetSortField(query);
+
+		String keysetQuery = optimizeQuery(createKeysetQuery(query, hasToken));
+		logger.fine("[EntityService] findAllEntitiesAfter - Query=" + keysetQuery);
 		try {
-			Query q = manager.createQuery(query);
-			if (startpos >= 0)
-				q.setFirstResult(startpos);
+			TypedQuery<Entity> q = manager.createQuery(keysetQuery, Entity.class);
+			setParameters(q, parameters);
+			if (hasToken) {
+				if (sortField == null) {
+					q.setParameter(KEYSET_PARAMETER, continuationToken);
+				} else {
+					// the token is formated as <millis>_<id>
+					int pos = continuationToken.indexOf('_');
+					Calendar cal = Calendar.getInstance();
+					try {
+						cal.setTimeInMillis(Long.parseLong(continuationToken.substring(0, pos)));
+					} catch (NumberFormatException | IndexOutOfBoundsException e) {
+						throw new InvalidAccessException(InvalidAccessException.INVALID_UNIQUEID,
+								"[EntityService] Invalid continuation token: " + continuationToken);
+					}
+					q.setParameter(KEYSET_VALUE_PARAMETER, cal, TemporalType.TIMESTAMP);
+					q.setParameter(KEYSET_PARAMETER, continuationToken.substring(pos + 1));
+				}
+			}
 			if (maxcount > 0)
 				q.setMaxResults(maxcount);
 
-			l = System.currentTimeMillis();
-			Collection<Entity> entityList = q.getResultList();
-			logger.fine(
-					"[EntityService] findAllEntities - getResultList in " + (System.currentTimeMillis() - l) + " ms");
-
-			if (entityList == null)
-				return vectorResult;
-
-			logger.fine("[EntityService] findAllEntities - ResultList size=" + entityList.size());
-			l = System.currentTimeMillis();
+			List<Entity> entityList = q.getResultList();
 			for (Entity aEntity : entityList) {
-				/*
-				 * try { manager.refresh(aEntity); } catch
-				 * (EntityNotFoundException ex) { logger.warning(
-				 * "[EntityServiceBean] #issue 102 - refresh() EntityNotFoundException"
-				 * ); aEntity = null; continue; }
-				 */
-
-				// implode the ItemCollection object and add it to the resultset
-				vectorResult.add(implodeEntity(aEntity));
+				ItemCollection itemCol = implodeEntity(aEntity);
+				itemCol.replaceItemValue(CONTINUATIONTOKEN, createContinuationToken(aEntity, sortField));
+				result.add(itemCol);
 			}
+		} catch (InvalidAccessException e) {
+			throw e;
+		} catch (RuntimeException nre) {
+			throw new InvalidAccessException("[EntityService] Error findAllEntitiesAfter: '" + query + "' ", nre);
+		}
+		return result;
+	}
 
-			logger.fine("[EntityService] findAllEntities in " + (System.currentTimeMillis() - l) + " ms");
+	/**
+	 * Returns true if the order of the given jPQL statement is supported by
+	 * the keyset pagination of the method findAllEntitiesAfter(). This is the
+	 * case if the query has no ORDER BY clause or ends with an ORDER BY clause
+	 * on the attribute 'created' or 'modified'.
+	 * 
+	 * @param query
+	 *            - jPQL statement
+	 * @return true if the query can be paged with a continuation token
+	 */
+	public static boolean isKeysetQuery(String query) {
+		return getKeysetSortField(query) != null || !ORDER_BY_CLAUSE.matcher(query).find();
+	}
 
-		} catch (RuntimeException nre) {
-			throw new InvalidAccessException("[EntityService] Error findAllEntities: '" + query + "' ", nre);
+	/**
+	 * Returns the attribute ('created' or 'modified') the keyset of a query is
+	 * sorted by, or null if the keyset is the entity id only.
+	 */
+	static String getKeysetSortField(String query) {
+		Matcher sortMatcher = KEYSET_SORT_ORDER.matcher(query.trim());
+		if (sortMatcher.find())
+			return sortMatcher.group(2).toLowerCase();
+		return null;
+	}
+
+	/**
+	 * Computes the continuation token of an entity. The token is the entity id
+	 * or - if the keyset is sorted by 'created' or 'modified' - the timestamp
+	 * in milliseconds followed by '_' and the entity id.
+	 */
+	static String createContinuationToken(Entity entity, String sortField) {
+		if (sortField == null)
+			return entity.getId();
+		Calendar cal = ("created".equals(sortField) ? entity.getCreated() : entity.getModified());
+		return cal.getTimeInMillis() + "_" + entity.getId();
+	}
+
+	/**
+	 * This method converts a jPQL statement into a keyset query. If the query
+	 * ends with an ORDER BY clause on the attribute 'created' or 'modified',
+	 * the order is extended by the entity id. Otherwise an existing ORDER BY
+	 * clause is removed and the query is ordered by the entity id. If hasToken
+	 * is true, the query selects only entities following the parameters
+	 * 'keysetvalue' and 'keysetid'.
+	 * 
+	 * Example:
+	 * 
+	 * <code>
+	 * SELECT entity FROM Entity entity WHERE entity.type='workitem' ORDER BY entity.modified DESC
+	 * </code>
+	 * 
+	 * is converted into
+	 * 
+	 * <code>
+	 * SELECT entity FROM Entity entity WHERE (entity.modified &lt; :keysetvalue OR (entity.modified = :keysetvalue
+	 * AND entity.id &lt; :keysetid)) AND (entity.type='workitem') ORDER BY entity.modified DESC, entity.id DESC
+	 * </code>
+	 * 
+	 * @param query
+	 *            - jPQL statement
+	 * @param hasToken
+	 *            - true if the query should start after a given continuation
+	 *            token
+	 * @return keyset query
+	 */
+	static String createKeysetQuery(String query, boolean hasToken) {
+		query = query.trim();
+		Matcher matcher = QUERY_IDENTIFIER.matcher(query);
+		if (!matcher.find())
+			throw new InvalidAccessException("[EntityService] Invalid query format: " + query);
+		String identifier = matcher.group(1);
+
+		// test if the query is sorted by created or modified
+		String sortField = null;
+		boolean descending = false;
+		Matcher sortMatcher = KEYSET_SORT_ORDER.matcher(query);
+		if (sortMatcher.find()) {
+			sortField = sortMatcher.group(1) + "." + sortMatcher.group(2).toLowerCase();
+			descending = "DESC".equalsIgnoreCase(sortMatcher.group(3));
 		}
-		return vectorResult;
 
+		// remove order by clause
+		Matcher orderMatcher = ORDER_BY_CLAUSE.matcher(query);
+		if (orderMatcher.find())
+			query = query.substring(0, orderMatcher.start()).trim();
+
+		if (hasToken) {
+			String condition;
+			if (sortField == null) {
+				condition = identifier + ".id > :" + KEYSET_PARAMETER;
+			} else {
+				String operator = (descending ? " < " : " > ");
+				condition = "(" + sortField + operator + ":" + KEYSET_VALUE_PARAMETER + " OR (" + sortField + " = :"
+						+ KEYSET_VALUE_PARAMETER + " AND " + identifier + ".id" + operator + ":" + KEYSET_PARAMETER
+						+ "))";
+			}
+			Matcher whereMatcher = WHERE_CLAUSE.matcher(query);
+			if (whereMatcher.find())
+				query = query.substring(0, whereMatcher.start()) + "WHERE " + condition + " AND ("
+						+ query.substring(whereMatcher.end()).trim() + ")";
+			else
+				query = query + " WHERE " + condition;
+		}
+		if (sortField == null)
+			return query + " ORDER BY " + identifier + ".id";
+		String direction = (descending ? " DESC" : " ASC");
+		return query + " ORDER BY " + sortField + direction + ", " + identifier + ".id" + direction;
 	}
 
 	/**
@@ -856,6 +2109,7 @@ public class EntityService implements EntityServiceRemote {
 		query = query.substring(0, pos) + "(" + chunk2 + ".id)" + query.substring(pos + chunk2.length());
 
 		Query q = manager.createQuery(query);
+		setParameters(q, null);
 
 		Number cResults = (Number) q.getSingleResult();
 
@@ -899,77 +2153,358 @@ public class EntityService implements EntityServiceRemote {
 
 		String parentUniqueID = child.getItemValueString("$uniqueid");
 
-		String sQuery = "SELECT wi FROM Entity AS wi ";
-		sQuery += " JOIN wi.textItems as t2 ";
-		sQuery += " WHERE t2.itemName = '$uniqueidref' and t2.itemValue = '" + parentUniqueID + "' ";
-
-		return this.findAllEntities(sQuery, start, count);
+		EntityQuery query = new EntityQuery("wi").textItem(UNIQUEIDREF, parentUniqueID);
+		return this.findAllEntities(query, start, count);
 	}
 
 	/**
 	 * This method creates a backup of the result set form a JQPL query. The
 	 * entity list will be stored into the file system. The method stores the
-	 * Map from the ItemCollection to be independent from version upgrades. To
-	 * manage large dataSets the method reads the entities in smaller blocks
+	 * Map from the ItemCollection to be independent from version upgrades.
+	 * <p>
+	 * The entities are read with the keyset pagination of the method
+	 * findAllEntitiesAfter() in pages of the size defined by 'BATCH_SIZE'. Each
+	 * page is written as a compressed block with a CRC32 checksum (see
+	 * BackupFile). The file header contains the query and the expected count
+	 * of entities, the trailer the count of entities and blocks written.
+	 * <p>
+	 * The method runs without a transaction. Each page is read in a separate
+	 * short transaction, so a backup of a large data set does not exceed the
+	 * transaction timeout.
+	 * <p>
+	 * A progress file '[filePath].progress' of a previous restore is deleted.
+	 * <p>
+	 * The method returns a summary with the items 'numEntities', 'numBlocks'
+	 * and 'numDuration' (ms).
 	 * 
-	 * @param entities
+	 * @param query
+	 *            - JPQL statement
+	 * @param filePath
+	 *            - target file
+	 * @return summary of the backup
 	 * @throws IOException
 	 */
-	public void backup(String query, String filePath) throws IOException {
-		boolean hasMoreData = true;
-		int JUNK_SIZE = 100;
-		long totalcount = 0;
-		int startpos = 0;
-		int icount = 0;
+	@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+	public ItemCollection backup(String query, String filePath) throws IOException {
+		long l = System.currentTimeMillis();
 
 		logger.info("[EntityService] Starting backup....");
 		logger.info("[EntityService] Query=" + query);
 		logger.info("[EntityService] Target=" + filePath);
 
+		ItemCollection summary = new ItemCollection();
+		summary.replaceItemValue("txtFilePath", filePath);
 		if (filePath == null || filePath.isEmpty()) {
 			logger.severe("[EntityService] Invalid FilePath!");
-			return;
+			return summary;
 		}
 
-		FileOutputStream fos = new FileOutputStream(filePath);
-		ObjectOutputStream out = new ObjectOutputStream(fos);
-		while (hasMoreData) {
-			// read a junk....
-			Collection<ItemCollection> col = findAllEntities(query, startpos, JUNK_SIZE);
-			if (col.size() < JUNK_SIZE)
-				hasMoreData = false;
-			startpos = startpos + col.size();
-			totalcount = totalcount + col.size();
-
-			for (ItemCollection aworkitem : col) {
-				// get serialized data
-				Map<?, ?> hmap = aworkitem.getAllItems();
-				// write object
-				out.writeObject(hmap);
-				icount++;
+		// a progress file of a previous restore from this path is no longer
+		// valid (see restore)
+		File progressFile = new File(filePath + ".progress");
+		if (progressFile.exists() && !progressFile.delete())
+			logger.warning("[EntityService] Unable to delete " + progressFile);
+
+		// each query runs in a separate transaction
+		EntityService service = ctx.getBusinessObject(EntityService.class);
+		int blockSize = getBatchSize();
+		long expectedCount = service.countAllEntities(query);
+		BackupFile.Writer writer = new BackupFile.Writer(new FileOutputStream(filePath), query, blockSize,
+				expectedCount);
+		try {
+			String token = null;
+			while (true) {
+				List<ItemCollection> col = service.findAllEntitiesAfter(query, token, blockSize);
+				if (col.isEmpty())
+					break;
+				token = col.get(col.size() - 1).getItemValueString(CONTINUATIONTOKEN);
+				for (ItemCollection aworkitem : col) {
+					aworkitem.removeItem(CONTINUATIONTOKEN);
+				}
+				writer.writeBlock(col);
+				logger.fine("[EntityService] " + writer.getEntityCount() + " entries backuped....");
+				if (col.size() < blockSize)
+					break;
 			}
-			logger.fine("[EntityService] " + totalcount + " entries backuped....");
+		} finally {
+			writer.close();
 		}
-		out.close();
-		logger.info("[EntityService] Backup finished - " + icount + " entities read totaly.");
+
+		summary.replaceItemValue("numEntities", writer.getEntityCount());
+		summary.replaceItemValue("numBlocks", writer.getBlockCount());
+		summary.replaceItemValue("numDuration", System.currentTimeMillis() - l);
+		logger.info("[EntityService] Backup finished - " + writer.getEntityCount() + " entities in "
+				+ writer.getBlockCount() + " blocks written in " + (System.currentTimeMillis() - l) + " ms");
+		return summary;
 	}
 
 	/**
 	 * This method restores a backup from the file system and imports the
 	 * entities into the database.
+	 * <p>
+	 * Each block of the backup file is saved in a separate transaction. The
+	 * blocks are decoded and saved by up to 'RESTORE_WORKERS' asynchronous
+	 * calls of the method restoreBlock(). The index of the last block committed
+	 * in a row is written into the file '[filePath].progress' together with the
+	 * header checksum of the backup file. If a restore is interrupted or a
+	 * block fails, the next restore of the same file resumes after this block.
+	 * A progress file written for another backup file is ignored. The progress
+	 * file is removed after a complete restore or a new backup to the same
+	 * path.
+	 * <p>
+	 * The method returns a summary with the items 'numEntities' (count of the
+	 * file trailer), 'numRestored', 'numSkipped' (entities of blocks restored by
+	 * a previous run), 'numErrors', 'numBlocks', 'numDuration' (ms) and
+	 * 'keyVerified'. A restore is verified if all entities of the file are
+	 * restored without errors.
+	 * <p>
+	 * The method runs without a transaction, so a restore of a large data set
+	 * does not exceed the transaction timeout. Backup files of the previous
+	 * format (a plain object stream) are restored by saving each entity in a
+	 * separate transaction.
+	 * 
+	 * @param filePath
+	 * @return summary of the restore
+	 * @throws IOException
+	 */
+	@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+	public ItemCollection restore(String filePath) throws IOException {
+		long l = System.currentTimeMillis();
+		ItemCollection summary = new ItemCollection();
+		summary.replaceItemValue("txtFilePath", filePath);
+
+		BufferedInputStream in = new BufferedInputStream(new FileInputStream(filePath));
+		if (!BackupFile.isBackupFile(in)) {
+			restoreObjectStream(in, summary);
+			summary.replaceItemValue("numDuration", System.currentTimeMillis() - l);
+			return summary;
+		}
+
+		BackupFile.Reader reader = new BackupFile.Reader(in);
+		long expectedCount = reader.getExpectedCount();
+		File progressFile = new File(filePath + ".progress");
+		long fileChecksum = reader.getHeaderChecksum();
+		int resumeBlock = readProgress(progressFile, fileChecksum);
+		if (resumeBlock >= 0)
+			logger.info("[EntityService] Resume restore after block " + resumeBlock);
+
+		EntityService service = ctx.getBusinessObject(EntityService.class);
+		int workers = getRestoreWorkers();
+		LinkedList<PendingBlock> pendingBlocks = new LinkedList<PendingBlock>();
+		// counters: restored, skipped, errors, blocks
+		long[] counts = new long[4];
+		// index of the last block committed in a row
+		int[] watermark = { resumeBlock };
+		boolean truncated = false;
+
+		try {
+			while (true) {
+				if (reader.getBlockIndex() <= resumeBlock) {
+					BackupFile.Block block = reader.skipBlock();
+					if (block == null)
+						break;
+					counts[1] += block.count;
+					counts[3]++;
+					continue;
+				}
+				BackupFile.Block block = reader.nextBlock();
+				if (block == null)
+					break;
+				while (pendingBlocks.size() >= workers) {
+					completeBlock(pendingBlocks.removeFirst(), counts, watermark, progressFile, fileChecksum,
+						expectedCount, l);
+				}
+				// the block is added after it was submitted successfully. If
+				// the call fails, the exception is thrown after the pending
+				// blocks are completed.
+				Future<Integer> result = null;
+				if (block.valid) {
+					result = service.restoreBlock(block.data, block.count);
+				} else {
+					logger.severe("[EntityService] Checksum error in block " + block.index);
+				}
+				pendingBlocks.add(new PendingBlock(block, result));
+			}
+		} catch (EOFException e) {
+			logger.severe("[EntityService] Backup file is truncated after block " + (reader.getBlockIndex() - 1));
+			truncated = true;
+		} finally {
+			while (!pendingBlocks.isEmpty()) {
+				completeBlock(pendingBlocks.removeFirst(), counts, watermark, progressFile, fileChecksum,
+						expectedCount, l);
+			}
+			reader.close();
+		}
+
+		long totalCount = reader.getTotalCount();
+		boolean verified = !truncated && totalCount >= 0 && counts[2] == 0
+				&& counts[0] + counts[1] == totalCount && counts[3] == reader.getTotalBlocks();
+		if (verified)
+			progressFile.delete();
+
+		summary.replaceItemValue("numEntities", totalCount);
+		summary.replaceItemValue("numRestored", counts[0]);
+		summary.replaceItemValue("numSkipped", counts[1]);
+		summary.replaceItemValue("numErrors", counts[2]);
+		summary.replaceItemValue("numBlocks", counts[3]);
+		summary.replaceItemValue("numDuration", System.currentTimeMillis() - l);
+		summary.replaceItemValue("keyVerified", verified);
+
+		logger.info("[EntityService] Restore " + (verified ? "verified" : "NOT verified") + " - " + counts[0]
+				+ " entities restored, " + counts[1] + " skipped, " + counts[2] + " errors, " + totalCount
+				+ " entities in file " + filePath + " (" + (System.currentTimeMillis() - l) + " ms)");
+		return summary;
+	}
+
+	/**
+	 * Decodes a block of a backup file and saves the entities in a new
+	 * transaction. The method is called asynchronously by the method restore()
+	 * and returns the count of entities which could not be saved.
 	 * 
-	 * @param filepath
+	 * @param data
+	 *            - compressed data of the block
+	 * @param count
+	 *            - count of entities in the block
+	 * @return count of errors
 	 * @throws IOException
+	 *             if the block can not be decoded
+	 */
+	@Asynchronous
+	@TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+	public Future<Integer> restoreBlock(byte[] data, int count) throws IOException {
+		List<ItemCollection> entities = BackupFile.decode(data, count);
+		for (ItemCollection itemCol : entities) {
+			// remove the $version property!
+			itemCol.removeItem("$Version");
+		}
+		saveAll(entities);
+		int errors = 0;
+		for (ItemCollection itemCol : entities) {
+			if (itemCol.hasItem("$error_code"))
+				errors++;
+		}
+		return new AsyncResult<Integer>(errors);
+	}
+
+	/**
+	 * Returns the count of workers used to restore a backup
+	 * 
+	 * @return
+	 */
+	public int getRestoreWorkers() {
+		return (restoreWorkers != null && restoreWorkers > 0) ? restoreWorkers : DEFAULT_RESTORE_WORKERS;
+	}
+
+	public void setRestoreWorkers(int restoreWorkers) {
+		this.restoreWorkers = restoreWorkers;
+	}
+
+	/**
+	 * Waits for a pending block of a restore, updates the counters and
+	 * advances the progress file as long as all blocks are committed in a row.
+	 * The method did not throw an exception, so a failed block did not hide
+	 * the exception of the restore.
+	 */
+	private void completeBlock(PendingBlock pendingBlock, long[] counts, int[] watermark, File progressFile,
+			long fileChecksum, long expectedCount, long start) {
+		BackupFile.Block block = pendingBlock.block;
+		Future<Integer> result = pendingBlock.result;
+		boolean committed = false;
+		if (result != null) {
+			try {
+				int errors = result.get();
+				counts[0] += block.count - errors;
+				counts[2] += errors;
+				committed = true;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				logger.severe("[EntityService] Restore of block " + block.index + " interrupted");
+			} catch (ExecutionException e) {
+				logger.severe("[EntityService] Restore of block " + block.index + " failed: " + e.getCause());
+			} catch (RuntimeException e) {
+				logger.severe("[EntityService] Restore of block " + block.index + " failed: " + e);
+			}
+		}
+		if (!committed)
+			counts[2] += block.count;
+		counts[3]++;
+
+		if (committed && watermark[0] == block.index - 1) {
+			watermark[0] = block.index;
+			writeProgress(progressFile, fileChecksum, block.index);
+		} else {
+			// a gap - the following blocks will be restored again on resume
+			watermark[0] = Integer.MIN_VALUE;
+		}
+
+		if (counts[3] % 10 == 0) {
+			long time = System.currentTimeMillis() - start;
+			logger.info("[EntityService] Restored " + (counts[0] + counts[1]) + " of " + expectedCount
+					+ " entities in " + counts[3] + " blocks (" + (time > 0 ? counts[0] * 1000 / time : counts[0])
+					+ " entities/sec)....");
+		}
+	}
+
+	/**
+	 * A block of a restore submitted to the method restoreBlock(). The result
+	 * is null if the block was not submitted because of a checksum error.
+	 */
+	private static class PendingBlock {
+		final BackupFile.Block block;
+		final Future<Integer> result;
+
+		PendingBlock(BackupFile.Block block, Future<Integer> result) {
+			this.block = block;
+			this.result = result;
+		}
+	}
+
+	/**
+	 * Returns the index of the last block committed by a previous restore or
+	 * -1 if no progress file exists. The progress file contains the header
+	 * checksum of the backup file and the block index ('checksum:index'). If
+	 * the checksum does not match the current backup file, the progress file
+	 * belongs to a backup previously written to the same path and is ignored.
+	 */
+	private int readProgress(File progressFile, long fileChecksum) {
+		if (!progressFile.exists())
+			return -1;
+		try {
+			String progress = new String(Files.readAllBytes(progressFile.toPath()), "UTF-8").trim();
+			int pos = progress.indexOf(':');
+			if (pos < 0 || Long.parseLong(progress.substring(0, pos)) != fileChecksum) {
+				logger.warning("[EntityService] " + progressFile + " does not match the backup file - ignored");
+				return -1;
+			}
+			return Integer.parseInt(progress.substring(pos + 1));
+		} catch (IOException | NumberFormatException e) {
+			logger.warning("[EntityService] Unable to read " + progressFile + ": " + e.getMessage());
+			return -1;
+		}
+	}
+
+	private void writeProgress(File progressFile, long fileChecksum, int blockIndex) {
+		try {
+			Files.write(progressFile.toPath(), (fileChecksum + ":" + blockIndex).getBytes("UTF-8"));
+		} catch (IOException e) {
+			logger.warning("[EntityService] Unable to write " + progressFile + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Restores a backup file of the previous format which contains a plain
+	 * object stream of item maps. Each entity is saved in a separate
+	 * transaction.
 	 */
 	@SuppressWarnings({ "rawtypes", "unchecked" })
-	public void restore(String filePath) throws IOException {
+	private void restoreObjectStream(InputStream fis, ItemCollection summary) throws IOException {
 		int JUNK_SIZE = 100;
 		long totalcount = 0;
 		long errorCount = 0;
 		int icount = 0;
 
-		FileInputStream fis = new FileInputStream(filePath);
 		ObjectInputStream in = new ObjectInputStream(fis);
+		EntityService service = ctx.getBusinessObject(EntityService.class);
 
 		while (true) {
 			try {
@@ -979,7 +2514,7 @@ public class EntityService implements EntityServiceRemote {
 				// remove the $version property!
 				itemCol.removeItem("$Version");
 				// now save imported data
-				save(itemCol);
+				service.save(itemCol);
 				totalcount++;
 				icount++;
 				if (icount >= JUNK_SIZE) {
@@ -1002,8 +2537,13 @@ public class EntityService implements EntityServiceRemote {
 		}
 		in.close();
 
+		summary.replaceItemValue("numEntities", totalcount + errorCount);
+		summary.replaceItemValue("numRestored", totalcount);
+		summary.replaceItemValue("numErrors", errorCount);
+		summary.replaceItemValue("keyVerified", errorCount == 0);
+
 		String loginfo = "Import successfull! " + totalcount + " Entities imported. " + errorCount
-				+ " Errors.  Import FileName:" + filePath;
+				+ " Errors.  Import FileName:" + summary.getItemValueString("txtFilePath");
 
 		logger.info(loginfo);
 	}
@@ -1017,6 +2557,7 @@ public class EntityService implements EntityServiceRemote {
 	private boolean isCallerReader(Entity aEntity) {
 
 		List<ReadAccess> readAccessList = aEntity.getReadAccessList();
+		CallerAccess callerAccess = getCallerAccess();
 
 		/**
 		 * 1.) org.imixs.ACCESSLEVEL.NOACCESS
@@ -1024,7 +2565,7 @@ public class EntityService implements EntityServiceRemote {
 		 * always = false -> no access
 		 */
 
-		if (ctx.isCallerInRole(ACCESSLEVEL_NOACCESS))
+		if (callerAccess.noAccess)
 			return false;
 
 		/**
@@ -1033,7 +2574,7 @@ public class EntityService implements EntityServiceRemote {
 		 * always = true -> grant access.
 		 */
 
-		if (ctx.isCallerInRole(ACCESSLEVEL_MANAGERACCESS))
+		if (callerAccess.managerAccess)
 			return true;
 
 		/**
@@ -1049,14 +2590,11 @@ public class EntityService implements EntityServiceRemote {
 
 		boolean notemptyfield = false;
 
-		// get user name list
-		List<String> auserNameList = getUserNameList();
-
 		// check each read access
 		for (ReadAccess aReadAccess : readAccessList) {
 			if (aReadAccess != null && !"".equals(aReadAccess.getValue())) {
 				notemptyfield = true;
-				if (auserNameList.indexOf(aReadAccess.getValue()) > -1)
+				if (callerAccess.userNames.contains(aReadAccess.getValue()))
 					return true;
 
 			}
@@ -1073,19 +2611,33 @@ public class EntityService implements EntityServiceRemote {
 	 * @return
 	 */
 	private boolean isCallerAuthor(Entity aEntity) {
-		List<WriteAccess> writeAccessList = aEntity.getWriteAccessList();
+		return isCallerAuthor(aEntity, null);
+	}
+
+	/**
+	 * Verifies the author access of the caller. If the write access values are
+	 * provided (see implodeData) the write access list of the entity is not
+	 * loaded.
+	 * 
+	 * @param aEntity
+	 * @param writeAccessValues
+	 *            - optional write access values of the entity
+	 * @return true if caller has author access
+	 */
+	private boolean isCallerAuthor(Entity aEntity, List<Object> writeAccessValues) {
+		CallerAccess callerAccess = getCallerAccess();
 
 		/**
 		 * 1.) org.imixs.ACCESSLEVEL.NOACCESS allways false - now write access!
 		 */
-		if (ctx.isCallerInRole(ACCESSLEVEL_NOACCESS))
+		if (callerAccess.noAccess)
 			return false;
 
 		/**
 		 * 2.) org.imixs.ACCESSLEVEL.MANAGERACCESS or
 		 * org.imixs.ACCESSLEVEL.EDITOR Always true - grant writeaccess.
 		 */
-		if (ctx.isCallerInRole(ACCESSLEVEL_MANAGERACCESS) || ctx.isCallerInRole(ACCESSLEVEL_EDITORACCESS))
+		if (callerAccess.managerAccess || callerAccess.editorAccess)
 			return true;
 
 		/**
@@ -1094,19 +2646,25 @@ public class EntityService implements EntityServiceRemote {
 		 * check write access in detail
 		 */
 
-		if (ctx.isCallerInRole(ACCESSLEVEL_AUTHORACCESS)) {
+		if (callerAccess.authorAccess) {
+			if (writeAccessValues != null) {
+				for (Object value : writeAccessValues) {
+					if (value != null && callerAccess.userNames.contains(value.toString()))
+						return true; // user role known - grant access
+				}
+				return false;
+			}
+
+			List<WriteAccess> writeAccessList = aEntity.getWriteAccessList();
 			if (writeAccessList == null || writeAccessList.size() == 0) {
 				// now wirte access
 				return false;
 			}
 
-			// get user name list
-			List<String> auserNameList = getUserNameList();
-
 			// check each read access
 			for (WriteAccess aWriteAccess : writeAccessList) {
 				if (aWriteAccess != null && !"".equals(aWriteAccess.getValue())) {
-					if (auserNameList.indexOf(aWriteAccess.getValue()) > -1)
+					if (callerAccess.userNames.contains(aWriteAccess.getValue()))
 						return true; // user role known - grant access
 				}
 			}
@@ -1114,6 +2672,61 @@ public class EntityService implements EntityServiceRemote {
 		return false;
 	}
 
+	/**
+	 * This method returns the resolved access rights of the CallerPrincipal
+	 * (access level roles and the user name list). The access rights are
+	 * computed only once per EJB invocation and stored in the ContextData of
+	 * the invocation. So the role checks are not repeated for each entity
+	 * verified by the methods findAllEntities(), load() or implodeEntity().
+	 * 
+	 * @return resolved access rights of the CallerPrincipal
+	 */
+	private CallerAccess getCallerAccess() {
+		String principal = ctx.getCallerPrincipal().getName();
+		Map<String, Object> contextData = ctx.getContextData();
+		CallerAccess callerAccess = null;
+		if (contextData != null) {
+			callerAccess = (CallerAccess) contextData.get(CALLER_ACCESS);
+			if (callerAccess != null && callerAccess.principal.equals(principal))
+				return callerAccess;
+		}
+
+		callerAccess = new CallerAccess(principal, ctx.isCallerInRole(ACCESSLEVEL_NOACCESS),
+				ctx.isCallerInRole(ACCESSLEVEL_MANAGERACCESS), ctx.isCallerInRole(ACCESSLEVEL_EDITORACCESS),
+				ctx.isCallerInRole(ACCESSLEVEL_AUTHORACCESS), new HashSet<String>(getUserNameList()));
+		if (contextData != null) {
+			try {
+				contextData.put(CALLER_ACCESS, callerAccess);
+			} catch (UnsupportedOperationException e) {
+				// no operation - the ContextData is not writable in this
+				// context
+			}
+		}
+		return callerAccess;
+	}
+
+	/**
+	 * The resolved access rights of a CallerPrincipal.
+	 */
+	private static class CallerAccess {
+		final String principal;
+		final boolean noAccess;
+		final boolean managerAccess;
+		final boolean editorAccess;
+		final boolean authorAccess;
+		final Set<String> userNames;
+
+		CallerAccess(String principal, boolean noAccess, boolean managerAccess, boolean editorAccess,
+				boolean authorAccess, Set<String> userNames) {
+			this.principal = principal;
+			this.noAccess = noAccess;
+			this.managerAccess = managerAccess;
+			this.editorAccess = editorAccess;
+			this.authorAccess = authorAccess;
+			this.userNames = userNames;
+		}
+	}
+
 	/**
 	 * This method read the param USER_GROUP_LIST from the EJB ContextData. This
 	 * context data object can provide a string array with application specific
@@ -1137,6 +2750,28 @@ public class EntityService implements EntityServiceRemote {
 		return applicationUserGroupList;
 	}
 
+	/**
+	 * Creates the data map of an entity. The map contains the complete item
+	 * map of the ItemCollection together with the write access values of the
+	 * entity. So implodeEntity() can restore the ItemCollection from the data
+	 * field only.
+	 * 
+	 * @param itemcol
+	 *            - ItemCollection to be stored
+	 * @param aEntity
+	 *            - entity with an updated write access list
+	 * @return data map
+	 */
+	private Map<String, List<Object>> createData(ItemCollection itemcol, Entity aEntity) {
+		Map<String, List<Object>> data = new HashMap<String, List<Object>>(itemcol.getAllItems());
+		Vector<Object> writeAccessValues = new Vector<Object>();
+		for (WriteAccess aWriteAccess : aEntity.getWriteAccessList()) {
+			writeAccessValues.add(aWriteAccess.getValue());
+		}
+		data.put(DATA_WRITEACCESS, writeAccessValues);
+		return data;
+	}
+
 	/**
 	 * This method updates the internal WriteAccessList. Therefore the method
 	 * verifies if the itemCollection contains WriteAccess properties. The
@@ -1250,16 +2885,15 @@ public class EntityService implements EntityServiceRemote {
 	 * This is because the ItemCollection works typical with Date Objects
 	 * instead of Calendar Objects.
 	 * <p>
-	 * After the method has moved an attribute with its values to the
-	 * corresponding Index Property the method removes the attribute form the
-	 * itemCollection.
+	 * The method did not change the itemCollection. The complete item map is
+	 * stored in the data field of the entity, so the index properties are not
+	 * removed from the itemCollection.
 	 * <p>
 	 * If a value of a property did not match the indexProperty Type a
 	 * ClassCastExcepiton will be thrown. This is the situation if one or more
 	 * single values did not match the propertyIndex Type. The method prints a
-	 * warning to the log file but did continue proceeding. This results into a
-	 * situation where invalid values will be stored in the ItemCollections
-	 * value list. <br>
+	 * warning to the log file but did continue proceeding. The invalid values
+	 * are only stored in the data field of the entity. <br>
 	 * In this situation the entity exists in a invalid structure and did not
 	 * match the data model
 	 * <p>
@@ -1269,11 +2903,15 @@ public class EntityService implements EntityServiceRemote {
 	 * will increase performance and avoids problems with duplicated index
 	 * values when a entity is saved several times in one transaction (see issue
 	 * #140).
+	 * <p>
+	 * The existing index values are grouped by their item name in one pass.
+	 * If a value list has changed, only the removed values are deleted and
+	 * only the added values are inserted (see diffIndexValues).
 	 * 
-	 * 
+	 * @return count of index rows inserted or removed
 	 */
 	@SuppressWarnings({ "rawtypes", "unchecked" })
-	private void explodeEntity(ItemCollection itemCol, Entity aEntity, Collection<EntityIndex> entityIndexCache) {
+	private int explodeEntity(ItemCollection itemCol, Entity aEntity, Collection<EntityIndex> entityIndexCache) {
 
 		if (logger.isLoggable(Level.FINEST)) {
 			logger.finest("[EntityService] explodeEntity ID=" + aEntity.getId());
@@ -1281,10 +2919,8 @@ public class EntityService implements EntityServiceRemote {
 
 		logger.finest("[EntityService] disableOptimisticLocking=" + disableOptimisticLocking);
 
-		// in case of optimistic locking is disabled we remove $version
-		if (disableOptimisticLocking) {
-			itemCol.removeItem("$Version");
-		} else if (itemCol.hasItem("$Version") && itemCol.getItemValueInteger("$Version") > 0) {
+		// in case of optimistic locking is disabled we ignore $version
+		if (!disableOptimisticLocking && itemCol.hasItem("$Version") && itemCol.getItemValueInteger("$Version") > 0) {
 			// if $version is provided we update the version number of the
 			// entity!
 			int version = itemCol.getItemValueInteger("$Version");
@@ -1296,209 +2932,317 @@ public class EntityService implements EntityServiceRemote {
 		// verify if deprecated index values are attached to the entity.
 		removeDeprectedIndexValues(aEntity, entityIndexCache);
 
-		// For each index we update the relationships only if the valueList
-		// changed
+		// the existing index values are grouped by the item name in one pass
+		// for each index type
+		Map<String, List<TextItem>> textItemMap = null;
+		Map<String, List<IntegerItem>> integerItemMap = null;
+		Map<String, List<DoubleItem>> doubleItemMap = null;
+		Map<String, List<CalendarItem>> calendarItemMap = null;
+		// removed index values (compared by identity)
+		Set<Object> removedItems = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+		int rowCount = 0;
+
+		// For each index we update only the changed values of the valueList
 		for (EntityIndex index : entityIndexCache) {
+			String indexName = index.getName();
+			// get the value list from the itemCollection
+			List newValueList = itemCol.getItemValue(indexName);
 
 			// TEXT_ITEM....
 			if (index.getTyp() == EntityIndex.TYP_TEXT) {
-				// get the value list from the itemCollection
-				List newValueList = itemCol.getItemValue(index.getName());
-				// get value list from existing entity
-				List<String> oldValueList = new ArrayList<String>();
-				List<TextItem> itemList = new ArrayList<TextItem>();
-				for (TextItem aItem : aEntity.getTextItems()) {
-					if (aItem.itemName.equals(index.getName())) {
+				if (textItemMap == null) {
+					textItemMap = new HashMap<String, List<TextItem>>();
+					for (TextItem aItem : aEntity.getTextItems()) {
+						List<TextItem> itemList = textItemMap.get(aItem.itemName);
+						if (itemList == null) {
+							itemList = new ArrayList<TextItem>();
+							textItemMap.put(aItem.itemName, itemList);
+						}
 						itemList.add(aItem);
-						oldValueList.add(aItem.itemValue);
 					}
 				}
+				List<TextItem> itemList = textItemMap.get(indexName);
+				if (itemList == null)
+					itemList = new ArrayList<TextItem>();
 
-				// equals?
-				if (!newValueList.equals(oldValueList)) {
-					// no - remove old relationships....
-					for (TextItem aItem : itemList) {
-						manager.remove(aItem);
-						aEntity.getTextItems().remove(aItem);
-					}
-
-					// build new relationships
-					for (Object asingleValue : newValueList) {
-						TextItem newItem = new TextItem(index.getName(), asingleValue.toString());
-						manager.persist(newItem);
-						aEntity.getTextItems().add(newItem);
+				List<String> oldValueList = new ArrayList<String>(itemList.size());
+				for (TextItem aItem : itemList) {
+					oldValueList.add(aItem.itemValue);
+				}
+				List<String> typedValueList = new ArrayList<String>(newValueList.size());
+				for (Object asingleValue : newValueList) {
+					typedValueList.add(asingleValue.toString());
+				}
 
-						if (logger.isLoggable(Level.FINEST))
-							logger.finest(
-									"[EntityService] addTextItem: " + index.getName() + "=" + asingleValue.toString());
+				// remove only the values no longer contained....
+				boolean[] keep = new boolean[oldValueList.size()];
+				boolean[] add = diffIndexValues(oldValueList, typedValueList, keep);
+				for (int i = 0; i < keep.length; i++) {
+					if (!keep[i]) {
+						manager.remove(itemList.get(i));
+						removedItems.add(itemList.get(i));
+						rowCount++;
 					}
 				}
-				// now remove the attribute from ItemCollection
-				itemCol.removeItem(index.getName());
+				// and add the new values
+				for (int i = 0; i < add.length; i++) {
+					if (!add[i])
+						continue;
+					String asingleValue = typedValueList.get(i);
+					TextItem newItem = new TextItem(indexName, asingleValue);
+					manager.persist(newItem);
+					aEntity.getTextItems().add(newItem);
+					rowCount++;
+					if (logger.isLoggable(Level.FINEST))
+						logger.finest("[EntityService] addTextItem: " + indexName + "=" + asingleValue);
+				}
 				// finally continue....
 				continue;
 			}
 
 			// INTEGER_ITEM.....
 			if (index.getTyp() == EntityIndex.TYP_INT) {
-				boolean bClassCastException = false;
-				List vInvalidValues = new Vector();
-				// get the value list from the itemCollection
-				List newValueList = itemCol.getItemValue(index.getName());
-				// get value list from existing entity
-				List<Integer> oldValueList = new ArrayList<Integer>();
-				List<IntegerItem> itemList = new ArrayList<IntegerItem>();
-				for (IntegerItem aItem : aEntity.getIntegerItems()) {
-					if (aItem.itemName.equals(index.getName())) {
+				if (integerItemMap == null) {
+					integerItemMap = new HashMap<String, List<IntegerItem>>();
+					for (IntegerItem aItem : aEntity.getIntegerItems()) {
+						List<IntegerItem> itemList = integerItemMap.get(aItem.itemName);
+						if (itemList == null) {
+							itemList = new ArrayList<IntegerItem>();
+							integerItemMap.put(aItem.itemName, itemList);
+						}
 						itemList.add(aItem);
-						oldValueList.add(aItem.itemValue);
 					}
 				}
+				List<IntegerItem> itemList = integerItemMap.get(indexName);
+				if (itemList == null)
+					itemList = new ArrayList<IntegerItem>();
 
-				// equals?
-				if (!newValueList.equals(oldValueList)) {
-					// no - remove old relationships....
-					for (IntegerItem aItem : itemList) {
-						manager.remove(aItem);
-						aEntity.getIntegerItems().remove(aItem);
+				List<Integer> oldValueList = new ArrayList<Integer>(itemList.size());
+				for (IntegerItem aItem : itemList) {
+					oldValueList.add(aItem.itemValue);
+				}
+				List<Integer> typedValueList = new ArrayList<Integer>(newValueList.size());
+				for (Object asingleValue : newValueList) {
+					try {
+						typedValueList.add((Integer) asingleValue);
+					} catch (ClassCastException cce) {
+						logger.warning("explodeEntity - " + indexName + " TYP_INT: " + cce.getMessage() + " ID:"
+								+ aEntity.getId());
 					}
-					// build new relationships
-					for (Object asingleValue : newValueList) {
-						try {
-							IntegerItem newItem = new IntegerItem(index.getName(), (Integer) asingleValue);
-							manager.persist(newItem);
-							aEntity.getIntegerItems().add(newItem);
-							if (logger.isLoggable(Level.FINEST))
-								logger.finest("[EntityService] addIntegerItem: " + index.getName() + "="
-										+ asingleValue.toString());
-						} catch (ClassCastException cce) {
-							bClassCastException = true;
-							logger.warning("explodeEntity - " + index.getName() + " TYP_INT: " + cce.getMessage()
-									+ " ID:" + aEntity.getId());
-							vInvalidValues.add(asingleValue);
-						}
+				}
 
+				boolean[] keep = new boolean[oldValueList.size()];
+				boolean[] add = diffIndexValues(oldValueList, typedValueList, keep);
+				for (int i = 0; i < keep.length; i++) {
+					if (!keep[i]) {
+						manager.remove(itemList.get(i));
+						removedItems.add(itemList.get(i));
+						rowCount++;
 					}
 				}
-				// now remove the attribute from ItemCollection
-				if (!bClassCastException)
-					itemCol.removeItem(index.getName());
-				else
-					itemCol.replaceItemValue(index.getName(), vInvalidValues);
+				for (int i = 0; i < add.length; i++) {
+					if (!add[i])
+						continue;
+					Integer asingleValue = typedValueList.get(i);
+					IntegerItem newItem = new IntegerItem(indexName, asingleValue);
+					manager.persist(newItem);
+					aEntity.getIntegerItems().add(newItem);
+					rowCount++;
+					if (logger.isLoggable(Level.FINEST))
+						logger.finest("[EntityService] addIntegerItem: " + indexName + "=" + asingleValue);
+				}
 				continue;
 			}
 
 			// DOUBLE_ITEM...
 			if (index.getTyp() == EntityIndex.TYP_DOUBLE) {
-				boolean bClassCastException = false;
-				List vInvalidValues = new Vector();
-				// get the value list from the itemCollection
-				List newValueList = itemCol.getItemValue(index.getName());
-				// get value list from existing entity
-				List<Double> oldValueList = new ArrayList<Double>();
-				List<DoubleItem> itemList = new ArrayList<DoubleItem>();
-				for (DoubleItem aItem : aEntity.getDoubleItems()) {
-					if (aItem.itemName.equals(index.getName())) {
+				if (doubleItemMap == null) {
+					doubleItemMap = new HashMap<String, List<DoubleItem>>();
+					for (DoubleItem aItem : aEntity.getDoubleItems()) {
+						List<DoubleItem> itemList = doubleItemMap.get(aItem.itemName);
+						if (itemList == null) {
+							itemList = new ArrayList<DoubleItem>();
+							doubleItemMap.put(aItem.itemName, itemList);
+						}
 						itemList.add(aItem);
-						oldValueList.add(aItem.itemValue);
 					}
 				}
+				List<DoubleItem> itemList = doubleItemMap.get(indexName);
+				if (itemList == null)
+					itemList = new ArrayList<DoubleItem>();
 
-				// equals?
-				if (!newValueList.equals(oldValueList)) {
-					// no - remove old relationships....
-					for (DoubleItem aItem : itemList) {
-						manager.remove(aItem);
-						aEntity.getDoubleItems().remove(aItem);
+				List<Double> oldValueList = new ArrayList<Double>(itemList.size());
+				for (DoubleItem aItem : itemList) {
+					oldValueList.add(aItem.itemValue);
+				}
+				List<Double> typedValueList = new ArrayList<Double>(newValueList.size());
+				for (Object asingleValue : newValueList) {
+					try {
+						typedValueList.add((Double) asingleValue);
+					} catch (ClassCastException cce) {
+						logger.warning("explodeEntity - " + indexName + " TYP_DOUBLE: " + cce.getMessage() + " ID:"
+								+ aEntity.getId());
 					}
+				}
 
-					// build new relationships
-					for (Object asingleValue : newValueList) {
-						try {
-							DoubleItem newItem = new DoubleItem(index.getName(), (Double) asingleValue);
-							manager.persist(newItem);
-							aEntity.getDoubleItems().add(newItem);
-							if (logger.isLoggable(Level.FINEST))
-								logger.finest("[EntityService] addDoubleItem: " + index.getName() + "="
-										+ asingleValue.toString());
-						} catch (ClassCastException cce) {
-							bClassCastException = true;
-							logger.warning("explodeEntity - " + index.getName() + " TYP_DOUBLE: " + cce.getMessage()
-									+ " ID:" + aEntity.getId());
-							vInvalidValues.add(asingleValue);
-						}
-
+				boolean[] keep = new boolean[oldValueList.size()];
+				boolean[] add = diffIndexValues(oldValueList, typedValueList, keep);
+				for (int i = 0; i < keep.length; i++) {
+					if (!keep[i]) {
+						manager.remove(itemList.get(i));
+						removedItems.add(itemList.get(i));
+						rowCount++;
 					}
 				}
-				// now remove the attribute from ItemCollection
-				if (!bClassCastException)
-					itemCol.removeItem(index.getName());
-				else
-					itemCol.replaceItemValue(index.getName(), vInvalidValues);
+				for (int i = 0; i < add.length; i++) {
+					if (!add[i])
+						continue;
+					Double asingleValue = typedValueList.get(i);
+					DoubleItem newItem = new DoubleItem(indexName, asingleValue);
+					manager.persist(newItem);
+					aEntity.getDoubleItems().add(newItem);
+					rowCount++;
+					if (logger.isLoggable(Level.FINEST))
+						logger.finest("[EntityService] addDoubleItem: " + indexName + "=" + asingleValue);
+				}
 				continue;
 
 			}
 
 			// CALENDAR_ITEM....
 			if (index.getTyp() == EntityIndex.TYP_CALENDAR) {
-				boolean bClassCastException = false;
-				List vInvalidValues = new Vector();
-				// get the value list from the itemCollection
-				List newValueList = itemCol.getItemValue(index.getName());
-				// get value list from existing entity
-				List<Calendar> oldValueList = new ArrayList<Calendar>();
-				List<CalendarItem> itemList = new ArrayList<CalendarItem>();
-				for (CalendarItem aItem : aEntity.getCalendarItems()) {
-					if (aItem.itemName.equals(index.getName())) {
+				if (calendarItemMap == null) {
+					calendarItemMap = new HashMap<String, List<CalendarItem>>();
+					for (CalendarItem aItem : aEntity.getCalendarItems()) {
+						List<CalendarItem> itemList = calendarItemMap.get(aItem.itemName);
+						if (itemList == null) {
+							itemList = new ArrayList<CalendarItem>();
+							calendarItemMap.put(aItem.itemName, itemList);
+						}
 						itemList.add(aItem);
-						oldValueList.add(aItem.itemValue);
 					}
 				}
-
-				// equals?
-				if (!newValueList.equals(oldValueList)) {
-					// no - remove old relationships....
-					for (CalendarItem aItem : itemList) {
-						manager.remove(aItem);
-						aEntity.getCalendarItems().remove(aItem);
-					}
-
-					// build new relationships
-					for (Object asingleValue : newValueList) {
-						try {
-							if (asingleValue instanceof java.util.Date) {
-								Calendar cal = Calendar.getInstance();
-								cal.setTime((java.util.Date) asingleValue);
-								asingleValue = cal;
-							}
-							CalendarItem newItem = new CalendarItem(index.getName(), (Calendar) asingleValue);
-
-							manager.persist(newItem);
-							aEntity.getCalendarItems().add(newItem);
-							if (logger.isLoggable(Level.FINEST))
-								logger.finest("[EntityService] addCalendarItem: " + index.getName() + "="
-										+ asingleValue.toString());
-						} catch (ClassCastException cce) {
-							bClassCastException = true;
-							logger.warning("explodeEntity - " + index.getName() + " TYP_CALENDAR: " + cce.getMessage()
-									+ " ID:" + aEntity.getId());
-							vInvalidValues.add(asingleValue);
+				List<CalendarItem> itemList = calendarItemMap.get(indexName);
+				if (itemList == null)
+					itemList = new ArrayList<CalendarItem>();
+
+				// calendar values are compared by their time value
+				List<Long> oldValueList = new ArrayList<Long>(itemList.size());
+				for (CalendarItem aItem : itemList) {
+					oldValueList.add(aItem.itemValue == null ? null : aItem.itemValue.getTimeInMillis());
+				}
+				List<Calendar> typedValueList = new ArrayList<Calendar>(newValueList.size());
+				List<Long> newTimeList = new ArrayList<Long>(newValueList.size());
+				for (Object asingleValue : newValueList) {
+					try {
+						if (asingleValue instanceof java.util.Date) {
+							Calendar cal = Calendar.getInstance();
+							cal.setTime((java.util.Date) asingleValue);
+							asingleValue = cal;
 						}
+						Calendar cal = (Calendar) asingleValue;
+						typedValueList.add(cal);
+						newTimeList.add(cal == null ? null : cal.getTimeInMillis());
+					} catch (ClassCastException cce) {
+						logger.warning("explodeEntity - " + indexName + " TYP_CALENDAR: " + cce.getMessage()
+								+ " ID:" + aEntity.getId());
+					}
+				}
 
+				boolean[] keep = new boolean[oldValueList.size()];
+				boolean[] add = diffIndexValues(oldValueList, newTimeList, keep);
+				for (int i = 0; i < keep.length; i++) {
+					if (!keep[i]) {
+						manager.remove(itemList.get(i));
+						removedItems.add(itemList.get(i));
+						rowCount++;
 					}
 				}
-				// now remove the attribute from ItemCollection
-				if (!bClassCastException)
-					itemCol.removeItem(index.getName());
-				else
-					itemCol.replaceItemValue(index.getName(), vInvalidValues);
+				for (int i = 0; i < add.length; i++) {
+					if (!add[i])
+						continue;
+					Calendar asingleValue = typedValueList.get(i);
+					CalendarItem newItem = new CalendarItem(indexName, asingleValue);
+					manager.persist(newItem);
+					aEntity.getCalendarItems().add(newItem);
+					rowCount++;
+					if (logger.isLoggable(Level.FINEST))
+						logger.finest("[EntityService] addCalendarItem: " + indexName + "=" + asingleValue);
+				}
 				continue;
 			}
 
-			logger.warning(" explodeEntity - " + index.getName() + " Indextype:" + index.getTyp() + " unknown!");
+			logger.warning(" explodeEntity - " + indexName + " Indextype:" + index.getTyp() + " unknown!");
+
+		}
+
+		// finally remove the deleted index values from the entity
+		if (!removedItems.isEmpty()) {
+			removeItems(aEntity.getTextItems(), removedItems);
+			removeItems(aEntity.getIntegerItems(), removedItems);
+			removeItems(aEntity.getDoubleItems(), removedItems);
+			removeItems(aEntity.getCalendarItems(), removedItems);
+		}
+
+		return rowCount;
+	}
 
+	/**
+	 * This method compares the existing values of an index with the new value
+	 * list. The value lists are compared as multisets: each new value is
+	 * matched with one existing value of the same content, independent from
+	 * its position. The method marks the matched existing values to be kept in
+	 * the array 'keep' and returns the flags of the new values which have no
+	 * matching existing value and have to be added. All existing values not
+	 * kept have to be removed. So replacing a single value of a list results
+	 * in one removed and one added index row, independent from the position of
+	 * the value. The order of the index rows is not significant because the
+	 * value list of an item is read from the data of the entity (see
+	 * createData).
+	 * 
+	 * @param oldValues
+	 *            - existing index values
+	 * @param newValues
+	 *            - new index values
+	 * @param keep
+	 *            - flags for the existing values to be kept
+	 * @return flags for the new values to be added
+	 */
+	static boolean[] diffIndexValues(List<?> oldValues, List<?> newValues, boolean[] keep) {
+		// positions of the existing values grouped by their content
+		Map<Object, LinkedList<Integer>> positions = new HashMap<Object, LinkedList<Integer>>();
+		for (int i = 0; i < oldValues.size(); i++) {
+			keep[i] = false;
+			LinkedList<Integer> list = positions.get(oldValues.get(i));
+			if (list == null) {
+				list = new LinkedList<Integer>();
+				positions.put(oldValues.get(i), list);
+			}
+			list.add(i);
 		}
+		boolean[] add = new boolean[newValues.size()];
+		for (int i = 0; i < newValues.size(); i++) {
+			LinkedList<Integer> list = positions.get(newValues.get(i));
+			if (list != null && !list.isEmpty()) {
+				keep[list.removeFirst()] = true;
+			} else {
+				add[i] = true;
+			}
+		}
+		return add;
+	}
 
+	/**
+	 * Removes the given index values from an index list of an entity. The
+	 * values are compared by identity because the index classes implement
+	 * equals() by name and value.
+	 */
+	private static void removeItems(List<?> itemList, Set<Object> removedItems) {
+		Iterator<?> iter = itemList.iterator();
+		while (iter.hasNext()) {
+			if (removedItems.contains(iter.next()))
+				iter.remove();
+		}
 	}
 
 	/**
@@ -1532,6 +3276,11 @@ public class EntityService implements EntityServiceRemote {
 	 * 
 	 * This method will also detach the entity from the persistence manager
 	 * after all relation ships are resolved and the data property is read.
+	 * <p>
+	 * If the entity was saved with the complete item map (see
+	 * persistItemCollection) the ItemCollection is restored from the data
+	 * property only. In this case the index properties and the write access
+	 * list are not loaded.
 	 * 
 	 * @see explodeEntity()
 	 * @return
@@ -1543,6 +3292,11 @@ public class EntityService implements EntityServiceRemote {
 			logger.finest("[EntityService] implodeEntity ID=" + aEntity.getId());
 		}
 
+		Map<String, List<Object>> data = aEntity.getData();
+		if (data != null && data.containsKey(DATA_WRITEACCESS)) {
+			return implodeData(aEntity, data);
+		}
+
 		// create new empty ItemCollection
 		ItemCollection itemCollection = new ItemCollection();
 		// verify author access and add property '$isauthor'
@@ -1680,6 +3434,41 @@ public class EntityService implements EntityServiceRemote {
 		return itemCollection;
 	}
 
+	/**
+	 * Restores the ItemCollection of an entity from the data property only.
+	 * The data property contains all items including the index properties and
+	 * the write access values. The values of each item are copied, so the
+	 * returned ItemCollection did not affect the data of the entity.
+	 * 
+	 * This method detaches the entity from the persistence manager.
+	 * 
+	 * @see implodeEntity()
+	 * @return
+	 */
+	private ItemCollection implodeData(Entity aEntity, Map<String, List<Object>> data) {
+		// detach the entity
+		manager.detach(aEntity);
+
+		ItemCollection itemCollection = new ItemCollection();
+		for (Map.Entry<String, List<Object>> mapEntry : data.entrySet()) {
+			if (DATA_WRITEACCESS.equals(mapEntry.getKey()))
+				continue;
+			itemCollection.replaceItemValue(mapEntry.getKey(), new Vector<Object>(mapEntry.getValue()));
+		}
+
+		// verify author access and add property '$isauthor'
+		itemCollection.replaceItemValue("$isauthor", isCallerAuthor(aEntity, data.get(DATA_WRITEACCESS)));
+
+		// if disable Optimistic Locking is TRUE we do not add the version
+		// number
+		if (disableOptimisticLocking)
+			itemCollection.removeItem("$Version");
+		else
+			itemCollection.replaceItemValue("$Version", aEntity.getVersion());
+
+		return itemCollection;
+	}
+
 	/**
 	 * This method verify if deprecated index values are attached to the entity.
 	 * The method is only called from explodeEntity()!
@@ -1766,20 +3555,24 @@ public class EntityService implements EntityServiceRemote {
 	 * <li>SELECT entity FROM Entity entity
 	 * <li>convert into
 	 * <li>SELECT entity FROM Entity entity, entity.readAccessList access WHERE
-	 * access.value IN ('xxx')
+	 * access.value IN :accessnames
 	 * </ul>
 	 * 
 	 * <ul>
 	 * <li>SELECT entity FROM Entity entity WHERE entity.type='workitem'
 	 * <li>convert into
 	 * <li>SELECT entity FROM Entity entity, entity.readAccessList access WHERE
-	 * access.value IN ('rsoika') AND entity.type='workitem'
+	 * access.value IN :accessnames AND entity.type='workitem'
 	 * </ul>
 	 * <p>
 	 * The Method also verifies if a DISTINCT clause is used in the Query. If
 	 * not the method will add a distinct clause to avoid duplicates in the
 	 * returned result set. duplicates can be returned by complex queries with
 	 * multiple joins.
+	 * <p>
+	 * The names of the CallerPrincipal are not part of the statement but bound
+	 * to the parameter 'accessnames' by the method setParameters(). So the
+	 * statement does not change between different users.
 	 * 
 	 * @param aQuery
 	 * @return
@@ -1787,9 +3580,6 @@ public class EntityService implements EntityServiceRemote {
 	 * 
 	 */
 	private String optimizeQuery(String aQuery) throws InvalidAccessException {
-		// String nameList = "";
-		StringBuffer nameListBuf = new StringBuffer();
-		String nameList = "";
 		aQuery = aQuery.trim();
 		StringTokenizer st = new StringTokenizer(aQuery);
 		// find identifier for Entity
@@ -1806,20 +3596,13 @@ public class EntityService implements EntityServiceRemote {
 		}
 
 		// don't optimize for managers...
-		if (ctx.isCallerInRole(ACCESSLEVEL_MANAGERACCESS))
+		CallerAccess callerAccess = getCallerAccess();
+		if (callerAccess.managerAccess)
 			return aQuery;
 
-		// now construct user role list
-		List<String> auserNameList = getUserNameList();
-		for (String auserName : auserNameList) {
-			nameListBuf.append(",'" + auserName + "'");
-		}
-		// remove first ,
-		nameListBuf.deleteCharAt(0);
-
-		nameList = nameListBuf.toString();
-
-		logger.fine("Optimized NameList = " + nameList);
+		// the user names and roles are bound to the parameter 'accessnames'
+		String accessCondition = "(access807.value IS NULL OR access807.value IN :" + EntityQuery.ACCESS_PARAMETER
+				+ ")";
 
 		// now select identifier - this is the last word before a 'WHERE',
 		// 'ORDER BY' or 'JOIN'
@@ -1860,19 +3643,18 @@ public class EntityService implements EntityServiceRemote {
 		int iWherePos = aQuery.toLowerCase().indexOf("where");
 		if (iWherePos > -1) {
 			// insert access check
-			aNewQuery = aQuery.substring(0, iWherePos + 5) + " (access807.value IS NULL OR access807.value IN ("
-					+ nameList + ")) AND " + aQuery.substring(iWherePos + 6);
+			aNewQuery = aQuery.substring(0, iWherePos + 5) + " " + accessCondition + " AND "
+					+ aQuery.substring(iWherePos + 6);
 			aQuery = aNewQuery;
 
 		} else {
 			// no WHERE clause - so add a new one
 			int iOrderPos = aQuery.toLowerCase().indexOf("order by");
 			if (iOrderPos > -1)
-				aNewQuery = aQuery.substring(0, iOrderPos - 1)
-						+ " WHERE (access807.value IS NULL OR access807.value IN (" + nameList + ")) "
+				aNewQuery = aQuery.substring(0, iOrderPos - 1) + " WHERE " + accessCondition + " "
 						+ aQuery.substring(iOrderPos);
 			else
-				aNewQuery = aQuery + " WHERE (access807.value IS NULL OR access807.value IN(" + nameList + ")) ";
+				aNewQuery = aQuery + " WHERE " + accessCondition + " ";
 
 			aQuery = aNewQuery;
 		}
@@ -1917,17 +3699,16 @@ public class EntityService implements EntityServiceRemote {
 
 					// implode each Entity into its ItemCollection
 					ItemCollection itemcol = implodeEntity(activeEntity);
-
-					ItemCollection slimItemCollection = new ItemCollection(itemcol.getAllItems());
+					itemcol.removeItem("$isauthor");
 
 					// update read- and writeAccess List
-					updateReadAccessList(slimItemCollection, activeEntity);
-					updateWriteAccessList(slimItemCollection, activeEntity);
+					updateReadAccessList(itemcol, activeEntity);
+					updateWriteAccessList(itemcol, activeEntity);
 
-					explodeEntity(slimItemCollection, activeEntity, entityIndexCache);
+					explodeEntity(itemcol, activeEntity, entityIndexCache);
 
 					// finally update the data field
-					activeEntity.setData(slimItemCollection.getAllItems());
+					activeEntity.setData(createData(itemcol, activeEntity));
 
 				} catch (Exception merex) {
 					logger.info("[EntityServiceBean] Error updateAllEntityIndexFields for Entity : "
@@ -0,0 +1,446 @@
+/*******************************************************************************
+ *  Imixs Workflow 
+ *  Copyright (C) 2001, 2011 Imixs Software Solutions GmbH,  
+ *  http://www.imixs.com
+ *  
+ *  This program is free software; you can redistribute it and/or 
+ *  modify it under the terms of the GNU General Public License 
+ *  as published by the Free Software Foundation; either version 2 
+ *  of the License, or (at your option) any later version.
+ *  
+ *  This program is distributed in the hope that it will be useful, 
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU 
+ *  General Public License for more details.
+ *  
+ *  You can receive a copy of the GNU General Public
+ *  License at http://www.gnu.org/licenses/gpl.html
+ *  
+ *  Project: 
+ *  	http://www.imixs.org
+ *  	http://java.net/projects/imixs-workflow
+ *  
+ *  Contributors:  
+ *  	Imixs Software Solutions GmbH - initial API and implementation
+ *  	Ralph Soika - Software Developer
+ *******************************************************************************/
+
+package org.imixs.workflow.jee.ejb;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+
+/**
+ * The FullTextIndex is an embedded inverted index of the terms of documents
+ * identified by their $uniqueid. For each document the index holds the type
+ * and the read access terms. So a search result can be filtered by the read
+ * access of the caller without a database query.
+ * <p>
+ * The index is held in memory. All changes are appended to the journal file
+ * 'fulltext.log' in the index directory and the journal is read when the
+ * index is opened. If the journal contains more than twice as many records as
+ * the index contains documents, it is compacted. If no directory is given
+ * the index is not persisted.
+ * <p>
+ * A search returns the documents containing all terms of the query. A term
+ * ending with '*' matches all terms with this prefix. The result is ordered
+ * by the time of the last update of a document (newest first).
+ * 
+ * @see org.imixs.workflow.jee.ejb.FullTextIndexService
+ * @author rsoika
+ * 
+ */
+class FullTextIndex {
+
+	static final String JOURNAL = "fulltext.log";
+	static final int MAX_TERM_LENGTH = 64;
+
+	private static final byte UPDATE = 1;
+	private static final byte DELETE = 2;
+
+	private final File directory;
+	private final Map<String, Document> documents = new HashMap<String, Document>();
+	private final TreeMap<String, Set<String>> postings = new TreeMap<String, Set<String>>();
+	private long sequence = 0;
+	private DataOutputStream journal = null;
+	private int journalRecords = 0;
+
+	private static Logger logger = Logger.getLogger(FullTextIndex.class.getName());
+
+	/**
+	 * A document of the index
+	 */
+	static class Document {
+		final String id;
+		final String type;
+		final Set<String> acl;
+		final Set<String> terms;
+		final long sequence;
+
+		Document(String id, String type, Set<String> acl, Set<String> terms, long sequence) {
+			this.id = id;
+			this.type = type;
+			this.acl = acl;
+			this.terms = terms;
+			this.sequence = sequence;
+		}
+	}
+
+	/**
+	 * Opens the index and reads the journal of the given directory
+	 * 
+	 * @param directory
+	 *            - index directory or null
+	 * @throws IOException
+	 */
+	FullTextIndex(File directory) throws IOException {
+		this.directory = directory;
+		if (directory == null)
+			return;
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("[FullTextIndex] unable to create directory " + directory);
+		File file = new File(directory, JOURNAL);
+		boolean valid = true;
+		if (file.exists())
+			valid = replay(file);
+		if (!valid) {
+			compact();
+		} else {
+			journal = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true), 65536));
+		}
+	}
+
+	/**
+	 * Adds or replaces a document
+	 * 
+	 * @param id
+	 *            - $uniqueid
+	 * @param type
+	 *            - type of the entity
+	 * @param acl
+	 *            - read access terms. An empty list grants read access to
+	 *            everyone.
+	 * @param content
+	 *            - text of the document
+	 * @throws IOException
+	 */
+	synchronized void update(String id, String type, Collection<String> acl, String content) throws IOException {
+		Set<String> aclSet = new LinkedHashSet<String>();
+		if (acl != null) {
+			for (String value : acl) {
+				if (value != null && !value.isEmpty())
+					aclSet.add(value);
+			}
+		}
+		Set<String> terms = tokenize(content);
+		put(id, type == null ? "" : type, aclSet, terms);
+		if (journal != null) {
+			journal.writeByte(UPDATE);
+			writeDocument(journal, documents.get(id));
+			journalRecords++;
+		}
+	}
+
+	/**
+	 * Removes a document
+	 * 
+	 * @throws IOException
+	 */
+	synchronized void delete(String id) throws IOException {
+		if (!remove(id))
+			return;
+		if (journal != null) {
+			journal.writeByte(DELETE);
+			journal.writeUTF(id);
+			journalRecords++;
+		}
+	}
+
+	/**
+	 * Returns the ids of the documents containing all terms of the query
+	 * 
+	 * @param query
+	 *            - search terms. A term ending with '*' is a prefix.
+	 * @param type
+	 *            - optional type of the documents
+	 * @param accessNames
+	 *            - user names and roles of the caller or null if the caller
+	 *            can read all documents
+	 * @param start
+	 *            - position of the first result
+	 * @param count
+	 *            - max count of results or -1
+	 * @return list of ids
+	 */
+	synchronized List<String> search(String query, String type, Set<String> accessNames, int start, int count) {
+		List<Set<String>> termSets = new ArrayList<Set<String>>();
+		if (query != null) {
+			for (String word : query.trim().split("\\s+")) {
+				boolean prefix = word.endsWith("*");
+				List<String> terms = new ArrayList<String>(tokenize(word));
+				for (int i = 0; i < terms.size(); i++) {
+					termSets.add(findTerm(terms.get(i), prefix && i == terms.size() - 1));
+				}
+			}
+		}
+		if (termSets.isEmpty())
+			return new ArrayList<String>();
+
+		// start with the smallest set
+		Collections.sort(termSets, new Comparator<Set<String>>() {
+			@Override
+			public int compare(Set<String> set1, Set<String> set2) {
+				return set1.size() - set2.size();
+			}
+		});
+		List<Document> result = new ArrayList<Document>();
+		for (String id : termSets.get(0)) {
+			boolean match = true;
+			for (int i = 1; i < termSets.size() && match; i++) {
+				match = termSets.get(i).contains(id);
+			}
+			if (!match)
+				continue;
+			Document document = documents.get(id);
+			if (type != null && !type.isEmpty() && !type.equals(document.type))
+				continue;
+			if (accessNames != null && !document.acl.isEmpty() && Collections.disjoint(document.acl, accessNames))
+				continue;
+			result.add(document);
+		}
+
+		// newest first
+		Collections.sort(result, new Comparator<Document>() {
+			@Override
+			public int compare(Document doc1, Document doc2) {
+				return Long.compare(doc2.sequence, doc1.sequence);
+			}
+		});
+		List<String> ids = new ArrayList<String>();
+		for (int i = Math.max(start, 0); i < result.size() && (count < 0 || ids.size() < count); i++) {
+			ids.add(result.get(i).id);
+		}
+		return ids;
+	}
+
+	synchronized int size() {
+		return documents.size();
+	}
+
+	synchronized int getTermCount() {
+		return postings.size();
+	}
+
+	synchronized boolean contains(String id) {
+		return documents.containsKey(id);
+	}
+
+	/**
+	 * Removes all documents
+	 * 
+	 * @throws IOException
+	 */
+	synchronized void clear() throws IOException {
+		documents.clear();
+		postings.clear();
+		if (directory != null)
+			compact();
+	}
+
+	/**
+	 * Writes the journal to the file system and compacts the journal if it
+	 * contains more than twice as many records as documents.
+	 * 
+	 * @throws IOException
+	 */
+	synchronized void flush() throws IOException {
+		if (journal == null)
+			return;
+		if (journalRecords > 2 * documents.size() + 1000)
+			compact();
+		else
+			journal.flush();
+	}
+
+	synchronized void close() throws IOException {
+		if (journal != null) {
+			journal.close();
+			journal = null;
+		}
+	}
+
+	/**
+	 * Splits a text into lower case terms of letters and digits
+	 * 
+	 * @param text
+	 * @return set of terms
+	 */
+	static Set<String> tokenize(String text) {
+		Set<String> terms = new LinkedHashSet<String>();
+		if (text == null)
+			return terms;
+		StringBuilder term = new StringBuilder();
+		for (int i = 0; i <= text.length(); i++) {
+			char c = i < text.length() ? text.charAt(i) : ' ';
+			if (Character.isLetterOrDigit(c)) {
+				if (term.length() < MAX_TERM_LENGTH)
+					term.append(Character.toLowerCase(c));
+			} else if (term.length() > 0) {
+				terms.add(term.toString());
+				term.setLength(0);
+			}
+		}
+		return terms;
+	}
+
+	private Set<String> findTerm(String term, boolean prefix) {
+		if (!prefix) {
+			Set<String> ids = postings.get(term);
+			return ids == null ? Collections.<String> emptySet() : ids;
+		}
+		SortedMap<String, Set<String>> terms = postings.subMap(term, term + Character.MAX_VALUE);
+		if (terms.size() == 1)
+			return terms.values().iterator().next();
+		Set<String> ids = new HashSet<String>();
+		for (Set<String> termIds : terms.values()) {
+			ids.addAll(termIds);
+		}
+		return ids;
+	}
+
+	private void put(String id, String type, Set<String> acl, Set<String> terms) {
+		remove(id);
+		documents.put(id, new Document(id, type, acl, terms, ++sequence));
+		for (String term : terms) {
+			Set<String> ids = postings.get(term);
+			if (ids == null) {
+				ids = new HashSet<String>();
+				postings.put(term, ids);
+			}
+			ids.add(id);
+		}
+	}
+
+	private boolean remove(String id) {
+		Document document = documents.remove(id);
+		if (document == null)
+			return false;
+		for (String term : document.terms) {
+			Set<String> ids = postings.get(term);
+			if (ids != null) {
+				ids.remove(id);
+				if (ids.isEmpty())
+					postings.remove(term);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Reads the journal. Returns false if the journal is incomplete.
+	 */
+	private boolean replay(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+		try {
+			while (true) {
+				int op = in.read();
+				if (op < 0)
+					return true;
+				if (op == UPDATE) {
+					String id = in.readUTF();
+					String type = in.readUTF();
+					Set<String> acl = readStrings(in);
+					Set<String> terms = readStrings(in);
+					put(id, type, acl, terms);
+				} else if (op == DELETE) {
+					remove(in.readUTF());
+				} else {
+					throw new IOException("invalid record type " + op);
+				}
+				journalRecords++;
+			}
+		} catch (IOException e) {
+			logger.warning("[FullTextIndex] journal " + file + " is incomplete (" + e.getMessage() + "), "
+					+ documents.size() + " documents read");
+			return false;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Rewrites the journal with the current documents
+	 */
+	private void compact() throws IOException {
+		close();
+		List<Document> list = new ArrayList<Document>(documents.values());
+		Collections.sort(list, new Comparator<Document>() {
+			@Override
+			public int compare(Document doc1, Document doc2) {
+				return Long.compare(doc1.sequence, doc2.sequence);
+			}
+		});
+		File file = new File(directory, JOURNAL);
+		File tmp = new File(directory, JOURNAL + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 65536));
+		try {
+			for (Document document : list) {
+				out.writeByte(UPDATE);
+				writeDocument(out, document);
+			}
+		} finally {
+			out.close();
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		journalRecords = list.size();
+		journal = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true), 65536));
+		logger.fine("[FullTextIndex] journal compacted - " + list.size() + " documents");
+	}
+
+	private static void writeDocument(DataOutputStream out, Document document) throws IOException {
+		out.writeUTF(document.id);
+		out.writeUTF(document.type);
+		writeStrings(out, document.acl);
+		writeStrings(out, document.terms);
+	}
+
+	private static void writeStrings(DataOutputStream out, Set<String> values) throws IOException {
+		out.writeInt(values.size());
+		for (String value : values) {
+			out.writeUTF(value);
+		}
+	}
+
+	private static Set<String> readStrings(DataInputStream in) throws IOException {
+		int size = in.readInt();
+		if (size < 0)
+			throw new EOFException();
+		Set<String> values = new LinkedHashSet<String>();
+		for (int i = 0; i < size; i++) {
+			values.add(in.readUTF());
+		}
+		return values;
+	}
+}
@@ -0,0 +1,390 @@
+/*******************************************************************************
+ *  Imixs Workflow 
+ *  Copyright (C) 2001, 2011 Imixs Software Solutions GmbH,  
+ *  http://www.imixs.com
+ *  
+ *  This program is free software; you can redistribute it and/or 
+ *  modify it under the terms of the GNU General Public License 
+ *  as published by the Free Software Foundation; either version 2 
+ *  of the License, or (at your option) any later version.
+ *  
+ *  This program is distributed in the hope that it will be useful, 
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU 
+ *  General Public License for more details.
+ *  
+ *  You can receive a copy of the GNU General Public
+ *  License at http://www.gnu.org/licenses/gpl.html
+ *  
+ *  Project: 
+ *  	http://www.imixs.org
+ *  	http://java.net/projects/imixs-workflow
+ *  
+ *  Contributors:  
+ *  	Imixs Software Solutions GmbH - initial API and implementation
+ *  	Ralph Soika - Software Developer
+ *******************************************************************************/
+
+package org.imixs.workflow.jee.ejb;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.annotation.security.DeclareRoles;
+import javax.annotation.security.RunAs;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.LocalBean;
+import javax.ejb.SessionContext;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.ejb.Timeout;
+import javax.ejb.Timer;
+import javax.ejb.TimerConfig;
+import javax.ejb.TimerService;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+import org.imixs.workflow.ItemCollection;
+
+/**
+ * The FullTextIndexService is a singleton EJB maintaining an embedded
+ * FullTextIndex of the entities. The index is enabled by the environment
+ * setting 'FULLTEXT_INDEX_DIRECTORY' which defines the directory of the index
+ * files.
+ * <p>
+ * The EntityService submits each saved or removed entity. The changes are
+ * queued after the transaction was committed and written into the index by a
+ * timer every second. So a save is not delayed by the index. The index
+ * stores the $uniqueid, the type and the read access of an entity together
+ * with the terms of its text items.
+ * <p>
+ * The index is held by each cluster node. The method rebuild() reads all
+ * entities again in chunks of the size 'BATCH_SIZE'. The method getStatus()
+ * returns the size of the index and the lag of the queued changes.
+ * 
+ * @see org.imixs.workflow.jee.ejb.FullTextIndex
+ * @see org.imixs.workflow.jee.ejb.EntityService
+ * @author rsoika
+ * 
+ */
+@DeclareRoles({ "org.imixs.ACCESSLEVEL.MANAGERACCESS" })
+@RunAs("org.imixs.ACCESSLEVEL.MANAGERACCESS")
+@Singleton
+@Startup
+@LocalBean
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+public class FullTextIndexService {
+
+	public static final String ENTITY_SERVICE = "java:module/EntityService";
+
+	static final long TICK = 1000;
+
+	@Resource(name = "FULLTEXT_INDEX_DIRECTORY")
+	private String directory = "";
+
+	@Resource
+	TimerService timerService;
+
+	@Resource
+	TransactionSynchronizationRegistry transactionRegistry;
+
+	@Resource
+	SessionContext ctx;
+
+	EntityService entityService = null;
+
+	private volatile FullTextIndex index = null;
+	private final ConcurrentLinkedQueue<Change> queue = new ConcurrentLinkedQueue<Change>();
+	// guards the update of the index
+	private final ReentrantLock updateLock = new ReentrantLock();
+	private final AtomicLong indexedCount = new AtomicLong();
+	private volatile long lastUpdate = 0;
+	private volatile long lastLag = 0;
+	private volatile boolean rebuilding = false;
+	private volatile String rebuildToken = "";
+	private volatile long rebuildCount = 0;
+
+	private static Logger logger = Logger.getLogger(FullTextIndexService.class.getName());
+
+	/**
+	 * A queued change of the index
+	 */
+	static class Change {
+		final String id;
+		final String type;
+		final List<String> acl;
+		final String content;
+		final long queued;
+
+		Change(String id, String type, List<String> acl, String content) {
+			this.id = id;
+			this.type = type;
+			this.acl = acl;
+			this.content = content;
+			this.queued = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * Opens the index if the directory is defined and starts the timer
+	 */
+	@PostConstruct
+	void init() {
+		if (directory == null || directory.isEmpty())
+			return;
+		try {
+			open(new File(directory));
+		} catch (Exception e) {
+			logger.severe("[FullTextIndexService] unable to open index " + directory + ": " + e.getMessage());
+			return;
+		}
+		if (timerService != null)
+			timerService.createIntervalTimer(TICK, TICK, new TimerConfig(null, false));
+	}
+
+	/**
+	 * Opens the index in the given directory. If the directory is null the
+	 * index is not persisted.
+	 */
+	void open(File dir) throws java.io.IOException {
+		index = new FullTextIndex(dir);
+		logger.info("[FullTextIndexService] index opened - " + index.size() + " documents");
+	}
+
+	@PreDestroy
+	void destroy() {
+		FullTextIndex current = index;
+		if (current == null)
+			return;
+		update(System.currentTimeMillis(), 0);
+		try {
+			current.close();
+		} catch (Exception e) {
+			logger.warning("[FullTextIndexService] unable to close index: " + e.getMessage());
+		}
+	}
+
+	public boolean isEnabled() {
+		return index != null;
+	}
+
+	/**
+	 * Submits a saved entity. The document contains the items '$uniqueid',
+	 * 'type', '$readaccess' (the read access of the entity) and 'content' (the
+	 * text to be indexed). If a transaction is active, the document is queued
+	 * after the transaction was committed. The method has no effect if the
+	 * index is not enabled.
+	 * 
+	 * @param document
+	 */
+	@TransactionAttribute(TransactionAttributeType.SUPPORTS)
+	public void update(ItemCollection document) {
+		if (!isEnabled())
+			return;
+		List<String> acl = new ArrayList<String>();
+		for (Object value : document.getItemValue("$readaccess")) {
+			if (value != null)
+				acl.add(value.toString());
+		}
+		submit(new Change(document.getItemValueString(EntityService.UNIQUEID), document.getItemValueString("type"),
+				acl, document.getItemValueString("content")));
+	}
+
+	/**
+	 * Submits a removed entity. If a transaction is active, the entity is
+	 * removed from the index after the transaction was committed.
+	 * 
+	 * @param id
+	 *            - $uniqueid
+	 */
+	@TransactionAttribute(TransactionAttributeType.SUPPORTS)
+	public void delete(String id) {
+		if (!isEnabled())
+			return;
+		submit(new Change(id, null, null, null));
+	}
+
+	/**
+	 * Returns the ids of the entities containing all terms of the query
+	 * 
+	 * @param query
+	 *            - search terms. A term ending with '*' is a prefix.
+	 * @param type
+	 *            - optional type of the entities
+	 * @param accessNames
+	 *            - user names and roles of the caller or null if the caller
+	 *            can read all entities
+	 * @param start
+	 * @param count
+	 * @return list of $uniqueids, newest first
+	 */
+	public List<String> search(String query, String type, Set<String> accessNames, int start, int count) {
+		FullTextIndex current = index;
+		if (current == null)
+			return new ArrayList<String>();
+		return current.search(query, type, accessNames, start, count);
+	}
+
+	/**
+	 * Removes all documents from the index and reads all entities again. The
+	 * entities are read in chunks by the timer. Changes submitted in the
+	 * meantime are still written into the index.
+	 */
+	public void rebuild() {
+		if (!isEnabled())
+			return;
+		updateLock.lock();
+		try {
+			index.clear();
+			rebuildToken = "";
+			rebuildCount = 0;
+			rebuilding = true;
+			logger.info("[FullTextIndexService] rebuild started");
+		} catch (Exception e) {
+			logger.severe("[FullTextIndexService] unable to clear index: " + e.getMessage());
+		} finally {
+			updateLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the status of the index with the items 'keyEnabled',
+	 * 'numDocuments', 'numTerms', 'numQueued', 'numLag' (age of the oldest
+	 * queued change in ms), 'numLastLag' (lag of the last update),
+	 * 'numIndexed', 'datLastUpdate', 'keyRebuilding' and 'numRebuildCount'.
+	 * 
+	 * @return status
+	 */
+	public ItemCollection getStatus() {
+		ItemCollection status = new ItemCollection();
+		FullTextIndex current = index;
+		status.replaceItemValue("keyEnabled", current != null);
+		status.replaceItemValue("txtDirectory", directory);
+		if (current != null) {
+			status.replaceItemValue("numDocuments", current.size());
+			status.replaceItemValue("numTerms", current.getTermCount());
+		}
+		status.replaceItemValue("numQueued", queue.size());
+		status.replaceItemValue("numLag", getLag(System.currentTimeMillis()));
+		status.replaceItemValue("numLastLag", lastLag);
+		status.replaceItemValue("numIndexed", indexedCount.get());
+		if (lastUpdate > 0)
+			status.replaceItemValue("datLastUpdate", new Date(lastUpdate));
+		status.replaceItemValue("keyRebuilding", rebuilding);
+		status.replaceItemValue("numRebuildCount", rebuildCount);
+		return status;
+	}
+
+	/**
+	 * Returns the age of the oldest queued change in milliseconds
+	 */
+	public long getLag(long now) {
+		Change change = queue.peek();
+		return change == null ? 0 : Math.max(0, now - change.queued);
+	}
+
+	@Timeout
+	void onTimeout(Timer timer) {
+		update(System.currentTimeMillis(), TICK / 2);
+	}
+
+	/**
+	 * Writes the queued changes into the index. During a rebuild the next
+	 * chunks of entities are read until the time budget is used. If the index
+	 * is currently updated, the method returns immediately.
+	 * 
+	 * @param now
+	 *            - current time in milliseconds
+	 * @param budget
+	 *            - time in milliseconds to be used for a rebuild
+	 */
+	void update(long now, long budget) {
+		FullTextIndex current = index;
+		if (current == null || !updateLock.tryLock())
+			return;
+		try {
+			Change change;
+			while ((change = queue.poll()) != null) {
+				if (change.content == null)
+					current.delete(change.id);
+				else
+					current.update(change.id, change.type, change.acl, change.content);
+				indexedCount.incrementAndGet();
+				lastLag = now - change.queued;
+				lastUpdate = now;
+			}
+			while (rebuilding && System.currentTimeMillis() - now <= budget) {
+				rebuildChunk(current);
+			}
+			current.flush();
+		} catch (Exception e) {
+			logger.severe("[FullTextIndexService] index update failed: " + e.getMessage());
+		} finally {
+			updateLock.unlock();
+		}
+	}
+
+	private void rebuildChunk(FullTextIndex current) throws java.io.IOException {
+		EntityService service = getEntityService();
+		List<ItemCollection> documents = service.findFullTextDocuments(rebuildToken, service.getBatchSize());
+		for (ItemCollection document : documents) {
+			String id = document.getItemValueString(EntityService.UNIQUEID);
+			// a change submitted during the rebuild is newer
+			if (!current.contains(id)) {
+				List<String> acl = new ArrayList<String>();
+				for (Object value : document.getItemValue("$readaccess")) {
+					acl.add(value.toString());
+				}
+				current.update(id, document.getItemValueString("type"), acl, document.getItemValueString("content"));
+			}
+			rebuildToken = document.getItemValueString(EntityService.CONTINUATIONTOKEN);
+		}
+		rebuildCount += documents.size();
+		if (documents.size() < service.getBatchSize()) {
+			rebuilding = false;
+			logger.info("[FullTextIndexService] rebuild finished - " + rebuildCount + " entities read, "
+					+ current.size() + " documents");
+		}
+	}
+
+	private void submit(final Change change) {
+		if (transactionRegistry != null && transactionRegistry.getTransactionKey() != null) {
+			transactionRegistry.registerInterposedSynchronization(new Synchronization() {
+				@Override
+				public void beforeCompletion() {
+					// no op
+				}
+
+				@Override
+				public void afterCompletion(int status) {
+					if (status == Status.STATUS_COMMITTED)
+						queue.add(change);
+				}
+			});
+		} else {
+			queue.add(change);
+		}
+	}
+
+	private EntityService getEntityService() {
+		if (entityService == null)
+			entityService = (EntityService) ctx.lookup(ENTITY_SERVICE);
+		return entityService;
+	}
+
+}
@@ -0,0 +1,516 @@
+/*******************************************************************************
+ *  Imixs Workflow 
+ *  Copyright (C) 2001, 2011 Imixs Software Solutions GmbH,  
+ *  http://www.imixs.com
+ *  
+ *  This program is free software; you can redistribute it and/or 
+ *  modify it under the terms of the GNU General Public License 
+ *  as published by the Free Software Foundation; either version 2 
+ *  of the License, or (at your option) any later version.
+ *  
+ *  This program is distributed in the hope that it will be useful, 
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU 
+ *  General Public License for more details.
+ *  
+ *  You can receive a copy of the GNU General Public
+ *  License at http://www.gnu.org/licenses/gpl.html
+ *  
+ *  Project: 
+ *  	http://www.imixs.org
+ *  	http://java.net/projects/imixs-workflow
+ *  
+ *  Contributors:  
+ *  	Imixs Software Solutions GmbH - initial API and implementation
+ *  	Ralph Soika - Software Developer
+ *******************************************************************************/
+
+package org.imixs.workflow.jee.ejb;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.LocalBean;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.ejb.Timeout;
+import javax.ejb.Timer;
+import javax.ejb.TimerConfig;
+import javax.ejb.TimerService;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.MimeMessage;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+/**
+ * The MailOutbox is a singleton EJB sending mail messages in the background.
+ * The MailPlugin puts a message into the outbox if the property 'mail.outbox'
+ * is set to 'true' in the imixs.properties. So the processing of a workitem
+ * does not wait for the SMTP server.
+ * <p>
+ * A message put into the outbox during a transaction is queued after the
+ * transaction was committed. If the transaction is rolled back, the message
+ * is discarded. A timer sends the queued messages every second. The messages
+ * are sent in batches per mail host over a connection which is kept open for
+ * the next batch. If a message can not be sent, the outbox retries the message
+ * with an exponential backoff. After 5 failed attempts the message is dropped.
+ * <p>
+ * The queue is kept in memory. Messages not yet sent when the application is
+ * stopped are sent by the method destroy(). The state of the outbox is
+ * published as a MXBean to the platform MBeanServer:
+ * 
+ * <pre>
+ * org.imixs.workflow:type=MailOutbox
+ * </pre>
+ * 
+ * @see org.imixs.workflow.plugins.jee.MailPlugin
+ * @author rsoika
+ * 
+ */
+@Singleton
+@Startup
+@LocalBean
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+public class MailOutbox {
+
+	public static final String OBJECT_NAME = "org.imixs.workflow:type=MailOutbox";
+
+	static final long FLUSH_INTERVAL = 1000;
+	static final long CONNECTION_IDLE_TIMEOUT = 30000;
+	static final long MAX_RETRY_DELAY = 60 * 60 * 1000;
+
+	// the delay of the first retry. The delay is doubled for each retry.
+	long retryDelay = 10000;
+	int maxAttempts = 5;
+
+	private final Queue<OutboxMessage> queue = new ConcurrentLinkedQueue<OutboxMessage>();
+	private final AtomicInteger queueSize = new AtomicInteger();
+	private final AtomicLong sentCount = new AtomicLong();
+	private final AtomicLong retryCount = new AtomicLong();
+	private final AtomicLong failedCount = new AtomicLong();
+
+	// the open connections per mail host - guarded by the flushLock
+	private final ReentrantLock flushLock = new ReentrantLock();
+	private final Map<String, PooledTransport> transports = new HashMap<String, PooledTransport>();
+	private volatile int connectionCount = 0;
+
+	@Resource
+	TimerService timerService;
+
+	@Resource
+	TransactionSynchronizationRegistry transactionRegistry;
+
+	private volatile MBeanServer mbeanServer = null;
+
+	private static Logger logger = Logger.getLogger(MailOutbox.class.getName());
+
+	/**
+	 * Starts the timer and registers the MXBean to the platform MBeanServer
+	 */
+	@PostConstruct
+	void init() {
+		if (timerService != null)
+			timerService.createIntervalTimer(FLUSH_INTERVAL, FLUSH_INTERVAL, new TimerConfig(null, false));
+		register(ManagementFactory.getPlatformMBeanServer());
+	}
+
+	/**
+	 * Sends the remaining messages, closes all connections and unregisters
+	 * the MXBean
+	 */
+	@PreDestroy
+	void destroy() {
+		flush(Long.MAX_VALUE);
+		flushLock.lock();
+		try {
+			for (PooledTransport pooled : transports.values())
+				pooled.close();
+			transports.clear();
+			connectionCount = 0;
+		} finally {
+			flushLock.unlock();
+		}
+		unregister();
+	}
+
+	@Timeout
+	void onTimeout(Timer timer) {
+		flush();
+	}
+
+	/**
+	 * Puts a message into the outbox. If a transaction is active, the message
+	 * is queued after the transaction was committed. Otherwise the message is
+	 * queued immediately.
+	 * 
+	 * @param session
+	 *            - the mail session used to send the message
+	 * @param message
+	 *            - the message with all recipients and content
+	 */
+	@TransactionAttribute(TransactionAttributeType.SUPPORTS)
+	public void send(Session session, MimeMessage message) {
+		final OutboxMessage outboxMessage = new OutboxMessage(session, message);
+		if (transactionRegistry != null && transactionRegistry.getTransactionKey() != null) {
+			transactionRegistry.registerInterposedSynchronization(new Synchronization() {
+				@Override
+				public void beforeCompletion() {
+					// no op
+				}
+
+				@Override
+				public void afterCompletion(int status) {
+					if (status == Status.STATUS_COMMITTED)
+						offer(outboxMessage);
+					else
+						logger.fine("[MailOutbox] transaction rolled back - message discarded");
+				}
+			});
+		} else {
+			offer(outboxMessage);
+		}
+	}
+
+	/**
+	 * Sends all due messages
+	 */
+	public void flush() {
+		flush(System.currentTimeMillis());
+	}
+
+	/**
+	 * Sends all messages due at the given time. The messages are grouped by
+	 * the mail host. If the method is called while a flush is running, the
+	 * method returns immediately.
+	 * 
+	 * @param now
+	 *            - current time in milliseconds
+	 */
+	void flush(long now) {
+		if (!flushLock.tryLock())
+			return;
+		try {
+			Map<String, List<OutboxMessage>> batches = new LinkedHashMap<String, List<OutboxMessage>>();
+			List<OutboxMessage> waiting = new ArrayList<OutboxMessage>();
+			OutboxMessage outboxMessage;
+			while ((outboxMessage = queue.poll()) != null) {
+				queueSize.decrementAndGet();
+				if (outboxMessage.dueTime > now) {
+					waiting.add(outboxMessage);
+					continue;
+				}
+				List<OutboxMessage> batch = batches.get(outboxMessage.host);
+				if (batch == null) {
+					batch = new ArrayList<OutboxMessage>();
+					batches.put(outboxMessage.host, batch);
+				}
+				batch.add(outboxMessage);
+			}
+			for (OutboxMessage message : waiting)
+				offer(message);
+
+			for (Map.Entry<String, List<OutboxMessage>> entry : batches.entrySet())
+				sendBatch(entry.getKey(), entry.getValue(), now);
+
+			closeIdleTransports(now);
+		} finally {
+			flushLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of messages waiting to be sent
+	 */
+	public int getQueueSize() {
+		return queueSize.get();
+	}
+
+	/**
+	 * Returns the number of messages sent
+	 */
+	public long getSentCount() {
+		return sentCount.get();
+	}
+
+	/**
+	 * Returns the number of failed send attempts which will be retried
+	 */
+	public long getRetryCount() {
+		return retryCount.get();
+	}
+
+	/**
+	 * Returns the number of messages dropped after the last attempt failed
+	 */
+	public long getFailedCount() {
+		return failedCount.get();
+	}
+
+	/**
+	 * Returns the number of open SMTP connections
+	 */
+	public int getConnectionCount() {
+		return connectionCount;
+	}
+
+	/**
+	 * Returns the age of the oldest waiting message in milliseconds
+	 */
+	public long getOldestMessageAge() {
+		long now = System.currentTimeMillis();
+		long result = 0;
+		for (OutboxMessage outboxMessage : queue)
+			result = Math.max(result, now - outboxMessage.created);
+		return result;
+	}
+
+	/**
+	 * Sends the messages for one mail host over one connection. If the
+	 * connection is lost, the remaining messages are queued again.
+	 */
+	private void sendBatch(String host, List<OutboxMessage> batch, long now) {
+		Transport transport;
+		try {
+			transport = getTransport(host, batch.get(0).session, now);
+		} catch (MessagingException e) {
+			logger.warning("[MailOutbox] unable to connect to '" + host + "': " + e.getMessage());
+			for (OutboxMessage outboxMessage : batch)
+				retry(outboxMessage, now);
+			return;
+		}
+
+		Iterator<OutboxMessage> iter = batch.iterator();
+		while (iter.hasNext()) {
+			OutboxMessage outboxMessage = iter.next();
+			try {
+				transport.sendMessage(outboxMessage.message, outboxMessage.message.getAllRecipients());
+				sentCount.incrementAndGet();
+			} catch (MessagingException e) {
+				logger.warning("[MailOutbox] unable to send message to '" + host + "': " + e.getMessage());
+				retry(outboxMessage, now);
+				if (!transport.isConnected()) {
+					closeTransport(host);
+					// send the remaining messages with the next flush
+					while (iter.hasNext())
+						offer(iter.next());
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns an open connection to the mail host. A pooled connection is
+	 * reused if it is still connected.
+	 */
+	private Transport getTransport(String host, Session session, long now) throws MessagingException {
+		PooledTransport pooled = transports.get(host);
+		if (pooled != null) {
+			if (pooled.transport.isConnected()) {
+				pooled.lastUsed = now;
+				return pooled.transport;
+			}
+			closeTransport(host);
+		}
+		Transport transport = session.getTransport("smtp");
+		transport.connect(session.getProperty("mail.smtp.user"), session.getProperty("mail.smtp.password"));
+		pooled = new PooledTransport(transport, now);
+		transports.put(host, pooled);
+		connectionCount = transports.size();
+		if (logger.isLoggable(Level.FINE))
+			logger.fine("[MailOutbox] connected to '" + host + "'");
+		return transport;
+	}
+
+	private void closeTransport(String host) {
+		PooledTransport pooled = transports.remove(host);
+		if (pooled != null)
+			pooled.close();
+		connectionCount = transports.size();
+	}
+
+	private void closeIdleTransports(long now) {
+		Iterator<PooledTransport> iter = transports.values().iterator();
+		while (iter.hasNext()) {
+			PooledTransport pooled = iter.next();
+			if (now - pooled.lastUsed > CONNECTION_IDLE_TIMEOUT) {
+				pooled.close();
+				iter.remove();
+			}
+		}
+		connectionCount = transports.size();
+	}
+
+	/**
+	 * Queues a message again with an exponential backoff or drops the message
+	 * if the maximum number of attempts is reached.
+	 */
+	private void retry(OutboxMessage outboxMessage, long now) {
+		outboxMessage.attempts++;
+		if (outboxMessage.attempts >= maxAttempts) {
+			failedCount.incrementAndGet();
+			logger.severe("[MailOutbox] message to '" + outboxMessage.host + "' dropped after "
+					+ outboxMessage.attempts + " attempts");
+			return;
+		}
+		retryCount.incrementAndGet();
+		long delay = retryDelay << Math.min(outboxMessage.attempts - 1, 20);
+		outboxMessage.dueTime = now + Math.min(delay, MAX_RETRY_DELAY);
+		offer(outboxMessage);
+	}
+
+	private void offer(OutboxMessage outboxMessage) {
+		queue.offer(outboxMessage);
+		queueSize.incrementAndGet();
+	}
+
+	/**
+	 * Registers the MXBean to a MBeanServer
+	 * 
+	 * @param server
+	 */
+	void register(MBeanServer server) {
+		mbeanServer = server;
+		try {
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			if (!server.isRegistered(name))
+				server.registerMBean(new Control(this), name);
+		} catch (JMException e) {
+			logger.warning("[MailOutbox] unable to register MBean '" + OBJECT_NAME + "': " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Unregisters the MXBean from the MBeanServer
+	 */
+	void unregister() {
+		MBeanServer server = mbeanServer;
+		mbeanServer = null;
+		if (server == null)
+			return;
+		try {
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			if (server.isRegistered(name))
+				server.unregisterMBean(name);
+		} catch (JMException e) {
+			logger.warning("[MailOutbox] unable to unregister MBean: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * A message waiting in the outbox
+	 */
+	private static class OutboxMessage {
+		final Session session;
+		final MimeMessage message;
+		final String host;
+		final long created;
+		long dueTime;
+		int attempts = 0;
+
+		OutboxMessage(Session session, MimeMessage message) {
+			this.session = session;
+			this.message = message;
+			String hostName = session.getProperty("mail.smtp.host");
+			if (hostName == null)
+				hostName = session.getProperty("mail.host");
+			this.host = hostName + ":" + session.getProperty("mail.smtp.port") + ":"
+					+ session.getProperty("mail.smtp.user");
+			this.created = System.currentTimeMillis();
+			this.dueTime = created;
+		}
+	}
+
+	/**
+	 * A connection to a mail host
+	 */
+	private static class PooledTransport {
+		final Transport transport;
+		long lastUsed;
+
+		PooledTransport(Transport transport, long lastUsed) {
+			this.transport = transport;
+			this.lastUsed = lastUsed;
+		}
+
+		void close() {
+			try {
+				transport.close();
+			} catch (MessagingException e) {
+				logger.fine("[MailOutbox] close connection failed: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * The MXBean 'type=MailOutbox'
+	 */
+	public static class Control implements MailOutboxMXBean {
+		private final MailOutbox outbox;
+
+		Control(MailOutbox outbox) {
+			this.outbox = outbox;
+		}
+
+		@Override
+		public int getQueueSize() {
+			return outbox.getQueueSize();
+		}
+
+		@Override
+		public long getOldestMessageAge() {
+			return outbox.getOldestMessageAge();
+		}
+
+		@Override
+		public long getSentCount() {
+			return outbox.getSentCount();
+		}
+
+		@Override
+		public long getRetryCount() {
+			return outbox.getRetryCount();
+		}
+
+		@Override
+		public long getFailedCount() {
+			return outbox.getFailedCount();
+		}
+
+		@Override
+		public int getConnectionCount() {
+			return outbox.getConnectionCount();
+		}
+
+		@Override
+		public void flush() {
+			outbox.flush();
+		}
+	}
+}
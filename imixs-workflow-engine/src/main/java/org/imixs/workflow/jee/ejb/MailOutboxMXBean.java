@@ -0,0 +1,74 @@
+/*******************************************************************************
+ *  Imixs Workflow 
+ *  Copyright (C) 2001, 2011 Imixs Software Solutions GmbH,  
+ *  http://www.imixs.com
+ *  
+ *  This program is free software; you can redistribute it and/or 
+ *  modify it under the terms of the GNU General Public License 
+ *  as published by the Free Software Foundation; either version 2 
+ *  of the License, or (at your option) any later version.
+ *  
+ *  This program is distributed in the hope that it will be useful, 
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU 
+ *  General Public License for more details.
+ *  
+ *  You can receive a copy of the GNU General Public
+ *  License at http://www.gnu.org/licenses/gpl.html
+ *  
+ *  Project: 
+ *  	http://www.imixs.org
+ *  	http://java.net/projects/imixs-workflow
+ *  
+ *  Contributors:  
+ *  	Imixs Software Solutions GmbH - initial API and implementation
+ *  	Ralph Soika - Software Developer
+ *******************************************************************************/
+
+package org.imixs.workflow.jee.ejb;
+
+/**
+ * Management interface of the MailOutbox bean.
+ * 
+ * @see org.imixs.workflow.jee.ejb.MailOutbox
+ * @author rsoika
+ * 
+ */
+public interface MailOutboxMXBean {
+
+	/**
+	 * Returns the number of messages waiting to be sent
+	 */
+	public int getQueueSize();
+
+	/**
+	 * Returns the age of the oldest waiting message in milliseconds
+	 */
+	public long getOldestMessageAge();
+
+	/**
+	 * Returns the number of messages sent
+	 */
+	public long getSentCount();
+
+	/**
+	 * Returns the number of failed send attempts which will be retried
+	 */
+	public long getRetryCount();
+
+	/**
+	 * Returns the number of messages dropped after the last attempt failed
+	 */
+	public long getFailedCount();
+
+	/**
+	 * Returns the number of open SMTP connections
+	 */
+	public int getConnectionCount();
+
+	/**
+	 * Sends all due messages now
+	 */
+	public void flush();
+
+}
@@ -0,0 +1,224 @@
+/*******************************************************************************
+ *  Imixs Workflow 
+ *  Copyright (C) 2001, 2011 Imixs Software Solutions GmbH,  
+ *  http://www.imixs.com
+ *  
+ *  This program is free software; you can redistribute it and/or 
+ *  modify it under the terms of the GNU General Public License 
+ *  as published by the Free Software Foundation; either version 2 
+ *  of the License, or (at your option) any later version.
+ *  
+ *  This program is distributed in the hope that it will be useful, 
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU 
+ *  General Public License for more details.
+ *  
+ *  You can receive a copy of the GNU General Public
+ *  License at http://www.gnu.org/licenses/gpl.html
+ *  
+ *  Project: 
+ *  	http://www.imixs.org
+ *  	http://java.net/projects/imixs-workflow
+ *  
+ *  Contributors:  
+ *  	Imixs Software Solutions GmbH - initial API and implementation
+ *  	Ralph Soika - Software Developer
+ *******************************************************************************/
+
+package org.imixs.workflow.jee.ejb;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.Singleton;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+
+/**
+ * The ModelCache is a singleton EJB holding one immutable CachedModel per
+ * $modelversion. In addition the ModelCache holds the PluginPipeline computed
+ * by the WorkflowService for each $modelversion. The cache is used by the ModelService to avoid database
+ * queries for static model data during the processing life cycle of a
+ * workitem.
+ * <p>
+ * The cache is filled by the ModelService when a model is imported or when a
+ * model version is requested the first time. A model version is invalidated
+ * when the model is removed or a single model entity is updated by the
+ * ModelService.
+ * <p>
+ * Each change of the cache increases a generation counter. A model loaded
+ * after a cache miss is only added if the generation has not changed during
+ * the load (see putModel(CachedModel, long)). So a model loaded before a
+ * concurrent change was committed does not replace the published model.
+ * <p>
+ * The ModelCache counts cache hits and misses. The counters can be reset by
+ * the method resetStatistics().
+ * <p>
+ * The bean is not transactional because it is also called after the
+ * completion of a transaction.
+ * 
+ * @see org.imixs.workflow.jee.ejb.ModelService
+ * @author rsoika
+ * 
+ */
+@Singleton
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+public class ModelCache {
+
+	private final Map<String, CachedModel> models = new ConcurrentHashMap<String, CachedModel>();
+	private final Map<String, PluginPipeline> pipelines = new ConcurrentHashMap<String, PluginPipeline>();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong generation = new AtomicLong();
+
+	private static Logger logger = Logger.getLogger(ModelCache.class.getName());
+
+	/**
+	 * Returns the CachedModel for a given $modelversion or null if the model
+	 * version is not yet cached.
+	 * 
+	 * @param modelVersion
+	 * @return CachedModel or null
+	 */
+	public CachedModel getModel(String modelVersion) {
+		if (modelVersion == null)
+			return null;
+		CachedModel model = models.get(modelVersion);
+		if (model == null)
+			misses.incrementAndGet();
+		else
+			hits.incrementAndGet();
+		return model;
+	}
+
+	/**
+	 * Adds or replaces a CachedModel.
+	 * 
+	 * @param model
+	 */
+	public synchronized void putModel(CachedModel model) {
+		if (model == null)
+			return;
+		logger.fine("[ModelCache] cache $modelversion=" + model.getModelVersion());
+		generation.incrementAndGet();
+		models.put(model.getModelVersion(), model);
+		// the profile may have changed
+		pipelines.remove(model.getModelVersion());
+	}
+
+	/**
+	 * Adds a CachedModel loaded after a cache miss. The model is only added if
+	 * the cache was not changed since the given generation was read. The
+	 * method returns false if the model was not added.
+	 * 
+	 * @param model
+	 * @param generation
+	 *            - generation read before the model was loaded
+	 * @return true if the model was added
+	 */
+	public synchronized boolean putModel(CachedModel model, long generation) {
+		if (model == null || this.generation.get() != generation) {
+			logger.fine("[ModelCache] cache changed - model not cached");
+			return false;
+		}
+		models.put(model.getModelVersion(), model);
+		pipelines.remove(model.getModelVersion());
+		return true;
+	}
+
+	/**
+	 * Returns the current generation of the cache. The generation is
+	 * increased each time a model is added by the method putModel(CachedModel)
+	 * or removed.
+	 * 
+	 * @return generation
+	 */
+	public long getGeneration() {
+		return generation.get();
+	}
+
+	/**
+	 * Returns the PluginPipeline for a given $modelversion or null if no
+	 * pipeline is cached.
+	 * 
+	 * @param modelVersion
+	 * @return PluginPipeline or null
+	 */
+	public PluginPipeline getPluginPipeline(String modelVersion) {
+		if (modelVersion == null)
+			return null;
+		return pipelines.get(modelVersion);
+	}
+
+	/**
+	 * Adds or replaces a PluginPipeline.
+	 * 
+	 * @param pipeline
+	 */
+	public void putPluginPipeline(PluginPipeline pipeline) {
+		if (pipeline == null)
+			return;
+		pipelines.put(pipeline.getModelVersion(), pipeline);
+	}
+
+	/**
+	 * Removes a model version and its PluginPipeline from the cache. If
+	 * modelVersion is null the method removes all model versions.
+	 * 
+	 * @param modelVersion
+	 */
+	public synchronized void invalidate(String modelVersion) {
+		generation.incrementAndGet();
+		if (modelVersion == null) {
+			logger.fine("[ModelCache] invalidate all model versions");
+			models.clear();
+			pipelines.clear();
+		} else {
+			logger.fine("[ModelCache] invalidate $modelversion=" + modelVersion);
+			models.remove(modelVersion);
+			pipelines.remove(modelVersion);
+		}
+	}
+
+	/**
+	 * Returns the number of cached model versions
+	 * 
+	 * @return
+	 */
+	public int getSize() {
+		return models.size();
+	}
+
+	/**
+	 * Returns the number of successful cache lookups
+	 * 
+	 * @return
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * Returns the number of lookups for a model version not contained in the
+	 * cache
+	 * 
+	 * @return
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Resets the hit and miss counters
+	 */
+	public void resetStatistics() {
+		hits.set(0);
+		misses.set(0);
+	}
+
+}
@@ -33,7 +33,9 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Logger;
 
 import javax.annotation.PostConstruct;
@@ -44,6 +46,9 @@ import javax.ejb.EJB;
 import javax.ejb.LocalBean;
 import javax.ejb.SessionContext;
 import javax.ejb.Stateless;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
 import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
 import javax.xml.bind.Unmarshaller;
@@ -73,6 +78,14 @@ import org.imixs.workflow.xml.XMLItemCollectionAdapter;
  * this Implementation automatically defaults to the highest available
  * ModelVersion
  * 
+ * Since Version 3.8.2
+ * 
+ * Model entities are read through the ModelCache. Each model version is loaded
+ * once and hold in memory until the model is removed, updated or imported
+ * again. Changes of the cache are published after the current transaction was
+ * committed.
+ * 
+ * @see org.imixs.workflow.jee.ejb.ModelCache
  * @see org.imixs.workflow.ModelManager
  * @see org.imixs.workflow.jee.ejb.ModelManager
  * @author rsoika
@@ -91,11 +104,20 @@ public class ModelService implements Model, ModelServiceRemote {
 	@EJB
 	EntityService entityService;
 
+	@EJB
+	ModelCache modelCache;
+
 	@Resource
 	SessionContext ctx;
 
+	@Resource
+	TransactionSynchronizationRegistry txRegistry;
+
 	private static Logger logger = Logger.getLogger(ModelService.class.getName());
 
+	// resource of the current transaction holding the changed model versions
+	private static final String MODEL_CHANGES = ModelService.class.getName() + ".changes";
+
 	@PostConstruct
 	void initIndex() throws AccessDeniedException {
 		// create necessary index entities
@@ -108,14 +130,42 @@ public class ModelService implements Model, ModelServiceRemote {
 	}
 
 	public ItemCollection getActivityEntity(int processid, int activityid, String modelVersion) {
+		CachedModel model = getCachedModel(modelVersion);
+		if (model != null)
+			return model.getActivityEntity(processid, activityid, modelVersion);
 		return findActivityEntity(processid, activityid, modelVersion);
 	}
 
 	public ItemCollection getProcessEntity(int processid, String modelversion) {
-
+		CachedModel model = getCachedModel(modelversion);
+		if (model != null)
+			return model.getProcessEntity(processid, modelversion);
 		return findProcessEntity(processid, modelversion);
 	}
 
+	/**
+	 * Returns the WorkflowEnvironmentEntity 'environment.profile' for a given
+	 * model version or null if no profile exists.
+	 * 
+	 * @param modelVersion
+	 * @return environment.profile or null
+	 */
+	public ItemCollection getProfile(String modelVersion) {
+		CachedModel model = getCachedModel(modelVersion);
+		if (model != null)
+			return model.getProfile();
+		return findEnvironmentEntity("environment.profile", modelVersion);
+	}
+
+	/**
+	 * Returns the ModelCache used by this service
+	 * 
+	 * @return ModelCache
+	 */
+	public ModelCache getModelCache() {
+		return modelCache;
+	}
+
 	/**
 	 * returns a collection of ItemCollections representing the model activity
 	 * Entities for the corresponding processId
@@ -124,15 +174,13 @@ public class ModelService implements Model, ModelServiceRemote {
 	 * 
 	 */
 	public List<ItemCollection> getActivityEntityList(int processid, String aModelVersion) {
+		CachedModel model = getCachedModel(aModelVersion);
+		if (model != null)
+			return model.getActivityEntityList(processid, aModelVersion);
 
-		String sQuery = null;
-		sQuery = "SELECT";
-		sQuery += " wi FROM Entity AS wi" + " JOIN wi.integerItems as i1 " + " JOIN wi.integerItems as i2 "
-				+ " JOIN wi.textItems AS v" + " WHERE wi.type= 'ActivityEntity' "
-				+ " AND i1.itemName = 'numprocessid' AND i1.itemValue = '" + processid + "' "
-				+ " AND i2.itemName = 'numactivityid' " + " AND v.itemName = '$modelversion' AND v.itemValue = '"
-				+ aModelVersion + "'" + " ORDER BY i2.itemValue ASC";
-		return entityService.findAllEntities(sQuery, 0, -1);
+		EntityQuery query = new EntityQuery("wi").type("ActivityEntity").integerItem("numprocessid", processid)
+				.textItem(WorkflowService.MODELVERSION, aModelVersion).orderByIntegerItem("numactivityid", true);
+		return entityService.findAllEntities(query, 0, -1);
 
 	}
 
@@ -142,15 +190,13 @@ public class ModelService implements Model, ModelServiceRemote {
 	 * 
 	 */
 	public List<ItemCollection> getProcessEntityList(String aModelVersion) {
+		CachedModel model = getCachedModel(aModelVersion);
+		if (model != null)
+			return model.getProcessEntityList(aModelVersion);
 
-		String sQuery = null;
-		sQuery = "SELECT";
-		sQuery += " wi FROM Entity AS wi " + " JOIN wi.integerItems as i  " + " JOIN wi.textItems AS v"
-				+ " WHERE wi.type= 'ProcessEntity' " + " AND i.itemName = 'numprocessid' "
-				+ " AND v.itemName = '$modelversion' AND v.itemValue = '" + aModelVersion + "'"
-				+ " ORDER BY i.itemValue ASC";
-
-		return entityService.findAllEntities(sQuery, 0, -1);
+		EntityQuery query = new EntityQuery("wi").type("ProcessEntity")
+				.textItem(WorkflowService.MODELVERSION, aModelVersion).orderByIntegerItem("numprocessid", true);
+		return entityService.findAllEntities(query, 0, -1);
 
 	}
 
@@ -177,6 +223,7 @@ public class ModelService implements Model, ModelServiceRemote {
 		ic.replaceItemValue("Type", "ActivityEntity");
 
 		entityService.save(ic);
+		updateModelCache(ic.getItemValueString(WorkflowService.MODELVERSION), false);
 
 	}
 
@@ -199,6 +246,7 @@ public class ModelService implements Model, ModelServiceRemote {
 
 		ic.replaceItemValue("Type", "ProcessEntity");
 		entityService.save(ic);
+		updateModelCache(ic.getItemValueString(WorkflowService.MODELVERSION), false);
 
 	}
 
@@ -216,6 +264,7 @@ public class ModelService implements Model, ModelServiceRemote {
 		ic.replaceItemValue("Type", "WorkflowEnvironmentEntity");
 
 		entityService.save(ic);
+		updateModelCache(ic.getItemValueString(WorkflowService.MODELVERSION), false);
 
 	}
 
@@ -229,25 +278,20 @@ public class ModelService implements Model, ModelServiceRemote {
 		// remove all existing entities
 		logger.fine("remove $modelversion: " + modelversion + "...");
 
-		String sQuery = null;
-		sQuery = "";
+		// select all model entities
+		EntityQuery query = new EntityQuery().type("ProcessEntity", "ActivityEntity", "WorkflowEnvironmentEntity");
 		if (modelversion != null) {
 			// select model entities for this specific version
-			sQuery = "SELECT entity FROM Entity AS entity " + " JOIN entity.textItems as v"
-					+ " WHERE entity.type IN ('ProcessEntity', 'ActivityEntity', 'WorkflowEnvironmentEntity')"
-					+ " AND v.itemName = '$modelversion' AND v.itemValue = '" + modelversion + "'";
-		} else {
-			// select all model entities
-			sQuery = "SELECT entity FROM Entity AS entity "
-					+ " WHERE entity.type IN ('ProcessEntity', 'ActivityEntity', 'WorkflowEnvironmentEntity')";
+			query.textItem(WorkflowService.MODELVERSION, modelversion);
 		}
-		Collection<ItemCollection> col = entityService.findAllEntities(sQuery, 0, -1);
+		Collection<ItemCollection> col = entityService.findAllEntities(query, 0, -1);
 
 		logger.fine(col.size() + " model entities will be removed...");
 		Iterator<ItemCollection> it = col.iterator();
 		while (it.hasNext()) {
 			entityService.remove(it.next());
 		}
+		updateModelCache(modelversion, false);
 
 		logger.info("removed $modelversion: " + modelversion);
 
@@ -264,18 +308,15 @@ public class ModelService implements Model, ModelServiceRemote {
 		// remove all existing entities
 		logger.fine("remove ModelGroup: " + workflowgroup + " $modelversion: " + modelversion + " ...");
 
-		String sQuery = null;
-		sQuery = "";
 		if (modelversion == null) {
 			throw new ModelException(ModelException.UNDEFINED_MODEL_ENTRY, "modelversion not defined!");
 		}
 
 		// select all model processEntities for this specific group and version
-		sQuery = "SELECT entity FROM Entity AS entity " + " JOIN entity.textItems as v" + " JOIN entity.textItems as g"
-				+ " WHERE entity.type IN ('ProcessEntity')" + " AND v.itemName = '$modelversion' AND v.itemValue = '"
-				+ modelversion + "'" + " AND g.itemName = 'txtworkflowgroup' AND g.itemValue = '" + workflowgroup + "'";
+		EntityQuery query = new EntityQuery().type("ProcessEntity").textItem(WorkflowService.MODELVERSION, modelversion)
+				.textItem("txtworkflowgroup", workflowgroup);
 
-		Collection<ItemCollection> col = entityService.findAllEntities(sQuery, 0, -1);
+		Collection<ItemCollection> col = entityService.findAllEntities(query, 0, -1);
 
 		logger.fine(col.size() + " ProcessEntities will be removed...");
 
@@ -283,12 +324,10 @@ public class ModelService implements Model, ModelServiceRemote {
 
 			// search all activities for that process entity...
 			int processID = processEntity.getItemValueInteger("numprocessid");
-			sQuery = "SELECT entity FROM Entity AS entity " + " JOIN entity.textItems as v"
-					+ " JOIN entity.integerItems as g" + " WHERE entity.type IN ('ActivityEntity')"
-					+ " AND v.itemName = '$modelversion' AND v.itemValue = '" + modelversion + "'"
-					+ " AND g.itemName = 'numprocessid' AND g.itemValue = '" + processID + "'";
+			query = new EntityQuery().type("ActivityEntity").textItem(WorkflowService.MODELVERSION, modelversion)
+					.integerItem("numprocessid", processID);
 
-			Collection<ItemCollection> colactivities = entityService.findAllEntities(sQuery, 0, -1);
+			Collection<ItemCollection> colactivities = entityService.findAllEntities(query, 0, -1);
 
 			logger.fine(colactivities.size() + " ActivityEntities will be removed...");
 			Iterator<ItemCollection> it = colactivities.iterator();
@@ -298,6 +337,7 @@ public class ModelService implements Model, ModelServiceRemote {
 			// remove processEntity
 			entityService.remove(processEntity);
 		}
+		updateModelCache(modelversion, false);
 
 		logger.info("removed ModelGroup: " + workflowgroup + " $modelversion: " + modelversion);
 
@@ -314,14 +354,10 @@ public class ModelService implements Model, ModelServiceRemote {
 	 * @throws Exception
 	 */
 	private ItemCollection findEnvironmentEntity(String name, String modelversion) {
-		String sQuery = null;
-		sQuery = "SELECT";
-		sQuery += " environment FROM Entity AS environment " + " JOIN environment.textItems AS n "
-				+ " JOIN environment.textItems as v" + " WHERE environment.type = 'WorkflowEnvironmentEntity'"
-				+ " AND n.itemName = 'txtname' and n.itemValue = '" + name + "'"
-				+ " AND v.itemName = '$modelversion' AND v.itemValue = '" + modelversion + "'";
-
-		Collection<ItemCollection> col = entityService.findAllEntities(sQuery, 0, 1);
+		EntityQuery query = new EntityQuery("environment").type("WorkflowEnvironmentEntity").textItem("txtname", name)
+				.textItem(WorkflowService.MODELVERSION, modelversion);
+
+		Collection<ItemCollection> col = entityService.findAllEntities(query, 0, 1);
 		Iterator<ItemCollection> it = col.iterator();
 		if (!it.hasNext())
 			return null;
@@ -339,14 +375,10 @@ public class ModelService implements Model, ModelServiceRemote {
 	 * @throws Exception
 	 */
 	private ItemCollection findProcessEntity(int processid, String modelversion) {
-		String sQuery = null;
-		sQuery = "SELECT";
-		sQuery += " process FROM Entity AS process " + " JOIN process.integerItems AS i "
-				+ " JOIN process.textItems as v" + " WHERE process.type = 'ProcessEntity'"
-				+ " AND i.itemName = 'numprocessid' and i.itemValue = '" + processid + "'"
-				+ " AND v.itemName = '$modelversion' AND v.itemValue = '" + modelversion + "'";
-
-		Collection<ItemCollection> col = entityService.findAllEntities(sQuery, 0, 1);
+		EntityQuery query = new EntityQuery("process").type("ProcessEntity").integerItem("numprocessid", processid)
+				.textItem(WorkflowService.MODELVERSION, modelversion);
+
+		Collection<ItemCollection> col = entityService.findAllEntities(query, 0, 1);
 		Iterator<ItemCollection> it = col.iterator();
 		if (!it.hasNext())
 			return null;
@@ -365,15 +397,10 @@ public class ModelService implements Model, ModelServiceRemote {
 	 * @throws Exception
 	 */
 	private ItemCollection findActivityEntity(int processid, int activityid, String modelversion) {
-		String sQuery = null;
-		sQuery = "SELECT";
-		sQuery += " activity FROM Entity as activity " + " JOIN activity.integerItems as i "
-				+ " JOIN activity.integerItems as i2 " + " JOIN activity.textItems as v"
-				+ " WHERE activity.type = 'ActivityEntity'" + " AND i.itemName = 'numprocessid' "
-				+ " AND i.itemValue = '" + processid + "'" + " AND i2.itemName = 'numactivityid' and i2.itemValue = '"
-				+ activityid + "' " + " AND v.itemName = '$modelversion' AND v.itemValue = '" + modelversion + "'";
-
-		Collection<ItemCollection> col = entityService.findAllEntities(sQuery, 0, 1);
+		EntityQuery query = new EntityQuery("activity").type("ActivityEntity").integerItem("numprocessid", processid)
+				.integerItem("numactivityid", activityid).textItem(WorkflowService.MODELVERSION, modelversion);
+
+		Collection<ItemCollection> col = entityService.findAllEntities(query, 0, 1);
 		Iterator<ItemCollection> it = col.iterator();
 		if (!it.hasNext())
 			return null;
@@ -388,12 +415,10 @@ public class ModelService implements Model, ModelServiceRemote {
 	 * @return String with the latest model version
 	 */
 	public String getLatestVersion() throws ModelException {
-		String sQuery = "SELECT process FROM Entity AS process" + " JOIN process.textItems as v"
-				+ " JOIN process.textItems as n" + " WHERE process.type = 'WorkflowEnvironmentEntity'"
-				+ " AND n.itemName = 'txtname' AND n.itemValue = 'environment.profile'"
-				+ " AND v.itemName='$modelversion' " + " ORDER BY v.itemValue DESC";
+		EntityQuery query = new EntityQuery("process").type("WorkflowEnvironmentEntity")
+				.textItem("txtname", "environment.profile").orderByTextItem(WorkflowService.MODELVERSION, false);
 
-		Collection<ItemCollection> col = entityService.findAllEntities(sQuery, 0, 1);
+		Collection<ItemCollection> col = entityService.findAllEntities(query, 0, 1);
 
 		if (col.size() > 0) {
 			Iterator<ItemCollection> iter = col.iterator();
@@ -418,12 +443,10 @@ public class ModelService implements Model, ModelServiceRemote {
 		int processId = workitem.getItemValueInteger(WorkflowService.PROCESSID);
 
 		// find all process entities
-		String sQuery = "SELECT process FROM Entity AS process" + " JOIN process.textItems as g"
-				+ " JOIN process.integerItems as n" + " WHERE process.type = 'ProcessEntity'"
-				+ " AND n.itemName = 'numprocessid' AND n.itemValue = " + processId
-				+ " AND g.itemName='txtworkflowgroup' AND g.itemValue= '" + workflowGroup + "'";
+		EntityQuery query = new EntityQuery("process").type("ProcessEntity").integerItem("numprocessid", processId)
+				.textItem("txtworkflowgroup", workflowGroup);
 
-		List<ItemCollection> col = entityService.findAllEntities(sQuery, 0, -1);
+		List<ItemCollection> col = entityService.findAllEntities(query, 0, -1);
 
 		// now sort the result by $modelversion
 		Collections.sort(col, new ItemCollectionComparator(WorkflowService.MODELVERSION));
@@ -446,12 +469,10 @@ public class ModelService implements Model, ModelServiceRemote {
 	public List<ItemCollection> getAllModelProfiles() {
 		List<ItemCollection> result = new ArrayList<ItemCollection>();
 
-		String sQuery = "SELECT process FROM Entity AS process" + " JOIN process.textItems as v"
-				+ " JOIN process.textItems as n" + " WHERE process.type = 'WorkflowEnvironmentEntity'"
-				+ " AND n.itemName = 'txtname' AND n.itemValue = 'environment.profile'"
-				+ " AND v.itemName='$modelversion' " + " ORDER BY v.itemValue DESC";
+		EntityQuery query = new EntityQuery("process").type("WorkflowEnvironmentEntity")
+				.textItem("txtname", "environment.profile").orderByTextItem(WorkflowService.MODELVERSION, false);
 
-		Collection<ItemCollection> col = entityService.findAllEntities(sQuery, 0, -1);
+		Collection<ItemCollection> col = entityService.findAllEntities(query, 0, -1);
 		for (ItemCollection ic : col) {
 			result.add(ic);
 		}
@@ -602,12 +623,10 @@ public class ModelService implements Model, ModelServiceRemote {
 	public List<ItemCollection> getAllProcessEntitiesByGroup(String aGroup, String aversion) {
 		ArrayList<ItemCollection> processList = new ArrayList<ItemCollection>();
 
-		String sQuery = "SELECT DISTINCT process FROM Entity AS process " + " JOIN process.textItems AS t2"
-				+ " JOIN process.integerItems AS t3" + " WHERE process.type= 'ProcessEntity'"
-				+ " AND t2.itemName = 'txtworkflowgroup' " + " AND t2.itemValue = '" + aGroup + "' "
-				+ " AND t3.itemName = 'numprocessid'" + " ORDER BY t3.itemValue asc";
+		EntityQuery query = new EntityQuery("process").type("ProcessEntity").textItem("txtworkflowgroup", aGroup)
+				.orderByIntegerItem("numprocessid", true);
 
-		Collection<ItemCollection> col = entityService.findAllEntities(sQuery, 0, -1);
+		Collection<ItemCollection> col = entityService.findAllEntities(query, 0, -1);
 
 		for (ItemCollection aworkitem : col) {
 			// test if version matches
@@ -717,6 +736,7 @@ public class ModelService implements Model, ModelServiceRemote {
 					logger.warning("[ModelService] importModel: unsported entity type=" + sType + "!");
 			}
 
+			updateModelCache(sModelVersion, true);
 			logger.info("[ModelService] " + ecol.getEntity().length + " model entries sucessfull imported");
 		}
 	}
@@ -774,9 +794,139 @@ public class ModelService implements Model, ModelServiceRemote {
 			}
 		}
 
+		updateModelCache(modelVersion, true);
 		logger.fine("update finished! ");
 		logger.info("imported BPMN model $modelversion=" + modelVersion);
 
 	}
 
+	/**
+	 * Returns the CachedModel for a given model version. If the model version
+	 * is not yet cached the method loads all model entities of this version
+	 * and adds the new CachedModel into the ModelCache. The method returns
+	 * null if no model entities exist for the given version.
+	 * <p>
+	 * If the model version was changed by the current transaction, the model
+	 * is not read from the ModelCache and not added into the ModelCache,
+	 * because the changes are not yet committed (see updateModelCache). A
+	 * loaded model is also not added if the ModelCache was changed during the
+	 * load.
+	 * 
+	 * @param modelVersion
+	 * @return CachedModel or null
+	 */
+	private CachedModel getCachedModel(String modelVersion) {
+		if (modelCache == null || modelVersion == null || modelVersion.isEmpty())
+			return null;
+		Map<String, CachedModel> changes = getModelChanges(false);
+		if (changes != null && (changes.containsKey(modelVersion) || changes.containsKey(null))) {
+			CachedModel model = changes.get(modelVersion);
+			return (model != null) ? model : loadModel(modelVersion);
+		}
+		// the generation is read before the model is loaded, so a model loaded
+		// before a concurrent change was published is not cached
+		long generation = modelCache.getGeneration();
+		CachedModel model = modelCache.getModel(modelVersion);
+		if (model == null) {
+			model = loadModel(modelVersion);
+			if (model != null)
+				modelCache.putModel(model, generation);
+		}
+		return model;
+	}
+
+	/**
+	 * Loads all model entities of a given model version with one single query.
+	 * 
+	 * @param modelVersion
+	 * @return new CachedModel or null if no model entities exist
+	 */
+	private CachedModel loadModel(String modelVersion) {
+		logger.fine("load $modelversion: " + modelVersion + "...");
+		EntityQuery query = new EntityQuery().type("ProcessEntity", "ActivityEntity", "WorkflowEnvironmentEntity")
+				.textItem(WorkflowService.MODELVERSION, modelVersion);
+		List<ItemCollection> col = entityService.findAllEntities(query, 0, -1);
+		CachedModel model = new CachedModel(modelVersion, col);
+		if (model.isEmpty())
+			return null;
+		return model;
+	}
+
+	/**
+	 * Updates the ModelCache after a model version was changed. If reload is
+	 * true, the model version is reloaded. Otherwise the model version is
+	 * removed from the cache. If modelVersion is null all model versions will
+	 * be removed.
+	 * <p>
+	 * Because the changes are not visible for other transactions before the
+	 * current transaction is committed, the model version is only removed from
+	 * the cache during the transaction. The reloaded model is collected in a
+	 * resource of the transaction and published by a synchronization after
+	 * the transaction was committed. In case of a rollback the model version
+	 * is removed from the cache again, so a model loaded by a concurrent
+	 * transaction in the meantime is replaced.
+	 * 
+	 * @param modelVersion
+	 * @param reload
+	 */
+	private void updateModelCache(final String modelVersion, boolean reload) {
+		if (modelCache == null)
+			return;
+
+		modelCache.invalidate(modelVersion);
+		Map<String, CachedModel> changes = getModelChanges(true);
+		if (changes == null) {
+			// no active transaction - the changes are already committed
+			if (reload && modelVersion != null)
+				modelCache.putModel(loadModel(modelVersion));
+			return;
+		}
+		changes.put(modelVersion, (reload && modelVersion != null) ? loadModel(modelVersion) : null);
+	}
+
+	/**
+	 * Returns the model versions changed by the current transaction together
+	 * with the reloaded models. If create is true and no changes exist yet, a
+	 * new map is registered as a resource of the transaction together with a
+	 * synchronization to update the ModelCache after completion.
+	 * 
+	 * @param create
+	 * @return map of changed model versions or null if no transaction is
+	 *         active
+	 */
+	@SuppressWarnings("unchecked")
+	private Map<String, CachedModel> getModelChanges(boolean create) {
+		if (txRegistry == null || txRegistry.getTransactionKey() == null)
+			return null;
+		Map<String, CachedModel> changes = (Map<String, CachedModel>) txRegistry.getResource(MODEL_CHANGES);
+		if (changes != null || !create)
+			return changes;
+
+		final Map<String, CachedModel> newChanges = new LinkedHashMap<String, CachedModel>();
+		final ModelCache cache = modelCache;
+		try {
+			txRegistry.registerInterposedSynchronization(new Synchronization() {
+				@Override
+				public void beforeCompletion() {
+				}
+
+				@Override
+				public void afterCompletion(int status) {
+					for (Map.Entry<String, CachedModel> change : newChanges.entrySet()) {
+						if (status == Status.STATUS_COMMITTED && change.getValue() != null)
+							cache.putModel(change.getValue());
+						else
+							cache.invalidate(change.getKey());
+					}
+				}
+			});
+		} catch (IllegalStateException e) {
+			// transaction is already completing
+			logger.fine("unable to register ModelCache synchronization: " + e.getMessage());
+			return null;
+		}
+		txRegistry.putResource(MODEL_CHANGES, newChanges);
+		return newChanges;
+	}
+
 }
@@ -0,0 +1,288 @@
+/*******************************************************************************
+ *  Imixs Workflow 
+ *  Copyright (C) 2001, 2011 Imixs Software Solutions GmbH,  
+ *  http://www.imixs.com
+ *  
+ *  This program is free software; you can redistribute it and/or 
+ *  modify it under the terms of the GNU General Public License 
+ *  as published by the Free Software Foundation; either version 2 
+ *  of the License, or (at your option) any later version.
+ *  
+ *  This program is distributed in the hope that it will be useful, 
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU 
+ *  General Public License for more details.
+ *  
+ *  You can receive a copy of the GNU General Public
+ *  License at http://www.gnu.org/licenses/gpl.html
+ *  
+ *  Project: 
+ *  	http://www.imixs.org
+ *  	http://java.net/projects/imixs-workflow
+ *  
+ *  Contributors:  
+ *  	Imixs Software Solutions GmbH - initial API and implementation
+ *  	Ralph Soika - Software Developer
+ *******************************************************************************/
+
+package org.imixs.workflow.jee.ejb;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.LocalBean;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.imixs.workflow.ItemCollection;
+import org.imixs.workflow.Plugin;
+import org.imixs.workflow.PluginMonitor;
+import org.imixs.workflow.WorkflowKernel;
+
+/**
+ * The PluginMetrics is a singleton EJB collecting the invocations, errors and
+ * latencies of the plugins run by the WorkflowService. The bean is registered
+ * as a PluginMonitor to each WorkflowKernel created by the WorkflowService.
+ * <p>
+ * The statistics are collected per plugin class, per event
+ * ('processid.activityid') and per model version. Each statistics is
+ * published as a MXBean to the platform MBeanServer:
+ * 
+ * <pre>
+ * org.imixs.workflow:type=PluginMetrics
+ * org.imixs.workflow:type=PluginMetrics,group=plugin,name="org.imixs.workflow.plugins.AccessPlugin"
+ * org.imixs.workflow:type=PluginMetrics,group=event,name="1000.10"
+ * org.imixs.workflow:type=PluginMetrics,group=modelversion,name="1.0.0"
+ * </pre>
+ * 
+ * The counters are lock free and can stay enabled in production. All counters
+ * can be reset by the method reset() of the bean or the MXBean
+ * 'type=PluginMetrics'.
+ * 
+ * @see org.imixs.workflow.jee.ejb.PluginStatistics
+ * @author rsoika
+ * 
+ */
+@Singleton
+@Startup
+@LocalBean
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+public class PluginMetrics implements PluginMonitor {
+
+	public static final String OBJECT_NAME = "org.imixs.workflow:type=PluginMetrics";
+
+	static final String GROUP_PLUGIN = "plugin";
+	static final String GROUP_EVENT = "event";
+	static final String GROUP_MODELVERSION = "modelversion";
+
+	private final ConcurrentMap<String, PluginStatistics> plugins = new ConcurrentHashMap<String, PluginStatistics>();
+	private final ConcurrentMap<String, PluginStatistics> events = new ConcurrentHashMap<String, PluginStatistics>();
+	private final ConcurrentMap<String, PluginStatistics> modelVersions = new ConcurrentHashMap<String, PluginStatistics>();
+
+	private volatile MBeanServer mbeanServer = null;
+
+	private static Logger logger = Logger.getLogger(PluginMetrics.class.getName());
+
+	/**
+	 * Registers the PluginMetrics to the platform MBeanServer
+	 */
+	@PostConstruct
+	void init() {
+		register(ManagementFactory.getPlatformMBeanServer());
+	}
+
+	/**
+	 * Unregisters all MXBeans
+	 */
+	@PreDestroy
+	void destroy() {
+		unregister();
+	}
+
+	/**
+	 * Registers the PluginMetrics and all existing statistics to a
+	 * MBeanServer. Statistics created later are registered automatically.
+	 * 
+	 * @param server
+	 */
+	void register(MBeanServer server) {
+		mbeanServer = server;
+		registerMBean(new Control(this), new StringBuilder(OBJECT_NAME));
+		for (PluginStatistics statistics : plugins.values())
+			registerMBean(statistics, GROUP_PLUGIN);
+		for (PluginStatistics statistics : events.values())
+			registerMBean(statistics, GROUP_EVENT);
+		for (PluginStatistics statistics : modelVersions.values())
+			registerMBean(statistics, GROUP_MODELVERSION);
+	}
+
+	/**
+	 * Unregisters all MXBeans from the MBeanServer
+	 */
+	void unregister() {
+		MBeanServer server = mbeanServer;
+		mbeanServer = null;
+		if (server == null)
+			return;
+		try {
+			for (ObjectName name : server.queryNames(new ObjectName(OBJECT_NAME + ",*"), null))
+				server.unregisterMBean(name);
+		} catch (JMException e) {
+			logger.warning("[PluginMetrics] unable to unregister MBeans: " + e.getMessage());
+		}
+	}
+
+	@Override
+	public void pluginRun(Plugin plugin, ItemCollection documentActivity, long nanos, int status) {
+		boolean error = (status == Plugin.PLUGIN_ERROR);
+		getStatistics(plugins, GROUP_PLUGIN, plugin.getClass().getName()).addRun(nanos, error);
+		if (documentActivity != null) {
+			getStatistics(events, GROUP_EVENT, getEvent(documentActivity)).addRun(nanos, error);
+			getStatistics(modelVersions, GROUP_MODELVERSION,
+					documentActivity.getItemValueString(WorkflowKernel.MODELVERSION)).addRun(nanos, error);
+		}
+	}
+
+	@Override
+	public void pluginClose(Plugin plugin, ItemCollection documentActivity, long nanos, boolean error) {
+		getStatistics(plugins, GROUP_PLUGIN, plugin.getClass().getName()).addClose(nanos, error);
+		if (documentActivity != null) {
+			getStatistics(events, GROUP_EVENT, getEvent(documentActivity)).addClose(nanos, error);
+			getStatistics(modelVersions, GROUP_MODELVERSION,
+					documentActivity.getItemValueString(WorkflowKernel.MODELVERSION)).addClose(nanos, error);
+		}
+	}
+
+	/**
+	 * Returns the statistics of a plugin class or null if the plugin was not
+	 * yet called.
+	 * 
+	 * @param pluginClass
+	 * @return PluginStatistics or null
+	 */
+	public PluginStatistics getPluginStatistics(String pluginClass) {
+		return plugins.get(pluginClass);
+	}
+
+	/**
+	 * Returns the statistics of an event or null if the event was not yet
+	 * processed.
+	 * 
+	 * @param processID
+	 * @param activityID
+	 * @return PluginStatistics or null
+	 */
+	public PluginStatistics getEventStatistics(int processID, int activityID) {
+		return events.get(processID + "." + activityID);
+	}
+
+	/**
+	 * Returns the statistics of a model version or null if the model version
+	 * was not yet processed.
+	 * 
+	 * @param modelVersion
+	 * @return PluginStatistics or null
+	 */
+	public PluginStatistics getModelVersionStatistics(String modelVersion) {
+		return modelVersions.get(modelVersion);
+	}
+
+	/**
+	 * Resets all statistics
+	 */
+	public void reset() {
+		for (PluginStatistics statistics : plugins.values())
+			statistics.reset();
+		for (PluginStatistics statistics : events.values())
+			statistics.reset();
+		for (PluginStatistics statistics : modelVersions.values())
+			statistics.reset();
+	}
+
+	private static String getEvent(ItemCollection documentActivity) {
+		return documentActivity.getItemValueInteger("numprocessid") + "."
+				+ documentActivity.getItemValueInteger("numactivityid");
+	}
+
+	/**
+	 * Returns the statistics for a given name. A new statistics is created and
+	 * registered to the MBeanServer if the name is not yet known.
+	 */
+	private PluginStatistics getStatistics(ConcurrentMap<String, PluginStatistics> map, String group,
+			String name) {
+		PluginStatistics statistics = map.get(name);
+		if (statistics == null) {
+			statistics = new PluginStatistics(name);
+			PluginStatistics existing = map.putIfAbsent(name, statistics);
+			if (existing != null)
+				return existing;
+			registerMBean(statistics, group);
+		}
+		return statistics;
+	}
+
+	private void registerMBean(PluginStatistics statistics, String group) {
+		registerMBean(statistics, new StringBuilder(OBJECT_NAME).append(",group=").append(group).append(",name=")
+				.append(ObjectName.quote(statistics.getName())));
+	}
+
+	private void registerMBean(Object mbean, StringBuilder objectName) {
+		MBeanServer server = mbeanServer;
+		if (server == null)
+			return;
+		try {
+			ObjectName name = new ObjectName(objectName.toString());
+			if (!server.isRegistered(name)) {
+				server.registerMBean(mbean, name);
+				if (logger.isLoggable(Level.FINE))
+					logger.fine("[PluginMetrics] registered MBean '" + objectName + "'");
+			}
+		} catch (JMException e) {
+			logger.warning("[PluginMetrics] unable to register MBean '" + objectName + "': " + e.getMessage());
+		}
+	}
+
+	/**
+	 * The MXBean 'type=PluginMetrics'
+	 */
+	public static class Control implements PluginMetricsMXBean {
+		private final PluginMetrics metrics;
+
+		Control(PluginMetrics metrics) {
+			this.metrics = metrics;
+		}
+
+		@Override
+		public String[] getPlugins() {
+			return metrics.plugins.keySet().toArray(new String[0]);
+		}
+
+		@Override
+		public String[] getEvents() {
+			return metrics.events.keySet().toArray(new String[0]);
+		}
+
+		@Override
+		public String[] getModelVersions() {
+			return metrics.modelVersions.keySet().toArray(new String[0]);
+		}
+
+		@Override
+		public void reset() {
+			metrics.reset();
+		}
+	}
+}
@@ -0,0 +1,59 @@
+/*******************************************************************************
+ *  Imixs Workflow 
+ *  Copyright (C) 2001, 2011 Imixs Software Solutions GmbH,  
+ *  http://www.imixs.com
+ *  
+ *  This program is free software; you can redistribute it and/or 
+ *  modify it under the terms of the GNU General Public License 
+ *  as published by the Free Software Foundation; either version 2 
+ *  of the License, or (at your option) any later version.
+ *  
+ *  This program is distributed in the hope that it will be useful, 
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU 
+ *  General Public License for more details.
+ *  
+ *  You can receive a copy of the GNU General Public
+ *  License at http://www.gnu.org/licenses/gpl.html
+ *  
+ *  Project: 
+ *  	http://www.imixs.org
+ *  	http://java.net/projects/imixs-workflow
+ *  
+ *  Contributors:  
+ *  	Imixs Software Solutions GmbH - initial API and implementation
+ *  	Ralph Soika - Software Developer
+ *******************************************************************************/
+
+package org.imixs.workflow.jee.ejb;
+
+/**
+ * Management interface of the PluginMetrics bean.
+ * 
+ * @see org.imixs.workflow.jee.ejb.PluginMetrics
+ * @author rsoika
+ * 
+ */
+public interface PluginMetricsMXBean {
+
+	/**
+	 * Returns the class names of all observed plugins
+	 */
+	public String[] getPlugins();
+
+	/**
+	 * Returns all observed events in the format 'processid.activityid'
+	 */
+	public String[] getEvents();
+
+	/**
+	 * Returns all observed model versions
+	 */
+	public String[] getModelVersions();
+
+	/**
+	 * Resets the statistics of all plugins, events and model versions
+	 */
+	public void reset();
+
+}
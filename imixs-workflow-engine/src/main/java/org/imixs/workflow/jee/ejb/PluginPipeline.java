@@ -0,0 +1,131 @@
+/*******************************************************************************
+ *  Imixs Workflow 
+ *  Copyright (C) 2001, 2011 Imixs Software Solutions GmbH,  
+ *  http://www.imixs.com
+ *  
+ *  This program is free software; you can redistribute it and/or 
+ *  modify it under the terms of the GNU General Public License 
+ *  as published by the Free Software Foundation; either version 2 
+ *  of the License, or (at your option) any later version.
+ *  
+ *  This program is distributed in the hope that it will be useful, 
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU 
+ *  General Public License for more details.
+ *  
+ *  You can receive a copy of the GNU General Public
+ *  License at http://www.gnu.org/licenses/gpl.html
+ *  
+ *  Project: 
+ *  	http://www.imixs.org
+ *  	http://java.net/projects/imixs-workflow
+ *  
+ *  Contributors:  
+ *  	Imixs Software Solutions GmbH - initial API and implementation
+ *  	Ralph Soika - Software Developer
+ *******************************************************************************/
+
+package org.imixs.workflow.jee.ejb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+
+import org.imixs.workflow.ItemCollection;
+import org.imixs.workflow.Plugin;
+
+/**
+ * A PluginPipeline holds the resolved environment.profile and the ordered list
+ * of plugin classes defined by the property 'txtPlugins' for one specific
+ * $modelversion. The pipeline is computed once by the WorkflowService and
+ * cached in the ModelCache.
+ * <p>
+ * A PluginPipeline does not hold plugin instances because plugins are
+ * stateful. For each plugin class the pipeline stores if the plugin is
+ * provided as a CDI bean or need to be instantiated by its class.
+ * 
+ * @see org.imixs.workflow.jee.ejb.WorkflowService
+ * @author rsoika
+ * 
+ */
+public class PluginPipeline {
+
+	private final String modelVersion;
+	private final ItemCollection profile;
+	private final List<Entry> entries;
+
+	/**
+	 * Creates a new PluginPipeline
+	 * 
+	 * @param modelVersion
+	 * @param profile
+	 *            - the environment.profile of the model version
+	 * @param entries
+	 *            - ordered list of plugin entries
+	 */
+	public PluginPipeline(String modelVersion, ItemCollection profile, List<Entry> entries) {
+		this.modelVersion = modelVersion;
+		this.profile = copyOf(profile);
+		this.entries = Collections.unmodifiableList(new ArrayList<Entry>(entries));
+	}
+
+	public String getModelVersion() {
+		return modelVersion;
+	}
+
+	/**
+	 * Returns a copy of the environment.profile
+	 * 
+	 * @return
+	 */
+	public ItemCollection getProfile() {
+		return copyOf(profile);
+	}
+
+	/**
+	 * Returns the ordered list of plugin entries
+	 * 
+	 * @return unmodifiable list
+	 */
+	public List<Entry> getEntries() {
+		return entries;
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static ItemCollection copyOf(ItemCollection entity) {
+		ItemCollection copy = new ItemCollection();
+		for (Map.Entry<String, List<Object>> item : entity.getAllItems().entrySet()) {
+			copy.replaceItemValue(item.getKey(), new Vector(item.getValue()));
+		}
+		return copy;
+	}
+
+	/**
+	 * A single plugin definition of a PluginPipeline.
+	 */
+	public static class Entry {
+		private final Class<? extends Plugin> pluginClass;
+		private final boolean cdiBean;
+
+		public Entry(Class<? extends Plugin> pluginClass, boolean cdiBean) {
+			this.pluginClass = pluginClass;
+			this.cdiBean = cdiBean;
+		}
+
+		public Class<? extends Plugin> getPluginClass() {
+			return pluginClass;
+		}
+
+		/**
+		 * Returns true if the plugin is provided as a CDI bean
+		 * 
+		 * @return
+		 */
+		public boolean isCdiBean() {
+			return cdiBean;
+		}
+	}
+
+}
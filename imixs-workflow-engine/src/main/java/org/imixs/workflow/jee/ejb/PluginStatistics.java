@@ -0,0 +1,240 @@
+/*******************************************************************************
+ *  Imixs Workflow 
+ *  Copyright (C) 2001, 2011 Imixs Software Solutions GmbH,  
+ *  http://www.imixs.com
+ *  
+ *  This program is free software; you can redistribute it and/or 
+ *  modify it under the terms of the GNU General Public License 
+ *  as published by the Free Software Foundation; either version 2 
+ *  of the License, or (at your option) any later version.
+ *  
+ *  This program is distributed in the hope that it will be useful, 
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU 
+ *  General Public License for more details.
+ *  
+ *  You can receive a copy of the GNU General Public
+ *  License at http://www.gnu.org/licenses/gpl.html
+ *  
+ *  Project: 
+ *  	http://www.imixs.org
+ *  	http://java.net/projects/imixs-workflow
+ *  
+ *  Contributors:  
+ *  	Imixs Software Solutions GmbH - initial API and implementation
+ *  	Ralph Soika - Software Developer
+ *******************************************************************************/
+
+package org.imixs.workflow.jee.ejb;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The PluginStatistics collect the invocations, errors and the latencies of
+ * the plugin methods run() and close(). The statistics are collected by the
+ * PluginMetrics bean per plugin class, per event and per model version.
+ * <p>
+ * The counters are lock free, so the statistics can be updated by concurrent
+ * processing threads. The latencies are counted in a histogram with
+ * exponential buckets (1, 2, 4, 8... microseconds). So a percentile is
+ * returned as the upper bound of the corresponding bucket.
+ * 
+ * @see org.imixs.workflow.jee.ejb.PluginMetrics
+ * @author rsoika
+ * 
+ */
+public class PluginStatistics implements PluginStatisticsMXBean {
+
+	private final String name;
+	private final Histogram runHistogram = new Histogram();
+	private final Histogram closeHistogram = new Histogram();
+	private final AtomicLong errors = new AtomicLong();
+
+	public PluginStatistics(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Adds a call of the method run()
+	 * 
+	 * @param nanos
+	 *            - elapsed time in nanoseconds
+	 * @param error
+	 *            - true if the plugin failed
+	 */
+	public void addRun(long nanos, boolean error) {
+		runHistogram.add(nanos);
+		if (error)
+			errors.incrementAndGet();
+	}
+
+	/**
+	 * Adds a call of the method close()
+	 * 
+	 * @param nanos
+	 *            - elapsed time in nanoseconds
+	 * @param error
+	 *            - true if the plugin failed
+	 */
+	public void addClose(long nanos, boolean error) {
+		closeHistogram.add(nanos);
+		if (error)
+			errors.incrementAndGet();
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public long getInvocations() {
+		return runHistogram.getCount();
+	}
+
+	@Override
+	public long getErrors() {
+		return errors.get();
+	}
+
+	@Override
+	public double getRunMeanMicros() {
+		return runHistogram.getMeanMicros();
+	}
+
+	@Override
+	public long getRunMaxMicros() {
+		return runHistogram.getMaxMicros();
+	}
+
+	@Override
+	public long getRunPercentile50Micros() {
+		return runHistogram.getPercentileMicros(0.5);
+	}
+
+	@Override
+	public long getRunPercentile95Micros() {
+		return runHistogram.getPercentileMicros(0.95);
+	}
+
+	@Override
+	public long getRunPercentile99Micros() {
+		return runHistogram.getPercentileMicros(0.99);
+	}
+
+	@Override
+	public long[] getRunHistogram() {
+		return runHistogram.getBuckets();
+	}
+
+	@Override
+	public long getCloseCount() {
+		return closeHistogram.getCount();
+	}
+
+	@Override
+	public double getCloseMeanMicros() {
+		return closeHistogram.getMeanMicros();
+	}
+
+	@Override
+	public long getCloseMaxMicros() {
+		return closeHistogram.getMaxMicros();
+	}
+
+	@Override
+	public long getClosePercentile99Micros() {
+		return closeHistogram.getPercentileMicros(0.99);
+	}
+
+	@Override
+	public long[] getCloseHistogram() {
+		return closeHistogram.getBuckets();
+	}
+
+	@Override
+	public void reset() {
+		runHistogram.reset();
+		closeHistogram.reset();
+		errors.set(0);
+	}
+
+	/**
+	 * Lock free latency histogram with exponential buckets. The bucket i
+	 * counts latencies lower than 2^i microseconds.
+	 */
+	static class Histogram {
+		static final int BUCKETS = 40;
+
+		private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong sum = new AtomicLong();
+		private final AtomicLong max = new AtomicLong();
+
+		void add(long nanos) {
+			if (nanos < 0)
+				nanos = 0;
+			long micros = nanos / 1000;
+			int i = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+			buckets.incrementAndGet(i);
+			count.incrementAndGet();
+			sum.addAndGet(nanos);
+			long current = max.get();
+			while (nanos > current && !max.compareAndSet(current, nanos)) {
+				current = max.get();
+			}
+		}
+
+		long getCount() {
+			return count.get();
+		}
+
+		double getMeanMicros() {
+			long n = count.get();
+			if (n == 0)
+				return 0;
+			return sum.get() / 1000.0 / n;
+		}
+
+		long getMaxMicros() {
+			return max.get() / 1000;
+		}
+
+		/**
+		 * Returns the upper bound of the bucket containing the given
+		 * percentile. The value is never greater than the max latency.
+		 */
+		long getPercentileMicros(double percentile) {
+			long[] values = getBuckets();
+			long n = 0;
+			for (long value : values)
+				n += value;
+			if (n == 0)
+				return 0;
+			long rank = (long) Math.ceil(n * percentile);
+			long cumulated = 0;
+			for (int i = 0; i < values.length; i++) {
+				cumulated += values[i];
+				if (cumulated >= rank)
+					return Math.min(1L << i, getMaxMicros());
+			}
+			return getMaxMicros();
+		}
+
+		long[] getBuckets() {
+			long[] result = new long[BUCKETS];
+			for (int i = 0; i < BUCKETS; i++)
+				result[i] = buckets.get(i);
+			return result;
+		}
+
+		void reset() {
+			for (int i = 0; i < BUCKETS; i++)
+				buckets.set(i, 0);
+			count.set(0);
+			sum.set(0);
+			max.set(0);
+		}
+	}
+}
@@ -0,0 +1,92 @@
+/*******************************************************************************
+ *  Imixs Workflow 
+ *  Copyright (C) 2001, 2011 Imixs Software Solutions GmbH,  
+ *  http://www.imixs.com
+ *  
+ *  This program is free software; you can redistribute it and/or 
+ *  modify it under the terms of the GNU General Public License 
+ *  as published by the Free Software Foundation; either version 2 
+ *  of the License, or (at your option) any later version.
+ *  
+ *  This program is distributed in the hope that it will be useful, 
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU 
+ *  General Public License for more details.
+ *  
+ *  You can receive a copy of the GNU General Public
+ *  License at http://www.gnu.org/licenses/gpl.html
+ *  
+ *  Project: 
+ *  	http://www.imixs.org
+ *  	http://java.net/projects/imixs-workflow
+ *  
+ *  Contributors:  
+ *  	Imixs Software Solutions GmbH - initial API and implementation
+ *  	Ralph Soika - Software Developer
+ *******************************************************************************/
+
+package org.imixs.workflow.jee.ejb;
+
+/**
+ * Management interface of the PluginStatistics published by the PluginMetrics
+ * bean. All latencies are provided in microseconds.
+ * 
+ * @see org.imixs.workflow.jee.ejb.PluginMetrics
+ * @author rsoika
+ * 
+ */
+public interface PluginStatisticsMXBean {
+
+	/**
+	 * Returns the name of the statistics. This is the plugin class name, the
+	 * event ('processid.activityid') or the model version.
+	 */
+	public String getName();
+
+	/**
+	 * Returns the number of calls of the plugin method run()
+	 */
+	public long getInvocations();
+
+	/**
+	 * Returns the number of plugin errors. An error is a result
+	 * PLUGIN_ERROR or an exception thrown by the method run() or close().
+	 */
+	public long getErrors();
+
+	public double getRunMeanMicros();
+
+	public long getRunMaxMicros();
+
+	public long getRunPercentile50Micros();
+
+	public long getRunPercentile95Micros();
+
+	public long getRunPercentile99Micros();
+
+	/**
+	 * Returns the latency histogram of the method run(). The value at index i
+	 * is the number of calls with a latency lower than 2^i microseconds and
+	 * not lower than 2^(i-1) microseconds.
+	 */
+	public long[] getRunHistogram();
+
+	public long getCloseCount();
+
+	public double getCloseMeanMicros();
+
+	public long getCloseMaxMicros();
+
+	public long getClosePercentile99Micros();
+
+	/**
+	 * Returns the latency histogram of the method close()
+	 */
+	public long[] getCloseHistogram();
+
+	/**
+	 * Resets all counters
+	 */
+	public void reset();
+
+}
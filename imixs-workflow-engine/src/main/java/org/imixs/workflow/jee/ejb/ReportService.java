@@ -33,6 +33,7 @@ import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -107,15 +108,9 @@ public class ReportService implements ReportServiceRemote {
 	 * access for.
 	 */
 	public List<ItemCollection> getReportList() {
-		String sQuery = null;
-		sQuery = "SELECT";
-		sQuery += " wi FROM Entity as wi "
-				+ " JOIN wi.textItems t "
-				+ " WHERE wi.type = 'ReportEntity' "
-				+ " AND t.itemName='txtname' "
-				+ " ORDER BY t.itemValue ASC";
+		EntityQuery query = new EntityQuery("wi").type("ReportEntity").orderByTextItem("txtname", true);
 
-		List<ItemCollection> col = entityService.findAllEntities(sQuery, 0, -1);
+		List<ItemCollection> col = entityService.findAllEntities(query, 0, -1);
 
 		return col;
 	}
@@ -198,7 +193,10 @@ public class ReportService implements ReportServiceRemote {
 		if (maxcount == 0)
 			maxcount = -1;
 
-		// replace params in query statement
+		// replace params in query statement. A quoted param ('?key') is bound
+		// as a query parameter, so the statement does not change with the
+		// param values
+		Map<String, Object> queryParams = new HashMap<String, Object>();
 		if (params != null) {
 			Set<String> keys = params.keySet();
 			Iterator<String> iter = keys.iterator();
@@ -208,6 +206,11 @@ public class ReportService implements ReportServiceRemote {
 				// test if key is contained in query
 				if (query.indexOf("?" + sKeyName) > -1) {
 					String sParamValue = params.get(sKeyName);
+					String sParamName = "param" + queryParams.size();
+					if (query.indexOf("'?" + sKeyName + "'") > -1) {
+						query = query.replace("'?" + sKeyName + "'", ":" + sParamName);
+						queryParams.put(sParamName, sParamValue);
+					}
 					query = query.replace("?" + sKeyName, sParamValue);
 					logger.fine("executeReport set param " + sKeyName + "=" + sParamValue);
 				}
@@ -219,7 +222,7 @@ public class ReportService implements ReportServiceRemote {
 
 		// execute query
 		logger.fine("executeReport jpql=" + query);
-		List<ItemCollection> result = entityService.findAllEntities(query, startPos, maxcount);
+		List<ItemCollection> result = entityService.findAllEntities(query, queryParams, startPos, maxcount);
 
 		// test if a itemList is provided or defined in the reportEntity...
 		if (itemList == null) {
@@ -422,10 +425,11 @@ public class ReportService implements ReportServiceRemote {
 	private ItemCollection findReport(String aid) {
 		String sQuery = null;
 		sQuery = "SELECT";
-		sQuery += " wi FROM Entity as wi " + "JOIN wi.textItems as i " + "WHERE (wi.id='" + aid + "') OR "
-				+ "(i.itemName = 'txtname' " + "AND i.itemValue = '" + aid + "') " + " AND wi.type = 'ReportEntity'";
+		sQuery += " wi FROM Entity as wi " + "JOIN wi.textItems as i " + "WHERE (wi.id = :aid) OR "
+				+ "(i.itemName = 'txtname' " + "AND i.itemValue = :aid) " + " AND wi.type = 'ReportEntity'";
 
-		Collection<ItemCollection> col = entityService.findAllEntities(sQuery, 0, 1);
+		Collection<ItemCollection> col = entityService.findAllEntities(sQuery, Collections.singletonMap("aid", aid),
+				0, 1);
 		if (col.size() > 0)
 			return col.iterator().next();
 		else
@@ -0,0 +1,264 @@
+/*******************************************************************************
+ *  Imixs Workflow 
+ *  Copyright (C) 2001, 2011 Imixs Software Solutions GmbH,  
+ *  http://www.imixs.com
+ *  
+ *  This program is free software; you can redistribute it and/or 
+ *  modify it under the terms of the GNU General Public License 
+ *  as published by the Free Software Foundation; either version 2 
+ *  of the License, or (at your option) any later version.
+ *  
+ *  This program is distributed in the hope that it will be useful, 
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU 
+ *  General Public License for more details.
+ *  
+ *  You can receive a copy of the GNU General Public
+ *  License at http://www.gnu.org/licenses/gpl.html
+ *  
+ *  Project: 
+ *  	http://www.imixs.org
+ *  	http://java.net/projects/imixs-workflow
+ *  
+ *  Contributors:  
+ *  	Imixs Software Solutions GmbH - initial API and implementation
+ *  	Ralph Soika - Software Developer
+ *******************************************************************************/
+
+package org.imixs.workflow.jee.ejb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A TimingWheel holds the due times of a bounded number of entries in a
+ * hierarchical timing wheel with 3 levels of 64 slots. The first level
+ * covers 64 ticks, the second level 64*64 ticks and the third level 64*64*64
+ * ticks. An entry is added to the level covering its due time and is moved
+ * to the next lower level when the wheel reaches its slot. So the time to
+ * add or expire an entry does not depend on the number of entries.
+ * <p>
+ * An entry is identified by an id. Adding an entry with an existing id
+ * replaces the due time of this entry. Entries with a due time beyond the
+ * horizon of the wheel or exceeding the capacity are rejected.
+ * <p>
+ * The TimingWheel is not thread safe.
+ * 
+ * @see org.imixs.workflow.jee.ejb.WorkflowSchedulerWheel
+ * @author rsoika
+ * 
+ */
+class TimingWheel {
+
+	static final int SLOT_BITS = 6;
+	static final int SLOTS = 1 << SLOT_BITS;
+	static final int LEVELS = 3;
+
+	private static final int SLOT_MASK = SLOTS - 1;
+
+	private final long tick;
+	private final int capacity;
+	private final List<List<List<Entry>>> wheels = new ArrayList<List<List<Entry>>>(LEVELS);
+	private final List<Entry> expired = new ArrayList<Entry>();
+	private final Map<String, Entry> entries = new HashMap<String, Entry>();
+	private long currentTick;
+
+	/**
+	 * Creates a new TimingWheel
+	 * 
+	 * @param tick
+	 *            - duration of a tick in milliseconds
+	 * @param capacity
+	 *            - maximum number of entries
+	 * @param now
+	 *            - current time in milliseconds
+	 */
+	TimingWheel(long tick, int capacity, long now) {
+		this.tick = tick;
+		this.capacity = capacity;
+		this.currentTick = now / tick;
+		for (int level = 0; level < LEVELS; level++) {
+			List<List<Entry>> slots = new ArrayList<List<Entry>>(SLOTS);
+			for (int i = 0; i < SLOTS; i++) {
+				slots.add(new ArrayList<Entry>());
+			}
+			wheels.add(slots);
+		}
+	}
+
+	/**
+	 * Returns the maximum time in milliseconds after the current time an
+	 * entry can be added
+	 */
+	long getHorizon() {
+		return ((1L << (SLOT_BITS * LEVELS)) - 1) * tick;
+	}
+
+	/**
+	 * Returns the number of entries
+	 */
+	int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Returns true if the wheel contains an entry with the given id
+	 */
+	boolean contains(String id) {
+		return entries.containsKey(id);
+	}
+
+	/**
+	 * Adds an entry or replaces the due time of an existing entry. An entry
+	 * with a due time in the past expires with the next call of advance().
+	 * 
+	 * @param id
+	 * @param dueTime
+	 *            - due time in milliseconds
+	 * @return false if the due time is beyond the horizon or the capacity is
+	 *         exhausted
+	 */
+	boolean schedule(String id, long dueTime) {
+		// the entry expires after the tick containing the due time
+		long dueTick = dueTime / tick + 1;
+		Entry entry = entries.get(id);
+		if (entry != null) {
+			if (entry.dueTick == dueTick)
+				return true;
+			remove(entry);
+		} else if (entries.size() >= capacity) {
+			return false;
+		}
+		if (dueTick - currentTick >= (1L << (SLOT_BITS * LEVELS)))
+			return false;
+		entry = new Entry(id, dueTick);
+		entries.put(id, entry);
+		place(entry);
+		return true;
+	}
+
+	/**
+	 * Removes an entry
+	 * 
+	 * @param id
+	 * @return true if the entry was removed
+	 */
+	boolean cancel(String id) {
+		Entry entry = entries.get(id);
+		if (entry == null)
+			return false;
+		remove(entry);
+		return true;
+	}
+
+	/**
+	 * Removes all entries
+	 */
+	void clear() {
+		for (List<List<Entry>> slots : wheels) {
+			for (List<Entry> slot : slots) {
+				slot.clear();
+			}
+		}
+		expired.clear();
+		entries.clear();
+	}
+
+	/**
+	 * Advances the wheel to the given time and returns the ids of all expired
+	 * entries. The expired entries are removed from the wheel.
+	 * 
+	 * @param now
+	 *            - current time in milliseconds
+	 * @return list of ids
+	 */
+	List<String> advance(long now) {
+		List<String> result = new ArrayList<String>();
+		long nowTick = now / tick;
+		if (nowTick - currentTick >= (1L << (SLOT_BITS * LEVELS))) {
+			// the wheel was not advanced for a whole turn - all entries expire
+			result.addAll(entries.keySet());
+			clear();
+			currentTick = nowTick;
+			return result;
+		}
+
+		while (currentTick < nowTick) {
+			currentTick++;
+			// move the entries of the higher levels into the lower levels
+			if ((currentTick & SLOT_MASK) == 0) {
+				if (((currentTick >> SLOT_BITS) & SLOT_MASK) == 0)
+					cascade(2, (int) ((currentTick >> (2 * SLOT_BITS)) & SLOT_MASK));
+				cascade(1, (int) ((currentTick >> SLOT_BITS) & SLOT_MASK));
+			}
+			List<Entry> slot = wheels.get(0).get((int) (currentTick & SLOT_MASK));
+			Iterator<Entry> iter = slot.iterator();
+			while (iter.hasNext()) {
+				Entry entry = iter.next();
+				if (entry.dueTick <= currentTick) {
+					iter.remove();
+					entries.remove(entry.id);
+					result.add(entry.id);
+				}
+			}
+		}
+
+		// entries added with a due time in the past or moved by a cascade
+		// into the current tick
+		for (Entry entry : expired) {
+			result.add(entry.id);
+			entries.remove(entry.id);
+		}
+		expired.clear();
+		return result;
+	}
+
+	private void cascade(int level, int index) {
+		List<Entry> slot = wheels.get(level).get(index);
+		List<Entry> moved = new ArrayList<Entry>(slot);
+		slot.clear();
+		for (Entry entry : moved) {
+			place(entry);
+		}
+	}
+
+	/**
+	 * Adds an entry to the level and slot covering its due time
+	 */
+	private void place(Entry entry) {
+		long delta = entry.dueTick - currentTick;
+		if (delta <= 0) {
+			entry.slot = expired;
+		} else if (delta < SLOTS) {
+			entry.slot = wheels.get(0).get((int) (entry.dueTick & SLOT_MASK));
+		} else if (delta < SLOTS * SLOTS) {
+			entry.slot = wheels.get(1).get((int) ((entry.dueTick >> SLOT_BITS) & SLOT_MASK));
+		} else {
+			entry.slot = wheels.get(2).get((int) ((entry.dueTick >> (2 * SLOT_BITS)) & SLOT_MASK));
+		}
+		entry.slot.add(entry);
+	}
+
+	private void remove(Entry entry) {
+		entry.slot.remove(entry);
+		entries.remove(entry.id);
+	}
+
+	/**
+	 * An entry of the wheel
+	 */
+	private static class Entry {
+		final String id;
+		final long dueTick;
+		List<Entry> slot;
+
+		Entry(String id, long dueTick) {
+			this.id = id;
+			this.dueTick = dueTick;
+		}
+	}
+
+}
@@ -33,14 +33,20 @@ import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Vector;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.annotation.Resource;
 import javax.annotation.security.DeclareRoles;
 import javax.annotation.security.RunAs;
+import javax.ejb.AsyncResult;
+import javax.ejb.Asynchronous;
 import javax.ejb.EJB;
 import javax.ejb.LocalBean;
 import javax.ejb.ScheduleExpression;
@@ -91,6 +97,11 @@ public class WorkflowSchedulerService implements WorkflowSchedulerServiceRemote
 	final static public int OFFSET_DAYS = 3;
 	final static public int OFFSET_WORKDAYS = 4;
 
+	// index of the earliest due date of the scheduled activities
+	final static public String DUEDATE = "$scheduleddue";
+
+	private static final String[] DELAY_UNITS = { "seconds", "minutes", "hours", "days", "workdays" };
+
 	private static Logger logger = Logger.getLogger(WorkflowSchedulerService.class.getName());
 
 	@EJB
@@ -102,6 +113,9 @@ public class WorkflowSchedulerService implements WorkflowSchedulerServiceRemote
 	@EJB
 	ModelService modelService;
 
+	@EJB
+	WorkflowSchedulerWheel schedulerWheel;
+
 	@Resource
 	javax.ejb.TimerService timerService;
 
@@ -122,10 +136,8 @@ public class WorkflowSchedulerService implements WorkflowSchedulerServiceRemote
 	 */
 	public ItemCollection loadConfiguration() {
 		ItemCollection configItemCollection = null;
-		String sQuery = "SELECT config FROM Entity AS config " + " JOIN config.textItems AS t2"
-				+ " WHERE config.type = '" + TYPE + "'" + " AND t2.itemName = 'txtname'" + " AND t2.itemValue = '"
-				+ NAME + "'" + " ORDER BY t2.itemValue asc";
-		Collection<ItemCollection> col = entityService.findAllEntities(sQuery, 0, 1);
+		EntityQuery query = new EntityQuery("config").type(TYPE).textItem("txtname", NAME);
+		Collection<ItemCollection> col = entityService.findAllEntities(query, 0, 1);
 
 		if (col.size() > 0) {
 			configItemCollection = col.iterator().next();
@@ -253,6 +265,12 @@ public class WorkflowSchedulerService implements WorkflowSchedulerServiceRemote
 					+ " started: " + id);
 		}
 
+		// start or stop the timing wheel
+		if (configItemCollection.getItemValueBoolean("keyTimingWheel"))
+			schedulerWheel.start();
+		else
+			schedulerWheel.stop();
+
 		configItemCollection = saveConfiguration(configItemCollection);
 
 		return configItemCollection;
@@ -274,6 +292,7 @@ public class WorkflowSchedulerService implements WorkflowSchedulerServiceRemote
 			this.findTimer(id).cancel();
 			found = true;
 		}
+		schedulerWheel.stop();
 		if (found) {
 			Calendar calNow = Calendar.getInstance();
 			SimpleDateFormat dateFormatDE = new SimpleDateFormat("dd.MM.yy hh:mm:ss");
@@ -317,9 +336,40 @@ public class WorkflowSchedulerService implements WorkflowSchedulerServiceRemote
 	 * The logic is not the best one but it works. So we are open for any kind
 	 * of improvements
 	 * 
+	 * @see getDueDate
 	 * @return true if workitem is is due
 	 */
 	public static boolean workItemInDue(ItemCollection doc, ItemCollection docActivity) {
+		Date dateTimeCompare = getDueDate(doc, docActivity);
+		if (dateTimeCompare == null)
+			return false;
+		if (dateTimeCompare.before(new Date())) {
+			logger.finest("[WorkflowSchedulerService] " + doc.getItemValueString("$uniqueid") + " isInDue!");
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * This method computes the due date of a workitem (doc) for a scheduled
+	 * activity. The base date is determined by the keyScheduledBaseObject of
+	 * the activity entity and adjusted by the delay (numActivityDelay,
+	 * keyActivityDelayUnit).
+	 * 
+	 * @return due date or null if the workitem did not provide the base date
+	 *         or the activity entity is not valid
+	 */
+	public static Date getDueDate(ItemCollection doc, ItemCollection docActivity) {
+		return getDueDate(doc, docActivity, null);
+	}
+
+	/**
+	 * Computes the due date of a workitem for a scheduled activity. If the
+	 * parameter saveDate is provided the workitem is about to be saved and the
+	 * saveDate is used as the date of the last modification and - for a new
+	 * workitem - as the creation date (see updateDueDate).
+	 */
+	private static Date getDueDate(ItemCollection doc, ItemCollection docActivity, Date saveDate) {
 		try {
 			int iCompareType = -1;
 			int iOffsetUnit = -1;
@@ -337,84 +387,46 @@ public class WorkflowSchedulerService implements WorkflowSchedulerServiceRemote
 							+ docActivity.getItemValueInteger("numProcessID") + "."
 							+ docActivity.getItemValueInteger("numActivityID") + " : unsuported keyActivityDelayUnit="
 							+ sDelayUnit);
-					return false;
+					return null;
 				}
 
 			} catch (NumberFormatException nfe) {
 				logger.warning("[WorkflowSchedulerService] error parsing delay in ActivityEntity "
 						+ docActivity.getItemValueInteger("numProcessID") + "."
 						+ docActivity.getItemValueInteger("numActivityID") + " :" + nfe.getMessage());
-				return false;
+				return null;
 			}
 			// get activityDelay from Event
 			iOffset = docActivity.getItemValueInteger("numActivityDelay");
 
-			if ("1".equals(sDelayUnit))
-				sDelayUnit = "minutes";
-			if ("2".equals(sDelayUnit))
-				sDelayUnit = "hours";
-			if ("3".equals(sDelayUnit))
-				sDelayUnit = "days";
-			if ("4".equals(sDelayUnit))
-				sDelayUnit = "workdays";
-
-			logger.finest("[WorkflowSchedulerService] " + suniqueid + " offset =" + iOffset + " " + sDelayUnit);
+			if (logger.isLoggable(Level.FINEST))
+				logger.finest("[WorkflowSchedulerService] " + suniqueid + " offset =" + iOffset + " "
+						+ DELAY_UNITS[iOffsetUnit]);
 
 			iCompareType = Integer.parseInt(docActivity.getItemValueString("keyScheduledBaseObject"));
 
-			// get current time for compare....
-			Date dateTimeNow = Calendar.getInstance().getTime();
-
 			switch (iCompareType) {
 			// last process -
 			case 1: {
 				logger.finest("[WorkflowSchedulerService] " + suniqueid + ": CompareType = last process");
-
-				if (!doc.hasItem("timWorkflowLastAccess"))
-					return false;
-
 				dateTimeCompare = doc.getItemValueDate("timWorkflowLastAccess");
-				logger.finest("[WorkflowSchedulerService] " + suniqueid + ": timWorkflowLastAccess=" + dateTimeCompare);
-
-				// scheduled time
-				dateTimeCompare = adjustBaseDate(dateTimeCompare,iOffsetUnit, iOffset);
-
-				if (dateTimeCompare != null)
-					return dateTimeCompare.before(dateTimeNow);
-				else
-					return false;
+				break;
 			}
 
 			// last modification
 			case 2: {
 				logger.finest("[WorkflowSchedulerService] " + suniqueid + ": CompareType = last modify");
-
-				dateTimeCompare = doc.getItemValueDate("$modified");
-
-				logger.finest("[WorkflowSchedulerService] " + suniqueid + ": modified=" + dateTimeCompare);
-
-				dateTimeCompare = adjustBaseDate(dateTimeCompare,iOffsetUnit, iOffset);
-				
-				if (dateTimeCompare != null)
-					return dateTimeCompare.before(dateTimeNow);
-				else
-					return false;
+				dateTimeCompare = (saveDate != null ? saveDate : doc.getItemValueDate("$modified"));
+				break;
 			}
 
 			// creation
 			case 3: {
 				logger.finest("[WorkflowSchedulerService] " + suniqueid + ": CompareType = creation");
-
 				dateTimeCompare = doc.getItemValueDate("$created");
-				logger.fine("[WorkflowSchedulerService] " + suniqueid + ": doc.getCreated() =" + dateTimeCompare);
-
-				// Nein -> Creation date ist masstab
-				dateTimeCompare =adjustBaseDate(dateTimeCompare,iOffsetUnit, iOffset);
-				
-				if (dateTimeCompare != null)
-					return dateTimeCompare.before(dateTimeNow);
-				else
-					return false;
+				if (dateTimeCompare == null)
+					dateTimeCompare = saveDate;
+				break;
 			}
 
 			// field
@@ -422,41 +434,100 @@ public class WorkflowSchedulerService implements WorkflowSchedulerServiceRemote
 				String sNameOfField = docActivity.getItemValueString("keyTimeCompareField");
 				logger.finest(
 						"[WorkflowSchedulerService] " + suniqueid + ": CompareType = field: '" + sNameOfField + "'");
-
-				if (!doc.hasItem(sNameOfField)) {
-					logger.finest("[WorkflowSchedulerService] " + suniqueid + ": CompareType =" + sNameOfField
-							+ " no value found!");
-					return false;
-				}
-
 				dateTimeCompare = doc.getItemValueDate(sNameOfField);
-
-				logger.finest("[WorkflowSchedulerService] " + suniqueid + ": " + sNameOfField + "=" + dateTimeCompare);
-
-				dateTimeCompare =adjustBaseDate(dateTimeCompare,iOffsetUnit, iOffset);
-				if (dateTimeCompare != null) {
-					logger.finest("[WorkflowSchedulerService] " + suniqueid + ": Compare " + dateTimeCompare + " <-> "
-							+ dateTimeNow);
-
-					if (dateTimeCompare.before(dateTimeNow)) {
-						logger.finest("[WorkflowSchedulerService] " + suniqueid + " isInDue!");
-					}
-					return dateTimeCompare.before(dateTimeNow);
-				} else
-					return false;
+				break;
 			}
 			default:
-				return false;
+				return null;
 			}
 
+			logger.finest("[WorkflowSchedulerService] " + suniqueid + ": base date=" + dateTimeCompare);
+
+			// scheduled time
+			return adjustBaseDate(dateTimeCompare, iOffsetUnit, iOffset);
+
 		} catch (Exception e) {
 
 			e.printStackTrace();
-			return false;
+			return null;
 		}
 
 	}
 
+	/**
+	 * This method updates the property '$scheduleddue' of a workitem which is
+	 * about to be saved. The property holds the earliest due date of all
+	 * scheduled activities of the current process entity. If the workitem
+	 * provides no due date the property is removed.
+	 * <p>
+	 * The property is an index (type CalendarItem) so the scheduler selects
+	 * only the workitems in due. Because the EntityService updates the
+	 * property $modified during save, the current time is used as the date of
+	 * the last modification.
+	 * 
+	 * @param workitem
+	 * @param scheduledActivities
+	 *            - scheduled activities of the current process entity
+	 * @return true if the property was changed
+	 */
+	public static boolean updateDueDate(ItemCollection workitem, Collection<ItemCollection> scheduledActivities) {
+		return updateDueDate(workitem, scheduledActivities, new Date());
+	}
+
+	/**
+	 * This method updates the property '$scheduleddue' of a workitem. If the
+	 * parameter saveDate is null, the properties $modified and $created of the
+	 * workitem are used as the base date. The method is called by the
+	 * EntityService after these properties were updated.
+	 * 
+	 * @param workitem
+	 * @param scheduledActivities
+	 *            - scheduled activities of the current process entity
+	 * @param saveDate
+	 *            - date of the last modification or null
+	 * @return true if the property was changed
+	 */
+	public static boolean updateDueDate(ItemCollection workitem, Collection<ItemCollection> scheduledActivities,
+			Date saveDate) {
+		Date dueDate = null;
+		if (scheduledActivities != null) {
+			for (ItemCollection activity : scheduledActivities) {
+				Date date = getDueDate(workitem, activity, saveDate);
+				if (date != null && (dueDate == null || date.before(dueDate)))
+					dueDate = date;
+			}
+		}
+
+		Date oldDate = workitem.getItemValueDate(DUEDATE);
+		if (dueDate == null) {
+			if (!workitem.hasItem(DUEDATE))
+				return false;
+			workitem.removeItem(DUEDATE);
+			return true;
+		}
+		workitem.replaceItemValue(DUEDATE, dueDate);
+		return !dueDate.equals(oldDate);
+	}
+
+	/**
+	 * Returns the scheduled activities of a list of activity entities. An
+	 * scheduled activity is identified by the attribute
+	 * keyScheduledActivity="1"
+	 * 
+	 * @param activities
+	 * @return list of scheduled activities
+	 */
+	public static List<ItemCollection> getScheduledActivities(Collection<ItemCollection> activities) {
+		List<ItemCollection> result = new ArrayList<ItemCollection>();
+		if (activities != null) {
+			for (ItemCollection activity : activities) {
+				if ("1".equals(activity.getItemValueString("keyScheduledActivity")))
+					result.add(activity);
+			}
+		}
+		return result;
+	}
+
 	/**
 	 * This method adds workdays (MONDAY - FRIDAY) to a given calendar object.
 	 * If the number of days is negative than this method subtracts the working
@@ -560,17 +631,32 @@ public class WorkflowSchedulerService implements WorkflowSchedulerServiceRemote
 		try {
 			// get all model versions...
 			List<String> modelVersions = modelService.getAllModelVersions();
+			Map<String, List<ItemCollection>> scheduledActivities = new HashMap<String, List<ItemCollection>>();
+			List<String> dueDateIndex = new ArrayList<String>();
 			for (String version : modelVersions) {
 				logger.info("[WorkflowSchedulerService] processing ModelVersion: " + version);
 				// find scheduled Activities
 				Collection<ItemCollection> colScheduledActivities = findScheduledActivities(version);
 				logger.info("[WorkflowSchedulerService] " + colScheduledActivities.size()
 						+ " scheduled activityEntities found in ModelVersion: " + version);
-				// process all workitems for coresponding activities
 				for (ItemCollection aactivityEntity : colScheduledActivities) {
-					processWorkListByActivityEntity(aactivityEntity);
+					String key = version + "|" + aactivityEntity.getItemValueInteger("numprocessid");
+					List<ItemCollection> activities = scheduledActivities.get(key);
+					if (activities == null) {
+						activities = new ArrayList<ItemCollection>();
+						scheduledActivities.put(key, activities);
+					}
+					activities.add(aactivityEntity);
 				}
+				// rebuild the due date index if the scheduled activities have
+				// changed since the last run
+				dueDateIndex.add(updateDueDateIndex(configItemCollection, version, colScheduledActivities));
 			}
+			// remove model versions which no longer exist
+			configItemCollection.replaceItemValue("txtDueDateIndex", dueDateIndex);
+
+			// process all workitems in due
+			processWorkListInDue(scheduledActivities, configItemCollection);
 
 		} catch (Exception e) {
 			logger.severe("[WorkflowSchedulerService] error processing worklist: " + e.getMessage());
@@ -785,79 +871,389 @@ public class WorkflowSchedulerService implements WorkflowSchedulerServiceRemote
 	}
 
 	/**
-	 * This method processes all workitems for a specific processID. the
-	 * processID is identified by the activityEntity Object (numprocessid)
+	 * This method processes all workitems in due. The workitems are selected
+	 * by the index '$scheduleddue' which holds the earliest due date of the
+	 * scheduled activities of the current process entity. So only one query is
+	 * needed for each run. The result is read in pages (keyset pagination).
+	 * 
+	 * For each workitem the scheduled activities of its $modelversion and
+	 * $processid are verified. The first activity in due will be processed.
 	 * 
-	 * If the ActivityEntity has defined a EQL statement (attribute
-	 * txtscheduledview) then the method selects the workitems by this query.
-	 * Otherwise the method use the standard method getWorklistByProcessID()
+	 * The workitems of a page are partitioned by their $uniqueid and each
+	 * partition is processed by an asynchronous worker (numWorkers). So a
+	 * workitem is never processed by two workers concurrently. If the run
+	 * exceeds the maximum run duration (numMaxRunDuration in seconds) the
+	 * method stops after the current page and stores the $continuationtoken of
+	 * the last workitem in the property 'txtResumeToken'. The next run resumes
+	 * after this workitem.
 	 * 
+	 * The method updates the statistics of the run in the configuration.
 	 * 
 	 * @see http://blog.imixs.org/?p=155
 	 * 
-	 * @param aProcessID
+	 * @param scheduledActivities
+	 *            - scheduled activities grouped by '$modelversion|$processid'
+	 * @param configItemCollection
+	 *            - scheduler configuration
 	 * @throws Exception
 	 */
-	void processWorkListByActivityEntity(ItemCollection activityEntity) throws Exception {
+	void processWorkListInDue(Map<String, List<ItemCollection>> scheduledActivities,
+			ItemCollection configItemCollection) throws Exception {
+		long start = System.currentTimeMillis();
+		int workers = Math.max(1, configItemCollection.getItemValueInteger("numWorkers"));
+		long maxRunDuration = configItemCollection.getItemValueInteger("numMaxRunDuration") * 1000L;
+		int pageSize = entityService.getBatchSize();
+		if (pageSize <= 0)
+			pageSize = EntityService.DEFAULT_BATCH_SIZE;
+		String token = configItemCollection.getItemValueString("txtResumeToken");
+		if (token.isEmpty())
+			token = null;
+		else
+			logger.info("[WorkflowSchedulerService] resume after " + token);
+
+		EntityQuery query = new EntityQuery("wi").type("workitem").calendarItemBefore(DUEDATE, new Date());
+		logger.fine("[WorkflowSchedulerService] select: " + query);
+
+		long latency = 0;
+		long maxLatency = 0;
+		while (true) {
+			List<ItemCollection> worklist = entityService.findAllEntitiesAfter(query, token, pageSize);
+			if (worklist.isEmpty()) {
+				token = null;
+				break;
+			}
+
+			// select the activity in due and partition the workitems
+			List<List<ItemCollection>> partitions = new ArrayList<List<ItemCollection>>(workers);
+			for (int i = 0; i < workers; i++) {
+				partitions.add(new ArrayList<ItemCollection>());
+			}
+			for (ItemCollection workitem : worklist) {
+				token = workitem.getItemValueString(EntityService.CONTINUATIONTOKEN);
+				String sID = workitem.getItemValueString(EntityService.UNIQUEID);
+				List<ItemCollection> activities = scheduledActivities.get(workitem.getItemValueString(
+						WorkflowService.MODELVERSION) + "|" + workitem.getItemValueInteger(WorkflowService.PROCESSID));
+				if (activities == null) {
+					logger.fine("[WorkflowSchedulerService] workitem " + sID + " has no scheduled activities");
+					continue;
+				}
+				for (ItemCollection activityEntity : activities) {
+					// verify due date
+					if (workItemInDue(workitem, activityEntity)) {
+						int iActivityID = activityEntity.getItemValueInteger("numActivityID");
+						logger.fine("[WorkflowSchedulerService] workitem " + sID + " is in due for activity "
+								+ iActivityID);
+						workitem.replaceItemValue("$activityid", iActivityID);
+						partitions.get(getPartition(sID, workers)).add(workitem);
+						break;
+					}
+				}
+			}
 
-		// get processID
-		int iProcessID = activityEntity.getItemValueInteger("numprocessid");
-		int iActivityID = activityEntity.getItemValueInteger("numActivityID");
-		// get Modelversion
-		String sModelVersion = activityEntity.getItemValueString("$modelversion");
+			// process the partitions
+			List<ItemCollection> results = new ArrayList<ItemCollection>(workers);
+			if (workers == 1) {
+				results.add(processWorkList(partitions.get(0)));
+			} else {
+				List<Future<ItemCollection>> futures = new ArrayList<Future<ItemCollection>>(workers);
+				for (List<ItemCollection> partition : partitions) {
+					if (!partition.isEmpty())
+						futures.add(ctx.getBusinessObject(WorkflowSchedulerService.class)
+								.processWorkListAsynchronous(partition));
+				}
+				for (Future<ItemCollection> future : futures) {
+					results.add(future.get());
+				}
+			}
+			for (ItemCollection result : results) {
+				iProcessWorkItems += result.getItemValueInteger("numProcessed");
+				for (Object id : result.getItemValue("txtUnprocessed")) {
+					unprocessedIDs.add(id.toString());
+				}
+				latency += result.getItemValueLong("numLatency");
+				maxLatency = Math.max(maxLatency, result.getItemValueLong("numMaxLatency"));
+			}
 
-		logger.info("[WorkflowSchedulerService] processing " + iProcessID + "." + iActivityID + " (" + sModelVersion
-				+ ") ...");
+			if (worklist.size() < pageSize) {
+				token = null;
+				break;
+			}
+			if (maxRunDuration > 0 && System.currentTimeMillis() - start >= maxRunDuration) {
+				logger.info("[WorkflowSchedulerService] maximum run duration exceeded - next run resumes after "
+						+ token);
+				break;
+			}
+		}
 
-		// now we need to select by type, $ProcessID and by $modelVersion!
-		String sQuery = "SELECT wi FROM Entity as wi " + " JOIN wi.integerItems AS i " + " JOIN wi.textItems as t "
-				+ " WHERE wi.type='workitem' ";
-		sQuery += " AND i.itemName = '$processid' AND i.itemValue = '" + iProcessID + "'"
-				+ " AND t.itemName = '$modelversion' AND t.itemValue = '" + sModelVersion + "'";
+		// update statistic of the run
+		long duration = System.currentTimeMillis() - start;
+		int count = iProcessWorkItems + unprocessedIDs.size();
+		configItemCollection.replaceItemValue("txtResumeToken", token == null ? "" : token);
+		configItemCollection.replaceItemValue("numRunDuration", duration);
+		configItemCollection.replaceItemValue("numThroughput",
+				duration > 0 ? (double) iProcessWorkItems * 1000 / duration : 0.0);
+		configItemCollection.replaceItemValue("numAverageLatency", count > 0 ? latency / count : 0L);
+		configItemCollection.replaceItemValue("numMaxLatency", maxLatency);
+	}
 
-		logger.fine("[WorkflowSchedulerService] select: " + sQuery);
+	/**
+	 * Returns the partition of a workitem. The partition is computed by the
+	 * hash of the $uniqueid.
+	 * 
+	 * @param uniqueid
+	 * @param partitions
+	 *            - number of partitions
+	 * @return partition index
+	 */
+	static int getPartition(String uniqueid, int partitions) {
+		return (uniqueid.hashCode() & Integer.MAX_VALUE) % partitions;
+	}
 
-		Collection<ItemCollection> worklist = entityService.findAllEntities(sQuery, 0, -1);
+	/**
+	 * This method processes a list of workitems asynchronous. The method is
+	 * called by processWorkListInDue() for each partition of workitems.
+	 * 
+	 * @param worklist
+	 * @return statistic of the processed workitems
+	 * @see processWorkList
+	 */
+	@Asynchronous
+	@TransactionAttribute(value = TransactionAttributeType.NOT_SUPPORTED)
+	public Future<ItemCollection> processWorkListAsynchronous(List<ItemCollection> worklist) {
+		return new AsyncResult<ItemCollection>(processWorkList(worklist));
+	}
 
-		logger.fine("[WorkflowSchedulerService] " + worklist.size() + " workitems found");
+	/**
+	 * This method processes a list of workitems. Each workitem is processed
+	 * in a new transaction. Workitems updated in the meantime are skipped (see
+	 * processSingleWorkitem). The method returns the statistic of the processed
+	 * workitems:
+	 * 
+	 * numProcessed - number of workitems processed
+	 * 
+	 * txtUnprocessed - $uniqueids of workitems which could not be processed
+	 * 
+	 * numLatency - total processing time in ms
+	 * 
+	 * numMaxLatency - maximum processing time of a workitem in ms
+	 * 
+	 * @param worklist
+	 * @return statistic of the processed workitems
+	 */
+	ItemCollection processWorkList(List<ItemCollection> worklist) {
+		int processed = 0;
+		List<String> unprocessed = new ArrayList<String>();
+		long latency = 0;
+		long maxLatency = 0;
 		for (ItemCollection workitem : worklist) {
-			// verify due date
-			if (workItemInDue(workitem, activityEntity)) {
-				String sID = workitem.getItemValueString(EntityService.UNIQUEID);
-				logger.fine("[WorkflowSchedulerService] workitem " + sID + "is in due");
-				workitem.replaceItemValue("$activityid", iActivityID);
+			String sID = workitem.getItemValueString(EntityService.UNIQUEID);
+			long l = System.currentTimeMillis();
+			try {
+				logger.finest("[WorkflowSchedulerService] getBusinessObject.....");
+				// call from new instance because of transaction new...
+				// see: http://blog.imixs.org/?p=155
+				// see: https://www.java.net/node/705304
+				if (ctx.getBusinessObject(WorkflowSchedulerService.class).processSingleWorkitem(workitem))
+					processed++;
+			} catch (Exception e) {
+				logger.warning("[WorkflowSchedulerService] error processing workitem: " + sID);
+				if (logger.isLoggable(Level.FINEST)) {
+					e.printStackTrace();
+				}
+				unprocessed.add(sID);
+			}
+			l = System.currentTimeMillis() - l;
+			latency += l;
+			maxLatency = Math.max(maxLatency, l);
+		}
+
+		ItemCollection result = new ItemCollection();
+		result.replaceItemValue("numProcessed", processed);
+		result.replaceItemValue("txtUnprocessed", unprocessed);
+		result.replaceItemValue("numLatency", latency);
+		result.replaceItemValue("numMaxLatency", maxLatency);
+		return result;
+	}
+
+	/**
+	 * This method processes a list of workitems selected by the
+	 * WorkflowSchedulerWheel. Each workitem is loaded and the scheduled
+	 * activities of its $modelversion and $processid are verified. The first
+	 * activity in due will be processed in a new transaction.
+	 * 
+	 * @param ids
+	 *            - $uniqueids of the workitems
+	 * @return number of processed workitems
+	 */
+	public int processWorkItemsInDue(Collection<String> ids) {
+		List<ItemCollection> worklist = new ArrayList<ItemCollection>();
+		for (ItemCollection workitem : entityService.load(ids).values()) {
+			List<ItemCollection> activities = getScheduledActivities(modelService.getActivityEntityList(
+					workitem.getItemValueInteger(WorkflowService.PROCESSID),
+					workitem.getItemValueString(WorkflowService.MODELVERSION)));
+			for (ItemCollection activityEntity : activities) {
+				if (workItemInDue(workitem, activityEntity)) {
+					workitem.replaceItemValue("$activityid", activityEntity.getItemValueInteger("numActivityID"));
+					worklist.add(workitem);
+					break;
+				}
+			}
+		}
+		ItemCollection result = processWorkList(worklist);
+		int processed = result.getItemValueInteger("numProcessed");
+		logger.info("[WorkflowSchedulerService] " + processed + " workitems processed by timing wheel");
+		for (Object id : result.getItemValue("txtUnprocessed")) {
+			logger.warning("[WorkflowSchedulerService] error processing workitem: " + id);
+		}
+		return processed;
+	}
+
+	/**
+	 * Returns the due dates ('$scheduleddue') of all workitems due before the
+	 * given date. The method is used to seed the WorkflowSchedulerWheel.
+	 * 
+	 * @param until
+	 * @return map of $uniqueids and due dates
+	 */
+	public Map<String, Date> findDueDates(Date until) {
+		Map<String, Date> result = new HashMap<String, Date>();
+		EntityQuery query = new EntityQuery("wi").type("workitem").calendarItemBefore(DUEDATE, until);
+		Iterator<ItemCollection> worklist = entityService.iterateAllEntities(query, 0);
+		while (worklist.hasNext()) {
+			ItemCollection workitem = worklist.next();
+			result.put(workitem.getItemValueString(EntityService.UNIQUEID), workitem.getItemValueDate(DUEDATE));
+		}
+		return result;
+	}
+
+	/**
+	 * This method rebuilds the due date index ('$scheduleddue') of all
+	 * workitems of a model version if the scheduled activities of the model
+	 * version have changed since the last run. The scheduled activities are
+	 * identified by a fingerprint stored in the property 'txtDueDateIndex' of
+	 * the scheduler configuration. A new index is not applied to existing
+	 * entities by the EntityService, so also the first run rebuilds the index.
+	 * 
+	 * Only workitems with a changed due date are saved. The date of the last
+	 * modification of these workitems is not changed.
+	 * 
+	 * @param configItemCollection
+	 *            - scheduler configuration
+	 * @param version
+	 *            - model version
+	 * @param scheduledActivities
+	 *            - scheduled activities of the model version
+	 * @return the new entry of the property 'txtDueDateIndex'
+	 * @throws Exception
+	 */
+	String updateDueDateIndex(ItemCollection configItemCollection, String version,
+			Collection<ItemCollection> scheduledActivities) throws Exception {
+		String entry = version + "=" + getFingerprint(scheduledActivities);
+		if (configItemCollection.getItemValue("txtDueDateIndex").contains(entry))
+			return entry;
+
+		logger.info("[WorkflowSchedulerService] rebuild due date index for ModelVersion: " + version);
+		long l = System.currentTimeMillis();
+		Map<Integer, List<ItemCollection>> activitiesByProcess = new HashMap<Integer, List<ItemCollection>>();
+		for (ItemCollection activity : scheduledActivities) {
+			Integer processID = activity.getItemValueInteger("numprocessid");
+			List<ItemCollection> activities = activitiesByProcess.get(processID);
+			if (activities == null) {
+				activities = new ArrayList<ItemCollection>();
+				activitiesByProcess.put(processID, activities);
+			}
+			activities.add(activity);
+		}
+
+		int count = 0;
+		EntityQuery query = new EntityQuery("wi").type("workitem").textItem(WorkflowService.MODELVERSION, version);
+		Iterator<ItemCollection> worklist = entityService.iterateAllEntities(query, 0);
+		while (worklist.hasNext()) {
+			ItemCollection workitem = worklist.next();
+			if (updateDueDate(workitem,
+					activitiesByProcess.get(workitem.getItemValueInteger(WorkflowService.PROCESSID)), null)) {
 				try {
-					logger.finest("[WorkflowSchedulerService] getBusinessObject.....");
-					// call from new instance because of transaction new...
-					// see: http://blog.imixs.org/?p=155
-					// see: https://www.java.net/node/705304
-					ctx.getBusinessObject(WorkflowSchedulerService.class).processSingleWorkitem(workitem);
-					iProcessWorkItems++;
+					ctx.getBusinessObject(WorkflowSchedulerService.class).saveSingleWorkitem(workitem);
+					count++;
 				} catch (Exception e) {
-					logger.warning("[WorkflowSchedulerService] error processing workitem: " + sID);
-					if (logger.isLoggable(Level.FINEST)) {
-						e.printStackTrace();
-					}
-					unprocessedIDs.add(sID);
+					// the workitem was updated in the meantime
+					logger.warning("[WorkflowSchedulerService] unable to update due date of workitem: "
+							+ workitem.getItemValueString(EntityService.UNIQUEID) + " - " + e.getMessage());
 				}
 			}
+		}
+		logger.info("[WorkflowSchedulerService] " + count + " due dates updated in "
+				+ (System.currentTimeMillis() - l) + " ms");
+		return entry;
+	}
 
+	/**
+	 * Returns a fingerprint of the schedule definitions of a list of
+	 * activities. The fingerprint changes if a scheduled activity is added,
+	 * removed or its delay or base date is changed.
+	 * 
+	 * @param scheduledActivities
+	 * @return fingerprint
+	 */
+	static String getFingerprint(Collection<ItemCollection> scheduledActivities) {
+		StringBuilder sb = new StringBuilder();
+		for (ItemCollection activity : scheduledActivities) {
+			sb.append(activity.getItemValueInteger("numprocessid")).append('.')
+					.append(activity.getItemValueInteger("numactivityid")).append(':')
+					.append(activity.getItemValueString("keyActivityDelayUnit")).append(':')
+					.append(activity.getItemValueInteger("numActivityDelay")).append(':')
+					.append(activity.getItemValueString("keyScheduledBaseObject")).append(':')
+					.append(activity.getItemValueString("keyTimeCompareField")).append(';');
 		}
+		return Integer.toHexString(sb.toString().hashCode());
+	}
+
+	/**
+	 * This method saves a single workitem in a new transaction. The method is
+	 * called by updateDueDateIndex(). The property $modified of the workitem
+	 * is not changed, so the due date based on the last modification is kept.
+	 * 
+	 * @param aWorkitem
+	 * @throws AccessDeniedException
+	 */
+	@TransactionAttribute(value = TransactionAttributeType.REQUIRES_NEW)
+	public void saveSingleWorkitem(ItemCollection aWorkitem) throws AccessDeniedException {
+		entityService.saveUnmodified(aWorkitem);
 	}
 
 	/**
 	 * This method process a single workIten in a new transaction. The method is
 	 * called by processWorklist()
+	 * <p>
+	 * The workitem is reloaded in the new transaction. If the due date
+	 * ('$scheduleddue') of the reloaded workitem differs from the due date of
+	 * the selected workitem, the workitem was processed or updated in the
+	 * meantime (e.g. by the WorkflowSchedulerWheel of another cluster node)
+	 * and is skipped. The reloaded workitem is saved with optimistic locking,
+	 * so if two nodes process the same workitem concurrently, only one
+	 * transaction is committed.
 	 * 
 	 * @param aWorkitem
+	 *            - selected workitem with the property '$activityid'
+	 * @return true if the workitem was processed, false if it was skipped
 	 * @throws PluginException
 	 * @throws ProcessingErrorException
 	 * @throws AccessDeniedException
 	 */
 	@TransactionAttribute(value = TransactionAttributeType.REQUIRES_NEW)
-	public void processSingleWorkitem(ItemCollection aWorkitem)
+	public boolean processSingleWorkitem(ItemCollection aWorkitem)
 			throws AccessDeniedException, ProcessingErrorException, PluginException {
-		workflowService.processWorkItem(aWorkitem);
+		String id = aWorkitem.getItemValueString(EntityService.UNIQUEID);
+		ItemCollection workitem = entityService.load(id);
+		Date dueDate = aWorkitem.getItemValueDate(DUEDATE);
+		if (workitem == null || (dueDate == null ? workitem.hasItem(DUEDATE)
+				: !dueDate.equals(workitem.getItemValueDate(DUEDATE)))) {
+			logger.fine("[WorkflowSchedulerService] workitem " + id + " was updated in the meantime - skipped");
+			return false;
+		}
+		workitem.replaceItemValue("$activityid", aWorkitem.getItemValueInteger("$activityid"));
+		workflowService.processWorkItem(workitem);
+		return true;
 	}
 
 	/**
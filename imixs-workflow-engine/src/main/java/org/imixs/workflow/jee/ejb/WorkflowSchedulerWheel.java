@@ -0,0 +1,316 @@
+/*******************************************************************************
+ *  Imixs Workflow 
+ *  Copyright (C) 2001, 2011 Imixs Software Solutions GmbH,  
+ *  http://www.imixs.com
+ *  
+ *  This program is free software; you can redistribute it and/or 
+ *  modify it under the terms of the GNU General Public License 
+ *  as published by the Free Software Foundation; either version 2 
+ *  of the License, or (at your option) any later version.
+ *  
+ *  This program is distributed in the hope that it will be useful, 
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU 
+ *  General Public License for more details.
+ *  
+ *  You can receive a copy of the GNU General Public
+ *  License at http://www.gnu.org/licenses/gpl.html
+ *  
+ *  Project: 
+ *  	http://www.imixs.org
+ *  	http://java.net/projects/imixs-workflow
+ *  
+ *  Contributors:  
+ *  	Imixs Software Solutions GmbH - initial API and implementation
+ *  	Ralph Soika - Software Developer
+ *******************************************************************************/
+
+package org.imixs.workflow.jee.ejb;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.LocalBean;
+import javax.ejb.SessionContext;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.ejb.Timeout;
+import javax.ejb.Timer;
+import javax.ejb.TimerConfig;
+import javax.ejb.TimerService;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+import org.imixs.workflow.ItemCollection;
+
+/**
+ * The WorkflowSchedulerWheel is a singleton EJB processing scheduled
+ * workitems close to their due date. The bean holds the due dates
+ * ('$scheduleddue') of the upcoming scheduled workitems in a hierarchical
+ * TimingWheel. A timer advances the wheel every second and the expired
+ * workitems are processed by the WorkflowSchedulerService. So an idle tick
+ * did not access the database.
+ * <p>
+ * The wheel is used if the property 'keyTimingWheel' of the scheduler
+ * configuration is set to 'true'. It is started and stopped together with the
+ * WorkflowSchedulerService and started again when the application is
+ * deployed. The wheel is seeded with the workitems due within the next two
+ * hours and refilled every hour. The EntityService updates the wheel after
+ * a saved or removed workitem was committed.
+ * <p>
+ * The wheel holds at most 100.000 workitems due within the next 72 hours.
+ * Workitems not held by the wheel are processed by a later refill or by the
+ * timer of the WorkflowSchedulerService.
+ * <p>
+ * The wheel is held by each cluster node. A workitem processed by the wheel
+ * of another node or by the timer in the meantime is skipped (see
+ * WorkflowSchedulerService.processSingleWorkitem).
+ * 
+ * @see org.imixs.workflow.jee.ejb.WorkflowSchedulerService
+ * @see org.imixs.workflow.jee.ejb.TimingWheel
+ * @author rsoika
+ * 
+ */
+@Singleton
+@Startup
+@LocalBean
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+public class WorkflowSchedulerWheel {
+
+	public static final String WORKFLOW_SCHEDULER_SERVICE = "java:module/WorkflowSchedulerService";
+
+	static final long TICK = 1000;
+	static final long REFILL_INTERVAL = 60 * 60 * 1000;
+	static final int CAPACITY = 100000;
+
+	private final TimingWheel wheel = new TimingWheel(TICK, CAPACITY, System.currentTimeMillis());
+	// guards the processing of expired workitems
+	private final ReentrantLock tickLock = new ReentrantLock();
+	private final AtomicLong scheduledCount = new AtomicLong();
+	private final AtomicLong rejectedCount = new AtomicLong();
+	private final AtomicLong firedCount = new AtomicLong();
+	private volatile boolean running = false;
+	private volatile long nextRefill = 0;
+
+	@Resource
+	TimerService timerService;
+
+	@Resource
+	TransactionSynchronizationRegistry transactionRegistry;
+
+	@Resource
+	SessionContext ctx;
+
+	WorkflowSchedulerService workflowSchedulerService = null;
+
+	private static Logger logger = Logger.getLogger(WorkflowSchedulerWheel.class.getName());
+
+	/**
+	 * Starts the wheel if the WorkflowSchedulerService is running with the
+	 * option 'keyTimingWheel'
+	 */
+	@PostConstruct
+	void init() {
+		try {
+			WorkflowSchedulerService scheduler = getWorkflowSchedulerService();
+			ItemCollection configItemCollection = scheduler.loadConfiguration();
+			if (configItemCollection.getItemValueBoolean("keyTimingWheel") && scheduler.isRunning())
+				start();
+		} catch (Exception e) {
+			logger.warning("[WorkflowSchedulerWheel] unable to start timing wheel: " + e.getMessage());
+		}
+	}
+
+	@PreDestroy
+	void destroy() {
+		running = false;
+	}
+
+	/**
+	 * Starts the timer advancing the wheel and seeds the wheel with the
+	 * upcoming due dates.
+	 */
+	public void start() {
+		if (running)
+			return;
+		running = true;
+		refill(System.currentTimeMillis());
+		if (timerService != null)
+			timerService.createIntervalTimer(TICK, TICK, new TimerConfig(null, false));
+		logger.info("[WorkflowSchedulerWheel] started with " + getSize() + " workitems");
+	}
+
+	/**
+	 * Stops the timer and clears the wheel
+	 */
+	public void stop() {
+		if (timerService != null) {
+			for (Timer timer : timerService.getTimers()) {
+				timer.cancel();
+			}
+		}
+		if (!running)
+			return;
+		running = false;
+		synchronized (wheel) {
+			wheel.clear();
+		}
+		logger.info("[WorkflowSchedulerWheel] stopped");
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * Updates the due date of a workitem. If a transaction is active, the wheel
+	 * is updated after the transaction was committed. If the due date is null
+	 * the workitem is removed from the wheel. The method has no effect if the
+	 * wheel is not running.
+	 * 
+	 * @param id
+	 *            - $uniqueid of the workitem
+	 * @param dueDate
+	 *            - due date or null
+	 */
+	@TransactionAttribute(TransactionAttributeType.SUPPORTS)
+	public void schedule(final String id, final Date dueDate) {
+		if (!running || id == null || id.isEmpty())
+			return;
+		if (transactionRegistry != null && transactionRegistry.getTransactionKey() != null) {
+			transactionRegistry.registerInterposedSynchronization(new Synchronization() {
+				@Override
+				public void beforeCompletion() {
+					// no op
+				}
+
+				@Override
+				public void afterCompletion(int status) {
+					if (status == Status.STATUS_COMMITTED)
+						update(id, dueDate);
+				}
+			});
+		} else {
+			update(id, dueDate);
+		}
+	}
+
+	@Timeout
+	void onTimeout(Timer timer) {
+		advance(System.currentTimeMillis());
+	}
+
+	/**
+	 * Advances the wheel and processes the expired workitems. If the method is
+	 * called while expired workitems are processed, the method returns
+	 * immediately. The next call processes the workitems expired in the
+	 * meantime.
+	 * 
+	 * @param now
+	 *            - current time in milliseconds
+	 */
+	void advance(long now) {
+		if (!running || !tickLock.tryLock())
+			return;
+		try {
+			if (now >= nextRefill)
+				refill(now);
+			List<String> ids;
+			synchronized (wheel) {
+				ids = wheel.advance(now);
+			}
+			if (ids.isEmpty())
+				return;
+			firedCount.addAndGet(ids.size());
+			if (logger.isLoggable(Level.FINE))
+				logger.fine("[WorkflowSchedulerWheel] " + ids.size() + " workitems in due");
+			getWorkflowSchedulerService().processWorkItemsInDue(ids);
+		} catch (Exception e) {
+			logger.severe("[WorkflowSchedulerWheel] error processing workitems: " + e.getMessage());
+		} finally {
+			tickLock.unlock();
+		}
+	}
+
+	/**
+	 * Adds all workitems due before the next refill to the wheel
+	 */
+	private void refill(long now) {
+		nextRefill = now + REFILL_INTERVAL;
+		try {
+			Map<String, Date> dueDates = getWorkflowSchedulerService()
+					.findDueDates(new Date(now + 2 * REFILL_INTERVAL));
+			for (Map.Entry<String, Date> entry : dueDates.entrySet()) {
+				update(entry.getKey(), entry.getValue());
+			}
+			logger.fine("[WorkflowSchedulerWheel] " + dueDates.size() + " due dates loaded");
+		} catch (Exception e) {
+			logger.warning("[WorkflowSchedulerWheel] unable to load due dates: " + e.getMessage());
+		}
+	}
+
+	private void update(String id, Date dueDate) {
+		synchronized (wheel) {
+			if (dueDate == null) {
+				wheel.cancel(id);
+			} else if (wheel.schedule(id, dueDate.getTime())) {
+				scheduledCount.incrementAndGet();
+			} else {
+				// beyond the horizon or capacity exhausted
+				wheel.cancel(id);
+				rejectedCount.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of workitems held by the wheel
+	 */
+	public int getSize() {
+		synchronized (wheel) {
+			return wheel.size();
+		}
+	}
+
+	/**
+	 * Returns the number of due dates added to the wheel
+	 */
+	public long getScheduledCount() {
+		return scheduledCount.get();
+	}
+
+	/**
+	 * Returns the number of due dates rejected by the wheel
+	 */
+	public long getRejectedCount() {
+		return rejectedCount.get();
+	}
+
+	/**
+	 * Returns the number of expired workitems
+	 */
+	public long getFiredCount() {
+		return firedCount.get();
+	}
+
+	private WorkflowSchedulerService getWorkflowSchedulerService() {
+		if (workflowSchedulerService == null)
+			workflowSchedulerService = (WorkflowSchedulerService) ctx.lookup(WORKFLOW_SCHEDULER_SERVICE);
+		return workflowSchedulerService;
+	}
+
+}
@@ -28,9 +28,13 @@
 package org.imixs.workflow.jee.ejb;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.StringTokenizer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -54,6 +58,7 @@ import org.imixs.workflow.WorkflowContext;
 import org.imixs.workflow.WorkflowKernel;
 import org.imixs.workflow.WorkflowManager;
 import org.imixs.workflow.exceptions.AccessDeniedException;
+import org.imixs.workflow.exceptions.InvalidAccessException;
 import org.imixs.workflow.exceptions.ModelException;
 import org.imixs.workflow.exceptions.PluginException;
 import org.imixs.workflow.exceptions.ProcessingErrorException;
@@ -113,6 +118,12 @@ public class WorkflowService implements WorkflowManager, WorkflowContext, Workfl
 	@EJB
 	ReportService reportService;
 
+	@EJB
+	ModelCache modelCache;
+
+	@EJB
+	PluginMetrics pluginMetrics;
+
 	@Resource
 	SessionContext ctx;
 
@@ -133,6 +144,7 @@ public class WorkflowService implements WorkflowManager, WorkflowContext, Workfl
 		entityService.addIndex("txtname", EntityIndex.TYP_TEXT);
 		entityService.addIndex("namowner", EntityIndex.TYP_TEXT);
 		entityService.addIndex("txtworkitemref", EntityIndex.TYP_TEXT);
+		entityService.addIndex(WorkflowSchedulerService.DUEDATE, EntityIndex.TYP_CALENDAR);
 	}
 
 	/**
@@ -166,20 +178,44 @@ public class WorkflowService implements WorkflowManager, WorkflowContext, Workfl
 	 * 
 	 */
 	public List<ItemCollection> getWorkListByOwner(String name, int startpos, int count, String type, int sortorder) {
-	
+		return entityService.findAllEntities(createWorkListByOwnerQuery(name, type, sortorder), startpos, count);
+	}
+
+	/**
+	 * Returns a page of workitems containing a namOwner property belonging to a
+	 * specified username. The list is read with keyset pagination. To read the
+	 * next page pass the property $continuationtoken of the last workitem of the
+	 * previous page.
+	 * 
+	 * @param name
+	 *            = username - if null current username will be used
+	 * @param continuationToken
+	 *            = $continuationtoken of the last workitem of the previous page
+	 *            or null for the first page
+	 * @param count
+	 *            = maximum count of workitems per page
+	 * @param type
+	 *            = defines the type property of the workitems to be returnd.
+	 *            can be null
+	 * @param sortorder
+	 *            = defines sortorder (SORT_ORDER_CREATED_DESC = 0
+	 *            SORT_ORDER_CREATED_ASC = 1 SORT_ORDER_MODIFIED_DESC = 2
+	 *            SORT_ORDER_MODIFIED_ASC = 3)
+	 * @return List of workitems
+	 * @see EntityService#findAllEntitiesAfter
+	 */
+	public List<ItemCollection> getWorkListByOwner(String name, String continuationToken, int count, String type,
+			int sortorder) {
+		return entityService.findAllEntitiesAfter(createWorkListByOwnerQuery(name, type, sortorder),
+				continuationToken, count);
+	}
+
+	private EntityQuery createWorkListByOwnerQuery(String name, String type, int sortorder) {
 		if (name == null || "".equals(name))
 			name = ctx.getCallerPrincipal().getName();
-	
-		String sQuery = null;
-		sQuery = "SELECT";
-		sQuery += " wi FROM Entity as wi" + " JOIN wi.textItems as t JOIN wi.textItems as s " + "WHERE ";
-		if (type != null && !"".equals(type))
-			sQuery += " wi.type='" + type + "' AND ";
-	
-		sQuery += " t.itemName = 'namowner' and t.itemValue = '" + name + "'" + " AND s.itemName = '$workitemid' "
-				+ createSortOrderClause(sortorder);
-	
-		return entityService.findAllEntities(sQuery, startpos, count);
+
+		EntityQuery query = new EntityQuery("wi").type(type).textItem("namowner", name).hasTextItem("$workitemid");
+		return createSortOrder(query, sortorder);
 	}
 
 	/**
@@ -208,19 +244,45 @@ public class WorkflowService implements WorkflowManager, WorkflowContext, Workfl
 	 * 
 	 */
 	public List<ItemCollection> getWorkListByAuthor(String name, int startpos, int count, String type, int sortorder) {
+		return entityService.findAllEntities(createWorkListByAuthorQuery(name, type, sortorder), startpos, count);
+	}
+
+	/**
+	 * Returns a page of workItems belonging to a specified username or role
+	 * contained in the $WriteAccess attribute. The list is read with keyset
+	 * pagination. To read the next page pass the property $continuationtoken of
+	 * the last workitem of the previous page.
+	 * 
+	 * @param name
+	 *            = username - if null current username will be used
+	 * @param continuationToken
+	 *            = $continuationtoken of the last workitem of the previous page
+	 *            or null for the first page
+	 * @param count
+	 *            = maximum count of workitems per page
+	 * @param type
+	 *            = defines the type property of the workitems to be returnd.
+	 *            can be null
+	 * @param sortorder
+	 *            = defines sortorder (SORT_ORDER_CREATED_DESC = 0
+	 *            SORT_ORDER_CREATED_ASC = 1 SORT_ORDER_MODIFIED_DESC = 2
+	 *            SORT_ORDER_MODIFIED_ASC = 3)
+	 * @return List of workitems
+	 * @see EntityService#findAllEntitiesAfter
+	 */
+	public List<ItemCollection> getWorkListByAuthor(String name, String continuationToken, int count, String type,
+			int sortorder) {
+		return entityService.findAllEntitiesAfter(createWorkListByAuthorQuery(name, type, sortorder),
+				continuationToken, count);
+	}
 
+	private EntityQuery createWorkListByAuthorQuery(String name, String type, int sortorder) {
 		if (name == null || "".equals(name))
 			name = ctx.getCallerPrincipal().getName();
 
-		String sQuery = null;
-		sQuery = "SELECT";
-		sQuery += " wi FROM Entity as wi " + " JOIN wi.writeAccessList as wa" + " JOIN wi.textItems as s " + "WHERE ";
-
-		if (type != null && !"".equals(type))
-			sQuery += " wi.type='" + type + "' AND ";
-
-		sQuery += " wa.value = '" + name + "'" + " AND s.itemName = '$workitemid' " + createSortOrderClause(sortorder);
-		return entityService.findAllEntities(sQuery, startpos, count);
+		EntityQuery query = new EntityQuery("wi").type(type).writeAccess(Arrays.asList(name))
+				.hasTextItem("$workitemid");
+		return createSortOrder(query, sortorder);
 	}
 
 	/**
@@ -246,20 +308,44 @@ public class WorkflowService implements WorkflowManager, WorkflowContext, Workfl
 	 * 
 	 */
 	public List<ItemCollection> getWorkListByCreator(String name, int startpos, int count, String type, int sortorder) {
+		return entityService.findAllEntities(createWorkListByCreatorQuery(name, type, sortorder), startpos, count);
+	}
+
+	/**
+	 * Returns a page of workitems created by a specified user (namCreator). The
+	 * list is read with keyset pagination. To read the next page pass the property
+	 * $continuationtoken of the last workitem of the previous page.
+	 * 
+	 * @param name
+	 *            = username - if null current username will be used
+	 * @param continuationToken
+	 *            = $continuationtoken of the last workitem of the previous page
+	 *            or null for the first page
+	 * @param count
+	 *            = maximum count of workitems per page
+	 * @param type
+	 *            = defines the type property of the workitems to be returnd.
+	 *            can be null
+	 * @param sortorder
+	 *            = defines sortorder (SORT_ORDER_CREATED_DESC = 0
+	 *            SORT_ORDER_CREATED_ASC = 1 SORT_ORDER_MODIFIED_DESC = 2
+	 *            SORT_ORDER_MODIFIED_ASC = 3)
+	 * @return List of workitems
+	 * @see EntityService#findAllEntitiesAfter
+	 */
+	public List<ItemCollection> getWorkListByCreator(String name, String continuationToken, int count, String type,
+			int sortorder) {
+		return entityService.findAllEntitiesAfter(createWorkListByCreatorQuery(name, type, sortorder),
+				continuationToken, count);
+	}
 
+	private EntityQuery createWorkListByCreatorQuery(String name, String type, int sortorder) {
 		if (name == null || "".equals(name))
 			name = ctx.getCallerPrincipal().getName();
 
-		String sQuery = null;
-		sQuery = "SELECT";
-		sQuery += " wi FROM Entity as wi" + " JOIN wi.textItems as t JOIN wi.textItems as s " + "WHERE ";
-		if (type != null && !"".equals(type))
-			sQuery += " wi.type='" + type + "' AND ";
-
-		sQuery += " t.itemName = 'namcreator' and t.itemValue = '" + name + "'" + " AND s.itemName = '$workitemid' "
-				+ createSortOrderClause(sortorder);
-
-		return entityService.findAllEntities(sQuery, startpos, count);
+		EntityQuery query = new EntityQuery("wi").type(type).textItem("namcreator", name)
+				.hasTextItem("$workitemid");
+		return createSortOrder(query, sortorder);
 	}
 
 	/**
@@ -283,12 +369,40 @@ public class WorkflowService implements WorkflowManager, WorkflowContext, Workfl
 	 * 
 	 */
 	public List<ItemCollection> getWorkListByWriteAccess(int startpos, int count, String type, int sortorder) {
-		StringBuffer nameListBuffer = new StringBuffer();
+		return entityService.findAllEntities(createWorkListByWriteAccessQuery(type, sortorder), startpos, count);
+	}
+
+	/**
+	 * Returns a page of workitems where the current user has a writeAccess. The
+	 * list is read with keyset pagination. To read the next page pass the property
+	 * $continuationtoken of the last workitem of the previous page.
+	 * 
+	 * @param continuationToken
+	 *            = $continuationtoken of the last workitem of the previous page
+	 *            or null for the first page
+	 * @param count
+	 *            = maximum count of workitems per page
+	 * @param type
+	 *            = defines the type property of the workitems to be returnd.
+	 *            can be null
+	 * @param sortorder
+	 *            = defines sortorder (SORT_ORDER_CREATED_DESC = 0
+	 *            SORT_ORDER_CREATED_ASC = 1 SORT_ORDER_MODIFIED_DESC = 2
+	 *            SORT_ORDER_MODIFIED_ASC = 3)
+	 * @return List of workitems
+	 * @see EntityService#findAllEntitiesAfter
+	 */
+	public List<ItemCollection> getWorkListByWriteAccess(String continuationToken, int count, String type,
+			int sortorder) {
+		return entityService.findAllEntitiesAfter(createWorkListByWriteAccessQuery(type, sortorder),
+				continuationToken, count);
+	}
 
-		String name = ctx.getCallerPrincipal().getName();
+	private EntityQuery createWorkListByWriteAccessQuery(String type, int sortorder) {
+		List<String> nameList = new ArrayList<String>();
 
-		// construct nameList. Begin with empty string '' and username
-		nameListBuffer.append("'" + name + "'");
+		// construct nameList. Begin with the username
+		nameList.add(ctx.getCallerPrincipal().getName());
 		// now construct role list
 
 		String accessRoles = entityService.getAccessRoles();
@@ -300,30 +414,49 @@ public class WorkflowService implements WorkflowManager, WorkflowContext, Workfl
 		while (roleListTokens.hasMoreTokens()) {
 			String testRole = roleListTokens.nextToken().trim();
 			if (!"".equals(testRole) && ctx.isCallerInRole(testRole))
-				nameListBuffer.append(",'" + testRole + "'");
+				nameList.add(testRole);
 		}
 
-		String sQuery = "SELECT wi FROM Entity as wi " + " JOIN wi.writeAccessList wa " + " WHERE ";
-		if (type != null && !"".equals(type))
-			sQuery += " wi.type='" + type + "' ";
-
-		sQuery += " AND wa.value IN (" + nameListBuffer.toString() + ")" + createSortOrderClause(sortorder);
-
-		return entityService.findAllEntities(sQuery, startpos, count);
+		EntityQuery query = new EntityQuery("wi").type(type).writeAccess(nameList);
+		return createSortOrder(query, sortorder);
 	}
 
 	public List<ItemCollection> getWorkListByGroup(String name, int startpos, int count, String type, int sortorder) {
+		return entityService.findAllEntities(createWorkListByGroupQuery(name, type, sortorder), startpos, count);
+	}
 
-		String sQuery = null;
-		sQuery = "SELECT";
-		sQuery += " wi FROM Entity as wi " + " JOIN wi.textItems as t " + " JOIN wi.textItems as s " + "WHERE ";
-
-		if (type != null && !"".equals(type))
-			sQuery += " wi.type='" + type + "' AND ";
+	/**
+	 * Returns a page of workitems belonging to a specified workflow group. The
+	 * list is read with keyset pagination. To read the next page pass the property
+	 * $continuationtoken of the last workitem of the previous page.
+	 * 
+	 * @param name
+	 *            = name of the workflow group
+	 * @param continuationToken
+	 *            = $continuationtoken of the last workitem of the previous page
+	 *            or null for the first page
+	 * @param count
+	 *            = maximum count of workitems per page
+	 * @param type
+	 *            = defines the type property of the workitems to be returnd.
+	 *            can be null
+	 * @param sortorder
+	 *            = defines sortorder (SORT_ORDER_CREATED_DESC = 0
+	 *            SORT_ORDER_CREATED_ASC = 1 SORT_ORDER_MODIFIED_DESC = 2
+	 *            SORT_ORDER_MODIFIED_ASC = 3)
+	 * @return List of workitems
+	 * @see EntityService#findAllEntitiesAfter
+	 */
+	public List<ItemCollection> getWorkListByGroup(String name, String continuationToken, int count, String type,
+			int sortorder) {
+		return entityService.findAllEntitiesAfter(createWorkListByGroupQuery(name, type, sortorder),
+				continuationToken, count);
+	}
 
-		sQuery += " t.itemName = 'txtworkflowgroup' and t.itemValue = '" + name + "'"
-				+ " AND s.itemName = '$workitemid' " + createSortOrderClause(sortorder);
-		return entityService.findAllEntities(sQuery, startpos, count);
+	private EntityQuery createWorkListByGroupQuery(String name, String type, int sortorder) {
+		EntityQuery query = new EntityQuery("wi").type(type).textItem("txtworkflowgroup", name)
+				.hasTextItem("$workitemid");
+		return createSortOrder(query, sortorder);
 	}
 
 	/**
@@ -348,18 +481,41 @@ public class WorkflowService implements WorkflowManager, WorkflowContext, Workfl
 	 * 
 	 */
 	public List<ItemCollection> getWorkListByProcessID(int aid, int startpos, int count, String type, int sortorder) {
+		return entityService.findAllEntities(createWorkListByProcessIDQuery(aid, type, sortorder), startpos, count);
+	}
 
-		String sQuery = null;
-		sQuery = "SELECT";
-		sQuery += " wi FROM Entity as wi " + " JOIN wi.integerItems as t JOIN wi.textItems as s " + "WHERE ";
-
-		if (type != null && !"".equals(type))
-			sQuery += " wi.type='" + type + "' AND ";
-
-		sQuery += " t.itemName = '$processid' and t.itemValue = '" + aid + "'" + " AND s.itemName = '$workitemid' "
-				+ createSortOrderClause(sortorder);
+	/**
+	 * Returns a page of workitems belonging to a specified $processID. The list is
+	 * read with keyset pagination. To read the next page pass the property
+	 * $continuationtoken of the last workitem of the previous page.
+	 * 
+	 * @param aid
+	 *            = $ProcessID for the workitems to be returned.
+	 * @param continuationToken
+	 *            = $continuationtoken of the last workitem of the previous page
+	 *            or null for the first page
+	 * @param count
+	 *            = maximum count of workitems per page
+	 * @param type
+	 *            = defines the type property of the workitems to be returnd.
+	 *            can be null
+	 * @param sortorder
+	 *            = defines sortorder (SORT_ORDER_CREATED_DESC = 0
+	 *            SORT_ORDER_CREATED_ASC = 1 SORT_ORDER_MODIFIED_DESC = 2
+	 *            SORT_ORDER_MODIFIED_ASC = 3)
+	 * @return List of workitems
+	 * @see EntityService#findAllEntitiesAfter
+	 */
+	public List<ItemCollection> getWorkListByProcessID(int aid, String continuationToken, int count, String type,
+			int sortorder) {
+		return entityService.findAllEntitiesAfter(createWorkListByProcessIDQuery(aid, type, sortorder),
+				continuationToken, count);
+	}
 
-		return entityService.findAllEntities(sQuery, startpos, count);
+	private EntityQuery createWorkListByProcessIDQuery(int aid, String type, int sortorder) {
+		EntityQuery query = new EntityQuery("wi").type(type).integerItem("$processid", aid)
+				.hasTextItem("$workitemid");
+		return createSortOrder(query, sortorder);
 	}
 
 	/**
@@ -384,17 +540,41 @@ public class WorkflowService implements WorkflowManager, WorkflowContext, Workfl
 	 * @return List of workitems
 	 */
 	public List<ItemCollection> getWorkListByRef(String aref, int startpos, int count, String type, int sortorder) {
+		return entityService.findAllEntities(createWorkListByRefQuery(aref, type, sortorder), startpos, count);
+	}
 
-		String sQuery = null;
-		sQuery = "SELECT";
-		sQuery += " wi FROM Entity as wi " + " JOIN wi.textItems as t JOIN wi.textItems as s " + "WHERE ";
-		if (type != null && !"".equals(type))
-			sQuery += " wi.type='" + type + "' AND ";
-
-		sQuery += " t.itemName = '$uniqueidref' and t.itemValue = '" + aref + "'" + " and s.itemName = '$workitemid' "
-				+ createSortOrderClause(sortorder);
+	/**
+	 * Returns a page of workitems belonging to a specified workitem identified by
+	 * the attribute $UniqueIDRef. The list is read with keyset pagination. To read
+	 * the next page pass the property $continuationtoken of the last workitem of
+	 * the previous page.
+	 * 
+	 * @param aref
+	 *            A unique reference to another workitem inside a database
+	 * @param continuationToken
+	 *            = $continuationtoken of the last workitem of the previous page
+	 *            or null for the first page
+	 * @param count
+	 *            = maximum count of workitems per page
+	 * @param type
+	 *            = defines the type property of the workitems to be returnd.
+	 *            can be null
+	 * @param sortorder
+	 *            = defines sortorder (SORT_ORDER_CREATED_DESC = 0
+	 *            SORT_ORDER_CREATED_ASC = 1 SORT_ORDER_MODIFIED_DESC = 2
+	 *            SORT_ORDER_MODIFIED_ASC = 3)
+	 * @return List of workitems
+	 * @see EntityService#findAllEntitiesAfter
+	 */
+	public List<ItemCollection> getWorkListByRef(String aref, String continuationToken, int count, String type,
+			int sortorder) {
+		return entityService.findAllEntitiesAfter(createWorkListByRefQuery(aref, type, sortorder), continuationToken, count);
+	}
 
-		return entityService.findAllEntities(sQuery, startpos, count);
+	private EntityQuery createWorkListByRefQuery(String aref, String type, int sortorder) {
+		EntityQuery query = new EntityQuery("wi").type(type).textItem("$uniqueidref", aref)
+				.hasTextItem("$workitemid");
+		return createSortOrder(query, sortorder);
 	}
 
 	/**
@@ -514,6 +694,123 @@ public class WorkflowService implements WorkflowManager, WorkflowContext, Workfl
 		// load current instance of this workitem
 		ItemCollection currentInstance = this.getWorkItem(workitem.getItemValueString(EntityService.UNIQUEID));
 
+		workitem = processByKernel(workitem, currentInstance);
+
+		return entityService.save(workitem);
+
+	}
+
+	/**
+	 * This method processes a list of workItems in one call. The method
+	 * processes the workitems in blocks defined by the EntityService setting
+	 * 'BATCH_SIZE'. For each block the current instances of the workitems are
+	 * loaded with a single query and the processed workitems are saved in one
+	 * batch (see EntityService.saveAll()).
+	 * <p>
+	 * The method returns a list of results in the same order as provided. If a
+	 * single workitem can not be processed, the result contains the workitem
+	 * with the properties '$error_code' and '$error_message' and the workitem
+	 * is not saved. All other workitems are processed. Runtime exceptions
+	 * thrown by the persistence layer are not caught and will roll back the
+	 * current transaction.
+	 * 
+	 * @param workitems
+	 *            - list of workItems to be processed
+	 * @return list of processed workItems
+	 */
+	public List<ItemCollection> processWorkItems(List<ItemCollection> workitems) {
+		List<ItemCollection> result = new ArrayList<ItemCollection>();
+		if (workitems == null || workitems.isEmpty())
+			return result;
+
+		long l = System.currentTimeMillis();
+		int size = entityService.getBatchSize();
+		if (size <= 0)
+			size = EntityService.DEFAULT_BATCH_SIZE;
+
+		List<ItemCollection> block = new ArrayList<ItemCollection>(size);
+		Set<String> blockIDs = new HashSet<String>();
+		for (ItemCollection workitem : workitems) {
+			String id = workitem.getItemValueString(EntityService.UNIQUEID);
+			// a workitem which is part of the current block more than once
+			// starts a new block so the current instance can be loaded again
+			if (block.size() >= size || (!id.isEmpty() && blockIDs.contains(id))) {
+				result.addAll(processBlock(block));
+				block.clear();
+				blockIDs.clear();
+			}
+			block.add(workitem);
+			if (!id.isEmpty())
+				blockIDs.add(id);
+		}
+		result.addAll(processBlock(block));
+
+		logger.fine("[WorkflowService] processWorkItems - " + workitems.size() + " workitems processed in "
+				+ (System.currentTimeMillis() - l) + " ms");
+		return result;
+	}
+
+	/**
+	 * Processes a block of workitems and saves all workitems processed
+	 * successful in one batch.
+	 * 
+	 * @param block
+	 *            - list of workitems with unique $uniqueIDs
+	 * @return list of processed workitems
+	 */
+	private List<ItemCollection> processBlock(List<ItemCollection> block) {
+		List<ItemCollection> result = new ArrayList<ItemCollection>(block.size());
+		if (block.isEmpty())
+			return result;
+
+		// load all current instances with one query
+		List<String> ids = new ArrayList<String>(block.size());
+		for (ItemCollection workitem : block) {
+			ids.add(workitem.getItemValueString(EntityService.UNIQUEID));
+		}
+		Map<String, ItemCollection> currentInstances = entityService.load(ids);
+
+		List<ItemCollection> processedWorkitems = new ArrayList<ItemCollection>(block.size());
+		for (ItemCollection workitem : block) {
+			workitem.removeItem("$error_code");
+			workitem.removeItem("$error_message");
+			try {
+				ItemCollection currentInstance = currentInstances
+						.get(workitem.getItemValueString(EntityService.UNIQUEID));
+				workitem = processByKernel(workitem, currentInstance);
+				processedWorkitems.add(workitem);
+			} catch (PluginException e) {
+				logger.warning("[WorkflowService] processWorkItems - " + e.getMessage());
+				workitem.replaceItemValue("$error_code", e.getErrorCode());
+				workitem.replaceItemValue("$error_message", e.getMessage());
+			} catch (InvalidAccessException e) {
+				// AccessDeniedException, ProcessingErrorException
+				logger.warning("[WorkflowService] processWorkItems - " + e.getMessage());
+				workitem.replaceItemValue("$error_code", e.getErrorCode());
+				workitem.replaceItemValue("$error_message", e.getMessage());
+			}
+			result.add(workitem);
+		}
+
+		// save all processed workitems in one batch
+		entityService.saveAll(processedWorkitems);
+		return result;
+	}
+
+	/**
+	 * This method merges a workItem into its current instance and processes
+	 * the workItem by the WorkflowKernel. The workItem is not saved.
+	 * 
+	 * @param workitem
+	 *            - the workItem to be processed
+	 * @param currentInstance
+	 *            - the current instance of the workItem or null if the
+	 *            workItem is new
+	 * @return processed workItem
+	 */
+	private ItemCollection processByKernel(ItemCollection workitem, ItemCollection currentInstance)
+			throws AccessDeniedException, ProcessingErrorException, PluginException {
+
 		if (currentInstance != null) {
 			// test author access
 			if (!currentInstance.getItemValueBoolean(ISAUTHOR))
@@ -567,34 +864,16 @@ public class WorkflowService implements WorkflowManager, WorkflowContext, Workfl
 			}
 		}
 
-		// Fetch the current Profile Entity for this version.
-		ItemCollection profile = findModelProfile(modelversion);
-		if (profile == null) {
-			// model profile not defined!
-			throw new ProcessingErrorException(WorkflowService.class.getSimpleName(),
-					ProcessingErrorException.INVALID_MODELVERSION,
-					"WorkflowService: fatal error - no valid model version '" + modelversion
-							+ "' found! Verify WorkflowModels.");
-		}
+		// Fetch the plugin pipeline defined by the profile for this version.
+		PluginPipeline pipeline = getPluginPipeline(modelversion);
 
 		WorkflowKernel workflowkernel = new WorkflowKernel(this);
+		if (pluginMetrics != null)
+			workflowkernel.setPluginMonitor(pluginMetrics);
 
 		// register plugins defined in the environment.profile ....
-		List<String> vPlugins = (List<String>) profile.getItemValue("txtPlugins");
-		for (int i = 0; i < vPlugins.size(); i++) {
-			String aPluginClassName = vPlugins.get(i);
-
-			Plugin aPlugin = findPluginByName(aPluginClassName);
-			// aPlugin=null;
-			if (aPlugin != null) {
-				// register injected CDI Plugin
-				if (logger.isLoggable(Level.FINE))
-					logger.info("[WorkflowService] register CDI plugin class: " + aPluginClassName + "...");
-				workflowkernel.registerPlugin(aPlugin);
-			} else {
-				// register plugin by class name
-				workflowkernel.registerPlugin(aPluginClassName);
-			}
+		for (PluginPipeline.Entry entry : pipeline.getEntries()) {
+			workflowkernel.registerPlugin(createPlugin(entry));
 		}
 
 		// identify Caller and update CurrentEditor
@@ -621,8 +900,7 @@ public class WorkflowService implements WorkflowManager, WorkflowContext, Workfl
 		if (logger.isLoggable(Level.FINE))
 			logger.info("[WorkflowManager] workitem processed sucessfull");
 
-		return entityService.save(workitem);
-
+		return workitem;
 	}
 
 	public void removeWorkItem(ItemCollection aworkitem) throws AccessDeniedException {
@@ -707,27 +985,28 @@ public class WorkflowService implements WorkflowManager, WorkflowContext, Workfl
 	}
 
 	/**
-	 * generates a sort order clause depending on a sororder id
+	 * sets the sort order of a query depending on a sortorder id
 	 * 
+	 * @param query
 	 * @param asortorder
 	 * @return
 	 */
-	private String createSortOrderClause(int asortorder) {
+	private EntityQuery createSortOrder(EntityQuery query, int asortorder) {
 		switch (asortorder) {
-	
+
 		case WorkflowService.SORT_ORDER_CREATED_ASC: {
-			return " ORDER BY wi.created asc";
+			return query.orderBy(EntityQuery.CREATED, true);
 		}
 		case WorkflowService.SORT_ORDER_MODIFIED_ASC: {
-			return " ORDER BY wi.modified asc";
+			return query.orderBy(EntityQuery.MODIFIED, true);
 		}
 		case WorkflowService.SORT_ORDER_MODIFIED_DESC: {
-			return " ORDER BY wi.modified desc";
+			return query.orderBy(EntityQuery.MODIFIED, false);
 		}
 		default:
-			return " ORDER BY wi.created desc";
+			return query.orderBy(EntityQuery.CREATED, false);
 		}
-	
+
 	}
 
 	/**
@@ -756,6 +1035,122 @@ public class WorkflowService implements WorkflowManager, WorkflowContext, Workfl
 		return null;
 	}
 
+	/**
+	 * This method returns the PluginPipeline for a given $modelVersion. The
+	 * pipeline contains the plugins defined by the property 'txtPlugins' of
+	 * the WorkflowEnvironmentEntity "environment.profile". The pipeline is
+	 * computed only once for each model version and cached by the ModelCache.
+	 * 
+	 * @param modelversion
+	 *            - model version to find the profile
+	 * @return PluginPipeline
+	 * @throws ProcessingErrorException
+	 *             if no profile exists for the given model version
+	 * @throws PluginException
+	 *             if a plugin class can not be loaded
+	 */
+	private PluginPipeline getPluginPipeline(String modelversion) throws PluginException {
+		PluginPipeline pipeline = null;
+		if (modelCache != null) {
+			pipeline = modelCache.getPluginPipeline(modelversion);
+			if (pipeline != null)
+				return pipeline;
+		}
+
+		// Fetch the current Profile Entity for this version.
+		ItemCollection profile = findModelProfile(modelversion);
+		if (profile == null) {
+			// model profile not defined!
+			throw new ProcessingErrorException(WorkflowService.class.getSimpleName(),
+					ProcessingErrorException.INVALID_MODELVERSION,
+					"WorkflowService: fatal error - no valid model version '" + modelversion
+							+ "' found! Verify WorkflowModels.");
+		}
+
+		// resolve plugins defined in the environment.profile ....
+		List<PluginPipeline.Entry> entries = new ArrayList<PluginPipeline.Entry>();
+		@SuppressWarnings("unchecked")
+		List<String> vPlugins = (List<String>) profile.getItemValue("txtPlugins");
+		for (String aPluginClassName : vPlugins) {
+			if (aPluginClassName == null || aPluginClassName.isEmpty())
+				continue;
+			Plugin aPlugin = findPluginByName(aPluginClassName);
+			if (aPlugin != null) {
+				// injected CDI Plugin
+				if (logger.isLoggable(Level.FINE))
+					logger.info("[WorkflowService] register CDI plugin class: " + aPluginClassName + "...");
+				entries.add(new PluginPipeline.Entry(aPlugin.getClass(), true));
+			} else {
+				// plugin by class name
+				entries.add(new PluginPipeline.Entry(loadPluginClass(aPluginClassName), false));
+			}
+		}
+
+		pipeline = new PluginPipeline(modelversion, profile, entries);
+		if (modelCache != null)
+			modelCache.putPluginPipeline(pipeline);
+		return pipeline;
+	}
+
+	/**
+	 * Creates a new plugin instance for a PluginPipeline entry. CDI plugins are
+	 * selected from the injected plugin instances by their class.
+	 * 
+	 * @param entry
+	 * @return new plugin instance
+	 * @throws PluginException
+	 */
+	private Plugin createPlugin(PluginPipeline.Entry entry) throws PluginException {
+		Class<? extends Plugin> pluginClass = entry.getPluginClass();
+		if (entry.isCdiBean() && plugins != null) {
+			Instance<? extends Plugin> instance = plugins.select(pluginClass);
+			if (!instance.isUnsatisfied() && !instance.isAmbiguous()) {
+				return instance.get();
+			}
+			// fallback
+			Plugin aPlugin = findPluginByName(pluginClass.getName());
+			if (aPlugin != null)
+				return aPlugin;
+		}
+		try {
+			return pluginClass.newInstance();
+		} catch (InstantiationException e) {
+			throw new PluginException(WorkflowService.class.getSimpleName(), WorkflowKernel.PLUGIN_NOT_CREATEABLE,
+					"[WorkflowService] Could not register plugin: " + pluginClass.getName() + " reason: "
+							+ e.toString(),
+					e);
+		} catch (IllegalAccessException e) {
+			throw new PluginException(WorkflowService.class.getSimpleName(), WorkflowKernel.PLUGIN_NOT_CREATEABLE,
+					"[WorkflowService] Could not register plugin: " + pluginClass.getName() + " reason: "
+							+ e.toString(),
+					e);
+		}
+	}
+
+	/**
+	 * Loads a plugin class by its name.
+	 * 
+	 * @param pluginClassName
+	 * @return plugin class
+	 * @throws PluginException
+	 *             if the class can not be loaded or is not a plugin
+	 */
+	@SuppressWarnings("unchecked")
+	private Class<? extends Plugin> loadPluginClass(String pluginClassName) throws PluginException {
+		Class<?> clazz = null;
+		try {
+			clazz = Class.forName(pluginClassName);
+		} catch (ClassNotFoundException e) {
+			throw new PluginException(WorkflowService.class.getSimpleName(), WorkflowKernel.PLUGIN_NOT_CREATEABLE,
+					"[WorkflowService] Could not register plugin: " + pluginClassName + " reason: " + e.toString(), e);
+		}
+		if (!Plugin.class.isAssignableFrom(clazz)) {
+			throw new PluginException(WorkflowService.class.getSimpleName(), WorkflowKernel.PLUGIN_NOT_CREATEABLE,
+					"[WorkflowService] Could not register plugin: " + pluginClassName + " reason: no plugin class");
+		}
+		return (Class<? extends Plugin>) clazz;
+	}
+
 	/**
 	 * This method lookups the WorkflowEnvironmentEntity "environment.profile"
 	 * for a given $modelVersion. If no corresponding model exists the method
@@ -777,21 +1172,6 @@ public class WorkflowService implements WorkflowManager, WorkflowContext, Workfl
 		}
 	
 		// try to get a Profile matching the provided modelversion
-		Collection<ItemCollection> col;
-		String sQuery = null;
-		sQuery = "SELECT";
-		sQuery += " environment FROM Entity AS environment" + " JOIN environment.textItems as n "
-				+ " JOIN environment.textItems as v " + " WHERE environment.type = 'WorkflowEnvironmentEntity'"
-				+ " AND n.itemName = 'txtname' AND n.itemValue = 'environment.profile'"
-				+ " AND v.itemName = '$modelversion' AND v.itemValue = '" + modelversion + "' ";
-		col = entityService.findAllEntities(sQuery, 0, 1);
-		// if no model for that ModelVersion is found - throw a exception
-	
-		if (col.size() == 0) {
-			return null;
-		} else {
-			// return profile..
-			return col.iterator().next();
-		}
+		return modelService.getProfile(modelversion);
 	}
 }
@@ -0,0 +1,67 @@
+/*******************************************************************************
+ *  Imixs Workflow 
+ *  Copyright (C) 2001, 2011 Imixs Software Solutions GmbH,  
+ *  http://www.imixs.com
+ *  
+ *  This program is free software; you can redistribute it and/or 
+ *  modify it under the terms of the GNU General Public License 
+ *  as published by the Free Software Foundation; either version 2 
+ *  of the License, or (at your option) any later version.
+ *  
+ *  This program is distributed in the hope that it will be useful, 
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU 
+ *  General Public License for more details.
+ *  
+ *  You can receive a copy of the GNU General Public
+ *  License at http://www.gnu.org/licenses/gpl.html
+ *  
+ *  Project: 
+ *  	http://www.imixs.org
+ *  	http://java.net/projects/imixs-workflow
+ *  
+ *  Contributors:  
+ *  	Imixs Software Solutions GmbH - initial API and implementation
+ *  	Ralph Soika - Software Developer
+ *******************************************************************************/
+
+package org.imixs.workflow.jee.jpa;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import org.imixs.workflow.util.ItemCollectionCodec;
+
+/**
+ * The BinaryDataConverter stores the data of an Entity in the compact binary
+ * format of the ItemCollectionCodec. Data written by the Java serialization
+ * is still readable and will be converted into the binary format with the
+ * next update of the entity. The converter is activated by the property
+ * 'entity.dataformat=binary' in the imixs.properties.
+ * 
+ * @see org.imixs.workflow.util.ItemCollectionCodec
+ * @author rsoika
+ * @version 1.0
+ */
+public class BinaryDataConverter implements DataConverter {
+
+	@Override
+	public byte[] convertToDatabaseColumn(Map<String, List<Object>> attribute) {
+		try {
+			return ItemCollectionCodec.encode(attribute);
+		} catch (IOException e) {
+			throw new IllegalArgumentException("[BinaryDataConverter] unable to encode data: " + e.getMessage(), e);
+		}
+	}
+
+	@Override
+	public Map<String, List<Object>> convertToEntityAttribute(byte[] dbData) {
+		try {
+			return ItemCollectionCodec.decode(dbData);
+		} catch (IOException e) {
+			throw new IllegalStateException("[BinaryDataConverter] unable to decode data: " + e.getMessage(), e);
+		}
+	}
+
+}
@@ -0,0 +1,69 @@
+/*******************************************************************************
+ *  Imixs Workflow 
+ *  Copyright (C) 2001, 2011 Imixs Software Solutions GmbH,  
+ *  http://www.imixs.com
+ *  
+ *  This program is free software; you can redistribute it and/or 
+ *  modify it under the terms of the GNU General Public License 
+ *  as published by the Free Software Foundation; either version 2 
+ *  of the License, or (at your option) any later version.
+ *  
+ *  This program is distributed in the hope that it will be useful, 
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU 
+ *  General Public License for more details.
+ *  
+ *  You can receive a copy of the GNU General Public
+ *  License at http://www.gnu.org/licenses/gpl.html
+ *  
+ *  Project: 
+ *  	http://www.imixs.org
+ *  	http://java.net/projects/imixs-workflow
+ *  
+ *  Contributors:  
+ *  	Imixs Software Solutions GmbH - initial API and implementation
+ *  	Ralph Soika - Software Developer
+ *******************************************************************************/
+
+package org.imixs.workflow.jee.jpa;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A DataConverter converts the data of an Entity (the item map of an
+ * ItemCollection) into the binary representation stored in the database and
+ * back. The interface follows the JPA 2.1 AttributeConverter contract so a
+ * implementation can later be registered directly as a JPA converter.
+ * <p>
+ * The converter used by all entities can be set with the static method
+ * Entity.setDataConverter(). The default converter is the
+ * SerializedDataConverter. The converter is selected by the DataFormatService
+ * during the deployment.
+ * 
+ * @see org.imixs.workflow.jee.jpa.Entity
+ * @author rsoika
+ * @version 1.0
+ */
+public interface DataConverter {
+
+	/**
+	 * Converts the item map into the data stored in the database column.
+	 * 
+	 * @param attribute
+	 *            - item map
+	 * @return byte array
+	 */
+	public byte[] convertToDatabaseColumn(Map<String, List<Object>> attribute);
+
+	/**
+	 * Converts the data stored in the database column into the item map. A
+	 * converter must be able to read data written by all other converters.
+	 * 
+	 * @param dbData
+	 *            - byte array
+	 * @return item map
+	 */
+	public Map<String, List<Object>> convertToEntityAttribute(byte[] dbData);
+
+}
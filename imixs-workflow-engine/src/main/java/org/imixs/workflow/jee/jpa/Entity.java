@@ -34,6 +34,7 @@ import java.util.Map;
 import java.util.Vector;
 
 import javax.persistence.Basic;
+import javax.persistence.Column;
 import javax.persistence.FetchType;
 import javax.persistence.Id;
 import javax.persistence.Lob;
@@ -42,6 +43,7 @@ import javax.persistence.PrePersist;
 import javax.persistence.PreUpdate;
 import javax.persistence.Temporal;
 import javax.persistence.TemporalType;
+import javax.persistence.Transient;
 import javax.persistence.Version;
 
 import org.imixs.workflow.WorkflowKernel;
@@ -75,7 +77,11 @@ import org.imixs.workflow.WorkflowKernel;
  * ItemCollection managed by the EntityService.
  * <p>
  * The data attribute is used to hold the ItemCollection data. It is mapped by a
- * OR-Mapper to a large object (Lob). There is no way to query single attributes
+ * OR-Mapper to a large object (Lob). The item map is converted into the Lob by
+ * a DataConverter. The default converter stores the data by the Java
+ * serialization. The compact binary format of the ItemCollectionCodec can be
+ * activated by the DataFormatService. Both formats can be read independent of
+ * the selected converter. There is no way to query single attributes
  * using the EJB Query Language. To support the powerful EJB Query language the
  * Entity contains additional index properties to branch properties of an
  * ItemCollection into onToMany relationships. These are the supported Index
@@ -127,7 +133,9 @@ public class Entity implements java.io.Serializable {
 	private String type;
 	private Calendar created;
 	private Calendar modified;
-	private Map<String,List<Object>> data;
+	private transient Map<String,List<Object>> data;
+	private transient boolean keepModified = false;
+	private byte[] dataBytes;
 	private List<ReadAccess> readAccessList;
 	private List<WriteAccess> writeAccessList;
 
@@ -136,6 +144,7 @@ public class Entity implements java.io.Serializable {
 	private List<DoubleItem> doubleItems;
 	private List<CalendarItem> calendarItems;
 
+	private static volatile DataConverter dataConverter = new SerializedDataConverter();
 	
 	/**
 	 * A Entity will be automatically initialized with a unique id and a
@@ -241,38 +250,106 @@ public class Entity implements java.io.Serializable {
 		this.modified = modified;
 	}
 
+	/**
+	 * returns true if the modification time is not updated by the persistence
+	 * manager
+	 */
+	@Transient
+	public boolean isKeepModified() {
+		return keepModified;
+	}
+
+	/**
+	 * If set to true, the modification time of an existing entity is not
+	 * updated by the persistence manager. This is used to update properties
+	 * computed by the EntityService (e.g. an index) without changing the order
+	 * of entities sorted by their modification time.
+	 * 
+	 * @param keepModified
+	 */
+	public void setKeepModified(boolean keepModified) {
+		this.keepModified = keepModified;
+	}
+
 	/**
 	 * updates the modification time before a update by a persistence manager is
 	 * performed.
 	 */
 	@PrePersist
 	@PreUpdate
-	private void updateModified() {
+	void updateModified() {
+		if (keepModified && modified != null)
+			return;
 		Calendar cal = Calendar.getInstance();
 		modified = cal;
 	}
 
 	/**
 	 * returns the data object part of the Entity represented by a
-	 * java.util.Map
+	 * java.util.Map. The map is decoded from the Lob with the first call.
 	 * 
 	 * @return Map
 	 */
-	@Lob
-	@Basic(fetch = FetchType.LAZY)
+	@Transient
 	public Map<String, List<Object>> getData() {
+		if (data == null) {
+			// use the getter to trigger the lazy loading of the Lob
+			byte[] bytes = getDataBytes();
+			if (bytes != null)
+				data = dataConverter.convertToEntityAttribute(bytes);
+		}
 		return data;
 	}
 
 	/**
-	 * sets a data object for this Entity.
+	 * sets a data object for this Entity. The data is encoded immediately by
+	 * the current DataConverter.
 	 * 
 	 * @param data
 	 */
 	public void setData(Map<String,List<Object>> itemCol) {
+		setDataBytes(itemCol == null ? null : dataConverter.convertToDatabaseColumn(itemCol));
 		this.data = itemCol;
 	}
 
+	/**
+	 * returns the encoded data object stored in the Lob.
+	 * 
+	 * @return encoded data
+	 */
+	@Lob
+	@Basic(fetch = FetchType.LAZY)
+	@Column(name = "DATA")
+	protected byte[] getDataBytes() {
+		return dataBytes;
+	}
+
+	protected void setDataBytes(byte[] dataBytes) {
+		this.dataBytes = dataBytes;
+		this.data = null;
+	}
+
+	/**
+	 * returns the DataConverter used to store the data of all entities
+	 * 
+	 * @return DataConverter
+	 */
+	public static DataConverter getDataConverter() {
+		return dataConverter;
+	}
+
+	/**
+	 * sets the DataConverter used to store the data of all entities. Data
+	 * stored by a different converter remains readable.
+	 * 
+	 * @param converter
+	 */
+	public static void setDataConverter(DataConverter converter) {
+		if (converter == null)
+			converter = new SerializedDataConverter();
+		dataConverter = converter;
+	}
+
 	/**
 	 * ReadAccess list is loaded eager as this need to be check on every access
 	 * 
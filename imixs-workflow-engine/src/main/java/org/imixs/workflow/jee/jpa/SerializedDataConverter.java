@@ -0,0 +1,74 @@
+/*******************************************************************************
+ *  Imixs Workflow 
+ *  Copyright (C) 2001, 2011 Imixs Software Solutions GmbH,  
+ *  http://www.imixs.com
+ *  
+ *  This program is free software; you can redistribute it and/or 
+ *  modify it under the terms of the GNU General Public License 
+ *  as published by the Free Software Foundation; either version 2 
+ *  of the License, or (at your option) any later version.
+ *  
+ *  This program is distributed in the hope that it will be useful, 
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU 
+ *  General Public License for more details.
+ *  
+ *  You can receive a copy of the GNU General Public
+ *  License at http://www.gnu.org/licenses/gpl.html
+ *  
+ *  Project: 
+ *  	http://www.imixs.org
+ *  	http://java.net/projects/imixs-workflow
+ *  
+ *  Contributors:  
+ *  	Imixs Software Solutions GmbH - initial API and implementation
+ *  	Ralph Soika - Software Developer
+ *******************************************************************************/
+
+package org.imixs.workflow.jee.jpa;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.List;
+import java.util.Map;
+
+import org.imixs.workflow.util.ItemCollectionCodec;
+
+/**
+ * The SerializedDataConverter stores the data of an Entity by the Java
+ * serialization. This is the default format and the format used by older
+ * versions, so the data remains readable if the database is shared with an
+ * older version. Data written in the binary format is still readable.
+ * 
+ * @author rsoika
+ * @version 1.0
+ */
+public class SerializedDataConverter implements DataConverter {
+
+	@Override
+	public byte[] convertToDatabaseColumn(Map<String, List<Object>> attribute) {
+		if (attribute == null)
+			return null;
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			ObjectOutputStream out = new ObjectOutputStream(bytes);
+			out.writeObject(attribute);
+			out.close();
+			return bytes.toByteArray();
+		} catch (IOException e) {
+			throw new IllegalArgumentException("[SerializedDataConverter] unable to serialize data: "
+					+ e.getMessage(), e);
+		}
+	}
+
+	@Override
+	public Map<String, List<Object>> convertToEntityAttribute(byte[] dbData) {
+		try {
+			return ItemCollectionCodec.decode(dbData);
+		} catch (IOException e) {
+			throw new IllegalStateException("[SerializedDataConverter] unable to read data: " + e.getMessage(), e);
+		}
+	}
+
+}
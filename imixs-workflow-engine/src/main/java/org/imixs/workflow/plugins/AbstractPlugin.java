@@ -28,6 +28,7 @@
 package org.imixs.workflow.plugins;
 
 import java.text.DateFormat;
+import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Arrays;
 import java.util.Calendar;
@@ -35,7 +36,6 @@ import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
-import java.util.StringTokenizer;
 import java.util.Vector;
 import java.util.logging.Logger;
 
@@ -91,104 +91,21 @@ public abstract class AbstractPlugin implements Plugin {
 	 * 
 	 * </code>
 	 * 
+	 * The string is parsed only once into a ItemValueTemplate which is cached
+	 * for further calls.
 	 * 
-	 * 
+	 * @see ItemValueTemplate
 	 */
 	public String replaceDynamicValues(String aString, ItemCollection documentContext) throws PluginException {
-		int iTagStartPos;
-		int iTagEndPos;
-		int iContentStartPos;
-		int iContentEndPos;
-
-		String sFormat = "";
-		String sSeparator = " ";
-		String sItemValue;
-
 		if (aString == null)
 			return "";
 
-		/*
-		 * 
-		 * TODO This code should be refactored using the new helper class
-		 * org.imixs.workflow.util.XMLParser
-		 * 
-		 * 
-		 */
-
-		// test if a <value> tag exists...
-		while ((iTagStartPos = aString.toLowerCase().indexOf("<itemvalue")) != -1) {
-
-			iTagEndPos = aString.toLowerCase().indexOf("</itemvalue>", iTagStartPos);
-
-			// if no end tag found return string unchanged...
-			if (iTagEndPos == -1) {
-				throw new PluginException(this.getClass().getSimpleName(), INVALID_ITEMVALUE_FORMAT,
-						"[AbstractPlugin] invalid itemvalue format: " + aString);
-			}
-
-			// reset pos vars
-			iContentStartPos = 0;
-			iContentEndPos = 0;
-			sFormat = "";
-			sSeparator = " ";
-			sItemValue = "";
-
-			// so we now search the beginning of the tag content
-			iContentEndPos = iTagEndPos;
-			// start pos is the last > before the iContentEndPos
-			String sTestString = aString.substring(0, iContentEndPos);
-			iContentStartPos = sTestString.lastIndexOf('>') + 1;
-
-			// if no end tag found return string unchanged...
-			if (iContentStartPos >= iContentEndPos) {
-				throw new PluginException(this.getClass().getSimpleName(), INVALID_ITEMVALUE_FORMAT,
-						"[AbstractPlugin] invalid itemvalue format: " + aString);
-			}
-
-			iTagEndPos = iTagEndPos + "</itemvalue>".length();
-
-			// now we have the start and end position of a tag and also the
-			// start and end pos of the value
-
-			// next we check if the start tag contains a 'format' attribute
-			sFormat = extractAttribute(aString.substring(0, iContentEndPos), "format");
-
-			// next we check if the start tag contains a 'separator' attribute
-			sSeparator = extractAttribute(aString.substring(0, iContentEndPos), "separator");
-
-			// extract locale...
-			Locale locale = null;
-			String sLocale = extractAttribute(aString.substring(0, iContentEndPos), "locale");
-			if (sLocale != null && !sLocale.isEmpty()) {
-				// split locale
-				StringTokenizer stLocale = new StringTokenizer(sLocale, "_");
-				if (stLocale.countTokens() == 1) {
-					// only language variant
-					String sLang = stLocale.nextToken();
-					String sCount = sLang.toUpperCase();
-					locale = new Locale(sLang, sCount);
-				} else {
-					// language and country
-					String sLang = stLocale.nextToken();
-					String sCount = stLocale.nextToken();
-					locale = new Locale(sLang, sCount);
-				}
-			}
-
-			// extract Item Value
-			sItemValue = aString.substring(iContentStartPos, iContentEndPos);
-
-			// format field value
-			List<?> vValue = documentContext.getItemValue(sItemValue);
-
-			String sResult = formatItemValues(vValue, sSeparator, sFormat, locale);
-
-			// now replace the tag with the result string
-			aString = aString.substring(0, iTagStartPos) + sResult + aString.substring(iTagEndPos);
+		try {
+			return ItemValueTemplate.compile(aString).render(documentContext);
+		} catch (ParseException e) {
+			throw new PluginException(this.getClass().getSimpleName(), INVALID_ITEMVALUE_FORMAT,
+					"[AbstractPlugin] invalid itemvalue format: " + aString);
 		}
-
-		return aString;
-
 	}
 
 	/**
@@ -197,29 +114,20 @@ public abstract class AbstractPlugin implements Plugin {
 	 */
 	public static String formatItemValues(Collection<?> aItem, String aSeparator, String sFormat, Locale locale) {
 
-		StringBuffer sBuffer = new StringBuffer();
-
 		if (aItem == null)
 			return "";
 
+		StringBuilder sBuffer = new StringBuilder();
+		boolean first = true;
 		for (Object aSingleValue : aItem) {
-			String aValue = formatObjectValue(aSingleValue, sFormat, locale);
-			sBuffer.append(aValue);
 			// append delimiter
-			if (aSeparator != null) {
+			if (aSeparator != null && !first) {
 				sBuffer.append(aSeparator);
 			}
+			first = false;
+			sBuffer.append(formatObjectValue(aSingleValue, sFormat, locale));
 		}
-
-		String sString = sBuffer.toString();
-
-		// cut last separator
-		if (aSeparator != null && sString.endsWith(aSeparator)) {
-			sString = sString.substring(0, sString.lastIndexOf(aSeparator));
-		}
-
-		return sString;
-
+		return sBuffer.toString();
 	}
 
 	/**
@@ -286,21 +194,6 @@ public abstract class AbstractPlugin implements Plugin {
 		return o.toString();
 	}
 
-	private String extractAttribute(String aString, String attributeName) {
-		int iTagStartPos = -1;
-		String sAttributeValue = null;
-		// next we check if the start tag contains a 'format' attribute
-		int iAttributeStartPos = aString.toLowerCase().indexOf(attributeName + "=", iTagStartPos);
-		// extract format string if available
-		if (iAttributeStartPos > -1) {
-			iAttributeStartPos = aString.indexOf("\"", iAttributeStartPos) + 1;
-			int iAttributEndPos = aString.indexOf("\"", iAttributeStartPos + 1);
-			sAttributeValue = aString.substring(iAttributeStartPos, iAttributEndPos);
-		}
-
-		return sAttributeValue;
-	}
-
 	/**
 	 * This method merges the values from a SourceList into a valueList and
 	 * removes duplicates.
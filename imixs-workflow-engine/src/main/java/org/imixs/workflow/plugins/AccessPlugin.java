@@ -109,7 +109,7 @@ public class AccessPlugin extends AbstractPlugin {
 		documentActivity = adocumentActivity;
 
 		// save Attributes for roleback
-		itemReadRollback = (Vector) documentContext.getItemValue("$readAccess");
+		itemReadRollback = documentContext.getItemValue("$readAccess");
 		itemWriteRollback = documentContext.getItemValue("$writeAccess");
 
 		// test if fallback mode?
@@ -240,7 +240,7 @@ public class AccessPlugin extends AbstractPlugin {
 		List itemWrite;
 		List vectorAccess;
 
-		itemRead = (Vector) documentContext.getItemValue("$readAccess");
+		itemRead = documentContext.getItemValue("$readAccess");
 
 		// test mode (1=update)
 		if ("1".equals(documentActivity.getItemValueString("keyaccessmode")))
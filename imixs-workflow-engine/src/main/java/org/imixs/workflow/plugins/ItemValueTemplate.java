@@ -0,0 +1,222 @@
+/*******************************************************************************
+ *  Imixs Workflow 
+ *  Copyright (C) 2001, 2011 Imixs Software Solutions GmbH,  
+ *  http://www.imixs.com
+ *  
+ *  This program is free software; you can redistribute it and/or 
+ *  modify it under the terms of the GNU General Public License 
+ *  as published by the Free Software Foundation; either version 2 
+ *  of the License, or (at your option) any later version.
+ *  
+ *  This program is distributed in the hope that it will be useful, 
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU 
+ *  General Public License for more details.
+ *  
+ *  You can receive a copy of the GNU General Public
+ *  License at http://www.gnu.org/licenses/gpl.html
+ *  
+ *  Project: 
+ *  	http://www.imixs.org
+ *  	http://java.net/projects/imixs-workflow
+ *  
+ *  Contributors:  
+ *  	Imixs Software Solutions GmbH - initial API and implementation
+ *  	Ralph Soika - Software Developer
+ *******************************************************************************/
+
+package org.imixs.workflow.plugins;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.StringTokenizer;
+
+import org.imixs.workflow.ItemCollection;
+
+/**
+ * An ItemValueTemplate is a text containing <itemvalue> tags which is parsed
+ * into a list of literal text segments and item references. A template is
+ * rendered against a ItemCollection in one pass. Each <itemvalue> tag is
+ * replaced with the formated values of the referred item:
+ * 
+ * <code>
+ *   hello <itemvalue>namCreator</itemvalue>
+ *   Last access Time= <itemvalue format="mm:ss">$created</itemvalue>
+ *   Phone List: <itemvalue separator="<br />">txtPhones</itemvalue>
+ * </code>
+ * 
+ * Templates are immutable and cached by their content. So mail bodies,
+ * subjects or result definitions of an activity are parsed only once.
+ * 
+ * @see AbstractPlugin#replaceDynamicValues(String, ItemCollection)
+ * @author rsoika
+ * @version 1.0
+ */
+public class ItemValueTemplate {
+
+	static final int MAX_CACHE_SIZE = 256;
+
+	private static final String START_TAG = "<itemvalue";
+	private static final String END_TAG = "</itemvalue>";
+
+	private static final Map<String, ItemValueTemplate> cache = Collections
+			.synchronizedMap(new LinkedHashMap<String, ItemValueTemplate>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, ItemValueTemplate> eldest) {
+					return size() > MAX_CACHE_SIZE;
+				}
+			});
+
+	private final String template;
+	// literals[i] is followed by references[i]
+	private final String[] literals;
+	private final ItemReference[] references;
+
+	private ItemValueTemplate(String template, List<String> literals, List<ItemReference> references) {
+		this.template = template;
+		this.literals = literals.toArray(new String[literals.size()]);
+		this.references = references.toArray(new ItemReference[references.size()]);
+	}
+
+	/**
+	 * Returns the parsed template for the given text. The template is taken
+	 * from the cache if the text was already parsed.
+	 * 
+	 * @param template
+	 *            - text containing <itemvalue> tags
+	 * @return parsed template
+	 * @throws ParseException
+	 *             if a <itemvalue> tag is not closed or contains no item
+	 *             name
+	 */
+	public static ItemValueTemplate compile(String template) throws ParseException {
+		// a text without tags is not cached
+		if (indexOfIgnoreCase(template, START_TAG, 0) == -1)
+			return new ItemValueTemplate(template, Collections.singletonList(template),
+					Collections.<ItemReference> emptyList());
+		ItemValueTemplate result = cache.get(template);
+		if (result == null) {
+			result = parse(template);
+			cache.put(template, result);
+		}
+		return result;
+	}
+
+	/**
+	 * Renders the template with the item values of the given document.
+	 */
+	public String render(ItemCollection documentContext) {
+		if (references.length == 0)
+			return template;
+		StringBuilder sb = new StringBuilder(template.length() + 16 * references.length);
+		for (int i = 0; i < references.length; i++) {
+			sb.append(literals[i]);
+			ItemReference reference = references[i];
+			List<?> values = documentContext.getItemValue(reference.itemName);
+			sb.append(AbstractPlugin.formatItemValues(values, reference.separator, reference.format,
+					reference.locale));
+		}
+		sb.append(literals[references.length]);
+		return sb.toString();
+	}
+
+	private static ItemValueTemplate parse(String template) throws ParseException {
+		List<String> literals = new ArrayList<String>();
+		List<ItemReference> references = new ArrayList<ItemReference>();
+		int pos = 0;
+		int tagStart;
+		while ((tagStart = indexOfIgnoreCase(template, START_TAG, pos)) != -1) {
+			int contentEnd = indexOfIgnoreCase(template, END_TAG, tagStart);
+			if (contentEnd == -1)
+				throw new ParseException("missing " + END_TAG, tagStart);
+			// the item name starts after the last '>' before the end tag, so
+			// attribute values may contain a '>'
+			int contentStart = template.lastIndexOf('>', contentEnd - 1) + 1;
+			if (contentStart <= tagStart + START_TAG.length() || contentStart >= contentEnd)
+				throw new ParseException("missing item name", tagStart);
+
+			String tag = template.substring(tagStart, contentStart);
+			literals.add(template.substring(pos, tagStart));
+			references.add(new ItemReference(template.substring(contentStart, contentEnd),
+					extractAttribute(tag, "format"), extractAttribute(tag, "separator"),
+					parseLocale(extractAttribute(tag, "locale"))));
+			pos = contentEnd + END_TAG.length();
+		}
+		literals.add(template.substring(pos));
+		return new ItemValueTemplate(template, literals, references);
+	}
+
+	/**
+	 * Returns the value of a quoted attribute or null if the tag contains no
+	 * such attribute.
+	 */
+	private static String extractAttribute(String tag, String attributeName) {
+		int pos = tag.toLowerCase().indexOf(attributeName + "=");
+		if (pos == -1)
+			return null;
+		int valueStart = tag.indexOf('"', pos);
+		if (valueStart == -1)
+			return null;
+		int valueEnd = tag.indexOf('"', valueStart + 1);
+		if (valueEnd == -1)
+			return null;
+		return tag.substring(valueStart + 1, valueEnd);
+	}
+
+	/**
+	 * Parses a locale in the format 'language' or 'language_COUNTRY'. If only
+	 * the language is given, the country is the upper cased language.
+	 */
+	private static Locale parseLocale(String sLocale) {
+		if (sLocale == null || sLocale.isEmpty())
+			return null;
+		StringTokenizer stLocale = new StringTokenizer(sLocale, "_");
+		String sLang = stLocale.nextToken();
+		if (!stLocale.hasMoreTokens()) {
+			// only language variant
+			return new Locale(sLang, sLang.toUpperCase());
+		}
+		// language and country
+		return new Locale(sLang, stLocale.nextToken());
+	}
+
+	/**
+	 * Returns the position of the token ignoring the case. The token must
+	 * start with a character without case, e.g. '<'.
+	 */
+	private static int indexOfIgnoreCase(String s, String token, int fromIndex) {
+		char first = token.charAt(0);
+		int pos = fromIndex;
+		while ((pos = s.indexOf(first, pos)) != -1) {
+			if (s.regionMatches(true, pos, token, 0, token.length()))
+				return pos;
+			pos++;
+		}
+		return -1;
+	}
+
+	/**
+	 * A reference to an item with the format definitions of the <itemvalue>
+	 * tag
+	 */
+	private static class ItemReference {
+		final String itemName;
+		final String format;
+		final String separator;
+		final Locale locale;
+
+		ItemReference(String itemName, String format, String separator, Locale locale) {
+			this.itemName = itemName;
+			this.format = format;
+			this.separator = separator;
+			this.locale = locale;
+		}
+	}
+}
@@ -80,7 +80,7 @@ import org.imixs.workflow.exceptions.PluginException;
 public class OwnerPlugin extends AbstractPlugin {
 	ItemCollection documentContext;
 	ItemCollection documentActivity, documentNextProcessEntity;
-	Vector<?> itemOwnerRollback;
+	List<?> itemOwnerRollback;
 
 	private static Logger logger = Logger.getLogger(AccessPlugin.class.getName());
 
@@ -98,7 +98,7 @@ public class OwnerPlugin extends AbstractPlugin {
 		documentActivity = adocumentActivity;
 
 		// save Attributes for roleback
-		itemOwnerRollback = (Vector) documentContext.getItemValue("namowner");
+		itemOwnerRollback = documentContext.getItemValue("namowner");
 
 		// test if fallback mode?
 		if (isFallBackMode()) {
@@ -202,10 +202,10 @@ public class OwnerPlugin extends AbstractPlugin {
 		List itemOwner;
 		List vectorAccess;
 
-		itemOwner = (Vector) documentContext.getItemValue("namowner");
+		itemOwner = documentContext.getItemValue("namowner");
 
 		// save Attribute for roleback
-		itemOwnerRollback = (Vector) documentContext.getItemValue("namOwners");
+		itemOwnerRollback = documentContext.getItemValue("namOwners");
 
 		// add new ownership
 		if ("1".equals(documentActivity.getItemValueString("keyOwnershipMode")))
@@ -83,6 +83,11 @@ public class ResultPlugin extends AbstractPlugin {
 
 	public static final String INVALID_FORMAT = "INVALID_FORMAT";
 
+	// <item> tags with attributes (including empty item tags)
+	private static final Pattern ITEM_PATTERN = Pattern.compile("<item(.*?)>(.*?)</item>|<item(.*?)./>");
+	private static final Pattern ATTRIBUTE_PATTERN = Pattern
+			.compile("(\\S+)=[\"']?((?:.(?![\"']?\\s+(?:\\S+)=|[>\"']))+.)[\"']?");
+
 	ItemCollection documentContext;
 	String sActivityResult;
 	private static Logger logger = Logger.getLogger(ResultPlugin.class.getName());
@@ -388,8 +393,7 @@ public class ResultPlugin extends AbstractPlugin {
 
 		// extract all <item> tags with attributes using regex (including empty
 		// item tags)
-		Pattern pattern = Pattern.compile("<item(.*?)>(.*?)</item>|<item(.*?)./>");
-		Matcher matcher = pattern.matcher(workflowResult);
+		Matcher matcher = ITEM_PATTERN.matcher(workflowResult);
 		while (matcher.find()) {
 			invalidPattern = false;
 			// we expect up to 3 different result groups
@@ -410,9 +414,7 @@ public class ResultPlugin extends AbstractPlugin {
 			// now extract the attributes to verify the item name..
 			if (attributes != null && !attributes.isEmpty()) {
 				// parse attributes...
-				String spattern = "(\\S+)=[\"']?((?:.(?![\"']?\\s+(?:\\S+)=|[>\"']))+.)[\"']?";
-				Pattern attributePattern = Pattern.compile(spattern);
-				Matcher attributeMatcher = attributePattern.matcher(attributes);
+				Matcher attributeMatcher = ATTRIBUTE_PATTERN.matcher(attributes);
 				Map<String, String> attrMap = new HashMap<String, String>();
 				while (attributeMatcher.find()) {
 					String attrName = attributeMatcher.group(1); // name
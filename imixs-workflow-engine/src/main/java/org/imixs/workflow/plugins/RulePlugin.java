@@ -29,26 +29,43 @@ package org.imixs.workflow.plugins;
 
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collection;
 import java.util.Date;
 import java.util.GregorianCalendar;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
+import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.ScriptContext;
 import javax.script.ScriptEngine;
 import javax.script.ScriptEngineManager;
 import javax.script.ScriptException;
+import javax.script.SimpleBindings;
 
 import org.imixs.workflow.ItemCollection;
 import org.imixs.workflow.Plugin;
 import org.imixs.workflow.WorkflowContext;
 import org.imixs.workflow.exceptions.PluginException;
+import org.imixs.workflow.plugins.rule.RuleScriptEngineFactory;
 
 /**
  * The Imixs Rule Plugin evaluates a business rule provided by the current
@@ -95,6 +112,17 @@ import org.imixs.workflow.exceptions.PluginException;
  * 
  * NOTE: all variable names are case sensitive!
  * 
+ * The script engines are pooled per script language. Each pooled engine
+ * caches the compiled scripts (if the engine supports the interface
+ * Compilable). A script is evaluated with new engine bindings, so variables of
+ * a previous evaluation are not visible. The maps 'workitem' and 'activity'
+ * convert the item values on first access. The basic item values of the
+ * workItem are only provided as script variables if the item name is used in
+ * the script. The engine is returned to the pool by the method close().
+ * 
+ * For simple guards the built-in rule language 'imixs-rule' can be used
+ * instead of JavaScript. See the RuleScriptEngine.
+ * 
  * @author Ralph Soika
  * @version 2.0
  * 
@@ -106,6 +134,18 @@ public class RulePlugin extends AbstractPlugin {
 	public static final String VALIDATION_ERROR = "VALIDATION_ERROR";
 	private static Logger logger = Logger.getLogger(RulePlugin.class.getName());
 
+	// max number of pooled engines per script language
+	static final int MAX_POOL_SIZE = 16;
+	// max number of compiled scripts per engine
+	static final int MAX_SCRIPT_CACHE_SIZE = 256;
+
+	private static final Pattern IDENTIFIER = Pattern.compile("[A-Za-z_$][A-Za-z0-9_$]*");
+	private static final ConcurrentMap<String, Queue<PooledEngine>> enginePool = new ConcurrentHashMap<String, Queue<PooledEngine>>();
+	private static volatile ScriptEngineManager scriptEngineManager = null;
+
+	// the engine used by this plugin instance until close()
+	private PooledEngine pooledEngine = null;
+
 	@Override
 	public void init(WorkflowContext actx) throws PluginException {
 		super.init(actx);
@@ -190,10 +230,11 @@ public class RulePlugin extends AbstractPlugin {
 	}
 
 	/**
-	 * nothing to do
+	 * Returns the script engine to the pool
 	 */
 	@Override
 	public void close(int status) {
+		releaseEngine();
 	}
 
 	/**
@@ -239,43 +280,45 @@ public class RulePlugin extends AbstractPlugin {
 			return null; // nothing to do
 
 		// initialize the script engine...
-		ScriptEngineManager manager = new ScriptEngineManager();
 		String sEngineType = activity.getItemValueString("txtBusinessRuleEngine");
 		// set default engine to javascript if no engine is specified
 		if ("".equals(sEngineType))
 			sEngineType = "javascript";
 
-		ScriptEngine engine = manager.getEngineByName(sEngineType);
-
-		// set activity properties into engine
-		engine.put("activity", convertItemCollection(activity));
-		engine.put("workitem", convertItemCollection(documentContext));
-
-		// The following code is only for backward compatibility since version
-		// 3.1.9
-		// setup document data...
-		Map<String, List<Object>> itemList = documentContext.getAllItems();
-		for (Map.Entry<String, List<Object>> entry : itemList.entrySet()) {
-			String key = entry.getKey().toLowerCase();
-			List<?> value = (List<?>) entry.getValue();
-			// do only put basic values and not values starting the $
-			if (!key.startsWith("$") && value.size() > 0) {
-				if (isBasicObjectType(value.get(0).getClass())) {
-					engine.put(key, value.toArray());
+		logger.fine("SCRIPT:" + script);
+		try {
+			PooledEngine pooled = getEngine(sEngineType);
+			PooledScript pooledScript = pooled.getScript(script);
+			ScriptEngine engine = pooled.engine;
+
+			// evaluate the script with new bindings
+			Bindings bindings = engine.createBindings();
+			// set activity properties into engine
+			bindings.put("activity", new ItemValueMap(activity));
+			bindings.put("workitem", new ItemValueMap(documentContext));
+
+			// The following code is only for backward compatibility since
+			// version 3.1.9
+			// setup document data for each item name used by the script...
+			for (String key : pooledScript.identifiers) {
+				List<?> value = documentContext.getItemValue(key);
+				// do only put basic values
+				if (value.size() > 0 && isBasicObjectType(value.get(0).getClass())) {
+					bindings.put(key, value.toArray());
 				}
 			}
-		}
+			engine.setBindings(bindings, ScriptContext.ENGINE_SCOPE);
 
-		logger.fine("SCRIPT:" + script);
-		try {
-			engine.eval(script);
+			if (pooledScript.compiledScript != null)
+				pooledScript.compiledScript.eval();
+			else
+				engine.eval(script);
+			return engine;
 		} catch (ScriptException e) {
 			// script not valid
 			throw new PluginException(RulePlugin.class.getSimpleName(), INVALID_SCRIPT,
 					"BusinessRule contains invalid script:" + e.getMessage(), e);
 		}
-
-		return engine;
 	}
 
 	/**
@@ -305,6 +348,10 @@ public class RulePlugin extends AbstractPlugin {
 			params[0] = objectResult.toString();
 			return params;
 		}
+		// test if the var is an array - so we need no further evaluation
+		params = toArray(objectResult);
+		if (params != null)
+			return params;
 
 		// now try to pass the object to engine and convert it into a
 		// ArryList....
@@ -357,20 +404,26 @@ public class RulePlugin extends AbstractPlugin {
 	@SuppressWarnings({ "unchecked", "rawtypes" })
 	private void updateActivityEntity(ScriptEngine engine, ItemCollection adocumentActivity) {
 
-		Map<String, Object[]> orginalActivity = convertItemCollection(adocumentActivity);
 		// get activity from engine
-		Map<String, Object[]> scriptActivity = (Map) engine.get("activity");
-
-		// iterate over all entries
-		for (Map.Entry<String, Object[]> entry : scriptActivity.entrySet()) {
-
-			String expression = "activity.get('" + entry.getKey() + "')";
+		Object scriptObject = engine.get("activity");
+		if (!(scriptObject instanceof ItemValueMap))
+			return;
+		ItemValueMap scriptActivity = (ItemValueMap) scriptObject;
+
+		// iterate over all entries read or changed by the script
+		for (Map.Entry<String, Object> entry : scriptActivity.values.entrySet()) {
+			if (entry.getValue() == null)
+				continue;
 
-			Object[] oScript = evaluateScriptObject(engine, expression);
+			Object[] oScript = toArray(entry.getValue());
+			if (oScript == null) {
+				String expression = "activity.get('" + entry.getKey() + "')";
+				oScript = evaluateScriptObject(engine, expression);
+			}
 			if (oScript == null) {
 				continue;
 			}
-			Object[] oActivity = orginalActivity.get(entry.getKey());
+			Object[] oActivity = convertItemValue(adocumentActivity, entry.getKey());
 			if (oActivity == null) {
 				continue;
 			}
@@ -387,27 +440,235 @@ public class RulePlugin extends AbstractPlugin {
 	}
 
 	/**
-	 * This method converts the values of an ItemCollection into a Map Object
-	 * with Arrays of Objects for each value
+	 * This method converts the values of an item into an array of Objects. The
+	 * method returns null if the item has no values or the values are not of
+	 * a basic type. The item name is case sensitive and must be lower case.
 	 * 
 	 * @param itemCol
-	 * @return
+	 * @param key
+	 *            - lower cased item name
+	 * @return array of values or null
 	 */
-	private Map<String, Object[]> convertItemCollection(ItemCollection itemCol) {
-		Map<String, Object[]> result = new HashMap<String, Object[]>();
-		Map<String, List<Object>> itemList = itemCol.getAllItems();
-		for (Map.Entry<String, List<Object>> entry : itemList.entrySet()) {
-			String key = entry.getKey().toLowerCase();
-			List<?> value = (List<?>) entry.getValue();
-			// do only put basic values
-			if (value.size() > 0) {
-				if (isBasicObjectType(value.get(0).getClass())) {
-					result.put(key, value.toArray());
-				}
+	private static Object[] convertItemValue(ItemCollection itemCol, String key) {
+		if (!key.equals(key.toLowerCase()))
+			return null;
+		List<?> value = itemCol.getItemValue(key);
+		// do only put basic values
+		if (value.size() > 0 && isBasicObjectType(value.get(0).getClass())) {
+			return value.toArray();
+		}
+		return null;
+	}
+
+	/**
+	 * Converts an array, a list or a script array into an Object array. The
+	 * method returns null if the object can not be converted without a
+	 * script evaluation.
+	 * 
+	 * A script array is provided by the script engine as a Map with the keys
+	 * '0', '1', '2'...
+	 */
+	@SuppressWarnings("rawtypes")
+	private static Object[] toArray(Object object) {
+		if (object instanceof Object[])
+			return ((Object[]) object).clone();
+		if (object instanceof List)
+			return ((List) object).toArray();
+		if (object instanceof Map) {
+			Map map = (Map) object;
+			if (map.isEmpty())
+				return null;
+			int i = 0;
+			for (Object key : map.keySet()) {
+				if (!String.valueOf(i++).equals(key))
+					return null;
+			}
+			return map.values().toArray();
+		}
+		return null;
+	}
+
+	/**
+	 * Returns an engine for the given script language. The engine is taken
+	 * from the pool and is used by this plugin instance until close() is
+	 * called.
+	 */
+	private PooledEngine getEngine(String engineType) throws ScriptException {
+		if (pooledEngine != null) {
+			if (pooledEngine.engineType.equals(engineType))
+				return pooledEngine;
+			releaseEngine();
+		}
+		Queue<PooledEngine> pool = enginePool.get(engineType);
+		PooledEngine pooled = (pool != null) ? pool.poll() : null;
+		if (pooled == null) {
+			ScriptEngine engine = getScriptEngineManager().getEngineByName(engineType);
+			if (engine == null)
+				throw new ScriptException("script engine '" + engineType + "' not found");
+			pooled = new PooledEngine(engineType, engine);
+		}
+		pooledEngine = pooled;
+		return pooled;
+	}
+
+	/**
+	 * Returns the ScriptEngineManager. The Imixs rule engine is registered
+	 * independent of the context class loader.
+	 */
+	private static ScriptEngineManager getScriptEngineManager() {
+		ScriptEngineManager manager = scriptEngineManager;
+		if (manager == null) {
+			manager = new ScriptEngineManager();
+			RuleScriptEngineFactory factory = new RuleScriptEngineFactory();
+			for (String name : factory.getNames())
+				manager.registerEngineName(name, factory);
+			scriptEngineManager = manager;
+		}
+		return manager;
+	}
+
+	/**
+	 * Returns the engine used by this plugin instance to the pool.
+	 */
+	private void releaseEngine() {
+		PooledEngine pooled = pooledEngine;
+		if (pooled == null)
+			return;
+		pooledEngine = null;
+		// release the bindings with the workitem values
+		pooled.engine.setBindings(new SimpleBindings(), ScriptContext.ENGINE_SCOPE);
+		Queue<PooledEngine> pool = enginePool.get(pooled.engineType);
+		if (pool == null) {
+			enginePool.putIfAbsent(pooled.engineType, new ConcurrentLinkedQueue<PooledEngine>());
+			pool = enginePool.get(pooled.engineType);
+		}
+		if (pool.size() < MAX_POOL_SIZE)
+			pool.offer(pooled);
+	}
+
+	/**
+	 * A pooled script engine with a cache of compiled scripts. The instance is
+	 * used only by one thread at the same time.
+	 */
+	static class PooledEngine {
+		final String engineType;
+		final ScriptEngine engine;
+		final Map<String, PooledScript> scripts = new LinkedHashMap<String, PooledScript>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, PooledScript> eldest) {
+				return size() > MAX_SCRIPT_CACHE_SIZE;
+			}
+		};
+
+		PooledEngine(String engineType, ScriptEngine engine) {
+			this.engineType = engineType;
+			this.engine = engine;
+		}
+
+		/**
+		 * Returns the compiled script for the given script source
+		 */
+		PooledScript getScript(String script) throws ScriptException {
+			PooledScript pooledScript = scripts.get(script);
+			if (pooledScript == null) {
+				CompiledScript compiledScript = null;
+				if (engine instanceof Compilable)
+					compiledScript = ((Compilable) engine).compile(script);
+				pooledScript = new PooledScript(compiledScript, script);
+				scripts.put(script, pooledScript);
+			}
+			return pooledScript;
+		}
+	}
 
+	/**
+	 * A compiled script and the lower cased identifiers used by the script
+	 * which may refer to an item of the workitem.
+	 */
+	static class PooledScript {
+		final CompiledScript compiledScript;
+		final Collection<String> identifiers;
+
+		PooledScript(CompiledScript compiledScript, String script) {
+			this.compiledScript = compiledScript;
+			Set<String> result = new LinkedHashSet<String>();
+			Matcher matcher = IDENTIFIER.matcher(script);
+			while (matcher.find()) {
+				String identifier = matcher.group();
+				// do not put values starting the $
+				if (!identifier.startsWith("$") && identifier.equals(identifier.toLowerCase()))
+					result.add(identifier);
+			}
+			identifiers = result;
+		}
+	}
+
+	/**
+	 * Map view of an ItemCollection used for the script objects 'workitem' and
+	 * 'activity'. The values of an item are converted into an Object array on
+	 * first access. Values put by the script are stored in the map and are not
+	 * written into the ItemCollection.
+	 */
+	static class ItemValueMap extends AbstractMap<String, Object> {
+		final ItemCollection itemCollection;
+		// values read or changed by the script
+		final Map<String, Object> values = new HashMap<String, Object>();
+		private boolean complete = false;
+
+		ItemValueMap(ItemCollection itemCollection) {
+			this.itemCollection = itemCollection;
+		}
+
+		@Override
+		public Object get(Object key) {
+			if (!(key instanceof String))
+				return null;
+			Object value = values.get(key);
+			if (value == null && !complete && !values.containsKey(key)) {
+				value = convertItemValue(itemCollection, (String) key);
+				if (value != null)
+					values.put((String) key, value);
+			}
+			return value;
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			return get(key) != null;
+		}
+
+		@Override
+		public Object put(String key, Object value) {
+			Object old = get(key);
+			values.put(key, value);
+			return old;
+		}
+
+		@Override
+		public Object remove(Object key) {
+			Object old = get(key);
+			values.put((String) key, null);
+			return old;
+		}
+
+		@Override
+		public Set<Map.Entry<String, Object>> entrySet() {
+			if (!complete) {
+				// convert all items
+				for (String key : itemCollection.getAllItems().keySet()) {
+					get(key);
+				}
+				complete = true;
+			}
+			Map<String, Object> result = new HashMap<String, Object>();
+			for (Map.Entry<String, Object> entry : values.entrySet()) {
+				if (entry.getValue() != null)
+					result.put(entry.getKey(), entry.getValue());
 			}
+			return result.entrySet();
 		}
-		return result;
 	}
 
 	private static final HashSet<Class<?>> BASIC_OBJECT_TYPES = getBasicObjectTypes();
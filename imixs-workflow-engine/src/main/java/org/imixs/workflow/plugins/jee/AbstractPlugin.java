@@ -150,15 +150,15 @@ public abstract class AbstractPlugin extends
 		if (aString == null)
 			return "";
 
-		if (aString.toLowerCase().contains("<propertyvalue")
-				&& propertyService != null) {
+		String sLowerCase = aString.toLowerCase();
+		if (sLowerCase.contains("<propertyvalue") && propertyService != null) {
 
+			StringBuilder sResult = new StringBuilder(aString.length());
+			int iPos = 0;
 			// test if a <value> tag exists...
-			while ((iTagStartPos = aString.toLowerCase().indexOf(
-					"<propertyvalue")) != -1) {
+			while ((iTagStartPos = sLowerCase.indexOf("<propertyvalue", iPos)) != -1) {
 
-				iTagEndPos = aString.toLowerCase().indexOf("</propertyvalue>",
-						iTagStartPos);
+				iTagEndPos = sLowerCase.indexOf("</propertyvalue>", iTagStartPos);
 
 				// if no end tag found return string unchanged...
 				if (iTagEndPos == -1) {
@@ -168,16 +168,10 @@ public abstract class AbstractPlugin extends
 							"[AbstractPlugin] invalid propertyvalue format: "+aString);
 				}
 
-				// reset pos vars
-				iContentStartPos = 0;
-				iContentEndPos = 0;
-				sPropertyKey = "";
-
 				// so we now search the beginning of the tag content
 				iContentEndPos = iTagEndPos;
 				// start pos is the last > before the iContentEndPos
-				String sTestString = aString.substring(0, iContentEndPos);
-				iContentStartPos = sTestString.lastIndexOf('>') + 1;
+				iContentStartPos = aString.lastIndexOf('>', iContentEndPos - 1) + 1;
 
 				// if no end tag found return string unchanged...
 				if (iContentStartPos >= iContentEndPos) {
@@ -204,10 +198,11 @@ public abstract class AbstractPlugin extends
 					vValue = "";
 				}
 				// now replace the tag with the result string
-				aString = aString.substring(0, iTagStartPos) + vValue
-						+ aString.substring(iTagEndPos);
-
+				sResult.append(aString, iPos, iTagStartPos).append(vValue);
+				iPos = iTagEndPos;
 			}
+			sResult.append(aString, iPos, aString.length());
+			aString = sResult.toString();
 		}
 
 		// call default behavior
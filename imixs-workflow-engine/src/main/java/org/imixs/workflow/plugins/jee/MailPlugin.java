@@ -54,12 +54,18 @@ import org.imixs.workflow.ItemCollection;
 import org.imixs.workflow.Plugin;
 import org.imixs.workflow.WorkflowContext;
 import org.imixs.workflow.exceptions.PluginException;
+import org.imixs.workflow.jee.ejb.MailOutbox;
 
 /**
  * This plugin supports a Mail interface to send mail like defined in the model
  * using the Mail tab in an activity Entity. This plugin uses the JEE Mail
  * Interface Currentyl no HTML Mail is supported
  * 
+ * If the property 'mail.outbox' is set to 'true' in the imixs.properties the
+ * mail is put into the MailOutbox and sent in the background after the
+ * transaction was committed. Otherwise the mail is sent directly in the method
+ * close().
+ * 
  * @author Ralph Soika
  * 
  */
@@ -72,12 +78,15 @@ public class MailPlugin extends AbstractPlugin {
 	static final String CONTENTTYPE_TEXT_PLAIN = "text/plain";
 	static final String CONTENTTYPE_TEXT_HTML = "text/html";
 	public static final String INVALID_ADDRESS = "INVALID_ADDRESS";
+	static final String MAIL_OUTBOX = "java:module/MailOutbox";
 	String charSet = "ISO-8859-1";
 
 	@Resource(name = "IMIXS_MAIL_SESSION")
 	private String sMailSession = "org.imixs.workflow.mail";
 	private boolean bHTMLMail = false;
 	private boolean noMailSessionBound = false;
+	private MailOutbox mailOutbox = null;
+	private boolean noMailOutboxBound = false;
 	private static Logger logger = Logger.getLogger(MailPlugin.class.getName());
 
 	public void init(WorkflowContext actx) throws PluginException {
@@ -173,7 +182,8 @@ public class MailPlugin extends AbstractPlugin {
 	/**
 	 * Send the mail if the object 'mailMessage' is not null.
 	 * 
-	 * The method lookups the mail session from the session context.
+	 * The method lookups the mail session from the session context. If the
+	 * MailOutbox is enabled the mail is put into the outbox.
 	 */
 	public void close(int status) throws PluginException {
 		if (status == Plugin.PLUGIN_OK && mailSession != null
@@ -234,13 +244,19 @@ public class MailPlugin extends AbstractPlugin {
 				// needs
 				// a authentification. Therefor we use a manual smtp connection
 
-				Transport trans = mailSession.getTransport("smtp");
-				trans.connect(mailSession.getProperty("mail.smtp.user"),
-						mailSession.getProperty("mail.smtp.password"));
-
 				mailMessage.setContent(mimeMultipart, getContentType());
 
 				mailMessage.saveChanges();
+
+				// send the message after commit if the outbox is enabled
+				if (getMailOutbox() != null) {
+					mailOutbox.send(mailSession, mailMessage);
+					return;
+				}
+
+				Transport trans = mailSession.getTransport("smtp");
+				trans.connect(mailSession.getProperty("mail.smtp.user"),
+						mailSession.getProperty("mail.smtp.password"));
 				trans.sendMessage(mailMessage, mailMessage.getAllRecipients());
 				trans.close();
 
@@ -620,6 +636,31 @@ public class MailPlugin extends AbstractPlugin {
 		}
 	}
 
+	/**
+	 * Returns the MailOutbox if the outbox is enabled by the property
+	 * 'mail.outbox=true' in the imixs.properties. The MailOutbox EJB is
+	 * looked up by the name 'java:module/MailOutbox'. The method returns null
+	 * if the outbox is disabled or not bound.
+	 * 
+	 */
+	public MailOutbox getMailOutbox() {
+		if (mailOutbox == null && !noMailOutboxBound && propertyService != null
+				&& "true".equalsIgnoreCase(propertyService.getProperties().getProperty("mail.outbox"))) {
+			try {
+				mailOutbox = (MailOutbox) new InitialContext().lookup(MAIL_OUTBOX);
+			} catch (NamingException e) {
+				logger.warning("[MailPlugin] Lookup MailOutbox '" + MAIL_OUTBOX
+						+ "' FAILED! Mails will be sent directly.");
+				noMailOutboxBound = true;
+			}
+		}
+		return mailOutbox;
+	}
+
+	public void setMailOutbox(MailOutbox mailOutbox) {
+		this.mailOutbox = mailOutbox;
+	}
+
 	/**
 	 * This method returns the mail session object. If no mailSession exists the
 	 * method initializes a new instance of a MailSession.
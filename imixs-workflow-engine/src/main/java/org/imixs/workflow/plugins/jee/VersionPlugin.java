@@ -286,9 +286,8 @@ public class VersionPlugin extends AbstractPlugin {
 	 */
 	public ItemCollection createVersion(ItemCollection sourceItemCollection)
 			throws PluginException {
-		ItemCollection itemColNewVersion = new ItemCollection();
-
-		itemColNewVersion.replaceAllItems(sourceItemCollection.getAllItems());
+		// the copy shares the items with the source until they are changed
+		ItemCollection itemColNewVersion = new ItemCollection(sourceItemCollection);
 
 		String id = sourceItemCollection.getItemValueString("$uniqueid");
 		if ("".equals(id))
@@ -296,7 +295,7 @@ public class VersionPlugin extends AbstractPlugin {
 					INVALID_WORKITEM,
 					"Error - unable to create a version from a new workitem!");
 		// remove $Uniqueid to force the generation of a new Entity Instance.
-		itemColNewVersion.getAllItems().remove("$uniqueid");
+		itemColNewVersion.removeItem("$uniqueid");
 
 		// update $WorkItemIDRef to current worktiemID
 		itemColNewVersion.replaceItemValue("$WorkItemIDRef", id);
@@ -0,0 +1,742 @@
+/*******************************************************************************
+ *  Imixs Workflow 
+ *  Copyright (C) 2001, 2011 Imixs Software Solutions GmbH,  
+ *  http://www.imixs.com
+ *  
+ *  This program is free software; you can redistribute it and/or 
+ *  modify it under the terms of the GNU General Public License 
+ *  as published by the Free Software Foundation; either version 2 
+ *  of the License, or (at your option) any later version.
+ *  
+ *  This program is distributed in the hope that it will be useful, 
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU 
+ *  General Public License for more details.
+ *  
+ *  You can receive a copy of the GNU General Public
+ *  License at http://www.gnu.org/licenses/gpl.html
+ *  
+ *  Project: 
+ *  	http://www.imixs.org
+ *  	http://java.net/projects/imixs-workflow
+ *  
+ *  Contributors:  
+ *  	Imixs Software Solutions GmbH - initial API and implementation
+ *  	Ralph Soika - Software Developer
+ *******************************************************************************/
+
+package org.imixs.workflow.plugins.rule;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import javax.script.ScriptContext;
+import javax.script.ScriptException;
+
+/**
+ * A node of the syntax tree of a business rule parsed by the RuleParser. A
+ * node is immutable and can be evaluated concurrently with different script
+ * contexts.
+ * 
+ * The class also implements the value semantics of the rule language.
+ * Numbers are compared by their numeric value, dates by their time value and
+ * strings lexicographically. A comparison with a missing value (null) is
+ * always false. The logical operators always return a Boolean.
+ * 
+ * @author rsoika
+ * @version 1.0
+ */
+abstract class RuleNode {
+
+	static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+
+	/**
+	 * Evaluates the node with the variables of the given script context
+	 */
+	abstract Object eval(ScriptContext context) throws ScriptException;
+
+	/**
+	 * A constant value
+	 */
+	static final class Literal extends RuleNode {
+		final Object value;
+
+		Literal(Object value) {
+			this.value = value;
+		}
+
+		@Override
+		Object eval(ScriptContext context) {
+			return value;
+		}
+	}
+
+	/**
+	 * A variable of the script context
+	 */
+	static final class Variable extends RuleNode {
+		final String name;
+
+		Variable(String name) {
+			this.name = name;
+		}
+
+		@Override
+		Object eval(ScriptContext context) {
+			return context.getAttribute(name);
+		}
+	}
+
+	/**
+	 * A property of a map, or the length of an array or string
+	 */
+	static final class Member extends RuleNode {
+		final RuleNode object;
+		final String name;
+
+		Member(RuleNode object, String name) {
+			this.object = object;
+			this.name = name;
+		}
+
+		@Override
+		Object eval(ScriptContext context) throws ScriptException {
+			Object value = object.eval(context);
+			if (value instanceof Map)
+				return ((Map<?, ?>) value).get(name);
+			if ("length".equals(name)) {
+				if (value instanceof Object[])
+					return ((Object[]) value).length;
+				if (value instanceof Collection)
+					return ((Collection<?>) value).size();
+				if (value instanceof String)
+					return ((String) value).length();
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * An element of an array, a list or a map. An index out of range returns
+	 * null.
+	 */
+	static final class Index extends RuleNode {
+		final RuleNode object;
+		final RuleNode index;
+
+		Index(RuleNode object, RuleNode index) {
+			this.object = object;
+			this.index = index;
+		}
+
+		@Override
+		Object eval(ScriptContext context) throws ScriptException {
+			Object value = object.eval(context);
+			Object key = index.eval(context);
+			if (value instanceof Map)
+				return ((Map<?, ?>) value).get(toText(key));
+			int i = toIndex(key);
+			if (value instanceof Object[]) {
+				Object[] array = (Object[]) value;
+				return (i >= 0 && i < array.length) ? array[i] : null;
+			}
+			if (value instanceof List) {
+				List<?> list = (List<?>) value;
+				return (i >= 0 && i < list.size()) ? list.get(i) : null;
+			}
+			if (value instanceof String) {
+				String s = (String) value;
+				return (i >= 0 && i < s.length()) ? String.valueOf(s.charAt(i)) : null;
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * An array literal. The array is created as a list so elements can be
+	 * added by an index assignment.
+	 */
+	static final class ArrayLiteral extends RuleNode {
+		final RuleNode[] elements;
+
+		ArrayLiteral(RuleNode[] elements) {
+			this.elements = elements;
+		}
+
+		@Override
+		Object eval(ScriptContext context) throws ScriptException {
+			List<Object> result = new ArrayList<Object>(elements.length);
+			for (RuleNode element : elements)
+				result.add(element.eval(context));
+			return result;
+		}
+	}
+
+	/**
+	 * The operators '!', '-' and '+'
+	 */
+	static final class Unary extends RuleNode {
+		final String operator;
+		final RuleNode operand;
+
+		Unary(String operator, RuleNode operand) {
+			this.operator = operator;
+			this.operand = operand;
+		}
+
+		@Override
+		Object eval(ScriptContext context) throws ScriptException {
+			Object value = operand.eval(context);
+			if ("!".equals(operator))
+				return !isTrue(value);
+			if ("-".equals(operator)) {
+				if (isIntegral(value))
+					return normalize(-((Number) value).longValue());
+				return -toNumber(value);
+			}
+			return isIntegral(value) ? value : toNumber(value);
+		}
+	}
+
+	/**
+	 * The logical operators '&&' and '||'. The right operand is only evaluated
+	 * if needed.
+	 */
+	static final class Logical extends RuleNode {
+		final boolean and;
+		final RuleNode left;
+		final RuleNode right;
+
+		Logical(boolean and, RuleNode left, RuleNode right) {
+			this.and = and;
+			this.left = left;
+			this.right = right;
+		}
+
+		@Override
+		Object eval(ScriptContext context) throws ScriptException {
+			boolean result = isTrue(left.eval(context));
+			if (result != and)
+				return result;
+			return isTrue(right.eval(context));
+		}
+	}
+
+	/**
+	 * The arithmetic, comparison and membership operators
+	 */
+	static final class Binary extends RuleNode {
+		final String operator;
+		final RuleNode left;
+		final RuleNode right;
+
+		Binary(String operator, RuleNode left, RuleNode right) {
+			this.operator = operator;
+			this.left = left;
+			this.right = right;
+		}
+
+		@Override
+		Object eval(ScriptContext context) throws ScriptException {
+			Object a = left.eval(context);
+			Object b = right.eval(context);
+			switch (operator) {
+			case "==":
+				return isEqual(a, b);
+			case "!=":
+				return !isEqual(a, b);
+			case "===":
+				return isIdentical(a, b);
+			case "!==":
+				return !isIdentical(a, b);
+			case "<":
+				return compare(a, b) < 0;
+			case "<=":
+				return compare(a, b) <= 0;
+			case ">":
+				return compare(b, a) < 0;
+			case ">=":
+				return compare(b, a) <= 0;
+			case "in":
+				return contains(b, a);
+			case "+":
+				if (a instanceof String || b instanceof String)
+					return toText(a) + toText(b);
+				// fall through
+			default:
+				return arithmetic(operator, a, b);
+			}
+		}
+	}
+
+	/**
+	 * The conditional operator 'a ? b : c'
+	 */
+	static final class Conditional extends RuleNode {
+		final RuleNode condition;
+		final RuleNode whenTrue;
+		final RuleNode whenFalse;
+
+		Conditional(RuleNode condition, RuleNode whenTrue, RuleNode whenFalse) {
+			this.condition = condition;
+			this.whenTrue = whenTrue;
+			this.whenFalse = whenFalse;
+		}
+
+		@Override
+		Object eval(ScriptContext context) throws ScriptException {
+			return isTrue(condition.eval(context)) ? whenTrue.eval(context) : whenFalse.eval(context);
+		}
+	}
+
+	/**
+	 * A call of a build-in function
+	 */
+	static final class Function extends RuleNode {
+		final String name;
+		final RuleNode[] arguments;
+
+		Function(String name, RuleNode[] arguments) {
+			this.name = name;
+			this.arguments = arguments;
+		}
+
+		@Override
+		Object eval(ScriptContext context) throws ScriptException {
+			Object[] args = evalAll(arguments, context);
+			switch (name) {
+			case "now":
+				return new Date();
+			case "today":
+				return truncate(new Date());
+			case "date":
+				return toDate(arg(args, 0), args.length > 1 ? toText(args[1]) : null);
+			case "addDays":
+				return add(arg(args, 0), Calendar.DAY_OF_MONTH, arg(args, 1));
+			case "addHours":
+				return add(arg(args, 0), Calendar.HOUR_OF_DAY, arg(args, 1));
+			case "daysBetween":
+				Date from = toDate(arg(args, 0), null);
+				Date to = toDate(arg(args, 1), null);
+				if (from == null || to == null)
+					return null;
+				return normalize((truncate(to).getTime() - truncate(from).getTime()) / MILLIS_PER_DAY);
+			case "contains":
+				return contains(arg(args, 0), arg(args, 1));
+			case "isEmpty":
+				return isEmpty(arg(args, 0));
+			default:
+				throw new ScriptException("unknown function '" + name + "'");
+			}
+		}
+	}
+
+	/**
+	 * A method call on a map, an array or a string
+	 */
+	static final class Method extends RuleNode {
+		final RuleNode object;
+		final String name;
+		final RuleNode[] arguments;
+
+		Method(RuleNode object, String name, RuleNode[] arguments) {
+			this.object = object;
+			this.name = name;
+			this.arguments = arguments;
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		Object eval(ScriptContext context) throws ScriptException {
+			Object value = object.eval(context);
+			Object[] args = evalAll(arguments, context);
+			if (value instanceof Map) {
+				Map<Object, Object> map = (Map<Object, Object>) value;
+				switch (name) {
+				case "get":
+					return map.get(toText(arg(args, 0)));
+				case "put":
+					return map.put(toText(arg(args, 0)), arg(args, 1));
+				case "containsKey":
+					return map.containsKey(toText(arg(args, 0)));
+				}
+			} else if (value instanceof String) {
+				String s = (String) value;
+				switch (name) {
+				case "toLowerCase":
+					return s.toLowerCase();
+				case "toUpperCase":
+					return s.toUpperCase();
+				case "trim":
+					return s.trim();
+				case "startsWith":
+					return s.startsWith(toText(arg(args, 0)));
+				case "endsWith":
+					return s.endsWith(toText(arg(args, 0)));
+				case "contains":
+					return s.contains(toText(arg(args, 0)));
+				case "indexOf":
+					return s.indexOf(toText(arg(args, 0)));
+				}
+			} else if (value instanceof Object[] || value instanceof Collection) {
+				if ("contains".equals(name))
+					return contains(value, arg(args, 0));
+			} else if (value == null) {
+				return null;
+			}
+			throw new ScriptException("unknown method '" + name + "'");
+		}
+	}
+
+	/**
+	 * An assignment to a variable, a map property or an array element. The
+	 * assignment of a variable sets the value in the engine scope.
+	 */
+	static final class Assign extends RuleNode {
+		final RuleNode target;
+		final RuleNode value;
+
+		Assign(RuleNode target, RuleNode value) {
+			this.target = target;
+			this.value = value;
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		Object eval(ScriptContext context) throws ScriptException {
+			Object result = value.eval(context);
+			if (target instanceof Variable) {
+				context.setAttribute(((Variable) target).name, result, ScriptContext.ENGINE_SCOPE);
+			} else if (target instanceof Member) {
+				Member member = (Member) target;
+				Object object = member.object.eval(context);
+				if (!(object instanceof Map))
+					throw new ScriptException("can not set property '" + member.name + "'");
+				((Map<Object, Object>) object).put(member.name, result);
+			} else {
+				Index index = (Index) target;
+				Object object = index.object.eval(context);
+				Object key = index.index.eval(context);
+				if (object instanceof Map) {
+					((Map<Object, Object>) object).put(toText(key), result);
+					return result;
+				}
+				int i = toIndex(key);
+				if (i < 0)
+					throw new ScriptException("invalid index " + toText(key));
+				if (object instanceof List) {
+					List<Object> list = (List<Object>) object;
+					while (list.size() <= i)
+						list.add(null);
+					list.set(i, result);
+				} else if (object instanceof Object[] && i < ((Object[]) object).length) {
+					((Object[]) object)[i] = result;
+				} else {
+					throw new ScriptException("can not set element " + i);
+				}
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * The statement 'if (condition) statement else statement'
+	 */
+	static final class If extends RuleNode {
+		final RuleNode condition;
+		final RuleNode thenStatement;
+		final RuleNode elseStatement;
+
+		If(RuleNode condition, RuleNode thenStatement, RuleNode elseStatement) {
+			this.condition = condition;
+			this.thenStatement = thenStatement;
+			this.elseStatement = elseStatement;
+		}
+
+		@Override
+		Object eval(ScriptContext context) throws ScriptException {
+			if (isTrue(condition.eval(context)))
+				return thenStatement.eval(context);
+			return (elseStatement != null) ? elseStatement.eval(context) : null;
+		}
+	}
+
+	/**
+	 * A sequence of statements. The result is the value of the last statement.
+	 */
+	static final class Block extends RuleNode {
+		final RuleNode[] statements;
+
+		Block(RuleNode[] statements) {
+			this.statements = statements;
+		}
+
+		@Override
+		Object eval(ScriptContext context) throws ScriptException {
+			Object result = null;
+			for (RuleNode statement : statements)
+				result = statement.eval(context);
+			return result;
+		}
+	}
+
+	private static Object[] evalAll(RuleNode[] nodes, ScriptContext context) throws ScriptException {
+		Object[] result = new Object[nodes.length];
+		for (int i = 0; i < nodes.length; i++)
+			result[i] = nodes[i].eval(context);
+		return result;
+	}
+
+	private static Object arg(Object[] args, int i) {
+		return (i < args.length) ? args[i] : null;
+	}
+
+	/**
+	 * Returns false for null, false, 0, NaN and an empty string
+	 */
+	static boolean isTrue(Object value) {
+		if (value == null)
+			return false;
+		if (value instanceof Boolean)
+			return (Boolean) value;
+		if (value instanceof Number) {
+			double d = ((Number) value).doubleValue();
+			return d != 0 && !Double.isNaN(d);
+		}
+		if (value instanceof String)
+			return !((String) value).isEmpty();
+		return true;
+	}
+
+	/**
+	 * Returns true for null, an empty string and an array or list with no
+	 * values or with only empty values
+	 */
+	static boolean isEmpty(Object value) {
+		if (value == null)
+			return true;
+		if (value instanceof String)
+			return ((String) value).isEmpty();
+		if (value instanceof Object[] || value instanceof Collection) {
+			for (Object element : toCollection(value)) {
+				if (!isEmpty(element))
+					return false;
+			}
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Tests if the given array, list or map contains the value. The elements
+	 * of an array are compared with the operator '=='.
+	 */
+	static boolean contains(Object container, Object value) {
+		if (container instanceof Map)
+			return ((Map<?, ?>) container).containsKey(toText(value));
+		if (container instanceof Object[] || container instanceof Collection) {
+			for (Object element : toCollection(container)) {
+				if (isEqual(element, value))
+					return true;
+			}
+		}
+		return false;
+	}
+
+	private static Collection<?> toCollection(Object value) {
+		if (value instanceof Object[])
+			return Arrays.asList((Object[]) value);
+		return (Collection<?>) value;
+	}
+
+	/**
+	 * The operator '=='. Numbers, dates and numeric strings are compared by
+	 * their numeric value.
+	 */
+	static boolean isEqual(Object a, Object b) {
+		if (a == null || b == null)
+			return a == b;
+		if (a instanceof String && b instanceof String)
+			return a.equals(b);
+		if (isNumeric(a) && isNumeric(b)) {
+			return toNumber(a) == toNumber(b);
+		}
+		return a.equals(b);
+	}
+
+	/**
+	 * The operator '==='. Numbers and dates are only equal to numbers and
+	 * dates.
+	 */
+	static boolean isIdentical(Object a, Object b) {
+		if (a == null || b == null)
+			return a == b;
+		if (a instanceof Number && b instanceof Number)
+			return toNumber(a) == toNumber(b);
+		if (isDate(a) && isDate(b))
+			return toNumber(a) == toNumber(b);
+		return a.equals(b);
+	}
+
+	/**
+	 * Compares two values. Strings are compared lexicographically, other
+	 * values by their numeric value. The method returns Integer.MAX_VALUE if
+	 * the values are not comparable.
+	 */
+	static int compare(Object a, Object b) {
+		if (a == null || b == null)
+			return Integer.MAX_VALUE;
+		if (a instanceof String && b instanceof String)
+			return Integer.signum(((String) a).compareTo((String) b));
+		double x = toNumber(a);
+		double y = toNumber(b);
+		if (Double.isNaN(x) || Double.isNaN(y))
+			return Integer.MAX_VALUE;
+		return Double.compare(x, y) == 0 ? 0 : (x < y ? -1 : 1);
+	}
+
+	private static Object arithmetic(String operator, Object a, Object b) {
+		if (isIntegral(a) && isIntegral(b) && !"/".equals(operator)) {
+			long x = ((Number) a).longValue();
+			long y = ((Number) b).longValue();
+			switch (operator) {
+			case "+":
+				return normalize(x + y);
+			case "-":
+				return normalize(x - y);
+			case "*":
+				return normalize(x * y);
+			default:
+				if (y != 0)
+					return normalize(x % y);
+			}
+		}
+		double x = toNumber(a);
+		double y = toNumber(b);
+		switch (operator) {
+		case "+":
+			return x + y;
+		case "-":
+			return x - y;
+		case "*":
+			return x * y;
+		case "/":
+			return x / y;
+		default:
+			return x % y;
+		}
+	}
+
+	private static boolean isDate(Object value) {
+		return value instanceof Date || value instanceof Calendar;
+	}
+
+	private static boolean isIntegral(Object value) {
+		return value instanceof Integer || value instanceof Long || value instanceof Short
+				|| value instanceof Byte;
+	}
+
+	private static boolean isNumeric(Object value) {
+		return value instanceof Number || value instanceof Boolean || isDate(value)
+				|| (value instanceof String && !Double.isNaN(toNumber(value)));
+	}
+
+	private static Object normalize(long value) {
+		if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE)
+			return (int) value;
+		return value;
+	}
+
+	/**
+	 * Converts a value into a number. A date is converted into its time in
+	 * milliseconds. The method returns NaN if the value is not a number.
+	 */
+	static double toNumber(Object value) {
+		if (value instanceof Number)
+			return ((Number) value).doubleValue();
+		if (value instanceof Boolean)
+			return ((Boolean) value) ? 1 : 0;
+		if (value instanceof Date)
+			return ((Date) value).getTime();
+		if (value instanceof Calendar)
+			return ((Calendar) value).getTimeInMillis();
+		if (value instanceof String) {
+			String s = ((String) value).trim();
+			if (!s.isEmpty()) {
+				try {
+					return Double.parseDouble(s);
+				} catch (NumberFormatException e) {
+					// not a number
+				}
+			}
+		}
+		return Double.NaN;
+	}
+
+	private static int toIndex(Object value) {
+		double d = toNumber(value);
+		return (Double.isNaN(d) || d != Math.floor(d)) ? -1 : (int) d;
+	}
+
+	/**
+	 * Converts a value into a string. A number without fraction digits is
+	 * converted without the decimal point.
+	 */
+	static String toText(Object value) {
+		if (value instanceof Double || value instanceof Float) {
+			double d = ((Number) value).doubleValue();
+			if (d == Math.rint(d) && !Double.isInfinite(d) && Math.abs(d) < 1e15)
+				return String.valueOf((long) d);
+		}
+		return String.valueOf(value);
+	}
+
+	/**
+	 * Converts a date, a calendar or a string into a date. A string is parsed
+	 * with the given pattern or the pattern 'yyyy-MM-dd'.
+	 */
+	static Date toDate(Object value, String pattern) throws ScriptException {
+		if (value instanceof Date)
+			return (Date) value;
+		if (value instanceof Calendar)
+			return ((Calendar) value).getTime();
+		if (value instanceof Number)
+			return new Date(((Number) value).longValue());
+		if (value instanceof String) {
+			SimpleDateFormat format = new SimpleDateFormat(pattern != null ? pattern : "yyyy-MM-dd");
+			try {
+				return format.parse((String) value);
+			} catch (ParseException e) {
+				throw new ScriptException("invalid date '" + value + "'");
+			}
+		}
+		return null;
+	}
+
+	private static Date add(Object date, int field, Object amount) throws ScriptException {
+		Date value = toDate(date, null);
+		if (value == null)
+			return null;
+		Calendar cal = Calendar.getInstance();
+		cal.setTime(value);
+		cal.add(field, (int) toNumber(amount));
+		return cal.getTime();
+	}
+
+	private static Date truncate(Date date) {
+		Calendar cal = Calendar.getInstance();
+		cal.setTime(date);
+		cal.set(Calendar.HOUR_OF_DAY, 0);
+		cal.set(Calendar.MINUTE, 0);
+		cal.set(Calendar.SECOND, 0);
+		cal.set(Calendar.MILLISECOND, 0);
+		return cal.getTime();
+	}
+}
@@ -0,0 +1,458 @@
+/*******************************************************************************
+ *  Imixs Workflow 
+ *  Copyright (C) 2001, 2011 Imixs Software Solutions GmbH,  
+ *  http://www.imixs.com
+ *  
+ *  This program is free software; you can redistribute it and/or 
+ *  modify it under the terms of the GNU General Public License 
+ *  as published by the Free Software Foundation; either version 2 
+ *  of the License, or (at your option) any later version.
+ *  
+ *  This program is distributed in the hope that it will be useful, 
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU 
+ *  General Public License for more details.
+ *  
+ *  You can receive a copy of the GNU General Public
+ *  License at http://www.gnu.org/licenses/gpl.html
+ *  
+ *  Project: 
+ *  	http://www.imixs.org
+ *  	http://java.net/projects/imixs-workflow
+ *  
+ *  Contributors:  
+ *  	Imixs Software Solutions GmbH - initial API and implementation
+ *  	Ralph Soika - Software Developer
+ *******************************************************************************/
+
+package org.imixs.workflow.plugins.rule;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.script.ScriptException;
+
+/**
+ * The RuleParser parses the source of a business rule into a syntax tree of
+ * RuleNode objects. The rule language is a small subset of JavaScript:
+ * 
+ * <ul>
+ * <li>statements: 'var', 'if'/'else', blocks and assignments</li>
+ * <li>operators: || &amp;&amp; ! == != === !== &lt; &lt;= &gt; &gt;= in + - * /
+ * % ?:</li>
+ * <li>literals: numbers, strings, true, false, null and arrays</li>
+ * <li>property access, array index and the build-in functions</li>
+ * </ul>
+ * 
+ * A parser instance is used for one script only.
+ * 
+ * @author rsoika
+ * @version 1.0
+ */
+class RuleParser {
+
+	private static final Set<String> RESERVED = new HashSet<String>(Arrays.asList("var", "if", "else", "true",
+			"false", "null", "undefined", "new", "in"));
+
+	// longest operators first
+	private static final String[] OPERATORS = { "===", "!==", "==", "!=", "<=", ">=", "&&", "||", "(", ")", "{",
+			"}", "[", "]", ",", ";", ".", "?", ":", "!", "=", "<", ">", "+", "-", "*", "/", "%" };
+
+	private static final int NUMBER = 1;
+	private static final int STRING = 2;
+	private static final int NAME = 3;
+	private static final int OPERATOR = 4;
+	private static final int END = 5;
+
+	private final String source;
+	private int position = 0;
+
+	// the current token
+	private int type;
+	private String text;
+	private Object value;
+	private int start;
+
+	private RuleParser(String source) {
+		this.source = source;
+	}
+
+	/**
+	 * Parses the script into a block of statements
+	 * 
+	 * @throws ScriptException
+	 *             if the script is not valid
+	 */
+	static RuleNode parse(String script) throws ScriptException {
+		RuleParser parser = new RuleParser(script);
+		parser.next();
+		List<RuleNode> statements = new ArrayList<RuleNode>();
+		while (parser.type != END) {
+			RuleNode statement = parser.parseStatement();
+			if (statement != null)
+				statements.add(statement);
+		}
+		return new RuleNode.Block(statements.toArray(new RuleNode[statements.size()]));
+	}
+
+	private RuleNode parseStatement() throws ScriptException {
+		if (accept(";"))
+			return null;
+		if (accept("{")) {
+			List<RuleNode> statements = new ArrayList<RuleNode>();
+			while (!accept("}")) {
+				if (type == END)
+					throw error("missing '}'");
+				RuleNode statement = parseStatement();
+				if (statement != null)
+					statements.add(statement);
+			}
+			return new RuleNode.Block(statements.toArray(new RuleNode[statements.size()]));
+		}
+		if (acceptName("if")) {
+			expect("(");
+			RuleNode condition = parseExpression();
+			expect(")");
+			RuleNode thenStatement = parseStatement();
+			RuleNode elseStatement = null;
+			if (acceptName("else"))
+				elseStatement = parseStatement();
+			return new RuleNode.If(condition, nonNull(thenStatement), elseStatement);
+		}
+		RuleNode result;
+		if (acceptName("var")) {
+			List<RuleNode> declarations = new ArrayList<RuleNode>();
+			do {
+				RuleNode.Variable variable = new RuleNode.Variable(expectName());
+				RuleNode initializer = accept("=") ? parseExpression() : new RuleNode.Literal(null);
+				declarations.add(new RuleNode.Assign(variable, initializer));
+			} while (accept(","));
+			result = new RuleNode.Block(declarations.toArray(new RuleNode[declarations.size()]));
+		} else {
+			int targetStart = start;
+			result = parseExpression();
+			if (accept("=")) {
+				if (!(result instanceof RuleNode.Variable || result instanceof RuleNode.Member
+						|| result instanceof RuleNode.Index))
+					throw error("invalid assignment", targetStart);
+				result = new RuleNode.Assign(result, parseExpression());
+			}
+		}
+		accept(";");
+		return result;
+	}
+
+	private RuleNode parseExpression() throws ScriptException {
+		RuleNode condition = parseOr();
+		if (accept("?")) {
+			RuleNode whenTrue = parseExpression();
+			expect(":");
+			return new RuleNode.Conditional(condition, whenTrue, parseExpression());
+		}
+		return condition;
+	}
+
+	private RuleNode parseOr() throws ScriptException {
+		RuleNode result = parseAnd();
+		while (accept("||"))
+			result = new RuleNode.Logical(false, result, parseAnd());
+		return result;
+	}
+
+	private RuleNode parseAnd() throws ScriptException {
+		RuleNode result = parseEquality();
+		while (accept("&&"))
+			result = new RuleNode.Logical(true, result, parseEquality());
+		return result;
+	}
+
+	private RuleNode parseEquality() throws ScriptException {
+		RuleNode result = parseRelational();
+		while (isOperator("==", "!=", "===", "!==")) {
+			String operator = text;
+			next();
+			result = new RuleNode.Binary(operator, result, parseRelational());
+		}
+		return result;
+	}
+
+	private RuleNode parseRelational() throws ScriptException {
+		RuleNode result = parseAdditive();
+		while (isOperator("<", "<=", ">", ">=") || (type == NAME && "in".equals(text))) {
+			String operator = text;
+			next();
+			result = new RuleNode.Binary(operator, result, parseAdditive());
+		}
+		return result;
+	}
+
+	private RuleNode parseAdditive() throws ScriptException {
+		RuleNode result = parseMultiplicative();
+		while (isOperator("+", "-")) {
+			String operator = text;
+			next();
+			result = new RuleNode.Binary(operator, result, parseMultiplicative());
+		}
+		return result;
+	}
+
+	private RuleNode parseMultiplicative() throws ScriptException {
+		RuleNode result = parseUnary();
+		while (isOperator("*", "/", "%")) {
+			String operator = text;
+			next();
+			result = new RuleNode.Binary(operator, result, parseUnary());
+		}
+		return result;
+	}
+
+	private RuleNode parseUnary() throws ScriptException {
+		if (isOperator("!", "-", "+")) {
+			String operator = text;
+			next();
+			return new RuleNode.Unary(operator, parseUnary());
+		}
+		return parsePostfix(parsePrimary());
+	}
+
+	private RuleNode parsePostfix(RuleNode result) throws ScriptException {
+		while (true) {
+			if (accept(".")) {
+				String name = expectProperty();
+				if (accept("("))
+					result = new RuleNode.Method(result, name, parseArguments(")"));
+				else
+					result = new RuleNode.Member(result, name);
+			} else if (accept("[")) {
+				RuleNode index = parseExpression();
+				expect("]");
+				result = new RuleNode.Index(result, index);
+			} else {
+				return result;
+			}
+		}
+	}
+
+	private RuleNode parsePrimary() throws ScriptException {
+		if (type == NUMBER || type == STRING) {
+			Object literal = value;
+			next();
+			return new RuleNode.Literal(literal);
+		}
+		if (accept("("))
+			return parseParenthesis();
+		if (accept("["))
+			return new RuleNode.ArrayLiteral(parseArguments("]"));
+		if (type != NAME)
+			throw error(type == END ? "unexpected end of script" : "unexpected '" + text + "'");
+		String name = text;
+		next();
+		switch (name) {
+		case "true":
+			return new RuleNode.Literal(Boolean.TRUE);
+		case "false":
+			return new RuleNode.Literal(Boolean.FALSE);
+		case "null":
+		case "undefined":
+			return new RuleNode.Literal(null);
+		case "new":
+			// new Array(...)
+			if (!"Array".equals(expectName()))
+				throw error("only 'new Array()' is supported");
+			expect("(");
+			return new RuleNode.ArrayLiteral(parseArguments(")"));
+		}
+		if (RESERVED.contains(name))
+			throw error("unexpected '" + name + "'");
+		if (accept("("))
+			return new RuleNode.Function(name, parseArguments(")"));
+		return new RuleNode.Variable(name);
+	}
+
+	private RuleNode parseParenthesis() throws ScriptException {
+		RuleNode result = parseExpression();
+		expect(")");
+		return result;
+	}
+
+	private RuleNode[] parseArguments(String end) throws ScriptException {
+		List<RuleNode> result = new ArrayList<RuleNode>();
+		if (!accept(end)) {
+			do {
+				result.add(parseExpression());
+			} while (accept(","));
+			expect(end);
+		}
+		return result.toArray(new RuleNode[result.size()]);
+	}
+
+	private RuleNode nonNull(RuleNode statement) {
+		return (statement != null) ? statement : new RuleNode.Block(new RuleNode[0]);
+	}
+
+	private boolean isOperator(String... operators) {
+		if (type != OPERATOR)
+			return false;
+		for (String operator : operators) {
+			if (operator.equals(text))
+				return true;
+		}
+		return false;
+	}
+
+	private boolean accept(String operator) throws ScriptException {
+		if (type == OPERATOR && operator.equals(text)) {
+			next();
+			return true;
+		}
+		return false;
+	}
+
+	private boolean acceptName(String name) throws ScriptException {
+		if (type == NAME && name.equals(text)) {
+			next();
+			return true;
+		}
+		return false;
+	}
+
+	private void expect(String operator) throws ScriptException {
+		if (!accept(operator))
+			throw error("missing '" + operator + "'");
+	}
+
+	private String expectName() throws ScriptException {
+		if (type != NAME || RESERVED.contains(text))
+			throw error("missing name");
+		String name = text;
+		next();
+		return name;
+	}
+
+	// reserved words are allowed as property names
+	private String expectProperty() throws ScriptException {
+		if (type != NAME)
+			throw error("missing property name");
+		String name = text;
+		next();
+		return name;
+	}
+
+	private ScriptException error(String message) {
+		return error(message, start);
+	}
+
+	private ScriptException error(String message, int offset) {
+		return new ScriptException("Syntax error: " + message + " at position " + (offset + 1));
+	}
+
+	/**
+	 * Reads the next token
+	 */
+	private void next() throws ScriptException {
+		skipWhitespace();
+		start = position;
+		value = null;
+		if (position >= source.length()) {
+			type = END;
+			text = "";
+			return;
+		}
+		char c = source.charAt(position);
+		if (Character.isDigit(c)) {
+			readNumber();
+		} else if (c == '\'' || c == '"') {
+			readString(c);
+		} else if (Character.isJavaIdentifierStart(c)) {
+			while (position < source.length() && Character.isJavaIdentifierPart(source.charAt(position)))
+				position++;
+			type = NAME;
+			text = source.substring(start, position);
+		} else {
+			for (String operator : OPERATORS) {
+				if (source.startsWith(operator, position)) {
+					type = OPERATOR;
+					text = operator;
+					position += operator.length();
+					return;
+				}
+			}
+			throw error("unexpected character '" + c + "'");
+		}
+	}
+
+	private void skipWhitespace() throws ScriptException {
+		while (position < source.length()) {
+			char c = source.charAt(position);
+			if (Character.isWhitespace(c)) {
+				position++;
+			} else if (source.startsWith("//", position)) {
+				while (position < source.length() && source.charAt(position) != '\n')
+					position++;
+			} else if (source.startsWith("/*", position)) {
+				int end = source.indexOf("*/", position + 2);
+				if (end == -1)
+					throw error("unterminated comment", position);
+				position = end + 2;
+			} else {
+				return;
+			}
+		}
+	}
+
+	private void readNumber() {
+		while (position < source.length() && Character.isDigit(source.charAt(position)))
+			position++;
+		boolean decimal = false;
+		if (position + 1 < source.length() && source.charAt(position) == '.'
+				&& Character.isDigit(source.charAt(position + 1))) {
+			decimal = true;
+			position++;
+			while (position < source.length() && Character.isDigit(source.charAt(position)))
+				position++;
+		}
+		type = NUMBER;
+		text = source.substring(start, position);
+		if (decimal) {
+			value = Double.valueOf(text);
+		} else if (text.length() > 18) {
+			value = Double.valueOf(text);
+		} else {
+			long l = Long.parseLong(text);
+			value = (l <= Integer.MAX_VALUE) ? (Object) Integer.valueOf((int) l) : (Object) Long.valueOf(l);
+		}
+	}
+
+	private void readString(char quote) throws ScriptException {
+		StringBuilder sb = new StringBuilder();
+		position++;
+		while (true) {
+			if (position >= source.length())
+				throw error("unterminated string");
+			char c = source.charAt(position++);
+			if (c == quote)
+				break;
+			if (c == '\\' && position < source.length()) {
+				c = source.charAt(position++);
+				switch (c) {
+				case 'n':
+					c = '\n';
+					break;
+				case 't':
+					c = '\t';
+					break;
+				case 'r':
+					c = '\r';
+					break;
+				}
+			}
+			sb.append(c);
+		}
+		type = STRING;
+		text = source.substring(start, position);
+		value = sb.toString();
+	}
+}
@@ -0,0 +1,139 @@
+/*******************************************************************************
+ *  Imixs Workflow 
+ *  Copyright (C) 2001, 2011 Imixs Software Solutions GmbH,  
+ *  http://www.imixs.com
+ *  
+ *  This program is free software; you can redistribute it and/or 
+ *  modify it under the terms of the GNU General Public License 
+ *  as published by the Free Software Foundation; either version 2 
+ *  of the License, or (at your option) any later version.
+ *  
+ *  This program is distributed in the hope that it will be useful, 
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU 
+ *  General Public License for more details.
+ *  
+ *  You can receive a copy of the GNU General Public
+ *  License at http://www.gnu.org/licenses/gpl.html
+ *  
+ *  Project: 
+ *  	http://www.imixs.org
+ *  	http://java.net/projects/imixs-workflow
+ *  
+ *  Contributors:  
+ *  	Imixs Software Solutions GmbH - initial API and implementation
+ *  	Ralph Soika - Software Developer
+ *******************************************************************************/
+
+package org.imixs.workflow.plugins.rule;
+
+import java.io.IOException;
+import java.io.Reader;
+
+import javax.script.AbstractScriptEngine;
+import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+import javax.script.ScriptException;
+import javax.script.SimpleBindings;
+
+/**
+ * The RuleScriptEngine evaluates business rules written in the Imixs rule
+ * language. The rule language is a small subset of JavaScript which covers
+ * the typical guards and assignments of a business rule:
+ * 
+ * <code>
+ *  isValid = workitem.amount[0] > 1000 &amp;&amp; workitem.txtstatus[0]=='open';
+ * </code>
+ * 
+ * A script is parsed into a syntax tree which is evaluated directly against
+ * the variables of the script context. The engine implements the interface
+ * Compilable so a parsed script can be cached and evaluated again without
+ * parsing. A compiled script is immutable and can be used by different
+ * threads with different script contexts.
+ * 
+ * @see RuleParser
+ * @author rsoika
+ * @version 1.0
+ */
+public class RuleScriptEngine extends AbstractScriptEngine implements Compilable {
+
+	private final ScriptEngineFactory factory;
+
+	public RuleScriptEngine() {
+		this(new RuleScriptEngineFactory());
+	}
+
+	RuleScriptEngine(ScriptEngineFactory factory) {
+		this.factory = factory;
+	}
+
+	@Override
+	public Object eval(String script, ScriptContext context) throws ScriptException {
+		return RuleParser.parse(script).eval(context);
+	}
+
+	@Override
+	public Object eval(Reader reader, ScriptContext context) throws ScriptException {
+		return eval(read(reader), context);
+	}
+
+	@Override
+	public CompiledScript compile(String script) throws ScriptException {
+		return new RuleScript(this, RuleParser.parse(script));
+	}
+
+	@Override
+	public CompiledScript compile(Reader script) throws ScriptException {
+		return compile(read(script));
+	}
+
+	@Override
+	public Bindings createBindings() {
+		return new SimpleBindings();
+	}
+
+	@Override
+	public ScriptEngineFactory getFactory() {
+		return factory;
+	}
+
+	private static String read(Reader reader) throws ScriptException {
+		StringBuilder sb = new StringBuilder();
+		char[] buffer = new char[1024];
+		try {
+			int n;
+			while ((n = reader.read(buffer)) != -1)
+				sb.append(buffer, 0, n);
+		} catch (IOException e) {
+			throw new ScriptException(e);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * A parsed script
+	 */
+	static class RuleScript extends CompiledScript {
+		private final ScriptEngine engine;
+		private final RuleNode root;
+
+		RuleScript(ScriptEngine engine, RuleNode root) {
+			this.engine = engine;
+			this.root = root;
+		}
+
+		@Override
+		public Object eval(ScriptContext context) throws ScriptException {
+			return root.eval(context);
+		}
+
+		@Override
+		public ScriptEngine getEngine() {
+			return engine;
+		}
+	}
+}
@@ -0,0 +1,130 @@
+/*******************************************************************************
+ *  Imixs Workflow 
+ *  Copyright (C) 2001, 2011 Imixs Software Solutions GmbH,  
+ *  http://www.imixs.com
+ *  
+ *  This program is free software; you can redistribute it and/or 
+ *  modify it under the terms of the GNU General Public License 
+ *  as published by the Free Software Foundation; either version 2 
+ *  of the License, or (at your option) any later version.
+ *  
+ *  This program is distributed in the hope that it will be useful, 
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU 
+ *  General Public License for more details.
+ *  
+ *  You can receive a copy of the GNU General Public
+ *  License at http://www.gnu.org/licenses/gpl.html
+ *  
+ *  Project: 
+ *  	http://www.imixs.org
+ *  	http://java.net/projects/imixs-workflow
+ *  
+ *  Contributors:  
+ *  	Imixs Software Solutions GmbH - initial API and implementation
+ *  	Ralph Soika - Software Developer
+ *******************************************************************************/
+
+package org.imixs.workflow.plugins.rule;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+
+/**
+ * The factory of the RuleScriptEngine. The engine is registered with the
+ * names 'imixs-rule' and 'imixsrule'. These names can be used in the property
+ * 'txtBusinessRuleEngine' of an activity.
+ * 
+ * @author rsoika
+ * @version 1.0
+ */
+public class RuleScriptEngineFactory implements ScriptEngineFactory {
+
+	public static final String ENGINE_NAME = "imixs-rule";
+
+	private static final List<String> NAMES = Collections
+			.unmodifiableList(Arrays.asList(ENGINE_NAME, "imixsrule"));
+
+	@Override
+	public String getEngineName() {
+		return "Imixs Rule Engine";
+	}
+
+	@Override
+	public String getEngineVersion() {
+		return "1.0";
+	}
+
+	@Override
+	public List<String> getExtensions() {
+		return Collections.emptyList();
+	}
+
+	@Override
+	public List<String> getMimeTypes() {
+		return Collections.emptyList();
+	}
+
+	@Override
+	public List<String> getNames() {
+		return NAMES;
+	}
+
+	@Override
+	public String getLanguageName() {
+		return "Imixs Rule";
+	}
+
+	@Override
+	public String getLanguageVersion() {
+		return "1.0";
+	}
+
+	@Override
+	public Object getParameter(String key) {
+		if (ScriptEngine.ENGINE.equals(key))
+			return getEngineName();
+		if (ScriptEngine.ENGINE_VERSION.equals(key))
+			return getEngineVersion();
+		if (ScriptEngine.NAME.equals(key))
+			return ENGINE_NAME;
+		if (ScriptEngine.LANGUAGE.equals(key))
+			return getLanguageName();
+		if (ScriptEngine.LANGUAGE_VERSION.equals(key))
+			return getLanguageVersion();
+		return null;
+	}
+
+	@Override
+	public String getMethodCallSyntax(String obj, String m, String... args) {
+		StringBuilder sb = new StringBuilder(obj).append('.').append(m).append('(');
+		for (int i = 0; i < args.length; i++) {
+			if (i > 0)
+				sb.append(',');
+			sb.append(args[i]);
+		}
+		return sb.append(')').toString();
+	}
+
+	@Override
+	public String getOutputStatement(String toDisplay) {
+		return "'" + toDisplay.replace("\\", "\\\\").replace("'", "\\'") + "'";
+	}
+
+	@Override
+	public String getProgram(String... statements) {
+		StringBuilder sb = new StringBuilder();
+		for (String statement : statements)
+			sb.append(statement).append(";\n");
+		return sb.toString();
+	}
+
+	@Override
+	public ScriptEngine getScriptEngine() {
+		return new RuleScriptEngine(this);
+	}
+}
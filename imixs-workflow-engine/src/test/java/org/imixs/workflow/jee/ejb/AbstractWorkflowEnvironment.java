@@ -4,6 +4,7 @@ import static org.mockito.Mockito.when;
 
 import java.security.Principal;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
@@ -87,6 +88,37 @@ public class AbstractWorkflowEnvironment {
 			}
 		});
 
+		// simulate load() for a list of ids
+		when(entityService.load(Mockito.anyCollectionOf(String.class)))
+				.thenAnswer(new Answer<Map<String, ItemCollection>>() {
+					@SuppressWarnings("unchecked")
+					@Override
+					public Map<String, ItemCollection> answer(InvocationOnMock invocation) throws Throwable {
+						Object[] args = invocation.getArguments();
+						Map<String, ItemCollection> result = new HashMap<String, ItemCollection>();
+						for (String id : (Collection<String>) args[0]) {
+							if (database.containsKey(id))
+								result.put(id, database.get(id));
+						}
+						return result;
+					}
+				});
+
+		// simulate saveAll() method
+		when(entityService.saveAll(Mockito.anyListOf(ItemCollection.class)))
+				.thenAnswer(new Answer<List<ItemCollection>>() {
+					@SuppressWarnings("unchecked")
+					@Override
+					public List<ItemCollection> answer(InvocationOnMock invocation) throws Throwable {
+						Object[] args = invocation.getArguments();
+						List<ItemCollection> entities = (List<ItemCollection>) args[0];
+						for (ItemCollection entity : entities) {
+							database.put(entity.getItemValueString(EntityService.UNIQUEID), entity);
+						}
+						return entities;
+					}
+				});
+
 		// simulate SessionContext ctx.getCallerPrincipal().getName()
 		Principal principal = Mockito.mock(Principal.class);
 		when(principal.getName()).thenReturn("manfred");
@@ -143,6 +175,19 @@ public class AbstractWorkflowEnvironment {
 					}
 				});
 
+		// simulate getProfile
+		when(modelService.getProfile(Mockito.anyString())).thenAnswer(new Answer<ItemCollection>() {
+			@Override
+			public ItemCollection answer(InvocationOnMock invocation) throws Throwable {
+				Object[] args = invocation.getArguments();
+				String modelVersion = (String) args[0];
+				ItemCollection entity = database.get("ENV0000-0000");
+				if (entity != null && modelVersion.equals(entity.getItemValueString("$ModelVersion")))
+					return entity;
+				return null;
+			}
+		});
+
 	
 
 	}
@@ -0,0 +1,353 @@
+package org.imixs.workflow.jee.ejb;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import javax.ejb.AsyncResult;
+import javax.ejb.EJBException;
+import javax.ejb.SessionContext;
+
+import org.imixs.workflow.ItemCollection;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import junit.framework.Assert;
+
+/**
+ * Test class for the BackupFile format and the restore method of the
+ * EntityService
+ * 
+ * The test verifies the checksums of the format, the resume of an interrupted
+ * restore, the progress file of another backup file and the exception of a restore with a block which can not be
+ * submitted. The backup and the restore call the EntityService by its business
+ * object, so each page and each block runs in a separate transaction.
+ * 
+ * @author rsoika
+ */
+public class TestBackupFile {
+
+	File file;
+	List<String> restored;
+	int failBlock;
+	int failSubmit;
+	EntityService businessObject;
+
+	@Before
+	public void setup() throws IOException {
+		file = File.createTempFile("imixs", ".bak");
+		restored = new ArrayList<String>();
+		failBlock = -1;
+		failSubmit = -1;
+	}
+
+	@After
+	public void teardown() {
+		file.delete();
+		new File(file.getPath() + ".progress").delete();
+	}
+
+	/**
+	 * Writes and reads a file with 3 blocks
+	 */
+	@Test
+	public void testReadWrite() throws IOException {
+		writeFile(25, 10);
+
+		BackupFile.Reader reader = new BackupFile.Reader(new FileInputStream(file));
+		Assert.assertEquals("SELECT entity FROM Entity entity", reader.getQuery());
+		Assert.assertEquals(10, reader.getBlockSize());
+		Assert.assertEquals(25, reader.getExpectedCount());
+
+		BackupFile.Block block = reader.nextBlock();
+		Assert.assertEquals(0, block.index);
+		Assert.assertTrue(block.valid);
+		List<ItemCollection> entities = BackupFile.decode(block.data, block.count);
+		Assert.assertEquals(10, entities.size());
+		Assert.assertEquals("id0", entities.get(0).getItemValueString("$uniqueid"));
+		Assert.assertEquals(9, entities.get(9).getItemValueInteger("number"));
+
+		block = reader.skipBlock();
+		Assert.assertEquals(1, block.index);
+		Assert.assertNull(block.data);
+
+		block = reader.nextBlock();
+		Assert.assertEquals(2, block.index);
+		Assert.assertEquals(5, block.count);
+		entities = BackupFile.decode(block.data, block.count);
+		Assert.assertEquals("id24", entities.get(4).getItemValueString("$uniqueid"));
+
+		Assert.assertEquals(-1, reader.getTotalCount());
+		Assert.assertNull(reader.nextBlock());
+		Assert.assertEquals(25, reader.getTotalCount());
+		Assert.assertEquals(3, reader.getTotalBlocks());
+		reader.close();
+	}
+
+	/**
+	 * A corrupted header is rejected, a corrupted block is reported as invalid
+	 */
+	@Test
+	public void testChecksum() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		BackupFile.Writer writer = new BackupFile.Writer(bytes, "query", 10, 10);
+		writer.writeBlock(createEntities(0, 10));
+		writer.close();
+		byte[] data = bytes.toByteArray();
+
+		// corrupt the query
+		byte[] corrupted = data.clone();
+		corrupted[30] ^= 0x01;
+		try {
+			new BackupFile.Reader(new ByteArrayInputStream(corrupted));
+			Assert.fail();
+		} catch (IOException e) {
+			// expected
+		}
+
+		// corrupt the last byte of the block data
+		corrupted = data.clone();
+		corrupted[corrupted.length - 17] ^= 0x01;
+		BackupFile.Reader reader = new BackupFile.Reader(new ByteArrayInputStream(corrupted));
+		Assert.assertFalse(reader.nextBlock().valid);
+		Assert.assertNull(reader.nextBlock());
+		reader.close();
+	}
+
+	/**
+	 * Files of the previous format are detected by the missing magic
+	 */
+	@Test
+	public void testIsBackupFile() throws IOException {
+		writeFile(5, 10);
+		BufferedInputStream in = new BufferedInputStream(new FileInputStream(file));
+		Assert.assertTrue(BackupFile.isBackupFile(in));
+		// the stream is reset
+		new BackupFile.Reader(in).close();
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(createEntities(0, 1).get(0).getAllItems());
+		out.close();
+		Assert.assertFalse(BackupFile.isBackupFile(new BufferedInputStream(new ByteArrayInputStream(bytes
+				.toByteArray()))));
+	}
+
+	/**
+	 * Restores a file with a failing block and resumes the restore after the
+	 * last block committed in a row
+	 */
+	@Test
+	public void testRestoreAndResume() throws Exception {
+		writeFile(95, 10);
+		EntityService entityService = createEntityService();
+
+		failBlock = 4;
+		ItemCollection summary = entityService.restore(file.getPath());
+		Assert.assertFalse(summary.getItemValueBoolean("keyVerified"));
+		Assert.assertEquals(95, summary.getItemValueInteger("numEntities"));
+		Assert.assertEquals(85, summary.getItemValueInteger("numRestored"));
+		Assert.assertEquals(10, summary.getItemValueInteger("numErrors"));
+		Assert.assertEquals(10, summary.getItemValueInteger("numBlocks"));
+		File progressFile = new File(file.getPath() + ".progress");
+		Assert.assertTrue(progressFile.exists());
+
+		// resume after block 3
+		restored.clear();
+		failBlock = -1;
+		summary = entityService.restore(file.getPath());
+		Assert.assertTrue(summary.getItemValueBoolean("keyVerified"));
+		Assert.assertEquals(40, summary.getItemValueInteger("numSkipped"));
+		Assert.assertEquals(55, summary.getItemValueInteger("numRestored"));
+		Assert.assertEquals(0, summary.getItemValueInteger("numErrors"));
+		Assert.assertEquals(55, restored.size());
+		Assert.assertEquals("id40", restored.get(0));
+		Assert.assertFalse(progressFile.exists());
+	}
+
+	/**
+	 * Restores a file with a failing block. A new backup file is written to
+	 * the same path, so the progress file of the first file is ignored.
+	 */
+	@Test
+	public void testRestoreOtherFile() throws Exception {
+		writeFile(95, 10);
+		EntityService entityService = createEntityService();
+
+		failBlock = 4;
+		ItemCollection summary = entityService.restore(file.getPath());
+		Assert.assertFalse(summary.getItemValueBoolean("keyVerified"));
+		Assert.assertTrue(new File(file.getPath() + ".progress").exists());
+
+		// a new backup file
+		writeFile(90, 10);
+		restored.clear();
+		failBlock = -1;
+		summary = entityService.restore(file.getPath());
+		Assert.assertTrue(summary.getItemValueBoolean("keyVerified"));
+		Assert.assertEquals(0, summary.getItemValueInteger("numSkipped"));
+		Assert.assertEquals(90, summary.getItemValueInteger("numRestored"));
+		Assert.assertEquals("id0", restored.get(0));
+	}
+
+	/**
+	 * Restores a file with a block which can not be submitted. The exception
+	 * of the failed call is thrown after the pending blocks were completed.
+	 */
+	@Test
+	public void testRestoreSubmitError() throws Exception {
+		writeFile(95, 10);
+		EntityService entityService = createEntityService();
+
+		failSubmit = 5;
+		try {
+			entityService.restore(file.getPath());
+			Assert.fail();
+		} catch (EJBException e) {
+			Assert.assertEquals("submit failed", e.getMessage());
+		}
+		Assert.assertEquals(50, restored.size());
+
+		// resume after block 4
+		restored.clear();
+		failSubmit = -1;
+		ItemCollection summary = entityService.restore(file.getPath());
+		Assert.assertTrue(summary.getItemValueBoolean("keyVerified"));
+		Assert.assertEquals(50, summary.getItemValueInteger("numSkipped"));
+		Assert.assertEquals(45, summary.getItemValueInteger("numRestored"));
+		Assert.assertEquals("id50", restored.get(0));
+	}
+
+	/**
+	 * Writes a backup with pages read by the business object and restores the
+	 * file
+	 */
+	@Test
+	public void testBackup() throws Exception {
+		final List<ItemCollection> entities = createEntities(0, 25);
+		EntityService entityService = createEntityService();
+		entityService.setBatchSize(10);
+		Mockito.when(businessObject.countAllEntities(Mockito.anyString())).thenReturn(25);
+		Mockito.when(businessObject.findAllEntitiesAfter(Mockito.anyString(), Mockito.anyString(), Mockito.anyInt()))
+				.thenAnswer(new Answer<List<ItemCollection>>() {
+					@Override
+					public List<ItemCollection> answer(InvocationOnMock invocation) throws Throwable {
+						Object[] args = invocation.getArguments();
+						int start = 0;
+						if (args[1] != null)
+							start = Integer.parseInt(((String) args[1]).substring(2)) + 1;
+						List<ItemCollection> page = new ArrayList<ItemCollection>();
+						for (int i = start; i < Math.min(start + (Integer) args[2], entities.size()); i++) {
+							ItemCollection entity = new ItemCollection(entities.get(i).getAllItems());
+							entity.replaceItemValue(EntityService.CONTINUATIONTOKEN, "id" + i);
+							page.add(entity);
+						}
+						return page;
+					}
+				});
+
+		ItemCollection summary = entityService.backup("SELECT entity FROM Entity entity", file.getPath());
+		Assert.assertEquals(25, summary.getItemValueInteger("numEntities"));
+		Assert.assertEquals(3, summary.getItemValueInteger("numBlocks"));
+		Mockito.verify(businessObject, Mockito.times(3)).findAllEntitiesAfter(Mockito.anyString(),
+				Mockito.anyString(), Mockito.anyInt());
+
+		summary = entityService.restore(file.getPath());
+		Assert.assertTrue(summary.getItemValueBoolean("keyVerified"));
+		Assert.assertEquals(25, restored.size());
+	}
+
+	/**
+	 * Restores a backup file of the previous format. Each entity is saved by
+	 * the business object.
+	 */
+	@Test
+	public void testRestoreObjectStream() throws Exception {
+		ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(file));
+		for (ItemCollection entity : createEntities(0, 5)) {
+			out.writeObject(entity.getAllItems());
+		}
+		out.close();
+		EntityService entityService = createEntityService();
+		Mockito.when(businessObject.save(Mockito.any(ItemCollection.class))).thenAnswer(
+				new Answer<ItemCollection>() {
+					@Override
+					public ItemCollection answer(InvocationOnMock invocation) throws Throwable {
+						ItemCollection entity = (ItemCollection) invocation.getArguments()[0];
+						restored.add(entity.getItemValueString("$uniqueid"));
+						return entity;
+					}
+				});
+
+		ItemCollection summary = entityService.restore(file.getPath());
+		Assert.assertTrue(summary.getItemValueBoolean("keyVerified"));
+		Assert.assertEquals(5, summary.getItemValueInteger("numRestored"));
+		Assert.assertEquals(5, restored.size());
+	}
+
+	/**
+	 * Creates an EntityService restoring the blocks by a mock
+	 */
+	@SuppressWarnings("unchecked")
+	private EntityService createEntityService() throws Exception {
+		EntityService entityService = new EntityService();
+		entityService.setRestoreWorkers(3);
+		businessObject = Mockito.mock(EntityService.class);
+		entityService.ctx = Mockito.mock(SessionContext.class);
+		Mockito.when(entityService.ctx.getBusinessObject(EntityService.class)).thenReturn(businessObject);
+		Mockito.when(businessObject.restoreBlock(Mockito.any(byte[].class), Mockito.anyInt())).thenAnswer(
+				new Answer<Future<Integer>>() {
+					@Override
+					public Future<Integer> answer(InvocationOnMock invocation) throws Throwable {
+						Object[] args = invocation.getArguments();
+						List<ItemCollection> entities = BackupFile.decode((byte[]) args[0], (Integer) args[1]);
+						if (entities.get(0).getItemValueInteger("number") == failSubmit * 10)
+							throw new EJBException("submit failed");
+						if (entities.get(0).getItemValueInteger("number") == failBlock * 10) {
+							Future<Integer> failed = Mockito.mock(Future.class);
+							Mockito.when(failed.get()).thenThrow(new ExecutionException(new RuntimeException()));
+							return failed;
+						}
+						for (ItemCollection entity : entities) {
+							restored.add(entity.getItemValueString("$uniqueid"));
+						}
+						return new AsyncResult<Integer>(0);
+					}
+				});
+		return entityService;
+	}
+
+	private void writeFile(int count, int blockSize) throws IOException {
+		BackupFile.Writer writer = new BackupFile.Writer(new FileOutputStream(file),
+				"SELECT entity FROM Entity entity", blockSize, count);
+		for (int i = 0; i < count; i += blockSize) {
+			writer.writeBlock(createEntities(i, Math.min(blockSize, count - i)));
+		}
+		writer.close();
+	}
+
+	private List<ItemCollection> createEntities(int start, int count) {
+		List<ItemCollection> result = new ArrayList<ItemCollection>();
+		for (int i = start; i < start + count; i++) {
+			ItemCollection entity = new ItemCollection();
+			entity.replaceItemValue("$uniqueid", "id" + i);
+			entity.replaceItemValue("number", i);
+			entity.replaceItemValue("txtName", "Entity " + i);
+			result.add(entity);
+		}
+		return result;
+	}
+}
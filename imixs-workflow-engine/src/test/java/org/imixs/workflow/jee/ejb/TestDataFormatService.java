@@ -0,0 +1,73 @@
+package org.imixs.workflow.jee.ejb;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Properties;
+
+import org.imixs.workflow.jee.jpa.BinaryDataConverter;
+import org.imixs.workflow.jee.jpa.Entity;
+import org.imixs.workflow.jee.jpa.SerializedDataConverter;
+import org.imixs.workflow.jee.util.PropertyService;
+import org.junit.After;
+import org.junit.Test;
+
+import junit.framework.Assert;
+
+/**
+ * Test class for the DataFormatService
+ * 
+ * This test verifies that the serialized format is the default and the binary
+ * format is only activated by the property 'entity.dataformat'
+ * 
+ * @author rsoika
+ */
+public class TestDataFormatService {
+
+	@After
+	public void teardown() {
+		Entity.setDataConverter(null);
+	}
+
+	/**
+	 * Test the converter selected for a data format
+	 */
+	@Test
+	public void testCreateDataConverter() {
+		Assert.assertTrue(DataFormatService.createDataConverter(null) instanceof SerializedDataConverter);
+		Assert.assertTrue(DataFormatService.createDataConverter("") instanceof SerializedDataConverter);
+		Assert.assertTrue(DataFormatService.createDataConverter("serialized") instanceof SerializedDataConverter);
+		Assert.assertTrue(DataFormatService.createDataConverter("xml") instanceof SerializedDataConverter);
+		Assert.assertTrue(DataFormatService.createDataConverter("binary") instanceof BinaryDataConverter);
+		Assert.assertTrue(DataFormatService.createDataConverter(" BINARY ") instanceof BinaryDataConverter);
+	}
+
+	/**
+	 * Test the default converter of the Entity and the property
+	 * 'entity.dataformat'
+	 */
+	@Test
+	public void testInit() {
+		Assert.assertTrue(Entity.getDataConverter() instanceof SerializedDataConverter);
+
+		Properties properties = new Properties();
+		PropertyService propertyService = mock(PropertyService.class);
+		when(propertyService.getProperties()).thenReturn(properties);
+		DataFormatService service = new DataFormatService();
+		service.propertyService = propertyService;
+
+		// no property
+		service.init();
+		Assert.assertTrue(Entity.getDataConverter() instanceof SerializedDataConverter);
+
+		// binary format
+		properties.setProperty(DataFormatService.PROPERTY_DATA_FORMAT, "binary");
+		service.init();
+		Assert.assertTrue(Entity.getDataConverter() instanceof BinaryDataConverter);
+
+		// reset
+		Entity.setDataConverter(null);
+		Assert.assertTrue(Entity.getDataConverter() instanceof SerializedDataConverter);
+	}
+
+}
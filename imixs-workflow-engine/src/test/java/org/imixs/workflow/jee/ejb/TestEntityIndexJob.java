@@ -0,0 +1,201 @@
+package org.imixs.workflow.jee.ejb;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.ejb.EJBException;
+import javax.persistence.OptimisticLockException;
+
+import org.imixs.workflow.ItemCollection;
+import org.imixs.workflow.jee.jpa.EntityIndex;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import junit.framework.Assert;
+
+/**
+ * Test class for the EntityIndexJob
+ * 
+ * This test verifies that the job walks the entities in chunks, stores its
+ * progress in the configuration and continues after a restart. In a cluster
+ * the job is only run by the node owning the job.
+ * 
+ * @author rsoika
+ */
+public class TestEntityIndexJob {
+
+	static final int ENTITIES = 250;
+
+	EntityService entityService;
+	ItemCollection storedConfig;
+	List<String> tokens;
+
+	@Before
+	public void setup() throws Exception {
+		storedConfig = null;
+		tokens = new ArrayList<String>();
+		entityService = Mockito.mock(EntityService.class);
+
+		Mockito.when(entityService.findAllEntities(Mockito.any(EntityQuery.class), Mockito.anyInt(),
+				Mockito.anyInt())).thenAnswer(new Answer<List<ItemCollection>>() {
+					@Override
+					public List<ItemCollection> answer(InvocationOnMock invocation) throws Throwable {
+						List<ItemCollection> result = new ArrayList<ItemCollection>();
+						if (storedConfig != null)
+							result.add(new ItemCollection(storedConfig.getAllItems()));
+						return result;
+					}
+				});
+
+		Mockito.when(entityService.save(Mockito.any(ItemCollection.class))).thenAnswer(
+				new Answer<ItemCollection>() {
+					@Override
+					public ItemCollection answer(InvocationOnMock invocation) throws Throwable {
+						ItemCollection config = (ItemCollection) invocation.getArguments()[0];
+						// simulates the optimistic locking
+						int version = storedConfig == null ? 0 : storedConfig.getItemValueInteger("$Version");
+						if (config.getItemValueInteger("$Version") != version)
+							throw new EJBException(new OptimisticLockException());
+						config.replaceItemValue("$Version", version + 1);
+						storedConfig = new ItemCollection(config.getAllItems());
+						return config;
+					}
+				});
+
+		// simulates 250 entities with the ids id000 - id249
+		Mockito.when(entityService.updateIndexValues(Mockito.anyString(), Mockito.anyInt(), Mockito.anyBoolean(),
+				Mockito.anyString(), Mockito.anyInt())).thenAnswer(new Answer<ItemCollection>() {
+					@Override
+					public ItemCollection answer(InvocationOnMock invocation) throws Throwable {
+						Object[] args = invocation.getArguments();
+						String token = (String) args[3];
+						int max = (Integer) args[4];
+						tokens.add(token);
+						int start = (token == null || token.isEmpty()) ? 0 : Integer.parseInt(token.substring(2)) + 1;
+						int scanned = Math.min(max, ENTITIES - start);
+						ItemCollection result = new ItemCollection();
+						result.replaceItemValue(EntityService.CONTINUATIONTOKEN,
+								scanned < max ? "" : String.format("id%03d", start + scanned - 1));
+						result.replaceItemValue("numScanned", scanned);
+						result.replaceItemValue("numUpdated", scanned / 2);
+						return result;
+					}
+				});
+	}
+
+	/**
+	 * Test the update of an added index in three chunks
+	 */
+	@Test
+	public void testRun() throws Exception {
+		EntityIndexJob job = createJob();
+		job.init();
+		Assert.assertFalse(job.isActive());
+		job.submit("txtName", EntityIndex.TYP_TEXT, false);
+		Assert.assertTrue(job.isActive());
+
+		job.run(Long.MAX_VALUE);
+		Mockito.verify(entityService).updateIndexValues("txtname", EntityIndex.TYP_TEXT, false, "", 100);
+		Assert.assertEquals("+txtname:0", storedConfig.getItemValueString("txtIndexJob"));
+		Assert.assertEquals("id099", storedConfig.getItemValueString("txtResumeToken"));
+		Assert.assertEquals(100, storedConfig.getItemValueInteger("numScanned"));
+		Assert.assertTrue(job.getStatus().getItemValue("txtSubmitted").isEmpty());
+
+		// the job pauses after a chunk
+		job.run(System.currentTimeMillis());
+		Assert.assertEquals(1, tokens.size());
+
+		job.run(Long.MAX_VALUE);
+		job.run(Long.MAX_VALUE);
+		Assert.assertEquals(3, tokens.size());
+		Assert.assertEquals("id199", tokens.get(2));
+		Assert.assertFalse(job.isActive());
+		Assert.assertTrue(storedConfig.getItemValue("txtIndexQueue").isEmpty());
+		Assert.assertEquals("", storedConfig.getItemValueString("txtIndexJob"));
+		Assert.assertTrue(storedConfig.getItemValueString("txtLastJob").startsWith("+txtname:0 - 125 of 250"));
+
+		// no more chunks
+		job.run(Long.MAX_VALUE);
+		Assert.assertEquals(3, tokens.size());
+	}
+
+	/**
+	 * Test that an interrupted update is continued with the stored token
+	 */
+	@Test
+	public void testResume() throws Exception {
+		EntityIndexJob job = createJob();
+		job.submit("txtName", EntityIndex.TYP_TEXT, true);
+		job.submit("numCount", EntityIndex.TYP_INT, false);
+		job.run(Long.MAX_VALUE);
+		Assert.assertEquals(2, storedConfig.getItemValue("txtIndexQueue").size());
+
+		// restart
+		job = createJob();
+		job.init();
+		Assert.assertTrue(job.isActive());
+		job.run(Long.MAX_VALUE);
+		Assert.assertEquals("id099", tokens.get(1));
+		Mockito.verify(entityService).updateIndexValues("txtname", EntityIndex.TYP_TEXT, true, "id099", 100);
+		job.run(Long.MAX_VALUE);
+
+		// the next index change
+		job.run(Long.MAX_VALUE);
+		Mockito.verify(entityService).updateIndexValues("numcount", EntityIndex.TYP_INT, false, "", 100);
+		Assert.assertEquals("+numcount:1", storedConfig.getItemValueString("txtIndexJob"));
+		Assert.assertEquals(1, storedConfig.getItemValue("txtIndexQueue").size());
+	}
+
+	/**
+	 * Test that the job is only run by the node owning the job
+	 */
+	@Test
+	public void testCluster() throws Exception {
+		EntityIndexJob job1 = createJob();
+		EntityIndexJob job2 = createJob();
+		job1.submit("txtName", EntityIndex.TYP_TEXT, false);
+		job1.run(Long.MAX_VALUE);
+		Assert.assertEquals(1, tokens.size());
+		Assert.assertFalse(storedConfig.getItemValueString("txtOwner").isEmpty());
+
+		// the second node only adds its index change to the queue
+		job2.submit("numCount", EntityIndex.TYP_INT, false);
+		job2.run(System.currentTimeMillis() + 2000);
+		Assert.assertEquals(1, tokens.size());
+		Assert.assertEquals(2, storedConfig.getItemValue("txtIndexQueue").size());
+		Assert.assertTrue(job2.isActive());
+
+		// the first node continues with the stored configuration
+		job1.run(Long.MAX_VALUE);
+		Assert.assertEquals(2, tokens.size());
+		Assert.assertEquals("id099", tokens.get(1));
+
+		// a concurrent update of the configuration fails
+		ItemCollection config = job2.loadConfiguration();
+		job1.run(Long.MAX_VALUE);
+		config.replaceItemValue("txtOwner", "other");
+		try {
+			entityService.save(config);
+			Assert.fail();
+		} catch (EJBException e) {
+			Assert.assertTrue(e.getCause() instanceof OptimisticLockException);
+		}
+
+		// the lease of the first node has expired
+		job2.run(Long.MAX_VALUE);
+		Assert.assertEquals(4, tokens.size());
+		Assert.assertEquals("", tokens.get(3));
+		Mockito.verify(entityService).updateIndexValues("numcount", EntityIndex.TYP_INT, false, "", 100);
+	}
+
+	private EntityIndexJob createJob() {
+		EntityIndexJob job = new EntityIndexJob();
+		job.entityService = entityService;
+		job.setChunkSize(100);
+		job.setPause(60000);
+		return job;
+	}
+}
@@ -0,0 +1,94 @@
+package org.imixs.workflow.jee.ejb;
+
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Test;
+
+import junit.framework.Assert;
+
+/**
+ * Test class for the EntityQuery
+ *
+ * This test verifies that the jPQL statement of an EntityQuery does not depend
+ * on the selected values and that the values are provided as parameters.
+ *
+ * @author rsoika
+ */
+public class TestEntityQuery {
+
+	/**
+	 * Test the statement and the parameters of a simple selection
+	 */
+	@Test
+	public void testQuery() {
+		EntityQuery query = new EntityQuery("wi").type("workitem").integerItem("$processid", 1000)
+				.textItem("$ModelVersion", "1.0.0").orderBy(EntityQuery.MODIFIED, false);
+
+		Assert.assertEquals("SELECT DISTINCT wi FROM Entity AS wi JOIN wi.integerItems AS q0 JOIN wi.textItems AS q1"
+				+ " WHERE wi.type = :type AND q0.itemName = :q0name AND q0.itemValue = :q0value"
+				+ " AND q1.itemName = :q1name AND q1.itemValue = :q1value ORDER BY wi.modified desc", query.getJPQL());
+
+		Assert.assertEquals("workitem", query.getParameters().get("type"));
+		Assert.assertEquals(1000, query.getParameters().get("q0value"));
+		// item names are lower cased
+		Assert.assertEquals("$modelversion", query.getParameters().get("q1name"));
+		Assert.assertEquals("1.0.0", query.getParameters().get("q1value"));
+
+		// the statement does not change with the values
+		EntityQuery other = new EntityQuery("wi").type("workitem").integerItem("$processid", 2000)
+				.textItem("$ModelVersion", "2.0.0").orderBy(EntityQuery.MODIFIED, false);
+		Assert.assertEquals(query.getJPQL(), other.getJPQL());
+	}
+
+	/**
+	 * Test the read access check and selections with a list of values
+	 */
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testReadAccessCheck() {
+		EntityQuery query = new EntityQuery().type("ProcessEntity", "ActivityEntity")
+				.writeAccess(Arrays.asList("manfred", "anna"));
+
+		Assert.assertEquals("SELECT DISTINCT entity FROM Entity AS entity JOIN entity.writeAccessList AS q0"
+				+ " LEFT JOIN entity.readAccessList access807"
+				+ " WHERE (access807.value IS NULL OR access807.value IN :accessnames)"
+				+ " AND entity.type IN :type AND q0.value IN :q0value", query.getJPQL(true));
+		Assert.assertEquals(2, ((List<String>) query.getParameters().get("type")).size());
+		Assert.assertEquals("anna", ((List<String>) query.getParameters().get("q0value")).get(1));
+
+		// an empty type is ignored
+		Assert.assertEquals("SELECT DISTINCT entity FROM Entity AS entity", new EntityQuery().type("").getJPQL());
+	}
+
+	/**
+	 * Test the selection of a date range
+	 */
+	@Test
+	public void testCalendarItemBefore() {
+		Date now = new Date();
+		EntityQuery query = new EntityQuery("wi").type("workitem").calendarItemBefore("$scheduledDue", now);
+
+		Assert.assertEquals("SELECT DISTINCT wi FROM Entity AS wi JOIN wi.calendarItems AS q0"
+				+ " WHERE wi.type = :type AND q0.itemName = :q0name AND q0.itemValue <= :q0value", query.getJPQL());
+		Assert.assertEquals("$scheduleddue", query.getParameters().get("q0name"));
+		Assert.assertEquals(now, ((Calendar) query.getParameters().get("q0value")).getTime());
+		Assert.assertTrue(EntityService.isKeysetQuery(query.getJPQL()));
+	}
+
+	/**
+	 * Test that a query ordered by the creation date can be paged
+	 */
+	@Test
+	public void testKeysetQuery() {
+		EntityQuery query = new EntityQuery("wi").hasTextItem("$workitemid").orderBy(EntityQuery.CREATED, true);
+		Assert.assertTrue(EntityService.isKeysetQuery(query.getJPQL()));
+		Assert.assertEquals("created", EntityService.getKeysetSortField(query.getJPQL()));
+
+		query.orderByTextItem("txtname", true);
+		Assert.assertFalse(EntityService.isKeysetQuery(query.getJPQL()));
+	}
+
+}
@@ -0,0 +1,344 @@
+package org.imixs.workflow.jee.ejb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+
+import javax.transaction.Status;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+import org.imixs.workflow.ItemCollection;
+import org.imixs.workflow.jee.jpa.CalendarItem;
+import org.imixs.workflow.jee.jpa.Entity;
+import org.imixs.workflow.jee.jpa.EntityIndex;
+import org.imixs.workflow.jee.jpa.IntegerItem;
+import org.imixs.workflow.jee.jpa.TextItem;
+import org.imixs.workflow.jee.jpa.WriteAccess;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import junit.framework.Assert;
+
+/**
+ * Test class for the EntityService
+ *
+ * This test verifies the computation of the minimal changes of an index value
+ * list during explodeEntity(), the keyset pagination used by the
+ * EntityIterator and the worklist methods, the refresh and publication of
+ * the EntityIndexSnapshot and the migration of the data of entities saved by
+ * a previous version
+ *
+ * @author rsoika
+ */
+public class TestEntityService {
+
+	/**
+	 * Test unchanged, appended, removed and replaced index values
+	 */
+	@Test
+	public void testDiffIndexValues() {
+		List<String> oldValues = Arrays.asList("a", "b", "c");
+
+		// unchanged
+		boolean[] keep = new boolean[3];
+		boolean[] add = EntityService.diffIndexValues(oldValues, Arrays.asList("a", "b", "c"), keep);
+		Assert.assertTrue(Arrays.equals(new boolean[] { true, true, true }, keep));
+		Assert.assertTrue(Arrays.equals(new boolean[] { false, false, false }, add));
+
+		// append a value
+		keep = new boolean[3];
+		add = EntityService.diffIndexValues(oldValues, Arrays.asList("a", "b", "c", "d"), keep);
+		Assert.assertTrue(Arrays.equals(new boolean[] { true, true, true }, keep));
+		Assert.assertTrue(Arrays.equals(new boolean[] { false, false, false, true }, add));
+
+		// remove a value
+		keep = new boolean[3];
+		add = EntityService.diffIndexValues(oldValues, Arrays.asList("a", "c"), keep);
+		Assert.assertTrue(Arrays.equals(new boolean[] { true, false, true }, keep));
+		Assert.assertTrue(Arrays.equals(new boolean[] { false, false }, add));
+
+		// replace the last value
+		keep = new boolean[3];
+		add = EntityService.diffIndexValues(oldValues, Arrays.asList("a", "b", "x"), keep);
+		Assert.assertTrue(Arrays.equals(new boolean[] { true, true, false }, keep));
+		Assert.assertTrue(Arrays.equals(new boolean[] { false, false, true }, add));
+
+		// replace the first value - only one row is removed and one is added
+		keep = new boolean[3];
+		add = EntityService.diffIndexValues(oldValues, Arrays.asList("x", "b", "c"), keep);
+		Assert.assertTrue(Arrays.equals(new boolean[] { false, true, true }, keep));
+		Assert.assertTrue(Arrays.equals(new boolean[] { true, false, false }, add));
+
+		// replace a value in the middle
+		keep = new boolean[3];
+		add = EntityService.diffIndexValues(oldValues, Arrays.asList("a", "x", "c"), keep);
+		Assert.assertTrue(Arrays.equals(new boolean[] { true, false, true }, keep));
+		Assert.assertTrue(Arrays.equals(new boolean[] { false, true, false }, add));
+
+		// change the order - no row is changed
+		keep = new boolean[3];
+		add = EntityService.diffIndexValues(oldValues, Arrays.asList("c", "a", "b"), keep);
+		Assert.assertTrue(Arrays.equals(new boolean[] { true, true, true }, keep));
+		Assert.assertTrue(Arrays.equals(new boolean[] { false, false, false }, add));
+
+		// duplicate and null values
+		keep = new boolean[4];
+		add = EntityService.diffIndexValues(Arrays.asList("a", null, "a", "b"), Arrays.asList("a", "b", null, "b"),
+				keep);
+		Assert.assertTrue(Arrays.equals(new boolean[] { true, true, false, true }, keep));
+		Assert.assertTrue(Arrays.equals(new boolean[] { false, false, false, true }, add));
+	}
+
+	/**
+	 * Test the conversion of a jPQL statement into a keyset query
+	 */
+	@Test
+	public void testCreateKeysetQuery() {
+		Assert.assertEquals("SELECT entity FROM Entity entity ORDER BY entity.id",
+				EntityService.createKeysetQuery("SELECT entity FROM Entity entity", false));
+		Assert.assertEquals("SELECT entity FROM Entity entity WHERE entity.id > :keysetid ORDER BY entity.id",
+				EntityService.createKeysetQuery("SELECT entity FROM Entity entity", true));
+
+		String query = "SELECT wi FROM Entity as wi JOIN wi.textItems as t WHERE wi.type='workitem' "
+				+ "AND t.itemName = 'txtname' ORDER BY t.itemValue";
+		Assert.assertEquals(
+				"SELECT wi FROM Entity as wi JOIN wi.textItems as t WHERE wi.id > :keysetid AND (wi.type='workitem' "
+						+ "AND t.itemName = 'txtname') ORDER BY wi.id",
+				EntityService.createKeysetQuery(query, true));
+	}
+
+	/**
+	 * Test the conversion of a jPQL statement ordered by the modification or
+	 * creation date into a keyset query
+	 */
+	@Test
+	public void testCreateSortedKeysetQuery() {
+		String query = "SELECT wi FROM Entity as wi JOIN wi.textItems as t WHERE wi.type='workitem' "
+				+ "AND t.itemName = '$modelversion' ORDER BY wi.modified DESC";
+		Assert.assertEquals("SELECT wi FROM Entity as wi JOIN wi.textItems as t WHERE wi.type='workitem' "
+				+ "AND t.itemName = '$modelversion' ORDER BY wi.modified DESC, wi.id DESC",
+				EntityService.createKeysetQuery(query, false));
+		Assert.assertEquals(
+				"SELECT wi FROM Entity as wi JOIN wi.textItems as t WHERE (wi.modified < :keysetvalue OR "
+						+ "(wi.modified = :keysetvalue AND wi.id < :keysetid)) AND (wi.type='workitem' "
+						+ "AND t.itemName = '$modelversion') ORDER BY wi.modified DESC, wi.id DESC",
+				EntityService.createKeysetQuery(query, true));
+
+		Assert.assertEquals(
+				"SELECT wi FROM Entity AS wi WHERE (wi.created > :keysetvalue OR (wi.created = :keysetvalue "
+						+ "AND wi.id > :keysetid)) ORDER BY wi.created ASC, wi.id ASC",
+				EntityService.createKeysetQuery("SELECT wi FROM Entity AS wi ORDER BY wi.created asc", true));
+
+		Assert.assertEquals("modified", EntityService.getKeysetSortField(query));
+		Assert.assertTrue(EntityService.isKeysetQuery(query));
+		Assert.assertTrue(EntityService.isKeysetQuery("SELECT wi FROM Entity AS wi"));
+		Assert.assertFalse(EntityService.isKeysetQuery(
+				"SELECT wi FROM Entity as wi JOIN wi.textItems as t WHERE t.itemName = 'txtname' ORDER BY t.itemValue"));
+	}
+
+	/**
+	 * Test the EntityIterator reading 5 entities in pages of 2 entities
+	 */
+	@Test
+	public void testEntityIterator() {
+		final List<ItemCollection> database = new ArrayList<ItemCollection>();
+		for (int i = 1; i <= 5; i++) {
+			ItemCollection entity = new ItemCollection();
+			entity.replaceItemValue(EntityService.UNIQUEID, "W0000-0000" + i);
+			database.add(entity);
+		}
+
+		EntityService entityService = Mockito.mock(EntityService.class);
+		Mockito.when(entityService.findAllEntitiesAfter(Mockito.anyString(), Mockito.anyString(), Mockito.anyInt()))
+				.thenAnswer(new Answer<List<ItemCollection>>() {
+					@Override
+					public List<ItemCollection> answer(InvocationOnMock invocation) throws Throwable {
+						Object[] args = invocation.getArguments();
+						String continuationToken = (String) args[1];
+						int maxcount = (Integer) args[2];
+						List<ItemCollection> result = new ArrayList<ItemCollection>();
+						for (ItemCollection entity : database) {
+							String id = entity.getItemValueString(EntityService.UNIQUEID);
+							if (continuationToken != null && id.compareTo(continuationToken) <= 0)
+								continue;
+							entity.replaceItemValue(EntityService.CONTINUATIONTOKEN, id);
+							if (result.size() < maxcount)
+								result.add(entity);
+						}
+						return result;
+					}
+				});
+
+		Iterator<ItemCollection> iter = new EntityIterator(entityService, "SELECT entity FROM Entity entity", 2);
+		List<String> ids = new ArrayList<String>();
+		while (iter.hasNext()) {
+			ids.add(iter.next().getItemValueString(EntityService.UNIQUEID));
+		}
+		Assert.assertEquals(5, ids.size());
+		Assert.assertEquals("W0000-00005", ids.get(4));
+		// 3 pages read
+		Mockito.verify(entityService, Mockito.times(3)).findAllEntitiesAfter(Mockito.anyString(),
+				Mockito.anyString(), Mockito.anyInt());
+	}
+
+	/**
+	 * Test that the EntityIndex definitions are reloaded only if the version
+	 * stamp has changed
+	 */
+	@Test
+	public void testIndexSnapshot() {
+		EntityService entityService = Mockito.spy(new EntityService());
+		entityService.entityIndexCache = new EntityIndexCache();
+		List<EntityIndex> indices = new ArrayList<EntityIndex>();
+		indices.add(new EntityIndex("txtname", EntityIndex.TYP_TEXT));
+		Mockito.doReturn(1).when(entityService).readIndexVersion();
+		Mockito.doReturn(indices).when(entityService).loadIndices();
+
+		long now = 1000000;
+		EntityIndexSnapshot snapshot = entityService.getIndexSnapshot(now);
+		Assert.assertEquals(1, snapshot.getVersion());
+		Assert.assertEquals(Integer.valueOf(EntityIndex.TYP_TEXT), snapshot.getTypes().get("txtname"));
+
+		// the snapshot is used without verification
+		Assert.assertSame(snapshot, entityService.getIndexSnapshot(now + EntityService.INDEX_REFRESH_INTERVAL - 1));
+		Mockito.verify(entityService, Mockito.times(1)).readIndexVersion();
+
+		// the version is verified but the definitions are not reloaded
+		now += EntityService.INDEX_REFRESH_INTERVAL;
+		EntityIndexSnapshot revalidated = entityService.getIndexSnapshot(now);
+		Assert.assertSame(snapshot.getIndices(), revalidated.getIndices());
+		Mockito.verify(entityService, Mockito.times(2)).readIndexVersion();
+		Mockito.verify(entityService, Mockito.times(1)).loadIndices();
+
+		// an other node added an index
+		indices.add(new EntityIndex("namowner", EntityIndex.TYP_TEXT));
+		Mockito.doReturn(2).when(entityService).readIndexVersion();
+		now += EntityService.INDEX_REFRESH_INTERVAL;
+		snapshot = entityService.getIndexSnapshot(now);
+		Assert.assertEquals(2, snapshot.getVersion());
+		Assert.assertEquals(2, snapshot.getIndices().size());
+		Assert.assertEquals(2, entityService.getIndices().size());
+		Mockito.verify(entityService, Mockito.times(2)).loadIndices();
+
+		// the snapshot is immutable
+		indices.clear();
+		Assert.assertEquals(2, snapshot.getIndices().size());
+		try {
+			snapshot.getIndices().clear();
+			Assert.fail();
+		} catch (UnsupportedOperationException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * Test that a snapshot of EntityIndex definitions changed by a transaction
+	 * is published only after commit
+	 */
+	@Test
+	public void testIndexSnapshotTransaction() {
+		EntityService entityService = Mockito.spy(new EntityService());
+		entityService.entityIndexCache = new EntityIndexCache();
+		List<EntityIndex> indices = new ArrayList<EntityIndex>();
+		indices.add(new EntityIndex("txtname", EntityIndex.TYP_TEXT));
+		Mockito.doReturn(1).when(entityService).readIndexVersion();
+		Mockito.doReturn(indices).when(entityService).loadIndices();
+		long now = System.currentTimeMillis();
+		EntityIndexSnapshot committed = entityService.getIndexSnapshot(now);
+		Assert.assertSame(committed, entityService.entityIndexCache.getSnapshot());
+
+		// the current transaction added an index
+		EntityService.IndexChange change = new EntityService.IndexChange(entityService.entityIndexCache);
+		entityService.txRegistry = Mockito.mock(TransactionSynchronizationRegistry.class);
+		Mockito.when(entityService.txRegistry.getTransactionKey()).thenReturn("tx");
+		Mockito.when(entityService.txRegistry.getResource(Mockito.any())).thenReturn(change);
+		indices = new ArrayList<EntityIndex>(indices);
+		indices.add(new EntityIndex("namowner", EntityIndex.TYP_TEXT));
+		Mockito.doReturn(2).when(entityService).readIndexVersion();
+		Mockito.doReturn(indices).when(entityService).loadIndices();
+
+		EntityIndexSnapshot snapshot = entityService.getIndexSnapshot(now);
+		Assert.assertEquals(2, snapshot.getVersion());
+		Assert.assertSame(snapshot, entityService.getIndexSnapshot(now + 10 * EntityService.INDEX_REFRESH_INTERVAL));
+		// the shared snapshot is not changed
+		Assert.assertSame(committed, entityService.entityIndexCache.getSnapshot());
+
+		// rollback
+		change.afterCompletion(Status.STATUS_ROLLEDBACK);
+		Assert.assertSame(committed, entityService.entityIndexCache.getSnapshot());
+
+		// commit
+		change.afterCompletion(Status.STATUS_COMMITTED);
+		Assert.assertEquals(2, entityService.entityIndexCache.getSnapshot().getVersion());
+		Assert.assertEquals(2, entityService.entityIndexCache.getSnapshot().getIndices().size());
+
+		// an older snapshot is not published
+		entityService.entityIndexCache.publish(committed);
+		Assert.assertEquals(2, entityService.entityIndexCache.getSnapshot().getVersion());
+	}
+
+	/**
+	 * Test that the index values of an entity saved by a previous version are
+	 * copied into the data before the index rows are removed
+	 */
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testCompleteData() {
+		Calendar cal = Calendar.getInstance();
+		cal.setTimeInMillis(1000000);
+
+		// an entity of the previous format - the index values are not
+		// contained in the data
+		Entity entity = new Entity("id1");
+		Map<String, List<Object>> data = new HashMap<String, List<Object>>();
+		data.put("txtsubject", new Vector<Object>(Arrays.asList("Hello")));
+		data.put("txtname", new Vector<Object>(Arrays.asList("Eva")));
+		entity.setData(data);
+		entity.getTextItems().add(new TextItem("txtname", "Anna"));
+		entity.getTextItems().add(new TextItem("txtname", "Tom"));
+		entity.getIntegerItems().add(new IntegerItem("numprocessid", 1000));
+		entity.getCalendarItems().add(new CalendarItem("datdate", cal));
+		entity.getWriteAccessList().add(new WriteAccess("anna"));
+
+		Assert.assertTrue(EntityService.completeData(entity));
+		Assert.assertFalse(EntityService.completeData(entity));
+
+		// remove the index rows
+		entity.getTextItems().clear();
+		entity.getIntegerItems().clear();
+		entity.getCalendarItems().clear();
+
+		ItemCollection itemCol = new ItemCollection(entity.getData());
+		Assert.assertEquals(Arrays.asList("Anna", "Tom", "Eva"), itemCol.getItemValue("txtname"));
+		Assert.assertEquals(1000, itemCol.getItemValueInteger("numprocessid"));
+		Assert.assertEquals(cal.getTime(), itemCol.getItemValueDate("datdate"));
+		Assert.assertEquals("Hello", itemCol.getItemValueString("txtsubject"));
+		Assert.assertEquals(Arrays.asList("anna"), itemCol.getItemValue(EntityService.DATA_WRITEACCESS));
+	}
+
+	/**
+	 * Test that only entities without values of a new index are updated by
+	 * the method updateIndexValues
+	 */
+	@Test
+	public void testHasIndexValues() {
+		Entity entity = new Entity("id1");
+		entity.getTextItems().add(new TextItem("txtname", "Anna"));
+		entity.getIntegerItems().add(new IntegerItem("numprocessid", 1000));
+
+		Assert.assertTrue(EntityService.hasIndexValues(entity, new EntityIndex("txtname", EntityIndex.TYP_TEXT)));
+		Assert.assertTrue(
+				EntityService.hasIndexValues(entity, new EntityIndex("numprocessid", EntityIndex.TYP_INT)));
+		Assert.assertFalse(EntityService.hasIndexValues(entity, new EntityIndex("txtsubject", EntityIndex.TYP_TEXT)));
+		Assert.assertFalse(
+				EntityService.hasIndexValues(entity, new EntityIndex("datdate", EntityIndex.TYP_CALENDAR)));
+	}
+
+}
@@ -0,0 +1,199 @@
+package org.imixs.workflow.jee.ejb;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.imixs.workflow.ItemCollection;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import junit.framework.Assert;
+
+/**
+ * Test class for the FullTextIndex and the FullTextIndexService
+ * 
+ * This test verifies the search with prefix terms and read access, the
+ * journal of the index and the rebuild of the index.
+ * 
+ * @author rsoika
+ */
+public class TestFullTextIndex {
+
+	File directory;
+
+	@Before
+	public void setup() throws IOException {
+		directory = File.createTempFile("imixs", "fulltext");
+		directory.delete();
+	}
+
+	@After
+	public void teardown() {
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
+
+	@Test
+	public void testTokenize() {
+		Assert.assertEquals(Arrays.asList("hello", "world", "2015", "müller"),
+				new ArrayList<String>(FullTextIndex.tokenize("Hello, World! 2015 hello-Müller")));
+		Assert.assertTrue(FullTextIndex.tokenize(null).isEmpty());
+	}
+
+	/**
+	 * Test terms, prefix terms, type and read access
+	 */
+	@Test
+	public void testSearch() throws IOException {
+		FullTextIndex index = createIndex(null);
+		Set<String> anna = new HashSet<String>(Arrays.asList("anna", "org.imixs.ACCESSLEVEL.AUTHORACCESS"));
+
+		Assert.assertEquals(Arrays.asList("id3", "id1"), index.search("invoice", null, null, 0, -1));
+		Assert.assertEquals(Arrays.asList("id1"), index.search("Invoice Berlin", null, null, 0, -1));
+		Assert.assertEquals(Arrays.asList("id3", "id2", "id1"), index.search("ber*", null, null, 0, -1));
+		Assert.assertEquals(Arrays.asList("id3"), index.search("ber*", "workitemarchive", null, 0, -1));
+		Assert.assertEquals(Arrays.asList("id2"), index.search("ber*", null, null, 1, 1));
+		Assert.assertTrue(index.search("hamburg", null, null, 0, -1).isEmpty());
+		Assert.assertTrue(index.search("", null, null, 0, -1).isEmpty());
+
+		// id2 is readable only by 'tom'
+		Assert.assertEquals(Arrays.asList("id3", "id1"), index.search("ber*", null, anna, 0, -1));
+
+		// update and delete
+		index.update("id1", "workitem", null, "order Hamburg");
+		Assert.assertEquals(Arrays.asList("id1"), index.search("hamburg", null, anna, 0, -1));
+		Assert.assertEquals(Arrays.asList("id3"), index.search("invoice", null, null, 0, -1));
+		index.delete("id3");
+		Assert.assertTrue(index.search("invoice", null, null, 0, -1).isEmpty());
+		Assert.assertEquals(2, index.size());
+	}
+
+	/**
+	 * Test that the index is read from the journal and an incomplete journal
+	 * is repaired
+	 */
+	@Test
+	public void testJournal() throws IOException {
+		FullTextIndex index = createIndex(directory);
+		index.delete("id2");
+		index.flush();
+		index.close();
+
+		index = new FullTextIndex(directory);
+		Assert.assertEquals(2, index.size());
+		Assert.assertEquals(Arrays.asList("id3", "id1"), index.search("invoice", null, null, 0, -1));
+		index.close();
+
+		// append an incomplete record
+		FileOutputStream out = new FileOutputStream(new File(directory, FullTextIndex.JOURNAL), true);
+		out.write(new byte[] { 1, 0, 10, 'i' });
+		out.close();
+		index = new FullTextIndex(directory);
+		Assert.assertEquals(2, index.size());
+		index.update("id4", "workitem", null, "Berlin");
+		index.flush();
+		index.close();
+
+		index = new FullTextIndex(directory);
+		Assert.assertEquals(Arrays.asList("id4", "id1"), index.search("berlin", null, null, 0, -1));
+		index.close();
+	}
+
+	/**
+	 * Test the asynchronous update and the rebuild of the index
+	 */
+	@Test
+	public void testFullTextIndexService() throws Exception {
+		FullTextIndexService service = new FullTextIndexService();
+		service.open(null);
+
+		ItemCollection document = new ItemCollection();
+		document.replaceItemValue("$uniqueid", "id1");
+		document.replaceItemValue("type", "workitem");
+		document.replaceItemValue("$readaccess", "anna");
+		document.replaceItemValue("content", "Invoice Berlin");
+		service.update(document);
+		Assert.assertTrue(service.search("berlin", null, null, 0, -1).isEmpty());
+		Assert.assertEquals(1, service.getStatus().getItemValueInteger("numQueued"));
+
+		service.update(System.currentTimeMillis(), 0);
+		Assert.assertEquals(Arrays.asList("id1"), service.search("berlin", null, null, 0, -1));
+		Assert.assertTrue(service.search("berlin", null, new HashSet<String>(Arrays.asList("tom")), 0, -1)
+				.isEmpty());
+		Assert.assertEquals(1, service.getStatus().getItemValueInteger("numDocuments"));
+		Assert.assertEquals(0, service.getStatus().getItemValueInteger("numQueued"));
+
+		service.delete("id1");
+		service.update(System.currentTimeMillis(), 0);
+		Assert.assertTrue(service.search("berlin", null, null, 0, -1).isEmpty());
+
+		// rebuild 250 entities in chunks of 100
+		final List<String> tokens = new ArrayList<String>();
+		service.entityService = Mockito.mock(EntityService.class);
+		Mockito.when(service.entityService.getBatchSize()).thenReturn(100);
+		Mockito.when(service.entityService.findFullTextDocuments(Mockito.anyString(), Mockito.anyInt()))
+				.thenAnswer(new Answer<List<ItemCollection>>() {
+					@Override
+					public List<ItemCollection> answer(InvocationOnMock invocation) throws Throwable {
+						String token = (String) invocation.getArguments()[0];
+						tokens.add(token);
+						int start = token.isEmpty() ? 0 : Integer.parseInt(token.substring(2)) + 1;
+						List<ItemCollection> result = new ArrayList<ItemCollection>();
+						for (int i = start; i < Math.min(start + 100, 250); i++) {
+							ItemCollection doc = new ItemCollection();
+							doc.replaceItemValue("$uniqueid", String.format("id%03d", i));
+							doc.replaceItemValue("type", "workitem");
+							doc.replaceItemValue("content", "Entity " + i);
+							doc.replaceItemValue(EntityService.CONTINUATIONTOKEN, String.format("id%03d", i));
+							result.add(doc);
+						}
+						return result;
+					}
+				});
+		service.rebuild();
+		Assert.assertTrue(service.getStatus().getItemValueBoolean("keyRebuilding"));
+		service.update(System.currentTimeMillis(), 60000);
+		Assert.assertEquals(Arrays.asList("", "id099", "id199"), tokens);
+		Assert.assertFalse(service.getStatus().getItemValueBoolean("keyRebuilding"));
+		Assert.assertEquals(250, service.getStatus().getItemValueInteger("numDocuments"));
+		Assert.assertEquals(Arrays.asList("id249"), service.search("249", null, null, 0, -1));
+	}
+
+	/**
+	 * Test the text of an ItemCollection written into the index
+	 */
+	@Test
+	public void testFullTextContent() {
+		ItemCollection itemcol = new ItemCollection();
+		itemcol.replaceItemValue("txtSubject", "Invoice");
+		itemcol.replaceItemValue("txtCity", Arrays.asList("Berlin", "Munich"));
+		itemcol.replaceItemValue("numAmount", 100);
+		itemcol.replaceItemValue("$uniqueid", "abc-123");
+		itemcol.replaceItemValue("$workflowsummary", "Summary");
+		Set<String> terms = FullTextIndex.tokenize(EntityService.getFullTextContent(itemcol));
+		Assert.assertEquals(new HashSet<String>(Arrays.asList("invoice", "berlin", "munich", "summary")), terms);
+	}
+
+	private FullTextIndex createIndex(File dir) throws IOException {
+		FullTextIndex index = new FullTextIndex(dir);
+		index.update("id1", "workitem", null, "Invoice Berlin");
+		index.update("id2", "workitem", Arrays.asList("tom"), "Order Bern");
+		index.update("id3", "workitemarchive", Arrays.asList("anna", ""), "Invoice Bergen");
+		return index;
+	}
+}
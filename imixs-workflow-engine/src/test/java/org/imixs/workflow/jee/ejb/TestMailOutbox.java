@@ -0,0 +1,258 @@
+package org.imixs.workflow.jee.ejb;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import junit.framework.Assert;
+
+/**
+ * Test class for the MailOutbox
+ * 
+ * The test sends messages to a local SMTP stub.
+ * 
+ * @author rsoika
+ */
+public class TestMailOutbox {
+
+	SmtpStub smtp;
+	MailOutbox outbox;
+	Session session;
+
+	@Before
+	public void setup() throws IOException {
+		smtp = new SmtpStub();
+		outbox = new MailOutbox();
+		Properties props = new Properties();
+		props.put("mail.smtp.host", "localhost");
+		props.put("mail.smtp.port", String.valueOf(smtp.getPort()));
+		session = Session.getInstance(props);
+	}
+
+	@After
+	public void teardown() throws IOException {
+		outbox.destroy();
+		smtp.close();
+	}
+
+	/**
+	 * Test that the messages are sent in one batch and the connection is
+	 * reused
+	 */
+	@Test
+	public void testBatch() throws MessagingException {
+		for (int i = 0; i < 5; i++)
+			outbox.send(session, createMessage("Message " + i));
+		Assert.assertEquals(5, outbox.getQueueSize());
+		Assert.assertEquals(0, smtp.messages.get());
+
+		outbox.flush();
+		Assert.assertEquals(0, outbox.getQueueSize());
+		Assert.assertEquals(5, outbox.getSentCount());
+		Assert.assertEquals(5, smtp.messages.get());
+		Assert.assertEquals(1, smtp.connections.get());
+		Assert.assertEquals(1, outbox.getConnectionCount());
+
+		// the connection is reused
+		outbox.send(session, createMessage("Message 6"));
+		outbox.flush();
+		Assert.assertEquals(6, smtp.messages.get());
+		Assert.assertEquals(1, smtp.connections.get());
+
+		// an idle connection is closed
+		outbox.flush(System.currentTimeMillis() + MailOutbox.CONNECTION_IDLE_TIMEOUT + 1000);
+		Assert.assertEquals(0, outbox.getConnectionCount());
+	}
+
+	/**
+	 * Test the retry of a rejected message
+	 */
+	@Test
+	public void testRetry() throws MessagingException {
+		smtp.rejections.set(2);
+		outbox.send(session, createMessage("Message"));
+
+		long now = System.currentTimeMillis();
+		outbox.flush(now);
+		Assert.assertEquals(0, smtp.messages.get());
+		Assert.assertEquals(1, outbox.getRetryCount());
+		Assert.assertEquals(1, outbox.getQueueSize());
+
+		// the message is not yet due
+		outbox.flush(now + outbox.retryDelay - 1);
+		Assert.assertEquals(1, outbox.getRetryCount());
+
+		// second attempt - the backoff is doubled
+		outbox.flush(now + outbox.retryDelay);
+		Assert.assertEquals(2, outbox.getRetryCount());
+		now = now + outbox.retryDelay;
+		outbox.flush(now + 2 * outbox.retryDelay - 1);
+		Assert.assertEquals(0, smtp.messages.get());
+
+		// third attempt
+		outbox.flush(now + 2 * outbox.retryDelay);
+		Assert.assertEquals(1, smtp.messages.get());
+		Assert.assertEquals(0, outbox.getQueueSize());
+		Assert.assertEquals(0, outbox.getFailedCount());
+	}
+
+	/**
+	 * Test that a message is dropped after the last attempt and that the
+	 * outbox retries if the mail host is not reachable
+	 */
+	@Test
+	public void testFailure() throws MessagingException, IOException {
+		outbox.maxAttempts = 2;
+		smtp.rejections.set(10);
+		outbox.send(session, createMessage("Message"));
+		long now = System.currentTimeMillis();
+		outbox.flush(now);
+		outbox.flush(now + outbox.retryDelay);
+		Assert.assertEquals(1, outbox.getFailedCount());
+		Assert.assertEquals(0, outbox.getQueueSize());
+
+		// mail host not reachable
+		outbox.destroy();
+		smtp.close();
+		outbox.send(session, createMessage("Message"));
+		outbox.flush();
+		Assert.assertEquals(1, outbox.getQueueSize());
+		Assert.assertEquals(2, outbox.getRetryCount());
+		Assert.assertEquals(0, outbox.getConnectionCount());
+	}
+
+	/**
+	 * Test the MXBean
+	 */
+	@Test
+	public void testMBean() throws Exception {
+		MBeanServer server = MBeanServerFactory.newMBeanServer();
+		outbox.register(server);
+		outbox.send(session, createMessage("Message"));
+		ObjectName name = new ObjectName(MailOutbox.OBJECT_NAME);
+		Assert.assertEquals(1, server.getAttribute(name, "QueueSize"));
+		server.invoke(name, "flush", null, null);
+		Assert.assertEquals(0, server.getAttribute(name, "QueueSize"));
+		Assert.assertEquals(1L, server.getAttribute(name, "SentCount"));
+		outbox.unregister();
+		Assert.assertFalse(server.isRegistered(name));
+	}
+
+	private MimeMessage createMessage(String subject) throws MessagingException {
+		MimeMessage message = new MimeMessage(session);
+		message.setFrom(new InternetAddress("workflow@imixs.org"));
+		message.setRecipient(Message.RecipientType.TO, new InternetAddress("anna@imixs.org"));
+		message.setSubject(subject);
+		message.setText("Hello Anna!");
+		message.saveChanges();
+		return message;
+	}
+
+	/**
+	 * A minimal SMTP server accepting all messages. The server rejects the
+	 * message data as long as the counter 'rejections' is greater than 0.
+	 */
+	static class SmtpStub implements Runnable {
+		final ServerSocket serverSocket;
+		final AtomicInteger connections = new AtomicInteger();
+		final AtomicInteger messages = new AtomicInteger();
+		final AtomicInteger rejections = new AtomicInteger();
+		final Thread thread;
+
+		SmtpStub() throws IOException {
+			serverSocket = new ServerSocket(0);
+			thread = new Thread(this, "smtp-stub");
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		int getPort() {
+			return serverSocket.getLocalPort();
+		}
+
+		void close() throws IOException {
+			serverSocket.close();
+			// the socket is released after the pending accept() returned
+			try {
+				thread.join(1000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		@Override
+		public void run() {
+			while (!serverSocket.isClosed()) {
+				try {
+					final Socket socket = serverSocket.accept();
+					connections.incrementAndGet();
+					Thread thread = new Thread(new Runnable() {
+						@Override
+						public void run() {
+							handle(socket);
+						}
+					}, "smtp-stub-connection");
+					thread.setDaemon(true);
+					thread.start();
+				} catch (IOException e) {
+					// closed
+				}
+			}
+		}
+
+		private void handle(Socket socket) {
+			try {
+				BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+				OutputStream out = socket.getOutputStream();
+				reply(out, "220 localhost SMTP stub");
+				String line;
+				while ((line = in.readLine()) != null) {
+					String command = line.toUpperCase();
+					if (command.startsWith("DATA")) {
+						reply(out, "354 end data with <CR><LF>.<CR><LF>");
+						while ((line = in.readLine()) != null && !".".equals(line)) {
+							// read message
+						}
+						if (rejections.getAndDecrement() > 0) {
+							reply(out, "451 try again later");
+						} else {
+							messages.incrementAndGet();
+							reply(out, "250 OK");
+						}
+					} else if (command.startsWith("QUIT")) {
+						reply(out, "221 bye");
+						break;
+					} else {
+						reply(out, "250 OK");
+					}
+				}
+				socket.close();
+			} catch (IOException e) {
+				// connection closed
+			}
+		}
+
+		private void reply(OutputStream out, String line) throws IOException {
+			out.write((line + "\r\n").getBytes("US-ASCII"));
+			out.flush();
+		}
+	}
+}
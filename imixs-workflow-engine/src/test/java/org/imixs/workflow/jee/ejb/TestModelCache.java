@@ -0,0 +1,284 @@
+package org.imixs.workflow.jee.ejb;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+import javax.xml.bind.JAXBContext;
+
+import org.imixs.workflow.ItemCollection;
+import org.imixs.workflow.plugins.AccessPlugin;
+import org.imixs.workflow.xml.EntityCollection;
+import org.imixs.workflow.xml.XMLItemCollectionAdapter;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import junit.framework.Assert;
+
+/**
+ * Test class for the ModelCache and the CachedModel
+ *
+ * This test verifies the lookup of model entities from a CachedModel, the
+ * hit/miss statistics of the ModelCache and the update of the ModelCache by
+ * the ModelService after the completion of a transaction
+ *
+ * @author rsoika
+ */
+public class TestModelCache {
+
+	List<ItemCollection> entities = null;
+
+	@Before
+	public void setup() {
+		entities = new ArrayList<ItemCollection>();
+
+		ItemCollection profile = new ItemCollection();
+		profile.replaceItemValue("type", "WorkflowEnvironmentEntity");
+		profile.replaceItemValue("txtname", "environment.profile");
+		profile.replaceItemValue("$modelversion", "1.0.0");
+		entities.add(profile);
+
+		for (int i = 3; i >= 1; i--) {
+			ItemCollection process = new ItemCollection();
+			process.replaceItemValue("type", "ProcessEntity");
+			process.replaceItemValue("$modelversion", "1.0.0");
+			process.replaceItemValue("numprocessid", 100 * i);
+			entities.add(process);
+			for (int j = 3; j >= 1; j--) {
+				ItemCollection activity = new ItemCollection();
+				activity.replaceItemValue("type", "ActivityEntity");
+				activity.replaceItemValue("$modelversion", "1.0.0");
+				activity.replaceItemValue("numprocessid", 100 * i);
+				activity.replaceItemValue("numactivityid", 10 * j);
+				activity.replaceItemValue("txtname", "Activity " + (100 * i) + "." + (10 * j));
+				entities.add(activity);
+			}
+		}
+
+		// entity of a different model version
+		ItemCollection process = new ItemCollection();
+		process.replaceItemValue("type", "ProcessEntity");
+		process.replaceItemValue("$modelversion", "2.0.0");
+		process.replaceItemValue("numprocessid", 400);
+		entities.add(process);
+	}
+
+	/**
+	 * Test the lookup of process and activity entities
+	 */
+	@Test
+	public void testLookup() {
+		CachedModel model = new CachedModel("1.0.0", entities);
+
+		Assert.assertNotNull(model.getProfile());
+		Assert.assertEquals(200, model.getProcessEntity(200, "1.0.0").getItemValueInteger("numprocessid"));
+		Assert.assertEquals("Activity 200.20",
+				model.getActivityEntity(200, 20, "1.0.0").getItemValueString("txtname"));
+		Assert.assertNull(model.getActivityEntity(200, 40, "1.0.0"));
+		Assert.assertNull(model.getProcessEntity(400, "1.0.0"));
+		Assert.assertNull(model.getProcessEntity(200, "2.0.0"));
+
+		// test sort order
+		List<ItemCollection> processList = model.getProcessEntityList("1.0.0");
+		Assert.assertEquals(3, processList.size());
+		Assert.assertEquals(100, processList.get(0).getItemValueInteger("numprocessid"));
+		List<ItemCollection> activityList = model.getActivityEntityList(300, "1.0.0");
+		Assert.assertEquals(3, activityList.size());
+		Assert.assertEquals(10, activityList.get(0).getItemValueInteger("numactivityid"));
+		Assert.assertEquals(30, activityList.get(2).getItemValueInteger("numactivityid"));
+		Assert.assertTrue(model.getActivityEntityList(400, "1.0.0").isEmpty());
+	}
+
+	/**
+	 * Test that changes of a returned entity are not reflected into the cache
+	 */
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testImmutable() {
+		CachedModel model = new CachedModel("1.0.0", entities);
+
+		ItemCollection activity = model.getActivityEntity(100, 10, "1.0.0");
+		activity.replaceItemValue("txtname", "changed");
+		activity.getItemValue("numnextprocessid").add(999);
+		model.getActivityEntity(100, 10, "1.0.0").getItemValue("numprocessid").add(999);
+
+		ItemCollection cachedActivity = model.getActivityEntity(100, 10, "1.0.0");
+		Assert.assertEquals("Activity 100.10", cachedActivity.getItemValueString("txtname"));
+		Assert.assertFalse(cachedActivity.hasItem("numnextprocessid"));
+		Assert.assertEquals(1, cachedActivity.getItemValue("numprocessid").size());
+	}
+
+	/**
+	 * Test the hit and miss counters of the ModelCache
+	 */
+	@Test
+	public void testStatistics() {
+		ModelCache cache = new ModelCache();
+
+		Assert.assertNull(cache.getModel("1.0.0"));
+		cache.putModel(new CachedModel("1.0.0", entities));
+		Assert.assertNotNull(cache.getModel("1.0.0"));
+		Assert.assertNotNull(cache.getModel("1.0.0"));
+		Assert.assertEquals(2, cache.getHits());
+		Assert.assertEquals(1, cache.getMisses());
+		Assert.assertEquals(1, cache.getSize());
+
+		cache.invalidate("1.0.0");
+		Assert.assertNull(cache.getModel("1.0.0"));
+		Assert.assertEquals(2, cache.getMisses());
+
+		cache.putModel(new CachedModel("1.0.0", entities));
+		cache.invalidate(null);
+		Assert.assertEquals(0, cache.getSize());
+
+		cache.resetStatistics();
+		Assert.assertEquals(0, cache.getHits());
+		Assert.assertEquals(0, cache.getMisses());
+	}
+
+	/**
+	 * Test that a cached PluginPipeline is dropped if the model is updated
+	 */
+	@Test
+	public void testPluginPipeline() {
+		ModelCache cache = new ModelCache();
+		ItemCollection profile = entities.get(0);
+
+		List<PluginPipeline.Entry> pluginEntries = new ArrayList<PluginPipeline.Entry>();
+		pluginEntries.add(new PluginPipeline.Entry(AccessPlugin.class, false));
+		cache.putPluginPipeline(new PluginPipeline("1.0.0", profile, pluginEntries));
+
+		PluginPipeline pipeline = cache.getPluginPipeline("1.0.0");
+		Assert.assertNotNull(pipeline);
+		Assert.assertEquals(1, pipeline.getEntries().size());
+		Assert.assertEquals(AccessPlugin.class, pipeline.getEntries().get(0).getPluginClass());
+		Assert.assertEquals("environment.profile", pipeline.getProfile().getItemValueString("txtname"));
+
+		// update model
+		cache.putModel(new CachedModel("1.0.0", entities));
+		Assert.assertNull(cache.getPluginPipeline("1.0.0"));
+
+		cache.putPluginPipeline(new PluginPipeline("1.0.0", profile, pluginEntries));
+		cache.invalidate(null);
+		Assert.assertNull(cache.getPluginPipeline("1.0.0"));
+	}
+
+	/**
+	 * Test that a model changed by the ModelService is published into the
+	 * ModelCache only after the transaction was committed
+	 */
+	@Test
+	public void testTransaction() throws Exception {
+		final Map<Object, Object> resources = new HashMap<Object, Object>();
+		final List<Synchronization> synchronizations = new ArrayList<Synchronization>();
+
+		ModelService modelService = new ModelService();
+		modelService.modelCache = new ModelCache();
+		modelService.entityService = Mockito.mock(EntityService.class);
+		Mockito.when(modelService.entityService.findAllEntities(Mockito.any(EntityQuery.class), Mockito.anyInt(),
+				Mockito.anyInt())).thenReturn(entities.subList(0, 4));
+		modelService.txRegistry = Mockito.mock(TransactionSynchronizationRegistry.class);
+		Mockito.when(modelService.txRegistry.getTransactionKey()).thenReturn("tx");
+		Mockito.when(modelService.txRegistry.getResource(Mockito.any())).thenAnswer(new Answer<Object>() {
+			@Override
+			public Object answer(InvocationOnMock invocation) throws Throwable {
+				return resources.get(invocation.getArguments()[0]);
+			}
+		});
+		Mockito.doAnswer(new Answer<Object>() {
+			@Override
+			public Object answer(InvocationOnMock invocation) throws Throwable {
+				resources.put(invocation.getArguments()[0], invocation.getArguments()[1]);
+				return null;
+			}
+		}).when(modelService.txRegistry).putResource(Mockito.any(), Mockito.any());
+		Mockito.doAnswer(new Answer<Object>() {
+			@Override
+			public Object answer(InvocationOnMock invocation) throws Throwable {
+				synchronizations.add((Synchronization) invocation.getArguments()[0]);
+				return null;
+			}
+		}).when(modelService.txRegistry).registerInterposedSynchronization(Mockito.any(Synchronization.class));
+
+		// marshal the model entities
+		ByteArrayOutputStream model = new ByteArrayOutputStream();
+		EntityCollection ecol = XMLItemCollectionAdapter.putCollection(entities.subList(0, 4));
+		JAXBContext.newInstance(EntityCollection.class).createMarshaller().marshal(ecol, model);
+
+		// import the model - the model is not published before commit
+		modelService.importModel(new ByteArrayInputStream(model.toByteArray()));
+		Assert.assertEquals(0, modelService.modelCache.getSize());
+		Assert.assertEquals(1, synchronizations.size());
+		// the model is visible for the current transaction
+		Assert.assertNotNull(modelService.getActivityEntity(300, 30, "1.0.0"));
+		Assert.assertEquals(0, modelService.modelCache.getSize());
+
+		synchronizations.get(0).afterCompletion(Status.STATUS_COMMITTED);
+		Assert.assertEquals(1, modelService.modelCache.getSize());
+		Assert.assertNotNull(modelService.modelCache.getModel("1.0.0"));
+
+		// remove the model in a new transaction and roll back
+		resources.clear();
+		synchronizations.clear();
+		modelService.removeModel("1.0.0");
+		Assert.assertEquals(0, modelService.modelCache.getSize());
+		modelService.getActivityEntity(300, 30, "1.0.0");
+		Assert.assertEquals(0, modelService.modelCache.getSize());
+
+		// a concurrent transaction loads the model in the meantime
+		modelService.modelCache.putModel(new CachedModel("1.0.0", entities));
+		synchronizations.get(0).afterCompletion(Status.STATUS_ROLLEDBACK);
+		Assert.assertEquals(0, modelService.modelCache.getSize());
+
+		// without a transaction the model is published immediately
+		resources.clear();
+		Mockito.when(modelService.txRegistry.getTransactionKey()).thenReturn(null);
+		modelService.importModel(new ByteArrayInputStream(model.toByteArray()));
+		Assert.assertEquals(1, modelService.modelCache.getSize());
+	}
+
+	/**
+	 * Test that a model loaded before a concurrent change was published is
+	 * not added into the ModelCache
+	 */
+	@Test
+	public void testGeneration() {
+		final ModelService modelService = new ModelService();
+		modelService.modelCache = new ModelCache();
+		modelService.entityService = Mockito.mock(EntityService.class);
+		final CachedModel publishedModel = new CachedModel("1.0.0", entities.subList(0, 4));
+		Mockito.when(modelService.entityService.findAllEntities(Mockito.any(EntityQuery.class), Mockito.anyInt(),
+				Mockito.anyInt())).thenAnswer(new Answer<List<ItemCollection>>() {
+					@Override
+					public List<ItemCollection> answer(InvocationOnMock invocation) throws Throwable {
+						// a concurrent transaction publishes the model after
+						// the stale model was read
+						modelService.modelCache.putModel(publishedModel);
+						return entities;
+					}
+				});
+
+		// the stale model is returned but not cached
+		Assert.assertNotNull(modelService.getActivityEntity(100, 10, "1.0.0"));
+		Assert.assertSame(publishedModel, modelService.modelCache.getModel("1.0.0"));
+
+		// the generation is increased by each change
+		ModelCache cache = new ModelCache();
+		long generation = cache.getGeneration();
+		cache.invalidate("1.0.0");
+		Assert.assertFalse(cache.putModel(new CachedModel("1.0.0", entities), generation));
+		Assert.assertEquals(0, cache.getSize());
+		Assert.assertTrue(cache.putModel(new CachedModel("1.0.0", entities), cache.getGeneration()));
+		Assert.assertEquals(1, cache.getSize());
+	}
+
+}
@@ -0,0 +1,115 @@
+package org.imixs.workflow.jee.ejb;
+
+import java.util.Arrays;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+
+import org.imixs.workflow.ItemCollection;
+import org.imixs.workflow.Plugin;
+import org.imixs.workflow.plugins.AccessPlugin;
+import org.imixs.workflow.plugins.ResultPlugin;
+import org.junit.Before;
+import org.junit.Test;
+
+import junit.framework.Assert;
+
+/**
+ * Test class for the PluginMetrics
+ *
+ * This test verifies the statistics collected per plugin, per event and per
+ * model version and the registration of the MXBeans
+ *
+ * @author rsoika
+ */
+public class TestPluginMetrics {
+
+	PluginMetrics metrics;
+	ItemCollection activity;
+
+	@Before
+	public void setup() {
+		metrics = new PluginMetrics();
+		activity = new ItemCollection();
+		activity.replaceItemValue("numprocessid", 100);
+		activity.replaceItemValue("numactivityid", 10);
+		activity.replaceItemValue("$modelversion", "1.0.0");
+	}
+
+	/**
+	 * Test the invocation and error counters and the latency percentiles
+	 */
+	@Test
+	public void testStatistics() {
+		Plugin accessPlugin = new AccessPlugin();
+		Plugin resultPlugin = new ResultPlugin();
+
+		// 99 fast calls (10 microseconds) and one slow call (5 milliseconds)
+		for (int i = 0; i < 99; i++) {
+			metrics.pluginRun(accessPlugin, activity, 10000, Plugin.PLUGIN_OK);
+		}
+		metrics.pluginRun(accessPlugin, activity, 5000000, Plugin.PLUGIN_OK);
+		metrics.pluginClose(accessPlugin, activity, 1000, false);
+		metrics.pluginRun(resultPlugin, activity, 1000, Plugin.PLUGIN_ERROR);
+		metrics.pluginClose(resultPlugin, activity, 1000, true);
+
+		PluginStatistics statistics = metrics.getPluginStatistics(AccessPlugin.class.getName());
+		Assert.assertEquals(100, statistics.getInvocations());
+		Assert.assertEquals(0, statistics.getErrors());
+		Assert.assertEquals(1, statistics.getCloseCount());
+		Assert.assertEquals(5000, statistics.getRunMaxMicros());
+		// the percentiles are the upper bounds of the histogram buckets
+		Assert.assertEquals(16, statistics.getRunPercentile50Micros());
+		Assert.assertEquals(16, statistics.getRunPercentile95Micros());
+		Assert.assertEquals(16, statistics.getRunPercentile99Micros());
+		Assert.assertEquals(99, statistics.getRunHistogram()[4]);
+		Assert.assertEquals(59.9, statistics.getRunMeanMicros(), 0.001);
+
+		statistics = metrics.getPluginStatistics(ResultPlugin.class.getName());
+		Assert.assertEquals(1, statistics.getInvocations());
+		Assert.assertEquals(2, statistics.getErrors());
+
+		// event and model version
+		Assert.assertEquals(101, metrics.getEventStatistics(100, 10).getInvocations());
+		Assert.assertEquals(2, metrics.getEventStatistics(100, 10).getErrors());
+		Assert.assertNull(metrics.getEventStatistics(100, 20));
+		Assert.assertEquals(101, metrics.getModelVersionStatistics("1.0.0").getInvocations());
+
+		metrics.reset();
+		Assert.assertEquals(0, metrics.getPluginStatistics(AccessPlugin.class.getName()).getInvocations());
+		Assert.assertEquals(0, metrics.getEventStatistics(100, 10).getErrors());
+		Assert.assertEquals(0, metrics.getModelVersionStatistics("1.0.0").getRunPercentile99Micros());
+	}
+
+	/**
+	 * Test the registration of the MXBeans
+	 */
+	@Test
+	public void testMBeans() throws Exception {
+		MBeanServer server = MBeanServerFactory.newMBeanServer();
+		metrics.pluginRun(new AccessPlugin(), activity, 10000, Plugin.PLUGIN_OK);
+		metrics.register(server);
+		// statistics created after the registration
+		metrics.pluginRun(new ResultPlugin(), activity, 10000, Plugin.PLUGIN_OK);
+
+		ObjectName name = new ObjectName(PluginMetrics.OBJECT_NAME + ",group=plugin,name="
+				+ ObjectName.quote(ResultPlugin.class.getName()));
+		Assert.assertEquals(1L, server.getAttribute(name, "Invocations"));
+		name = new ObjectName(PluginMetrics.OBJECT_NAME + ",group=event,name=" + ObjectName.quote("100.10"));
+		Assert.assertEquals(2L, server.getAttribute(name, "Invocations"));
+
+		ObjectName control = new ObjectName(PluginMetrics.OBJECT_NAME);
+		String[] plugins = (String[]) server.getAttribute(control, "Plugins");
+		Arrays.sort(plugins);
+		Assert.assertEquals(Arrays.asList(AccessPlugin.class.getName(), ResultPlugin.class.getName()),
+				Arrays.asList(plugins));
+		server.invoke(control, "reset", null, null);
+		Assert.assertEquals(0L, server.getAttribute(name, "Invocations"));
+
+		metrics.unregister();
+		Assert.assertFalse(server.isRegistered(control));
+		Assert.assertFalse(server.isRegistered(name));
+	}
+
+}
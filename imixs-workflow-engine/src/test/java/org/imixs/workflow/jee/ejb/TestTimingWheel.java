@@ -0,0 +1,189 @@
+package org.imixs.workflow.jee.ejb;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import junit.framework.Assert;
+
+/**
+ * Test class for the TimingWheel and the WorkflowSchedulerWheel
+ * 
+ * This test verifies that the entries of all levels of the wheel expire in
+ * the tick of their due time.
+ * 
+ * @author rsoika
+ */
+public class TestTimingWheel {
+
+	static final long START = 1000000000000L;
+
+	/**
+	 * Test entries on all levels of the wheel
+	 */
+	@Test
+	public void testAdvance() {
+		TimingWheel wheel = new TimingWheel(1000, 100, START);
+		long[] delays = { 5, 63, 64, 100, 4095, 4096, 5000, 200000 };
+		for (int i = 0; i < delays.length; i++) {
+			Assert.assertTrue(wheel.schedule("id" + i, START + delays[i] * 1000));
+		}
+		Assert.assertEquals(delays.length, wheel.size());
+
+		for (int i = 0; i < delays.length; i++) {
+			// not expired in the tick containing the due time
+			List<String> ids = wheel.advance(START + delays[i] * 1000);
+			Assert.assertTrue(ids.isEmpty());
+			// the entry expires with the next tick
+			ids = wheel.advance(START + delays[i] * 1000 + 1000);
+			Assert.assertEquals("delay=" + delays[i], 1, ids.size());
+			Assert.assertEquals("id" + i, ids.get(0));
+		}
+		Assert.assertEquals(0, wheel.size());
+	}
+
+	/**
+	 * Test replacing and canceling entries, the horizon and the capacity
+	 */
+	@Test
+	public void testScheduleAndCancel() {
+		TimingWheel wheel = new TimingWheel(1000, 2, START);
+		Assert.assertTrue(wheel.schedule("a", START + 10000));
+		// replace the due time
+		Assert.assertTrue(wheel.schedule("a", START + 500000));
+		Assert.assertTrue(wheel.advance(START + 20000).isEmpty());
+		Assert.assertEquals(1, wheel.size());
+
+		// beyond the horizon
+		Assert.assertFalse(wheel.schedule("b", START + wheel.getHorizon() + 20000));
+		// an entry in the past expires with the next advance
+		Assert.assertTrue(wheel.schedule("b", START - 5000));
+		// capacity exhausted
+		Assert.assertFalse(wheel.schedule("c", START + 30000));
+		Assert.assertEquals("b", wheel.advance(START + 20000).get(0));
+
+		Assert.assertTrue(wheel.cancel("a"));
+		Assert.assertFalse(wheel.cancel("a"));
+		Assert.assertTrue(wheel.advance(START + 600000).isEmpty());
+		Assert.assertEquals(0, wheel.size());
+	}
+
+	/**
+	 * Test that all entries expire if the wheel was not advanced for a whole
+	 * turn
+	 */
+	@Test
+	public void testLongPause() {
+		TimingWheel wheel = new TimingWheel(1000, 10, START);
+		wheel.schedule("a", START + 10000);
+		wheel.schedule("b", START + 100000000);
+		List<String> ids = wheel.advance(START + wheel.getHorizon() + 5000);
+		Assert.assertEquals(2, ids.size());
+		Assert.assertEquals(0, wheel.size());
+	}
+
+	/**
+	 * Test the WorkflowSchedulerWheel seeded by the WorkflowSchedulerService
+	 */
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testSchedulerWheel() {
+		final long now = System.currentTimeMillis();
+		final List<String> processed = new ArrayList<String>();
+		WorkflowSchedulerWheel schedulerWheel = new WorkflowSchedulerWheel();
+		schedulerWheel.workflowSchedulerService = Mockito.mock(WorkflowSchedulerService.class);
+		Map<String, Date> dueDates = new HashMap<String, Date>();
+		dueDates.put("W0000-00001", new Date(now - 1000));
+		dueDates.put("W0000-00002", new Date(now + 60000));
+		Mockito.when(schedulerWheel.workflowSchedulerService.findDueDates(Mockito.any(Date.class)))
+				.thenReturn(dueDates);
+		Mockito.when(schedulerWheel.workflowSchedulerService.processWorkItemsInDue(Mockito.anyCollection()))
+				.thenAnswer(new Answer<Integer>() {
+					@Override
+					public Integer answer(InvocationOnMock invocation) throws Throwable {
+						processed.addAll((Collection<String>) invocation.getArguments()[0]);
+						return processed.size();
+					}
+				});
+
+		// not running
+		schedulerWheel.schedule("W0000-00003", new Date(now));
+		Assert.assertEquals(0, schedulerWheel.getSize());
+
+		schedulerWheel.start();
+		Assert.assertTrue(schedulerWheel.isRunning());
+		Assert.assertEquals(2, schedulerWheel.getSize());
+		schedulerWheel.schedule("W0000-00003", new Date(now + 30000));
+		// removed
+		schedulerWheel.schedule("W0000-00002", null);
+		Assert.assertEquals(2, schedulerWheel.getSize());
+
+		schedulerWheel.advance(now + 2000);
+		Assert.assertEquals(1, processed.size());
+		Assert.assertEquals("W0000-00001", processed.get(0));
+		schedulerWheel.advance(now + 32000);
+		Assert.assertEquals(2, processed.size());
+		Assert.assertEquals("W0000-00003", processed.get(1));
+		Assert.assertEquals(2, schedulerWheel.getFiredCount());
+
+		schedulerWheel.stop();
+		Assert.assertFalse(schedulerWheel.isRunning());
+		Assert.assertEquals(0, schedulerWheel.getSize());
+	}
+
+	/**
+	 * Test that the WorkflowSchedulerWheel is only updated after the
+	 * transaction was committed
+	 */
+	@Test
+	public void testSchedulerWheelTransaction() {
+		final long now = System.currentTimeMillis();
+		final List<Synchronization> synchronizations = new ArrayList<Synchronization>();
+		WorkflowSchedulerWheel schedulerWheel = new WorkflowSchedulerWheel();
+		schedulerWheel.workflowSchedulerService = Mockito.mock(WorkflowSchedulerService.class);
+		Mockito.when(schedulerWheel.workflowSchedulerService.findDueDates(Mockito.any(Date.class)))
+				.thenReturn(new HashMap<String, Date>());
+		schedulerWheel.transactionRegistry = Mockito.mock(TransactionSynchronizationRegistry.class);
+		Mockito.when(schedulerWheel.transactionRegistry.getTransactionKey()).thenReturn("tx");
+		Mockito.doAnswer(new Answer<Object>() {
+			@Override
+			public Object answer(InvocationOnMock invocation) throws Throwable {
+				synchronizations.add((Synchronization) invocation.getArguments()[0]);
+				return null;
+			}
+		}).when(schedulerWheel.transactionRegistry)
+				.registerInterposedSynchronization(Mockito.any(Synchronization.class));
+		schedulerWheel.start();
+
+		// rolled back
+		schedulerWheel.schedule("W0000-00001", new Date(now + 60000));
+		Assert.assertEquals(0, schedulerWheel.getSize());
+		synchronizations.get(0).afterCompletion(Status.STATUS_ROLLEDBACK);
+		Assert.assertEquals(0, schedulerWheel.getSize());
+
+		// committed
+		schedulerWheel.schedule("W0000-00001", new Date(now + 60000));
+		Assert.assertEquals(0, schedulerWheel.getSize());
+		synchronizations.get(1).afterCompletion(Status.STATUS_COMMITTED);
+		Assert.assertEquals(1, schedulerWheel.getSize());
+
+		// removed
+		schedulerWheel.schedule("W0000-00001", null);
+		synchronizations.get(2).afterCompletion(Status.STATUS_COMMITTED);
+		Assert.assertEquals(0, schedulerWheel.getSize());
+		schedulerWheel.stop();
+	}
+
+}
@@ -1,14 +1,25 @@
 package org.imixs.workflow.jee.ejb;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.ejb.SessionContext;
 
 import org.imixs.workflow.ItemCollection;
+import org.imixs.workflow.WorkflowKernel;
 import org.imixs.workflow.exceptions.AccessDeniedException;
 import org.imixs.workflow.exceptions.PluginException;
 import org.imixs.workflow.exceptions.ProcessingErrorException;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 import junit.framework.Assert;
 
@@ -21,9 +32,12 @@ import junit.framework.Assert;
  */
 public class TestWorkflowScheduler {
 
+	// workitems updated after they were selected
+	List<String> updatedIDs;
+
 	@Before
 	public void setup() throws PluginException {
-
+		updatedIDs = new ArrayList<String>();
 	}
 
 	/**
@@ -66,7 +80,323 @@ public class TestWorkflowScheduler {
 	}
 
 	
-	
+	/**
+	 * This test verifies the due date index of a workitem. The index holds the
+	 * earliest due date of all scheduled activities.
+	 */
+	@Test
+	public void testUpdateDueDate() {
+		ItemCollection doc = new ItemCollection();
+		Calendar cal = Calendar.getInstance();
+		cal.add(Calendar.DAY_OF_MONTH, -14);
+		doc.replaceItemValue("timWorkflowLastAccess", cal.getTime());
+		doc.replaceItemValue("$modified", cal.getTime());
+
+		// 10 days after last process
+		ItemCollection activity1 = new ItemCollection();
+		activity1.replaceItemValue("keyScheduledActivity", "1");
+		activity1.replaceItemValue("keyActivityDelayUnit", "3");
+		activity1.replaceItemValue("keyScheduledBaseObject", "1");
+		activity1.replaceItemValue("numActivityDelay", 10);
+
+		// 2 hours after last modification
+		ItemCollection activity2 = new ItemCollection();
+		activity2.replaceItemValue("keyScheduledActivity", "1");
+		activity2.replaceItemValue("keyActivityDelayUnit", "2");
+		activity2.replaceItemValue("keyScheduledBaseObject", "2");
+		activity2.replaceItemValue("numActivityDelay", 2);
+
+		// not scheduled
+		ItemCollection activity3 = new ItemCollection();
+		activity3.replaceItemValue("keyScheduledBaseObject", "1");
+
+		List<ItemCollection> activities = WorkflowSchedulerService
+				.getScheduledActivities(Arrays.asList(activity1, activity2, activity3));
+		Assert.assertEquals(2, activities.size());
+
+		// the earliest due date is 4 days ago
+		Assert.assertTrue(WorkflowSchedulerService.updateDueDate(doc, activities));
+		Date dueDate = doc.getItemValueDate(WorkflowSchedulerService.DUEDATE);
+		Assert.assertEquals(WorkflowSchedulerService.getDueDate(doc, activity1), dueDate);
+		Assert.assertTrue(dueDate.before(new Date()));
+		Assert.assertFalse(WorkflowSchedulerService.updateDueDate(doc, activities));
+
+		// the workitem is about to be saved, so $modified is now
+		doc.removeItem("timWorkflowLastAccess");
+		Assert.assertTrue(WorkflowSchedulerService.updateDueDate(doc, activities));
+		dueDate = doc.getItemValueDate(WorkflowSchedulerService.DUEDATE);
+		Assert.assertTrue(dueDate.after(new Date()));
+		Assert.assertFalse(WorkflowSchedulerService.workItemInDue(doc, activity1));
+
+		// no due date
+		Assert.assertTrue(WorkflowSchedulerService.updateDueDate(doc, new ArrayList<ItemCollection>()));
+		Assert.assertFalse(doc.hasItem(WorkflowSchedulerService.DUEDATE));
+		Assert.assertFalse(WorkflowSchedulerService.updateDueDate(doc, null));
+	}
+
+	/**
+	 * This test verifies that the EntityService updates the due date index of
+	 * a workitem during save. The due date is computed from the properties of
+	 * the workitem, so a moved date field or a kept $modified is reflected.
+	 */
+	@Test
+	public void testSaveDueDate() {
+		// 1 hour after the field 'datDue'
+		ItemCollection activity1 = new ItemCollection();
+		activity1.replaceItemValue("keyScheduledActivity", "1");
+		activity1.replaceItemValue("keyActivityDelayUnit", "2");
+		activity1.replaceItemValue("keyScheduledBaseObject", "4");
+		activity1.replaceItemValue("keyTimeCompareField", "datDue");
+		activity1.replaceItemValue("numActivityDelay", 1);
+
+		// 2 days after last modification
+		ItemCollection activity2 = new ItemCollection();
+		activity2.replaceItemValue("keyScheduledActivity", "1");
+		activity2.replaceItemValue("keyActivityDelayUnit", "3");
+		activity2.replaceItemValue("keyScheduledBaseObject", "2");
+		activity2.replaceItemValue("numActivityDelay", 2);
+
+		EntityService entityService = new EntityService();
+		entityService.modelService = Mockito.mock(ModelService.class);
+		entityService.schedulerWheel = Mockito.mock(WorkflowSchedulerWheel.class);
+		Mockito.when(entityService.modelService.getActivityEntityList(100, "1.0.0"))
+				.thenReturn(Arrays.asList(activity1));
+
+		ItemCollection workitem = new ItemCollection();
+		workitem.replaceItemValue(EntityService.UNIQUEID, "W0000-00001");
+		workitem.replaceItemValue(WorkflowService.PROCESSID, 100);
+		workitem.replaceItemValue(WorkflowService.MODELVERSION, "1.0.0");
+		Calendar cal = Calendar.getInstance();
+		cal.add(Calendar.DAY_OF_MONTH, 1);
+		workitem.replaceItemValue("datDue", cal.getTime());
+		entityService.updateDueDate(workitem);
+		Assert.assertEquals(WorkflowSchedulerService.getDueDate(workitem, activity1),
+				workitem.getItemValueDate(WorkflowSchedulerService.DUEDATE));
+		// the wheel is updated
+		Mockito.verify(entityService.schedulerWheel).schedule("W0000-00001",
+				workitem.getItemValueDate(WorkflowSchedulerService.DUEDATE));
+
+		// move the date field
+		cal.add(Calendar.DAY_OF_MONTH, -3);
+		workitem.replaceItemValue("datDue", cal.getTime());
+		entityService.updateDueDate(workitem);
+		Assert.assertTrue(workitem.getItemValueDate(WorkflowSchedulerService.DUEDATE).before(new Date()));
+
+		// remove the date field
+		workitem.removeItem("datDue");
+		entityService.updateDueDate(workitem);
+		Assert.assertFalse(workitem.hasItem(WorkflowSchedulerService.DUEDATE));
+		Mockito.verify(entityService.schedulerWheel).schedule("W0000-00001", null);
+
+		// the due date is based on the property $modified of the workitem
+		Mockito.when(entityService.modelService.getActivityEntityList(100, "1.0.0"))
+				.thenReturn(Arrays.asList(activity1, activity2));
+		cal = Calendar.getInstance();
+		cal.add(Calendar.DAY_OF_MONTH, -14);
+		workitem.replaceItemValue("$modified", cal.getTime());
+		entityService.updateDueDate(workitem);
+		cal.add(Calendar.DAY_OF_MONTH, 2);
+		Assert.assertEquals(cal.getTime(), workitem.getItemValueDate(WorkflowSchedulerService.DUEDATE));
+
+		// no workitem
+		ItemCollection entity = new ItemCollection();
+		entity.replaceItemValue(WorkflowSchedulerService.DUEDATE, new Date());
+		entityService.updateDueDate(entity);
+		Assert.assertTrue(entity.hasItem(WorkflowSchedulerService.DUEDATE));
+	}
+
+	/**
+	 * This test verifies that the fingerprint of the scheduled activities only
+	 * changes with the schedule definitions
+	 */
+	@Test
+	public void testFingerprint() {
+		ItemCollection activity = new ItemCollection();
+		activity.replaceItemValue("numprocessid", 1000);
+		activity.replaceItemValue("numactivityid", 10);
+		activity.replaceItemValue("keyActivityDelayUnit", "3");
+		activity.replaceItemValue("keyScheduledBaseObject", "1");
+		activity.replaceItemValue("numActivityDelay", 10);
+
+		String fingerprint = WorkflowSchedulerService.getFingerprint(Arrays.asList(activity));
+		activity.replaceItemValue("txtname", "reminder");
+		Assert.assertEquals(fingerprint, WorkflowSchedulerService.getFingerprint(Arrays.asList(activity)));
+		activity.replaceItemValue("numActivityDelay", 5);
+		Assert.assertFalse(fingerprint.equals(WorkflowSchedulerService.getFingerprint(Arrays.asList(activity))));
+		Assert.assertFalse(fingerprint.equals(
+				WorkflowSchedulerService.getFingerprint(new ArrayList<ItemCollection>())));
+	}
+
+	/**
+	 * This test processes 5 workitems in due with 2 workers in pages of 2
+	 * workitems. One workitem can not be processed.
+	 */
+	@Test
+	public void testProcessWorkListInDue() throws Exception {
+		WorkflowSchedulerService scheduler = createScheduler(0);
+		ItemCollection config = new ItemCollection();
+		config.replaceItemValue("numWorkers", 2);
+		scheduler.processWorkListInDue(createScheduledActivities(), config);
+
+		Assert.assertEquals(4, scheduler.iProcessWorkItems);
+		Assert.assertEquals(1, scheduler.unprocessedIDs.size());
+		Assert.assertEquals("W0000-00003", scheduler.unprocessedIDs.get(0));
+		Assert.assertEquals("", config.getItemValueString("txtResumeToken"));
+		Assert.assertTrue(config.hasItem("numRunDuration"));
+		Assert.assertTrue(config.hasItem("numThroughput"));
+		Assert.assertTrue(config.hasItem("numAverageLatency"));
+		Assert.assertTrue(config.hasItem("numMaxLatency"));
+		Mockito.verify(scheduler.workflowService, Mockito.times(5)).processWorkItem(Mockito.any(ItemCollection.class));
+	}
+
+	/**
+	 * This test verifies that a workitem updated after it was selected (e.g.
+	 * processed by another cluster node) is skipped
+	 */
+	@Test
+	public void testSkipUpdatedWorkitem() throws Exception {
+		WorkflowSchedulerService scheduler = createScheduler(0);
+		updatedIDs.add("W0000-00002");
+		ItemCollection config = new ItemCollection();
+		scheduler.processWorkListInDue(createScheduledActivities(), config);
+
+		Assert.assertEquals(3, scheduler.iProcessWorkItems);
+		Assert.assertEquals(1, scheduler.unprocessedIDs.size());
+		Assert.assertEquals("W0000-00003", scheduler.unprocessedIDs.get(0));
+		Mockito.verify(scheduler.workflowService, Mockito.times(4)).processWorkItem(Mockito.any(ItemCollection.class));
+	}
+
+	/**
+	 * This test verifies that a run stops after the maximum run duration and
+	 * the next run resumes after the last processed workitem
+	 */
+	@Test
+	public void testResumeToken() throws Exception {
+		// the first workitem takes 1 second
+		WorkflowSchedulerService scheduler = createScheduler(1000);
+		ItemCollection config = new ItemCollection();
+		config.replaceItemValue("numMaxRunDuration", 1);
+		scheduler.processWorkListInDue(createScheduledActivities(), config);
+		Assert.assertEquals(2, scheduler.iProcessWorkItems);
+		Assert.assertEquals("W0000-00002", config.getItemValueString("txtResumeToken"));
+		Assert.assertTrue(config.getItemValueInteger("numMaxLatency") >= 1000);
+
+		// resume
+		scheduler.iProcessWorkItems = 0;
+		scheduler.unprocessedIDs.clear();
+		scheduler.processWorkListInDue(createScheduledActivities(), config);
+		Assert.assertEquals(2, scheduler.iProcessWorkItems);
+		Assert.assertEquals(1, scheduler.unprocessedIDs.size());
+		Assert.assertEquals("", config.getItemValueString("txtResumeToken"));
+	}
+
+	/**
+	 * Test the partitions of workitems
+	 */
+	@Test
+	public void testPartition() {
+		Assert.assertEquals(0, WorkflowSchedulerService.getPartition("W0000-00001", 1));
+		for (int i = 0; i < 100; i++) {
+			String id = WorkflowKernel.generateUniqueID();
+			int partition = WorkflowSchedulerService.getPartition(id, 3);
+			Assert.assertTrue(partition >= 0 && partition < 3);
+			Assert.assertEquals(partition, WorkflowSchedulerService.getPartition(id, 3));
+		}
+	}
+
+	/**
+	 * Creates a WorkflowSchedulerService with a mocked EntityService holding 5
+	 * workitems in due. The workitem 'W0000-00003' can not be processed.
+	 */
+	private WorkflowSchedulerService createScheduler(final long delay) throws Exception {
+		final List<ItemCollection> database = new ArrayList<ItemCollection>();
+		Calendar cal = Calendar.getInstance();
+		cal.add(Calendar.DAY_OF_MONTH, -14);
+		for (int i = 1; i <= 5; i++) {
+			ItemCollection workitem = new ItemCollection();
+			workitem.replaceItemValue(EntityService.UNIQUEID, "W0000-0000" + i);
+			workitem.replaceItemValue(WorkflowService.MODELVERSION, "1.0.0");
+			workitem.replaceItemValue(WorkflowService.PROCESSID, 100);
+			workitem.replaceItemValue("timWorkflowLastAccess", cal.getTime());
+			workitem.replaceItemValue(WorkflowSchedulerService.DUEDATE, cal.getTime());
+			database.add(workitem);
+		}
+
+		final WorkflowSchedulerService scheduler = new WorkflowSchedulerService();
+		scheduler.iProcessWorkItems = 0;
+		scheduler.unprocessedIDs = new ArrayList<String>();
+		scheduler.entityService = Mockito.mock(EntityService.class);
+		scheduler.workflowService = Mockito.mock(WorkflowService.class);
+		scheduler.ctx = Mockito.mock(SessionContext.class);
+		Mockito.when(scheduler.ctx.getBusinessObject(WorkflowSchedulerService.class)).thenReturn(scheduler);
+		Mockito.when(scheduler.entityService.getBatchSize()).thenReturn(2);
+		Mockito.when(scheduler.entityService.findAllEntitiesAfter(Mockito.any(EntityQuery.class),
+				Mockito.anyString(), Mockito.anyInt())).thenAnswer(new Answer<List<ItemCollection>>() {
+					@Override
+					public List<ItemCollection> answer(InvocationOnMock invocation) throws Throwable {
+						String continuationToken = (String) invocation.getArguments()[1];
+						int maxcount = (Integer) invocation.getArguments()[2];
+						List<ItemCollection> result = new ArrayList<ItemCollection>();
+						for (ItemCollection entity : database) {
+							String id = entity.getItemValueString(EntityService.UNIQUEID);
+							if (continuationToken != null && id.compareTo(continuationToken) <= 0)
+								continue;
+							entity.replaceItemValue(EntityService.CONTINUATIONTOKEN, id);
+							if (result.size() < maxcount)
+								result.add(entity);
+						}
+						return result;
+					}
+				});
+		// simulate the reload of a workitem in a new transaction
+		Mockito.when(scheduler.entityService.load(Mockito.anyString())).thenAnswer(new Answer<ItemCollection>() {
+			@Override
+			public ItemCollection answer(InvocationOnMock invocation) throws Throwable {
+				String id = (String) invocation.getArguments()[0];
+				for (ItemCollection entity : database) {
+					if (id.equals(entity.getItemValueString(EntityService.UNIQUEID))) {
+						ItemCollection workitem = new ItemCollection(entity.getAllItems());
+						if (updatedIDs.contains(id))
+							workitem.replaceItemValue(WorkflowSchedulerService.DUEDATE, new Date());
+						return workitem;
+					}
+				}
+				return null;
+			}
+		});
+		Mockito.when(scheduler.workflowService.processWorkItem(Mockito.any(ItemCollection.class)))
+				.thenAnswer(new Answer<ItemCollection>() {
+					@Override
+					public ItemCollection answer(InvocationOnMock invocation) throws Throwable {
+						ItemCollection workitem = (ItemCollection) invocation.getArguments()[0];
+						Assert.assertEquals(10, workitem.getItemValueInteger("$activityid"));
+						String id = workitem.getItemValueString(EntityService.UNIQUEID);
+						if ("W0000-00001".equals(id) && delay > 0)
+							Thread.sleep(delay);
+						if ("W0000-00003".equals(id))
+							throw new ProcessingErrorException(WorkflowService.class.getSimpleName(),
+									ProcessingErrorException.INVALID_WORKITEM, "test");
+						return workitem;
+					}
+				});
+		return scheduler;
+	}
+
+	/**
+	 * Returns a scheduled activity 100.10 (10 days after last process)
+	 */
+	private Map<String, List<ItemCollection>> createScheduledActivities() {
+		ItemCollection activity = new ItemCollection();
+		activity.replaceItemValue("numprocessid", 100);
+		activity.replaceItemValue("numactivityid", 10);
+		activity.replaceItemValue("keyScheduledActivity", "1");
+		activity.replaceItemValue("keyActivityDelayUnit", "3");
+		activity.replaceItemValue("keyScheduledBaseObject", "1");
+		activity.replaceItemValue("numActivityDelay", 10);
+		Map<String, List<ItemCollection>> scheduledActivities = new HashMap<String, List<ItemCollection>>();
+		scheduledActivities.put("1.0.0|100", Arrays.asList(activity));
+		return scheduledActivities;
+	}
 
 	/**
 	 * This method tests the addWorkDays function in a weekday movement from
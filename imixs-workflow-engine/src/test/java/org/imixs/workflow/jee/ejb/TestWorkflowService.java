@@ -88,6 +88,44 @@ public class TestWorkflowService extends AbstractWorkflowEnvironment {
 
 	}
 
+	/**
+	 * This test processes a list of workitems in one batch. The second
+	 * workitem provides a wrong $processID and is reported with an error code.
+	 */
+	@Test
+	public void testProcessWorkItems() {
+		List<ItemCollection> workitems = new ArrayList<ItemCollection>();
+		workitems.add(database.get("W0000-00001"));
+
+		ItemCollection invalidWorkitem = new ItemCollection();
+		invalidWorkitem.replaceItemValue(EntityService.UNIQUEID, "W0000-00002");
+		invalidWorkitem.replaceItemValue("$ProcessID", 200);
+		invalidWorkitem.replaceItemValue("$ActivityID", 10);
+		workitems.add(invalidWorkitem);
+
+		ItemCollection newWorkitem = new ItemCollection();
+		newWorkitem.replaceItemValue("$ModelVersion", "1.0.0");
+		newWorkitem.replaceItemValue("$ProcessID", 100);
+		newWorkitem.replaceItemValue("$ActivityID", 20);
+		workitems.add(newWorkitem);
+
+		List<ItemCollection> result = workflowService.processWorkItems(workitems);
+
+		Assert.assertEquals(3, result.size());
+		Assert.assertFalse(result.get(0).hasItem("$error_code"));
+		Assert.assertEquals(100, result.get(0).getItemValueInteger("$ProcessID"));
+		Assert.assertEquals(ProcessingErrorException.INVALID_PROCESSID,
+				result.get(1).getItemValueString("$error_code"));
+		Assert.assertFalse(result.get(2).hasItem("$error_code"));
+		Assert.assertEquals(200, result.get(2).getItemValueInteger("$ProcessID"));
+		Assert.assertFalse(result.get(2).getItemValueString(EntityService.UNIQUEID).isEmpty());
+
+		// only valid workitems are saved
+		Mockito.verify(entityService, Mockito.times(1)).load(Mockito.anyCollectionOf(String.class));
+		Mockito.verify(entityService, Mockito.never()).save(Mockito.any(ItemCollection.class));
+		Assert.assertEquals(100, database.get("W0000-00002").getItemValueInteger("$ProcessID"));
+	}
+
 	/**
 	 * test if the method getEvents returns correct lists of workflow events.
 	 */
@@ -0,0 +1,43 @@
+package org.imixs.workflow.jee.jpa;
+
+import java.util.Calendar;
+
+import org.junit.Test;
+
+import junit.framework.Assert;
+
+/**
+ * Test class for the JPA Entity
+ * 
+ * This test verifies that the modification time is not updated by the
+ * lifecycle callback if the entity is saved with the flag 'keepModified'.
+ * 
+ * @author rsoika
+ */
+public class TestEntity {
+
+	@Test
+	public void testKeepModified() {
+		Calendar cal = Calendar.getInstance();
+		cal.add(Calendar.DAY_OF_MONTH, -14);
+
+		Entity entity = new Entity("W0000-00001");
+		entity.setModified((Calendar) cal.clone());
+		entity.updateModified();
+		Assert.assertTrue(entity.getModified().after(cal));
+
+		// the modification time is kept
+		entity.setModified((Calendar) cal.clone());
+		entity.setKeepModified(true);
+		entity.updateModified();
+		Assert.assertEquals(cal.getTimeInMillis(), entity.getModified().getTimeInMillis());
+
+		// a new entity
+		entity = new Entity("W0000-00002");
+		entity.setKeepModified(true);
+		entity.setModified(null);
+		entity.updateModified();
+		Assert.assertNotNull(entity.getModified());
+	}
+
+}
@@ -1,5 +1,7 @@
 package org.imixs.workflow.plugins;
 
+import java.text.ParseException;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Vector;
 import java.util.logging.Logger;
@@ -182,6 +184,39 @@ public class TestAbstractPlugin {
 
 	}
 
+	/**
+	 * Test the parsing of templates with several tags. A template is parsed only
+	 * once and item values are not parsed for tags.
+	 * 
+	 * @throws PluginException
+	 * @throws ParseException
+	 */
+	@Test
+	public void testItemValueTemplate() throws PluginException, ParseException {
+		String testString = "<ItemValue Separator=\"<br />\">_team</ItemValue> - <itemvalue>txtname</itemvalue>"
+				+ " <itemvalue>_empty</itemvalue>(<itemvalue separator=\", \">_numbers</itemvalue>)";
+
+		documentContext = new ItemCollection();
+		documentContext.replaceItemValue("_team", Arrays.asList("Anna", "Manfred"));
+		documentContext.replaceItemValue("txtName", "<itemvalue>_team</itemvalue>");
+		documentContext.replaceItemValue("_numbers", Arrays.asList(1, 2));
+
+		TestPlugin applicationPlugin = new TestPlugin();
+		String resultString = applicationPlugin.replaceDynamicValues(testString, documentContext);
+		Assert.assertEquals("Anna<br />Manfred - <itemvalue>_team</itemvalue> (1, 2)", resultString);
+
+		// the template is cached
+		Assert.assertSame(ItemValueTemplate.compile(testString), ItemValueTemplate.compile(testString));
+
+		// missing item name
+		try {
+			applicationPlugin.replaceDynamicValues("Hello <itemvalue></itemvalue>", documentContext);
+			Assert.fail();
+		} catch (PluginException e) {
+			Assert.assertEquals(AbstractPlugin.INVALID_ITEMVALUE_FORMAT, e.getErrorCode());
+		}
+	}
+
 	/**
 	 * This is a test plugin extending the AbstractPlugion to be used for
 	 * several tests in this jUnit test only
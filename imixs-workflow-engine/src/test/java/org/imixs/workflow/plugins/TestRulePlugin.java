@@ -804,4 +804,92 @@ public class TestRulePlugin {
 
 	}
 
+	/**
+	 * This test verifies that a pooled script engine is reused after close()
+	 * and that variables of a previous script are not visible.
+	 * 
+	 * @throws PluginException
+	 */
+	@Test
+	public void testEnginePool() throws PluginException {
+		ItemCollection adocumentContext = new ItemCollection();
+		adocumentContext.replaceItemValue("txtName", "Anna");
+		ItemCollection adocumentActivity = new ItemCollection();
+		adocumentActivity.replaceItemValue("txtList", Arrays.asList("a", "b"));
+
+		String script = "var isValid = ('Manfred'==txtname[0]);"
+				+ " activity.put('txtlist',['c','d','e']);";
+		adocumentActivity.replaceItemValue("txtBusinessRule", script);
+		ScriptEngine engine = rulePlugin.evaluateBusinessRule(adocumentContext, adocumentActivity);
+		Assert.assertFalse((Boolean) engine.get("isValid"));
+		rulePlugin.close(Plugin.PLUGIN_OK);
+
+		// the engine is taken from the pool and the cached script is
+		// evaluated with the new workitem values
+		adocumentContext.replaceItemValue("txtName", "Manfred");
+		RulePlugin rulePlugin2 = new RulePlugin();
+		rulePlugin2.init(null);
+		Assert.assertEquals(Plugin.PLUGIN_OK, rulePlugin2.run(adocumentContext, adocumentActivity));
+		Assert.assertSame(engine, rulePlugin2.evaluateBusinessRule(adocumentContext, adocumentActivity));
+		Assert.assertEquals(Arrays.asList("c", "d", "e"), adocumentActivity.getItemValue("txtList"));
+
+		// the variable isValid of the previous script is not defined
+		adocumentActivity.replaceItemValue("txtBusinessRule", "var a=1;");
+		engine = rulePlugin2.evaluateBusinessRule(adocumentContext, adocumentActivity);
+		Assert.assertNull(engine.get("isValid"));
+		Assert.assertTrue(rulePlugin2.isValid(adocumentContext, adocumentActivity));
+		rulePlugin2.close(Plugin.PLUGIN_OK);
+	}
+
+	/**
+	 * This test verifies a business rule evaluated by the Imixs rule engine
+	 * 
+	 * @throws PluginException
+	 */
+	@Test
+	public void testImixsRuleEngine() throws PluginException {
+		ItemCollection adocumentContext = new ItemCollection();
+		adocumentContext.replaceItemValue("amount", 1500);
+		adocumentContext.replaceItemValue("txtStatus", "open");
+		ItemCollection adocumentActivity = new ItemCollection();
+		adocumentActivity.replaceItemValue("txtBusinessRuleEngine", "imixs-rule");
+		adocumentActivity.replaceItemValue("keymailenabled", "1");
+
+		// guard
+		adocumentActivity.replaceItemValue("txtBusinessRule",
+				"isValid = workitem.amount[0] > 1000 && workitem.txtstatus[0]=='open'");
+		Assert.assertTrue(rulePlugin.isValid(adocumentContext, adocumentActivity));
+
+		// followUp, nextTask and activity values
+		adocumentActivity.replaceItemValue("txtBusinessRule", "if (amount[0] > 1000) { followUp=20; nextTask=1100; }"
+				+ " activity.put('keymailenabled', ['0']);");
+		Assert.assertEquals(Plugin.PLUGIN_OK, rulePlugin.run(adocumentContext, adocumentActivity));
+		Assert.assertEquals("1", adocumentActivity.getItemValueString("keyFollowUp"));
+		Assert.assertEquals(20, adocumentActivity.getItemValueInteger("numNextActivityID"));
+		Assert.assertEquals(1100, adocumentActivity.getItemValueInteger("numNextProcessID"));
+		Assert.assertEquals("0", adocumentActivity.getItemValueString("keymailenabled"));
+
+		// validation error
+		adocumentActivity.replaceItemValue("txtBusinessRule", "var isValid = !('open' in workitem.txtstatus);"
+				+ " errorCode='MY_ERROR'; errorMessage=['a', 'b'];");
+		try {
+			rulePlugin.run(adocumentContext, adocumentActivity);
+			Assert.fail();
+		} catch (PluginException e) {
+			Assert.assertEquals("MY_ERROR", e.getErrorCode());
+			Assert.assertEquals(2, e.getErrorParameters().length);
+			Assert.assertEquals("b", e.getErrorParameters()[1]);
+		}
+
+		// invalid script
+		adocumentActivity.replaceItemValue("txtBusinessRule", "isValid = (1 < 2");
+		try {
+			rulePlugin.run(adocumentContext, adocumentActivity);
+			Assert.fail();
+		} catch (PluginException e) {
+			Assert.assertEquals(RulePlugin.INVALID_SCRIPT, e.getErrorCode());
+		}
+		rulePlugin.close(Plugin.PLUGIN_OK);
+	}
+
 }
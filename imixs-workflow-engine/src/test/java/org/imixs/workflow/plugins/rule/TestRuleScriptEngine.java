@@ -0,0 +1,165 @@
+package org.imixs.workflow.plugins.rule;
+
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.script.Bindings;
+import javax.script.CompiledScript;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineManager;
+import javax.script.ScriptException;
+
+import junit.framework.Assert;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test class for the RuleScriptEngine
+ * 
+ * @author rsoika
+ */
+public class TestRuleScriptEngine {
+	RuleScriptEngine engine = null;
+	Map<String, Object> workitem = null;
+
+	@Before
+	public void setup() {
+		engine = new RuleScriptEngine();
+		workitem = new HashMap<String, Object>();
+		workitem.put("amount", new Object[] { 1500 });
+		workitem.put("txtstatus", new Object[] { "open" });
+		workitem.put("team", new Object[] { "anna", "manfred" });
+		engine.put("workitem", workitem);
+	}
+
+	/**
+	 * Test comparisons and boolean logic
+	 */
+	@Test
+	public void testExpressions() throws ScriptException {
+		Assert.assertEquals(Boolean.TRUE,
+				engine.eval("workitem.amount[0] > 1000 && workitem.txtstatus[0]=='open'"));
+		Assert.assertEquals(Boolean.FALSE, engine.eval("workitem.amount[0] <= 1000 || !(1 < 2)"));
+		Assert.assertEquals(Boolean.TRUE, engine.eval("workitem.get('amount')[0] == '1500'"));
+		Assert.assertEquals(Boolean.FALSE, engine.eval("workitem.get('amount')[0] === '1500'"));
+		Assert.assertEquals(Boolean.TRUE, engine.eval("'abc' < 'abd' && 2.5 >= 2"));
+		Assert.assertEquals(7, engine.eval("1 + 2 * 3"));
+		Assert.assertEquals(2.5, engine.eval("5 / 2"));
+		Assert.assertEquals("a1", engine.eval("'a' + 1"));
+		Assert.assertEquals("yes", engine.eval("workitem.amount.length == 1 ? 'yes' : 'no'"));
+
+		// missing values
+		Assert.assertNull(engine.eval("workitem.unknown[0]"));
+		Assert.assertEquals(Boolean.FALSE, engine.eval("workitem.unknown[0] > 1"));
+		Assert.assertEquals(Boolean.FALSE, engine.eval("workitem.unknown[0] < 1"));
+		Assert.assertEquals(Boolean.TRUE, engine.eval("workitem.unknown[0] == null"));
+		Assert.assertEquals(Boolean.TRUE, engine.eval("isEmpty(workitem.unknown)"));
+	}
+
+	/**
+	 * Test the membership of multi-value items
+	 */
+	@Test
+	public void testMembership() throws ScriptException {
+		Assert.assertEquals(Boolean.TRUE, engine.eval("'manfred' in workitem.team"));
+		Assert.assertEquals(Boolean.FALSE, engine.eval("'tom' in workitem.team"));
+		Assert.assertEquals(Boolean.TRUE, engine.eval("contains(workitem.team, 'anna')"));
+		Assert.assertEquals(Boolean.TRUE, engine.eval("workitem.team.contains('anna')"));
+		Assert.assertEquals(Boolean.TRUE, engine.eval("1500 in [100, 1500]"));
+		Assert.assertEquals(Boolean.TRUE, engine.eval("'team' in workitem"));
+	}
+
+	/**
+	 * Test the date functions
+	 */
+	@Test
+	public void testDates() throws ScriptException {
+		Calendar cal = Calendar.getInstance();
+		cal.add(Calendar.DAY_OF_MONTH, -3);
+		workitem.put("datdue", new Object[] { cal.getTime() });
+		workitem.put("datcal", new Object[] { cal });
+
+		Assert.assertEquals(Boolean.TRUE, engine.eval("workitem.datdue[0] < now()"));
+		Assert.assertEquals(Boolean.TRUE, engine.eval("workitem.datcal[0] < today()"));
+		Assert.assertEquals(Boolean.TRUE, engine.eval("addDays(workitem.datdue[0], 5) > now()"));
+		Assert.assertEquals(3, engine.eval("daysBetween(workitem.datdue[0], now())"));
+		Assert.assertEquals(31, engine.eval("daysBetween(date('2016-01-01'), date('01.02.2016','dd.MM.yyyy'))"));
+		Assert.assertEquals(Boolean.TRUE, engine.eval("date('2016-01-01') == date('2016-01-01')"));
+		Assert.assertTrue(engine.eval("addHours(now(), 1)") instanceof Date);
+	}
+
+	/**
+	 * Test statements and variables
+	 */
+	@Test
+	public void testStatements() throws ScriptException {
+		String script = "// rule\n var isValid=true, followUp; /* comment */\n"
+				+ "if (workitem.amount[0]>1000) { isValid=false; followUp=20; } else followUp=30;\n"
+				+ "var errorMessage = new Array(); errorMessage[0]='Error'; errorMessage[1]=\"Second \\\"one\\\"\";";
+		engine.eval(script);
+		Assert.assertEquals(Boolean.FALSE, engine.get("isValid"));
+		Assert.assertEquals(20, engine.get("followUp"));
+		Assert.assertEquals(Arrays.asList("Error", "Second \"one\""), engine.get("errorMessage"));
+
+		// put values into a map
+		engine.eval("workitem.put('keymailenabled', ['0']); workitem.txtname = 'Anna';");
+		Assert.assertEquals(Arrays.asList("0"), workitem.get("keymailenabled"));
+		Assert.assertEquals("Anna", workitem.get("txtname"));
+	}
+
+	/**
+	 * Test that a compiled script can be evaluated with different bindings
+	 */
+	@Test
+	public void testCompiledScript() throws ScriptException {
+		CompiledScript script = engine.compile("var isValid = amount[0] > 1000;");
+
+		Bindings bindings = engine.createBindings();
+		bindings.put("amount", new Object[] { 500 });
+		script.eval(bindings);
+		Assert.assertEquals(Boolean.FALSE, bindings.get("isValid"));
+
+		bindings = engine.createBindings();
+		bindings.put("amount", new Object[] { 5000.5 });
+		script.eval(bindings);
+		Assert.assertEquals(Boolean.TRUE, bindings.get("isValid"));
+	}
+
+	/**
+	 * Test syntax errors
+	 */
+	@Test
+	public void testSyntaxError() {
+		List<String> scripts = Arrays.asList("var isValid = (1 < 2;", "isValid = 'open", "1 = 2", "if (a) { b=1;",
+				"a = 1 # 2", "var if = 1");
+		for (String script : scripts) {
+			try {
+				engine.compile(script);
+				Assert.fail("Syntax error expected: " + script);
+			} catch (ScriptException e) {
+				Assert.assertTrue(e.getMessage().contains("Syntax error"));
+			}
+		}
+		try {
+			engine.eval("unknown(1)");
+			Assert.fail();
+		} catch (ScriptException e) {
+			Assert.assertTrue(e.getMessage().contains("unknown function"));
+		}
+	}
+
+	/**
+	 * Test the lookup of the engine by the ScriptEngineManager
+	 */
+	@Test
+	public void testScriptEngineManager() {
+		ScriptEngine scriptEngine = new ScriptEngineManager().getEngineByName(RuleScriptEngineFactory.ENGINE_NAME);
+		Assert.assertNotNull(scriptEngine);
+		Assert.assertTrue(scriptEngine instanceof RuleScriptEngine);
+	}
+}
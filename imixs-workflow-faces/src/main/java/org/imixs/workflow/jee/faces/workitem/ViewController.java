@@ -52,6 +52,12 @@ import org.imixs.workflow.jee.ejb.EntityService;
  * compute the result set. IViewAdapter can be adapted by any custom
  * implementation.
  * 
+ * If the JPQL statement of a view has no ORDER BY clause or is ordered by the
+ * attribute 'created' or 'modified', the default IViewAdapter reads the pages
+ * with keyset pagination. The ViewController stores the $continuationtoken of
+ * the last workitem of each page to navigate between the pages. Other views
+ * are read with offset pagination.
+ * 
  * The ViewController bean should be used in ViewScope.
  * 
  * @author rsoika
@@ -64,6 +70,8 @@ public class ViewController implements Serializable {
 	private int maxResult = 10;
 	private int row = 0;
 	private boolean endOfList = false;
+	private String continuationToken = null;
+	private ArrayList<String> previousTokens = new ArrayList<String>();
 
 	/* views */
 	private Map<String, String> views = null;
@@ -193,6 +201,8 @@ public class ViewController implements Serializable {
 	public void doReset() {
 		workitems = null;
 		row = 0;
+		continuationToken = null;
+		previousTokens.clear();
 	}
 	public void doReset(ActionEvent event) {
 		doReset();
@@ -217,6 +227,12 @@ public class ViewController implements Serializable {
 
 	public void doLoadNext() {
 		row = row + maxResult;
+		// remember the continuation token of the current page
+		previousTokens.add(continuationToken);
+		continuationToken = null;
+		if (workitems != null && !workitems.isEmpty())
+			continuationToken = workitems.get(workitems.size() - 1).getItemValueString(
+					EntityService.CONTINUATIONTOKEN);
 		workitems = null;
 	}
 	public void doLoadNext(ActionEvent event) {
@@ -230,6 +246,10 @@ public class ViewController implements Serializable {
 		row = row - maxResult;
 		if (row < 0)
 			row = 0;
+		if (previousTokens.isEmpty())
+			continuationToken = null;
+		else
+			continuationToken = previousTokens.remove(previousTokens.size() - 1);
 		workitems = null;
 	}
 	public void doLoadPrev(ActionEvent event) {
@@ -290,6 +310,18 @@ public class ViewController implements Serializable {
 		return row;
 	}
 
+	/**
+	 * Returns the $continuationtoken of the last workitem of the previous page
+	 * or null if the first page is displayed.
+	 * 
+	 * @return continuation token
+	 */
+	public String getContinuationToken() {
+		if (continuationToken == null || continuationToken.isEmpty())
+			return null;
+		return continuationToken;
+	}
+
 	public boolean isEndOfList() {
 		return endOfList;
 	}
@@ -314,8 +346,15 @@ public class ViewController implements Serializable {
 		public List<ItemCollection> getViewEntries(
 				final ViewController controller) {
 
+			String query = controller.views.get(controller.view);
+
+			// keyset pagination if supported by the query
+			if (EntityService.isKeysetQuery(query))
+				return controller.getEntityService().findAllEntitiesAfter(query,
+						controller.getContinuationToken(), controller.maxResult);
+
 			List<ItemCollection> result = controller.getEntityService()
-					.findAllEntities(controller.views.get(controller.view),
+					.findAllEntities(query,
 							controller.row, controller.maxResult);
 
 			return result;
@@ -57,7 +57,9 @@ import javax.ws.rs.core.StreamingOutput;
 
 import org.imixs.workflow.ItemCollection;
 import org.imixs.workflow.exceptions.AccessDeniedException;
+import org.imixs.workflow.jee.ejb.EntityIndexJob;
 import org.imixs.workflow.jee.ejb.EntityService;
+import org.imixs.workflow.jee.ejb.FullTextIndexService;
 import org.imixs.workflow.xml.EntityCollection;
 import org.imixs.workflow.xml.XMLCount;
 import org.imixs.workflow.xml.XMLIndexList;
@@ -79,6 +81,12 @@ public class EntityRestService {
 	@EJB
 	private EntityService entityService;
 
+	@EJB
+	private EntityIndexJob entityIndexJob;
+
+	@EJB
+	private FullTextIndexService fullTextIndexService;
+
 	@javax.ws.rs.core.Context
 	private static HttpServletRequest servletRequest;
 
@@ -159,6 +167,76 @@ public class EntityRestService {
 	}
 
 
+	/**
+	 * Returns the entities containing all terms of a full-text query. A term
+	 * ending with '*' matches all terms with this prefix.
+	 * 
+	 * @param query
+	 *            - search terms
+	 * @param type
+	 *            - optional type of the entities
+	 * @param start
+	 * @param count
+	 * @param items
+	 * @return
+	 */
+	@GET
+	@Path("/search")
+	public EntityCollection search(@QueryParam("query") String query,
+			@QueryParam("type") String type,
+			@DefaultValue("0") @QueryParam("start") int start,
+			@DefaultValue("10") @QueryParam("count") int count,
+			@QueryParam("items") String items) {
+		Collection<ItemCollection> col = null;
+		try {
+			logger.fine("Search=" + query);
+			col = entityService.search(query, type, start, count);
+			return XMLItemCollectionAdapter.putCollection(col,
+					getItemList(items));
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+		return new EntityCollection();
+	}
+
+	/**
+	 * Returns the status of the full-text index (see
+	 * FullTextIndexService.getStatus)
+	 * 
+	 * @return
+	 */
+	@GET
+	@Path("/search/status")
+	public Response getSearchStatus() {
+		if (servletRequest.isUserInRole("org.imixs.ACCESSLEVEL.MANAGERACCESS") == false) {
+			return Response.status(Response.Status.UNAUTHORIZED).build();
+		}
+		try {
+			return Response.ok(
+					XMLItemCollectionAdapter.putItemCollection(fullTextIndexService
+							.getStatus()), MediaType.APPLICATION_XML).build();
+		} catch (Exception e) {
+			e.printStackTrace();
+			return Response.status(Response.Status.INTERNAL_SERVER_ERROR)
+					.build();
+		}
+	}
+
+	/**
+	 * Rebuilds the full-text index in the background
+	 * 
+	 * @return
+	 */
+	@PUT
+	@Path("/search/rebuild")
+	public Response rebuildSearchIndex() {
+		if (servletRequest.isUserInRole("org.imixs.ACCESSLEVEL.MANAGERACCESS") == false) {
+			return Response.status(Response.Status.UNAUTHORIZED).build();
+		}
+		fullTextIndexService.rebuild();
+		return Response.status(Response.Status.OK).build();
+	}
+
 	/**
 	 * Returns the size of a result set by JPQL Query
 	 * 
@@ -200,7 +278,31 @@ public class EntityRestService {
 	}
 
 	/**
-	 * Adds a new Imixs-Entity-Index to index list of the Imixs EntityService
+	 * Returns the status of the background update of existing entities after
+	 * an index was added or removed (see EntityIndexJob.getStatus)
+	 * 
+	 * @return
+	 */
+	@GET
+	@Path("/index")
+	public Response getIndexStatus() {
+		if (servletRequest.isUserInRole("org.imixs.ACCESSLEVEL.MANAGERACCESS") == false) {
+			return Response.status(Response.Status.UNAUTHORIZED).build();
+		}
+		try {
+			return Response.ok(
+					XMLItemCollectionAdapter.putItemCollection(entityIndexJob
+							.getStatus()), MediaType.APPLICATION_XML).build();
+		} catch (Exception e) {
+			e.printStackTrace();
+			return Response.status(Response.Status.INTERNAL_SERVER_ERROR)
+					.build();
+		}
+	}
+
+	/**
+	 * Adds a new Imixs-Entity-Index to index list of the Imixs EntityService.
+	 * Existing entities are updated in the background.
 	 * 
 	 * @param name
 	 *            - name of index field
@@ -329,7 +431,8 @@ public class EntityRestService {
 	/**
 	 * This method creates a backup of the result set form a JQPL query. The
 	 * entity list will be stored into the file system. The backup can be restored 
-	 * by calling the restore method
+	 * by calling the restore method. The response contains the summary of the
+	 * backup.
 	 * 
 	 * 
 	 * @param query
@@ -347,20 +450,29 @@ public class EntityRestService {
 		if (servletRequest.isUserInRole("org.imixs.ACCESSLEVEL.MANAGERACCESS") == false) {
 			return Response.status(Response.Status.UNAUTHORIZED).build();
 		}
+		ItemCollection summary = null;
 		try {
-			entityService.backup(query, filepath);
+			summary = entityService.backup(query, filepath);
 		} catch (IOException e) {
 			e.printStackTrace();
 			return Response.status(Response.Status.INTERNAL_SERVER_ERROR)
 					.build();
 		}
 
-		return Response.status(Response.Status.OK).build();
+		try {
+			return Response.ok(
+					XMLItemCollectionAdapter.putItemCollection(summary),
+					MediaType.APPLICATION_XML).build();
+		} catch (Exception e) {
+			e.printStackTrace();
+			return Response.status(Response.Status.OK).build();
+		}
 
 	}
 
 	/**
-	 * This method restores a backup from the fileSystem
+	 * This method restores a backup from the fileSystem. The response contains
+	 * the summary of the restore (see EntityService.restore).
 	 * 
 	 * @param filepath
 	 *            - path in server fileSystem
@@ -373,15 +485,23 @@ public class EntityRestService {
 		if (servletRequest.isUserInRole("org.imixs.ACCESSLEVEL.MANAGERACCESS") == false) {
 			return Response.status(Response.Status.UNAUTHORIZED).build();
 		}
+		ItemCollection summary = null;
 		try {
-			entityService.restore( filepath);
+			summary = entityService.restore(filepath);
 		} catch (IOException e) {
 			e.printStackTrace();
 			return Response.status(Response.Status.INTERNAL_SERVER_ERROR)
 					.build();
 		}
 
-		return Response.status(Response.Status.OK).build();
+		try {
+			return Response.ok(
+					XMLItemCollectionAdapter.putItemCollection(summary),
+					MediaType.APPLICATION_XML).build();
+		} catch (Exception e) {
+			e.printStackTrace();
+			return Response.status(Response.Status.OK).build();
+		}
 
 	}
 
@@ -35,6 +35,7 @@ import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
 import java.text.ParseException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
@@ -67,6 +68,7 @@ import org.imixs.workflow.exceptions.AccessDeniedException;
 import org.imixs.workflow.exceptions.PluginException;
 import org.imixs.workflow.exceptions.ProcessingErrorException;
 import org.imixs.workflow.exceptions.WorkflowException;
+import org.imixs.workflow.jee.ejb.EntityService;
 import org.imixs.workflow.jee.ejb.WorkflowService;
 import org.imixs.workflow.util.JSONParser;
 import org.imixs.workflow.xml.EntityCollection;
@@ -86,7 +88,7 @@ import org.imixs.workflow.xml.XMLItemCollectionAdapter;
 public class WorkflowRestService {
 
 	@EJB
-	private WorkflowService workflowService;
+	WorkflowService workflowService;
 
 	@javax.ws.rs.core.Context
 	private static HttpServletRequest servletRequest;
@@ -269,14 +271,21 @@ public class WorkflowRestService {
 	 * @param count
 	 * @param type
 	 * @param sortorder
+	 * @param continuationToken
+	 *            - optional $continuationtoken of the last workitem of the
+	 *            previous page
+	 * @param keyset
+	 *            - true to read the first page with keyset pagination
 	 */
 	@GET
 	@Path("/worklist")
 	public EntityCollection getWorkList(@DefaultValue("0") @QueryParam("start") int start,
 			@DefaultValue("10") @QueryParam("count") int count, @QueryParam("type") String type,
-			@DefaultValue("0") @QueryParam("sortorder") int sortorder, @QueryParam("items") String items) {
+			@DefaultValue("0") @QueryParam("sortorder") int sortorder, @QueryParam("items") String items,
+			@QueryParam("continuationtoken") String continuationToken,
+			@DefaultValue("false") @QueryParam("keyset") boolean keyset) {
 		
-		return getTaskListByOwner(null, start, count, type, sortorder, items);
+		return getTaskListByOwner(null, start, count, type, sortorder, items, continuationToken, keyset);
 	}
 
 	@GET
@@ -284,7 +293,8 @@ public class WorkflowRestService {
 	public EntityCollection getTaskListByOwner(@PathParam("owner") String owner,
 			@DefaultValue("0") @QueryParam("start") int start, @DefaultValue("10") @QueryParam("count") int count,
 			@QueryParam("type") String type, @DefaultValue("0") @QueryParam("sortorder") int sortorder,
-			@QueryParam("items") String items) {
+			@QueryParam("items") String items, @QueryParam("continuationtoken") String continuationToken,
+			@DefaultValue("false") @QueryParam("keyset") boolean keyset) {
 		Collection<ItemCollection> col = null;
 		try {
 			if ("null".equalsIgnoreCase(owner))
@@ -294,8 +304,12 @@ public class WorkflowRestService {
 			if (owner != null)
 				owner = URLDecoder.decode(owner, "UTF-8");
 	
-			col = workflowService.getWorkListByOwner(owner, start, count, type, sortorder);
-			return XMLItemCollectionAdapter.putCollection(col, EntityRestService.getItemList(items));
+			keyset = isKeysetRequest(keyset, continuationToken);
+			if (keyset)
+				col = workflowService.getWorkListByOwner(owner, continuationToken, count, type, sortorder);
+			else
+				col = workflowService.getWorkListByOwner(owner, start, count, type, sortorder);
+			return XMLItemCollectionAdapter.putCollection(col, getTaskListItems(items, keyset));
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
@@ -310,13 +324,19 @@ public class WorkflowRestService {
 	 * @param count
 	 * @param type
 	 * @param sortorder
+	 * @param continuationToken
+	 *            - optional $continuationtoken of the last workitem of the
+	 *            previous page
+	 * @param keyset
+	 *            - true to read the first page with keyset pagination
 	 */
 	@GET
 	@Path("/tasklist/author/{user}")
 	public EntityCollection getTaskListByAuthor(@PathParam("user") String user,
 			@DefaultValue("0") @QueryParam("start") int start, @DefaultValue("10") @QueryParam("count") int count,
 			@QueryParam("type") String type, @DefaultValue("0") @QueryParam("sortorder") int sortorder,
-			@QueryParam("items") String items) {
+			@QueryParam("items") String items, @QueryParam("continuationtoken") String continuationToken,
+			@DefaultValue("false") @QueryParam("keyset") boolean keyset) {
 		Collection<ItemCollection> col = null;
 		try {
 			if ("null".equalsIgnoreCase(user))
@@ -326,8 +346,12 @@ public class WorkflowRestService {
 			if (user != null)
 				user = URLDecoder.decode(user, "UTF-8");
 
-			col = workflowService.getWorkListByAuthor(user, start, count, type, sortorder);
-			return XMLItemCollectionAdapter.putCollection(col, EntityRestService.getItemList(items));
+			keyset = isKeysetRequest(keyset, continuationToken);
+			if (keyset)
+				col = workflowService.getWorkListByAuthor(user, continuationToken, count, type, sortorder);
+			else
+				col = workflowService.getWorkListByAuthor(user, start, count, type, sortorder);
+			return XMLItemCollectionAdapter.putCollection(col, getTaskListItems(items, keyset));
 
 		} catch (Exception e) {
 			e.printStackTrace();
@@ -341,7 +365,8 @@ public class WorkflowRestService {
 	public EntityCollection getTaskListByCreator(@PathParam("creator") String creator,
 			@DefaultValue("0") @QueryParam("start") int start, @DefaultValue("10") @QueryParam("count") int count,
 			@QueryParam("type") String type, @DefaultValue("0") @QueryParam("sortorder") int sortorder,
-			@QueryParam("items") String items) {
+			@QueryParam("items") String items, @QueryParam("continuationtoken") String continuationToken,
+			@DefaultValue("false") @QueryParam("keyset") boolean keyset) {
 		Collection<ItemCollection> col = null;
 		try {
 			if ("null".equalsIgnoreCase(creator))
@@ -351,8 +376,12 @@ public class WorkflowRestService {
 			if (creator != null)
 				creator = URLDecoder.decode(creator, "UTF-8");
 
-			col = workflowService.getWorkListByCreator(creator, start, count, type, sortorder);
-			return XMLItemCollectionAdapter.putCollection(col, EntityRestService.getItemList(items));
+			keyset = isKeysetRequest(keyset, continuationToken);
+			if (keyset)
+				col = workflowService.getWorkListByCreator(creator, continuationToken, count, type, sortorder);
+			else
+				col = workflowService.getWorkListByCreator(creator, start, count, type, sortorder);
+			return XMLItemCollectionAdapter.putCollection(col, getTaskListItems(items, keyset));
 
 		} catch (Exception e) {
 			e.printStackTrace();
@@ -367,11 +396,16 @@ public class WorkflowRestService {
 	public EntityCollection getTaskListByProcessID(@PathParam("processid") int processid,
 			@DefaultValue("0") @QueryParam("start") int start, @DefaultValue("10") @QueryParam("count") int count,
 			@QueryParam("type") String type, @DefaultValue("0") @QueryParam("sortorder") int sortorder,
-			@QueryParam("items") String items) {
+			@QueryParam("items") String items, @QueryParam("continuationtoken") String continuationToken,
+			@DefaultValue("false") @QueryParam("keyset") boolean keyset) {
 		Collection<ItemCollection> col = null;
 		try {
-			col = workflowService.getWorkListByProcessID(processid, start, count, type, sortorder);
-			return XMLItemCollectionAdapter.putCollection(col, EntityRestService.getItemList(items));
+			keyset = isKeysetRequest(keyset, continuationToken);
+			if (keyset)
+				col = workflowService.getWorkListByProcessID(processid, continuationToken, count, type, sortorder);
+			else
+				col = workflowService.getWorkListByProcessID(processid, start, count, type, sortorder);
+			return XMLItemCollectionAdapter.putCollection(col, getTaskListItems(items, keyset));
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
@@ -384,7 +418,8 @@ public class WorkflowRestService {
 	public EntityCollection getTaskListByGroup(@PathParam("processgroup") String processgroup,
 			@DefaultValue("0") @QueryParam("start") int start, @DefaultValue("10") @QueryParam("count") int count,
 			@QueryParam("type") String type, @DefaultValue("0") @QueryParam("sortorder") int sortorder,
-			@QueryParam("items") String items) {
+			@QueryParam("items") String items, @QueryParam("continuationtoken") String continuationToken,
+			@DefaultValue("false") @QueryParam("keyset") boolean keyset) {
 		Collection<ItemCollection> col = null;
 		try {
 
@@ -392,8 +427,12 @@ public class WorkflowRestService {
 			if (processgroup != null)
 				processgroup = URLDecoder.decode(processgroup, "UTF-8");
 
-			col = workflowService.getWorkListByGroup(processgroup, start, count, type, sortorder);
-			return XMLItemCollectionAdapter.putCollection(col, EntityRestService.getItemList(items));
+			keyset = isKeysetRequest(keyset, continuationToken);
+			if (keyset)
+				col = workflowService.getWorkListByGroup(processgroup, continuationToken, count, type, sortorder);
+			else
+				col = workflowService.getWorkListByGroup(processgroup, start, count, type, sortorder);
+			return XMLItemCollectionAdapter.putCollection(col, getTaskListItems(items, keyset));
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
@@ -406,17 +445,51 @@ public class WorkflowRestService {
 	public EntityCollection getTaskListByRef(@PathParam("uniqueid") String uniqueid,
 			@DefaultValue("0") @QueryParam("start") int start, @DefaultValue("10") @QueryParam("count") int count,
 			@QueryParam("type") String type, @DefaultValue("0") @QueryParam("sortorder") int sortorder,
-			@QueryParam("items") String items) {
+			@QueryParam("items") String items, @QueryParam("continuationtoken") String continuationToken,
+			@DefaultValue("false") @QueryParam("keyset") boolean keyset) {
 		Collection<ItemCollection> col = null;
 		try {
-			col = workflowService.getWorkListByRef(uniqueid, start, count, type, sortorder);
-			return XMLItemCollectionAdapter.putCollection(col, EntityRestService.getItemList(items));
+			keyset = isKeysetRequest(keyset, continuationToken);
+			if (keyset)
+				col = workflowService.getWorkListByRef(uniqueid, continuationToken, count, type, sortorder);
+			else
+				col = workflowService.getWorkListByRef(uniqueid, start, count, type, sortorder);
+			return XMLItemCollectionAdapter.putCollection(col, getTaskListItems(items, keyset));
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
 		return new EntityCollection();
 	}
 
+	/**
+	 * Returns true if a tasklist should be read with keyset pagination. This
+	 * is the case for each request providing the $continuationtoken of the
+	 * last workitem of a previous page or the option 'keyset=true' to request
+	 * the first page. All other requests are read with offset pagination as
+	 * before.
+	 * 
+	 * @param keyset
+	 * @param continuationToken
+	 */
+	static boolean isKeysetRequest(boolean keyset, String continuationToken) {
+		return keyset || (continuationToken != null && !continuationToken.isEmpty());
+	}
+
+	/**
+	 * Returns the item list of a tasklist request. If the items of a keyset
+	 * request are restricted the list is extended by the $continuationtoken so
+	 * a client can request the next page.
+	 * 
+	 * @param items
+	 * @param keyset
+	 */
+	static List<String> getTaskListItems(String items, boolean keyset) {
+		List<String> itemList = EntityRestService.getItemList(items);
+		if (keyset && itemList != null && !itemList.contains(EntityService.CONTINUATIONTOKEN))
+			itemList.add(EntityService.CONTINUATIONTOKEN);
+		return itemList;
+	}
+
 	
 
 	
@@ -700,7 +773,12 @@ public class WorkflowRestService {
 
 	/**
 	 * This method post a collection of ItemCollection objects to be processed
-	 * by the WorkflowManager.
+	 * by the WorkflowManager. The workitems are processed in one batch (see
+	 * WorkflowService.processWorkItems()).
+	 * 
+	 * The method returns the list of processed workitems. If a workitem could
+	 * not be processed, the workitem contains the properties '$error_code' and
+	 * '$error_message' and the method returns the status NOT_ACCEPTABLE.
 	 * 
 	 * @param worklist
 	 *            - workitem list data
@@ -712,17 +790,27 @@ public class WorkflowRestService {
 
 		logger.fine("[WorkflowRestService] @POST /workitems  method:postWorkitemsXML....");
 
-		XMLItemCollection entity;
-		ItemCollection itemCollection;
+		List<ItemCollection> workitems = new ArrayList<ItemCollection>();
 		try {
-			// save new entities into database and update modelversion.....
 			for (int i = 0; i < worklist.getEntity().length; i++) {
-				entity = worklist.getEntity()[i];
-				itemCollection = XMLItemCollectionAdapter.getItemCollection(entity);
-				// process entity
-				workflowService.processWorkItem(itemCollection);
+				workitems.add(XMLItemCollectionAdapter.getItemCollection(worklist.getEntity()[i]));
 			}
-			return Response.status(Response.Status.OK).build();
+			// process all workitems
+			List<ItemCollection> result = workflowService.processWorkItems(workitems);
+
+			boolean hasErrors = false;
+			for (ItemCollection workitem : result) {
+				if (workitem.hasItem("$error_code")) {
+					hasErrors = true;
+					break;
+				}
+			}
+			if (hasErrors)
+				return Response.ok(XMLItemCollectionAdapter.putCollection(result), MediaType.APPLICATION_XML)
+						.status(Response.Status.NOT_ACCEPTABLE).build();
+			else
+				return Response.ok(XMLItemCollectionAdapter.putCollection(result), MediaType.APPLICATION_XML)
+						.build();
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
@@ -0,0 +1,146 @@
+package org.imixs.workflow.jaxrs;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.ws.rs.core.Response;
+
+import org.imixs.workflow.ItemCollection;
+import org.imixs.workflow.jee.ejb.EntityService;
+import org.imixs.workflow.jee.ejb.WorkflowService;
+import org.imixs.workflow.xml.EntityCollection;
+import org.imixs.workflow.xml.XMLItemCollectionAdapter;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+/**
+ * Test class for WorkflowRestService
+ * 
+ * @author rsoika
+ * 
+ */
+public class TestWorkflowRestService {
+
+	WorkflowRestService restService;
+
+	/**
+	 * Creates a WorkflowRestService with a WorkflowService mock. The mock adds
+	 * an error to each workitem with the item 'txtfail'
+	 */
+	@Before
+	public void setup() {
+		restService = new WorkflowRestService();
+		restService.workflowService = Mockito.mock(WorkflowService.class);
+		Mockito.when(restService.workflowService.processWorkItems(Mockito.anyListOf(ItemCollection.class)))
+				.thenAnswer(new Answer<List<ItemCollection>>() {
+					@SuppressWarnings("unchecked")
+					@Override
+					public List<ItemCollection> answer(InvocationOnMock invocation) throws Throwable {
+						List<ItemCollection> result = new ArrayList<ItemCollection>();
+						for (ItemCollection workitem : (List<ItemCollection>) invocation.getArguments()[0]) {
+							if (workitem.hasItem("txtfail")) {
+								workitem.replaceItemValue("$error_code", "INVALID_ACTIVITYID");
+								workitem.replaceItemValue("$error_message", "activity not defined");
+							} else {
+								workitem.replaceItemValue("$processid", 1100);
+							}
+							result.add(workitem);
+						}
+						return result;
+					}
+				});
+	}
+
+	/**
+	 * test POST /workitems with all workitems processed
+	 */
+	@Test
+	public void testPutWorkitems() throws Exception {
+		Response response = restService.putWorkitemsXML(createWorklist(false));
+		Assert.assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+
+		List<ItemCollection> result = getResult(response);
+		Assert.assertEquals(2, result.size());
+		Assert.assertEquals(1100, result.get(0).getItemValueInteger("$processid"));
+		Assert.assertFalse(result.get(0).hasItem("$error_code"));
+		Assert.assertFalse(result.get(1).hasItem("$error_code"));
+	}
+
+	/**
+	 * test POST /workitems with a failing workitem. The response has the
+	 * status NOT_ACCEPTABLE and contains the error of the failed workitem.
+	 */
+	@Test
+	public void testPutWorkitemsWithError() throws Exception {
+		Response response = restService.putWorkitemsXML(createWorklist(true));
+		Assert.assertEquals(Response.Status.NOT_ACCEPTABLE.getStatusCode(), response.getStatus());
+
+		List<ItemCollection> result = getResult(response);
+		Assert.assertEquals(2, result.size());
+		Assert.assertEquals("W1", result.get(0).getItemValueString("$uniqueid"));
+		Assert.assertFalse(result.get(0).hasItem("$error_code"));
+		Assert.assertEquals(1100, result.get(0).getItemValueInteger("$processid"));
+		Assert.assertEquals("W2", result.get(1).getItemValueString("$uniqueid"));
+		Assert.assertEquals("INVALID_ACTIVITYID", result.get(1).getItemValueString("$error_code"));
+		Assert.assertEquals("activity not defined", result.get(1).getItemValueString("$error_message"));
+	}
+
+	/**
+	 * test if keyset pagination is only used with a continuation token or the
+	 * option keyset=true
+	 */
+	@Test
+	public void testIsKeysetRequest() {
+		// offset pagination
+		Assert.assertFalse(WorkflowRestService.isKeysetRequest(false, null));
+		Assert.assertFalse(WorkflowRestService.isKeysetRequest(false, ""));
+
+		// keyset pagination
+		Assert.assertTrue(WorkflowRestService.isKeysetRequest(true, null));
+		Assert.assertTrue(WorkflowRestService.isKeysetRequest(false, "1445245245000_14b0ae95b3a-1f4b0e6e"));
+	}
+
+	/**
+	 * test if the $continuationtoken is only added to the items of a keyset
+	 * request
+	 */
+	@Test
+	public void testGetTaskListItems() {
+		List<String> items = WorkflowRestService.getTaskListItems("txtname,$uniqueid", false);
+		Assert.assertEquals(2, items.size());
+		Assert.assertFalse(items.contains(EntityService.CONTINUATIONTOKEN));
+
+		items = WorkflowRestService.getTaskListItems("txtname,$uniqueid", true);
+		Assert.assertEquals(3, items.size());
+		Assert.assertTrue(items.contains(EntityService.CONTINUATIONTOKEN));
+
+		Assert.assertNull(WorkflowRestService.getTaskListItems(null, true));
+	}
+
+	private EntityCollection createWorklist(boolean fail) throws Exception {
+		List<ItemCollection> workitems = new ArrayList<ItemCollection>();
+		ItemCollection workitem = new ItemCollection();
+		workitem.replaceItemValue("$uniqueid", "W1");
+		workitems.add(workitem);
+		workitem = new ItemCollection();
+		workitem.replaceItemValue("$uniqueid", "W2");
+		if (fail)
+			workitem.replaceItemValue("txtfail", true);
+		workitems.add(workitem);
+		return XMLItemCollectionAdapter.putCollection(workitems);
+	}
+
+	private List<ItemCollection> getResult(Response response) {
+		EntityCollection entityCollection = (EntityCollection) response.getEntity();
+		List<ItemCollection> result = new ArrayList<ItemCollection>();
+		for (int i = 0; i < entityCollection.getEntity().length; i++) {
+			result.add(XMLItemCollectionAdapter.getItemCollection(entityCollection.getEntity()[i]));
+		}
+		return result;
+	}
+
+}